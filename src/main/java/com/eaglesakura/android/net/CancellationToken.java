@@ -0,0 +1,97 @@
+package com.eaglesakura.android.net;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 通信のキャンセル通知
+ * <p>
+ * cancel()が呼び出された時点で登録済みのリスナーを呼び出し、読み込み待ちの接続を切断したり、リトライ待機中のスレッドを起こす。
+ * CancelCallbackによるポーリングと異なり、停止したサーバーを待っているスレッドも即座に解放される。
+ */
+public class CancellationToken {
+    private final List<Runnable> mListeners = new ArrayList<>();
+
+    private boolean mCanceled;
+
+    /**
+     * リスナーの登録解除を行う
+     */
+    public interface Registration {
+        void unregister();
+    }
+
+    /**
+     * キャンセルを通知する。
+     * <p>
+     * リスナーは呼び出しスレッドで実行される。
+     */
+    public void cancel() {
+        List<Runnable> listeners;
+        synchronized (this) {
+            if (mCanceled) {
+                return;
+            }
+            mCanceled = true;
+            listeners = new ArrayList<>(mListeners);
+            mListeners.clear();
+            notifyAll();
+        }
+
+        for (Runnable listener : listeners) {
+            try {
+                listener.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public synchronized boolean isCanceled() {
+        return mCanceled;
+    }
+
+    /**
+     * キャンセル時に呼び出されるリスナーを登録する。
+     * <p>
+     * 既にキャンセルされている場合、その場で呼び出される。
+     *
+     * @return 登録解除のためのハンドル
+     */
+    public Registration register(final Runnable listener) {
+        synchronized (this) {
+            if (!mCanceled) {
+                mListeners.add(listener);
+                return () -> {
+                    synchronized (CancellationToken.this) {
+                        mListeners.remove(listener);
+                    }
+                };
+            }
+        }
+
+        listener.run();
+        return () -> {
+        };
+    }
+
+    /**
+     * キャンセルされるか、指定時間が経過するまで待つ
+     *
+     * @return キャンセルされた場合true
+     */
+    public synchronized boolean await(long timeoutMs) throws InterruptedIOException {
+        final long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        try {
+            long waitNanos;
+            while (!mCanceled && (waitNanos = deadlineNanos - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("task interrupted");
+        }
+        return mCanceled;
+    }
+}
@@ -0,0 +1,71 @@
+package com.eaglesakura.android.net;
+
+import com.eaglesakura.android.net.parser.RequestParser;
+import com.eaglesakura.android.net.request.ConnectRequest;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * 非同期通信のハンドル
+ * <p>
+ * cancel()を呼び出すと接続が即座に切断され、通信スレッドとソケットが解放される。
+ * 切断処理はDispatcherのスレッドで行われるため、UIスレッドからcancel()を呼び出してもブロックしない。
+ */
+public class ConnectFuture<T> extends FutureTask<Result<T>> {
+    private final ConnectRequest mRequest;
+
+    private final CancellationToken mToken = new CancellationToken();
+
+    private final NetworkDispatcher mDispatcher;
+
+    ConnectFuture(ConnectRequest request, ConnectTask<T> task) {
+        super(task);
+        mRequest = request;
+        mDispatcher = task.mConnector.getDispatcher();
+        task.mFuture = this;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean result = super.cancel(mayInterruptIfRunning);
+        if (result) {
+            // 登録されたリスナーはソケットの切断等を行うため、呼び出し元のスレッドでは実行しない
+            mDispatcher.executeCancel(mToken::cancel);
+        }
+        return result;
+    }
+
+    /**
+     * リクエスト情報を取得する
+     */
+    public ConnectRequest getRequest() {
+        return mRequest;
+    }
+
+    static class ConnectTask<T> implements Callable<Result<T>> {
+        final NetworkConnector mConnector;
+
+        final ConnectRequest mRequest;
+
+        final RequestParser<T> mParser;
+
+        final NetworkConnector.CancelCallback<T> mCancelCallback;
+
+        ConnectFuture<T> mFuture;
+
+        ConnectTask(NetworkConnector connector, ConnectRequest request, RequestParser<T> parser, NetworkConnector.CancelCallback<T> cancelCallback) {
+            mConnector = connector;
+            mRequest = request;
+            mParser = parser;
+            mCancelCallback = cancelCallback;
+        }
+
+        @Override
+        public Result<T> call() throws Exception {
+            // cancel()はTokenへ通知されるため、CancelCallbackは呼び出し元が指定した場合のみ渡す
+            // 渡した場合、通信がブロックしている間はCancelWatchdogが定期的にチェックを行う
+            return mConnector.connect(mRequest, mParser, mCancelCallback, mFuture.mToken);
+        }
+    }
+}
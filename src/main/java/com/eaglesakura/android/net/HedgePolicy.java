@@ -0,0 +1,117 @@
+package com.eaglesakura.android.net;
+
+import com.eaglesakura.android.net.host.LatencyTracker;
+
+import android.support.annotation.FloatRange;
+import android.support.annotation.IntRange;
+
+/**
+ * ヘッジリクエスト設定
+ * <p>
+ * 最初の通信が一定時間内に完了しない場合、同じリクエストをもう1つ送信し、先に完了した方を採用する。
+ * 遅れた方の通信はキャンセルされる。ヘッジは冪等なGET/HEADのみが対象となる。
+ */
+public class HedgePolicy {
+    /**
+     * ヘッジを送信するまでの待ち時間
+     * 0の場合、直近の応答時間から求める
+     */
+    long mDelayMs;
+
+    /**
+     * 待ち時間に使用する応答時間のパーセンタイル
+     */
+    double mPercentile = 0.95;
+
+    /**
+     * 応答時間から待ち時間を求めるために必要なサンプル数
+     */
+    int mMinSamples = 20;
+
+    /**
+     * 待ち時間の下限
+     */
+    long mMinDelayMs = 10;
+
+    /**
+     * 直近の応答時間のパーセンタイルから待ち時間を求める
+     */
+    public HedgePolicy() {
+    }
+
+    /**
+     * 固定の待ち時間でヘッジを行う
+     */
+    public HedgePolicy(long delayMs) {
+        setDelayMs(delayMs);
+    }
+
+    public long getDelayMs() {
+        return mDelayMs;
+    }
+
+    /**
+     * ヘッジを送信するまでの待ち時間を指定する。
+     * <p>
+     * 0を指定した場合、直近の応答時間から求める。
+     */
+    public void setDelayMs(@IntRange(from = 0) long delayMs) {
+        if (delayMs < 0) {
+            throw new IllegalArgumentException();
+        }
+        mDelayMs = delayMs;
+    }
+
+    public double getPercentile() {
+        return mPercentile;
+    }
+
+    public void setPercentile(@FloatRange(from = 0.0, to = 1.0) double percentile) {
+        if (percentile <= 0 || percentile > 1.0) {
+            throw new IllegalArgumentException();
+        }
+        mPercentile = percentile;
+    }
+
+    public int getMinSamples() {
+        return mMinSamples;
+    }
+
+    public void setMinSamples(@IntRange(from = 1) int minSamples) {
+        if (minSamples < 1) {
+            throw new IllegalArgumentException();
+        }
+        mMinSamples = minSamples;
+    }
+
+    public long getMinDelayMs() {
+        return mMinDelayMs;
+    }
+
+    public void setMinDelayMs(@IntRange(from = 0) long minDelayMs) {
+        if (minDelayMs < 0) {
+            throw new IllegalArgumentException();
+        }
+        mMinDelayMs = minDelayMs;
+    }
+
+    /**
+     * ヘッジを送信するまでの待ち時間を取得する
+     *
+     * @param tracker 応答時間の統計
+     * @param host    接続先ホスト
+     * @return 待ち時間、ヘッジを行わない場合は負の値
+     */
+    public long getHedgeDelayMs(LatencyTracker tracker, String host) {
+        if (mDelayMs > 0) {
+            return mDelayMs;
+        }
+
+        Long percentile = tracker.getPercentileMs(host, mPercentile, mMinSamples);
+        if (percentile == null) {
+            // 統計が揃うまではヘッジしない
+            return -1;
+        }
+        return Math.max(percentile, mMinDelayMs);
+    }
+}
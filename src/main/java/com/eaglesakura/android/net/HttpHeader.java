@@ -57,8 +57,8 @@ public class HttpHeader {
      * ダウンロードするコンテンツの最大サイズを取得する。
      */
     public long getContentFullSize() {
-        String range = mValues.get(HEADER_CONTENT_RANGE);
-        String length = mValues.get(HEADER_CONTENT_LENGTH);
+        String range = get(HEADER_CONTENT_RANGE);
+        String length = get(HEADER_CONTENT_LENGTH);
         try {
             if (!StringUtil.isEmpty(range)) {
                 String[] split = range.split("/");
@@ -73,15 +73,45 @@ public class HttpHeader {
         return -1;
     }
 
+    /**
+     * このレスポンスに含まれるボディのサイズを取得する。
+     *
+     * @return Content-Length, 不明な場合は-1
+     */
+    public long getContentLength() {
+        String length = get(HEADER_CONTENT_LENGTH);
+        if (StringUtil.isEmpty(length)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(length.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     public String getContentType() {
-        return mValues.get(HEADER_CONTENT_TYPE);
+        return get(HEADER_CONTENT_TYPE);
     }
 
     /**
      * ヘッダを取得する
+     * <p>
+     * ヘッダ名は大文字小文字を区別しない。
      */
     public String get(String key) {
-        return mValues.get(key);
+        String result = mValues.get(key);
+        if (result != null || key == null) {
+            return result;
+        }
+
+        // サーバーによって表記が異なるため、大文字小文字を無視して探す
+        for (Map.Entry<String, String> entry : mValues.entrySet()) {
+            if (key.equalsIgnoreCase(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return null;
     }
 
     /**
@@ -2,20 +2,42 @@ package com.eaglesakura.android.net;
 
 import com.eaglesakura.android.net.cache.ICacheController;
 import com.eaglesakura.android.net.cache.file.FileCacheController;
+import com.eaglesakura.android.net.cache.memory.MemoryResultCache;
 import com.eaglesakura.android.net.cache.tkvs.TextCacheController;
+import com.eaglesakura.android.net.error.HttpBatchFailedException;
 import com.eaglesakura.android.net.internal.AndroidHttpClientResultImpl;
 import com.eaglesakura.android.net.internal.HttpResult;
 import com.eaglesakura.android.net.internal.CallbackHolder;
+import com.eaglesakura.android.net.internal.InFlightRequests;
 import com.eaglesakura.android.net.parser.RequestParser;
 import com.eaglesakura.android.net.request.ConnectRequest;
+import com.eaglesakura.android.net.host.HostHealth;
+import com.eaglesakura.android.net.host.LatencyTracker;
+import com.eaglesakura.android.net.scheduler.RequestScheduler;
 import com.eaglesakura.android.net.stream.ByteArrayStreamController;
 import com.eaglesakura.android.net.stream.IStreamController;
 import com.eaglesakura.android.net.stream.RawStreamController;
+import com.eaglesakura.android.net.transport.HttpTransport;
+import com.eaglesakura.android.net.transport.UrlConnectionTransport;
 
 import android.content.Context;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * ネットワークの接続制御を行う
@@ -27,9 +49,31 @@ public class NetworkConnector {
 
     private ICacheController mCacheController;
 
+    private MemoryResultCache mMemoryCache;
+
+    private NetworkDispatcher mDispatcher;
+
+    private final InFlightRequests mInFlightRequests = new InFlightRequests();
+
+    /**
+     * バックグラウンドで更新中のキャッシュキー
+     */
+    private final Set<String> mRevalidatingKeys = new HashSet<>();
+
+    private boolean mCoalesceRequests = true;
+
+    private RequestScheduler mScheduler;
+
+    private HostHealth mHostHealth;
+
+    private LatencyTracker mLatencyTracker = new LatencyTracker();
+
+    private HttpTransport mTransport;
+
     public NetworkConnector(Context context) {
         mContext = context.getApplicationContext();
         mStreamController = new RawStreamController();
+        mTransport = new UrlConnectionTransport();
     }
 
     public Context getContext() {
@@ -52,6 +96,109 @@ public class NetworkConnector {
         return mCacheController;
     }
 
+    /**
+     * パース済みの戻り値を保持するメモリキャッシュを指定する。
+     * <p>
+     * 指定した場合、キャッシュの読み込みより先にメモリ上の戻り値を探す。
+     * nullの場合、メモリ上には保持しない。
+     */
+    public void setMemoryCache(MemoryResultCache memoryCache) {
+        mMemoryCache = memoryCache;
+    }
+
+    public MemoryResultCache getMemoryCache() {
+        return mMemoryCache;
+    }
+
+    /**
+     * 通信の実装を指定する。
+     * <p>
+     * デフォルトではHttpURLConnectionを使用する。
+     */
+    public void setTransport(HttpTransport transport) {
+        if (transport == null) {
+            throw new IllegalArgumentException();
+        }
+        mTransport = transport;
+    }
+
+    public HttpTransport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * 非同期通信に使用するDispatcherを指定する。
+     * <p>
+     * nullを指定した場合、共有のDispatcherを使用する。
+     */
+    public void setDispatcher(NetworkDispatcher dispatcher) {
+        mDispatcher = dispatcher;
+    }
+
+    public NetworkDispatcher getDispatcher() {
+        if (mDispatcher != null) {
+            return mDispatcher;
+        } else {
+            return NetworkDispatcher.getDefault();
+        }
+    }
+
+    /**
+     * 通信の実行許可を管理するSchedulerを指定する。
+     * <p>
+     * nullの場合、実行数の制限を行わない。
+     */
+    public void setScheduler(RequestScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    public RequestScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    /**
+     * ホストごとのサーキットブレーカーとリトライ予算を管理するHostHealthを指定する。
+     * <p>
+     * nullの場合、ホストの状態に関わらず通信とリトライを行う。
+     */
+    public void setHostHealth(HostHealth hostHealth) {
+        mHostHealth = hostHealth;
+    }
+
+    public HostHealth getHostHealth() {
+        return mHostHealth;
+    }
+
+    /**
+     * ホストごとの応答時間を記録するLatencyTrackerを指定する。
+     * <p>
+     * HedgePolicyの待ち時間とヘッジ数の上限に使用される。
+     */
+    public void setLatencyTracker(LatencyTracker latencyTracker) {
+        if (latencyTracker == null) {
+            throw new IllegalArgumentException();
+        }
+        mLatencyTracker = latencyTracker;
+    }
+
+    public LatencyTracker getLatencyTracker() {
+        return mLatencyTracker;
+    }
+
+    /**
+     * 同一リクエストの同時実行をまとめる場合true
+     * <p>
+     * 有効な場合、GET/HEADで同じキャッシュキーとパーサーインスタンスのリクエストが実行中であれば、
+     * 後続のリクエストは通信を行わずに先行リクエストの結果を共有する。
+     */
+    public void setCoalesceRequests(boolean coalesceRequests) {
+        mCoalesceRequests = coalesceRequests;
+    }
+
+    public boolean isCoalesceRequests() {
+        return mCoalesceRequests;
+    }
+
     /**
      * テキストのREST APIを利用するコネクタを生成する
      */
@@ -84,15 +231,266 @@ public class NetworkConnector {
      * @return 実行タスク
      */
     public <T> Result<T> connect(ConnectRequest request, RequestParser<T> parser, CancelCallback<T> cancelCallback) throws IOException {
-        final HttpResult<T> connection = new AndroidHttpClientResultImpl<>(this, request, parser);
-        CallbackHolder<T> holder = new CallbackHolder<>(cancelCallback, connection);
-        connection.connect(holder);
-        return connection;
+        return connect(request, parser, cancelCallback, new CancellationToken());
+    }
+
+    /**
+     * ネットワーク接続クラスを取得する。
+     * <p>
+     * tokenがキャンセルされた場合、ブロック中の読み込みやリトライ待機を待たずに通信を中断する。
+     *
+     * @param request        通信リクエスト
+     * @param parser         通信パーサ
+     * @param cancelCallback キャンセルチェック, 不要であればnull
+     * @param token          キャンセル通知
+     * @param <T>            戻り値の型
+     * @return 実行タスク
+     */
+    public <T> Result<T> connect(ConnectRequest request, RequestParser<T> parser, CancelCallback<T> cancelCallback, CancellationToken token) throws IOException {
+        final HttpResult<T> connection = newConnection(request, parser);
+        final CallbackHolder<T> holder = new CallbackHolder<>(cancelCallback, connection, token);
+        return executeWithRevalidation(connection, holder);
+    }
+
+    /**
+     * キャッシュ、猶予時間内の古いキャッシュ、通信の順に結果を得る
+     * <p>
+     * 古いキャッシュを返却した場合は、バックグラウンドでキャッシュを更新する。
+     */
+    private <T> Result<T> executeWithRevalidation(HttpResult<T> connection, CallbackHolder<T> holder) throws IOException {
+        Result<T> result = execute(connection, holder, true);
+        if ((result instanceof HttpResult) && ((HttpResult<T>) result).isRevalidationRequired()) {
+            revalidateInBackground(connection.getRequest(), connection.getParser());
+        }
+        return result;
+    }
+
+    /**
+     * 古いキャッシュを返却したリクエストを、バックグラウンドで通信してキャッシュを更新する。
+     * <p>
+     * 同じキャッシュキーの更新が実行中であれば何もしない。
+     */
+    private <T> void revalidateInBackground(final ConnectRequest request, final RequestParser<T> parser) {
+        final String cacheKey = request.getCachePolicy().getCacheKey(request);
+        synchronized (mRevalidatingKeys) {
+            if (!mRevalidatingKeys.add(cacheKey)) {
+                return;
+            }
+        }
+
+        getDispatcher().execute(() -> {
+            try {
+                // 実行中のリクエストとはまとめない
+                // まとめると、後続のリクエストが古いキャッシュを受け取らずに更新を待ってしまう
+                HttpResult<T> connection = newConnection(request, parser);
+                execute(connection, new CallbackHolder<>(null, connection), false, false);
+            } catch (IOException e) {
+                // 古いキャッシュは残っているため、次回のリクエストで再度更新する
+                e.printStackTrace();
+            } finally {
+                synchronized (mRevalidatingKeys) {
+                    mRevalidatingKeys.remove(cacheKey);
+                }
+            }
+        });
+    }
+
+    private <T> HttpResult<T> newConnection(ConnectRequest request, RequestParser<T> parser) {
+        return new AndroidHttpClientResultImpl<>(this, request, parser);
+    }
+
+    /**
+     * 通信を実行する
+     *
+     * @param useCache キャッシュの読み込みを行う場合true
+     */
+    private <T> Result<T> execute(final HttpResult<T> connection, final CallbackHolder<T> callback, final boolean useCache) throws IOException {
+        return execute(connection, callback, useCache, true);
+    }
+
+    /**
+     * 通信を実行する
+     *
+     * @param useCache キャッシュの読み込みを行う場合true
+     * @param coalesce 実行中の同一リクエストとまとめる場合true
+     */
+    private <T> Result<T> execute(final HttpResult<T> connection, final CallbackHolder<T> callback, final boolean useCache, final boolean coalesce) throws IOException {
+        final ConnectRequest request = connection.getRequest();
+        // 期限が指定されていれば、ここから計測する
+        final CallbackHolder<T> holder = callback.withDeadline(request.getDeadlineMs());
+        try {
+            if (!coalesce || !isCoalesceTarget(request)) {
+                if (useCache) {
+                    connection.connect(holder);
+                } else {
+                    connection.connectNetwork(holder);
+                }
+                return connection;
+            }
+
+            return mInFlightRequests.execute(request.getCachePolicy().getCacheKey(request), connection.getParser(), holder, () -> {
+                if (useCache) {
+                    connection.connect(holder);
+                } else {
+                    connection.connectNetwork(holder);
+                }
+                return connection;
+            });
+        } finally {
+            holder.release();
+        }
+    }
+
+    /**
+     * 複数のリクエストを並列に実行する。
+     * <p>
+     * 並列数はDispatcherの最大スレッド数となる。
+     *
+     * @param requests 通信リクエスト一覧
+     * @param parser   通信パーサ
+     * @param <T>      戻り値の型
+     * @return 入力順に並んだ通信結果
+     * @throws HttpBatchFailedException 1つ以上のリクエストが失敗した
+     */
+    public <T> List<Result<T>> connectAll(List<? extends ConnectRequest> requests, RequestParser<T> parser) throws IOException {
+        return connectAll(requests, parser, getDispatcher().getMaxThreads(), null, null);
+    }
+
+    /**
+     * 複数のリクエストを並列に実行する。
+     * <p>
+     * 各リクエストはconnect()と同じくキャッシュ、猶予時間内の古いキャッシュ、通信の順に結果を得て、
+     * Dispatcherで最大parallelism件ずつ並列に実行される。
+     * 個々のリクエストが失敗しても残りのリクエストは継続され、全て完了した後にHttpBatchFailedExceptionとしてまとめて通知される。
+     * <p>
+     * Dispatcherのスレッドから呼び出した場合、Dispatcherの空きスレッドが無くなりデッドロックする可能性がある。
+     *
+     * @param requests       通信リクエスト一覧
+     * @param parser         通信パーサ
+     * @param parallelism    同時に実行する最大リクエスト数
+     * @param batchCallback  1リクエストが完了するごとに呼び出しスレッドで通知を受ける, 不要であればnull
+     * @param cancelCallback キャンセルチェック, 不要であればnull
+     * @param <T>            戻り値の型
+     * @return 入力順に並んだ通信結果
+     * @throws HttpBatchFailedException 1つ以上のリクエストが失敗した
+     */
+    public <T> List<Result<T>> connectAll(List<? extends ConnectRequest> requests, RequestParser<T> parser, int parallelism,
+                                          BatchCallback<T> batchCallback, final CancelCallback<T> cancelCallback) throws IOException {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException();
+        }
+
+        final int REQUEST_NUM = requests.size();
+        final AtomicBoolean aborted = new AtomicBoolean(false);
+        final CancelCallback<T> batchCancelCallback = it -> aborted.get() || (cancelCallback != null && cancelCallback.isCanceled(it));
+        List<Result<T>> results = new ArrayList<>(Collections.<Result<T>>nCopies(REQUEST_NUM, null));
+        Map<Integer, IOException> errors = new TreeMap<>();
+        List<CallbackHolder<T>> holders = new ArrayList<>(Collections.<CallbackHolder<T>>nCopies(REQUEST_NUM, null));
+
+        // 同時実行数を制限しながら、connect()と同じ手順で実行する
+        CompletionService<Result<T>> completionService = new ExecutorCompletionService<>(getDispatcher());
+        Map<Future<Result<T>>, Integer> running = new HashMap<>();
+        int next = 0;
+        try {
+            while (next < REQUEST_NUM || !running.isEmpty()) {
+                while (running.size() < parallelism && next < REQUEST_NUM) {
+                    final int index = next++;
+                    final HttpResult<T> connection = newConnection(requests.get(index), parser);
+                    final CallbackHolder<T> holder = new CallbackHolder<>(batchCancelCallback, connection);
+                    holders.set(index, holder);
+                    running.put(completionService.submit(() -> executeWithRevalidation(connection, holder)), index);
+                }
+
+                Future<Result<T>> completed = completionService.take();
+                final int index = running.remove(completed);
+                try {
+                    Result<T> result = completed.get();
+                    results.set(index, result);
+                    if (batchCallback != null) {
+                        batchCallback.onResult(index, result);
+                    }
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    errors.put(index, (cause instanceof IOException) ? (IOException) cause : new IOException(cause));
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("batch interrupted");
+        } finally {
+            // 途中で抜けた場合は残りのリクエストを中断させる
+            if (!running.isEmpty()) {
+                aborted.set(true);
+                for (int index : running.values()) {
+                    holders.get(index).mToken.cancel();
+                }
+            }
+        }
+
+        if (!errors.isEmpty()) {
+            throw new HttpBatchFailedException("Batch Failed : " + errors.size() + "/" + REQUEST_NUM, results, errors);
+        }
+        return results;
+    }
+
+    /**
+     * 実行中の同一リクエストとまとめられる場合true
+     */
+    private boolean isCoalesceTarget(ConnectRequest request) {
+        if (!mCoalesceRequests || request.getCachePolicy() == null) {
+            return false;
+        }
+
+        ConnectRequest.Method method = request.getMethod();
+        return method == ConnectRequest.Method.GET || method == ConnectRequest.Method.HEAD;
+    }
+
+    /**
+     * 非同期で通信を行う。
+     * <p>
+     * 通信はDispatcherのスレッドで実行され、キャッシュ・リトライ・パースの挙動はconnect()と同じになる。
+     *
+     * @param request 通信リクエスト
+     * @param parser  通信パーサ
+     * @param <T>     戻り値の型
+     * @return 実行中タスクのハンドル
+     */
+    public <T> ConnectFuture<T> connectAsync(ConnectRequest request, RequestParser<T> parser) {
+        return connectAsync(request, parser, null);
+    }
+
+    /**
+     * 非同期で通信を行う。
+     * <p>
+     * ConnectFuture.cancel()もしくはcancelCallbackのどちらかでキャンセルされた場合、通信を中断する。
+     *
+     * @param request        通信リクエスト
+     * @param parser         通信パーサ
+     * @param cancelCallback キャンセルチェック, 不要であればnull
+     * @param <T>            戻り値の型
+     * @return 実行中タスクのハンドル
+     */
+    public <T> ConnectFuture<T> connectAsync(ConnectRequest request, RequestParser<T> parser, CancelCallback<T> cancelCallback) {
+        ConnectFuture<T> future = new ConnectFuture<>(request, new ConnectFuture.ConnectTask<>(this, request, parser, cancelCallback));
+        getDispatcher().execute(future);
+        return future;
+    }
+
+    public interface BatchCallback<T> {
+        /**
+         * 1リクエストの通信が完了した
+         *
+         * @param index  入力リスト上の位置
+         * @param result 通信結果
+         */
+        void onResult(int index, Result<T> result);
     }
 
     public interface CancelCallback<T> {
         /**
          * タスクをキャンセルさせる場合はtrue
+         * <p>
+         * 通信スレッドだけでなく、ブロック中の通信を20ms間隔で監視するスレッドや、期限を管理するタイマーのスレッドからも呼び出される。
+         * 複数のスレッドから同時に呼び出されても安全で、ブロックせずにすぐ戻る実装とすること。
          */
         boolean isCanceled(Result<T> connection);
     }
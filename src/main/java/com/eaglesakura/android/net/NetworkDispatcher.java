@@ -0,0 +1,139 @@
+package com.eaglesakura.android.net;
+
+import android.support.annotation.IntRange;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 非同期通信を実行するスレッドプールを管理する
+ * <p>
+ * スレッド数には上限があり、上限を超えたリクエストはキューに積まれて順次処理される。
+ * 特に指定しない場合、全てのNetworkConnectorはデフォルトのDispatcherを共有する。
+ * <p>
+ * キャンセルに伴う切断処理は、通信スレッドが全てブロックしていても遅れないよう、通信とは別の1本のスレッドで実行する。
+ */
+public class NetworkDispatcher implements Executor {
+    /**
+     * デフォルトの最大スレッド数
+     */
+    public static final int DEFAULT_MAX_THREADS = 4;
+
+    /**
+     * スレッドが無処理のまま待機する最大時間
+     */
+    private static final long KEEP_ALIVE_TIME_MS = 1000 * 30;
+
+    private static NetworkDispatcher sDefault;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * キャンセル処理を実行する
+     */
+    private final ThreadPoolExecutor mCancelExecutor;
+
+    public NetworkDispatcher(@IntRange(from = 1) int maxThreads) {
+        if (maxThreads < 1) {
+            throw new IllegalArgumentException();
+        }
+
+        mExecutor = new ThreadPoolExecutor(maxThreads, maxThreads, KEEP_ALIVE_TIME_MS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new DispatcherThreadFactory());
+        mExecutor.allowCoreThreadTimeOut(true);
+        mCancelExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_TIME_MS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+            Thread thread = new Thread(r, "NetworkDispatcher-Cancel");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mCancelExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 全てのNetworkConnectorで共有されるDispatcherを取得する
+     */
+    public static synchronized NetworkDispatcher getDefault() {
+        if (sDefault == null) {
+            sDefault = new NetworkDispatcher(DEFAULT_MAX_THREADS);
+        }
+        return sDefault;
+    }
+
+    /**
+     * 共有されるDispatcherを変更する
+     */
+    public static synchronized void setDefault(NetworkDispatcher dispatcher) {
+        if (dispatcher == null) {
+            throw new IllegalArgumentException();
+        }
+        sDefault = dispatcher;
+    }
+
+    /**
+     * 同時に実行する最大スレッド数を変更する
+     */
+    public synchronized void setMaxThreads(@IntRange(from = 1) int maxThreads) {
+        if (maxThreads < 1) {
+            throw new IllegalArgumentException();
+        }
+
+        // core <= maxの関係を崩さない順で変更する
+        if (maxThreads > mExecutor.getMaximumPoolSize()) {
+            mExecutor.setMaximumPoolSize(maxThreads);
+            mExecutor.setCorePoolSize(maxThreads);
+        } else {
+            mExecutor.setCorePoolSize(maxThreads);
+            mExecutor.setMaximumPoolSize(maxThreads);
+        }
+    }
+
+    public int getMaxThreads() {
+        return mExecutor.getMaximumPoolSize();
+    }
+
+    /**
+     * 実行中のタスク数を取得する
+     */
+    public int getActiveCount() {
+        return mExecutor.getActiveCount();
+    }
+
+    /**
+     * 実行待ちのタスク数を取得する
+     */
+    public int getQueueSize() {
+        return mExecutor.getQueue().size();
+    }
+
+    /**
+     * タスクを実行キューに積む
+     */
+    @Override
+    public void execute(Runnable task) {
+        mExecutor.execute(task);
+    }
+
+    /**
+     * キャンセル処理を実行する。
+     * <p>
+     * 通信タスクのキューには積まないため、通信スレッドが全てブロックしていても即座に実行される。
+     * 切断等の短時間で終わる処理のみを渡すこと。
+     */
+    public void executeCancel(Runnable task) {
+        mCancelExecutor.execute(task);
+    }
+
+    private static class DispatcherThreadFactory implements ThreadFactory {
+        final AtomicInteger mThreadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "NetworkDispatcher-" + mThreadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -51,6 +51,15 @@ public abstract class Result<T> {
      */
     public abstract boolean isModified();
 
+    /**
+     * 有効期限切れのキャッシュから返却された場合true
+     * <p>
+     * CachePolicy.setStaleWhileRevalidateMs()もしくはCachePolicy.setStaleIfErrorMs()で許可された場合のみ返却される。
+     */
+    public boolean isStale() {
+        return false;
+    }
+
     /**
      * parseされた戻り値を取得する
      */
@@ -1,11 +1,13 @@
 package com.eaglesakura.android.net;
 
+import com.eaglesakura.android.net.error.CircuitBreakerOpenException;
 import com.eaglesakura.android.net.error.HttpStatusException;
 import com.eaglesakura.android.net.request.ConnectRequest;
 
 import android.support.annotation.FloatRange;
 
 import java.io.IOException;
+import java.util.Random;
 
 /**
  * リトライ設定
@@ -19,6 +21,13 @@ public class RetryPolicy {
 
     long mBaseWaitTime = 1000;
 
+    /**
+     * バックオフ時間にフルジッターを適用する場合true
+     */
+    boolean mFullJitter;
+
+    private static final Random sRandom = new Random();
+
     public RetryPolicy(int retryNum) {
         this.mRetryNum = retryNum;
     }
@@ -70,6 +79,32 @@ public class RetryPolicy {
         this.mBaseWaitTime = baseWaitTime;
     }
 
+    public boolean isFullJitter() {
+        return mFullJitter;
+    }
+
+    /**
+     * バックオフ時間にフルジッターを適用する。
+     * <p>
+     * 有効な場合、実際の待機時間は0からバックオフ時間までの一様乱数となり、
+     * 同時に失敗したクライアントが揃ってリトライすることを防ぐ。
+     */
+    public void setFullJitter(boolean fullJitter) {
+        mFullJitter = fullJitter;
+    }
+
+    /**
+     * 実際に待機する時間を取得する
+     *
+     * @param backoffMs バックオフ時間
+     */
+    public long getWaitTimeMs(long backoffMs) {
+        if (!mFullJitter || backoffMs <= 0) {
+            return backoffMs;
+        }
+        return (long) (sRandom.nextDouble() * (backoffMs + 1));
+    }
+
     /**
      * 次のバックオフ時間を取得する
      */
@@ -91,6 +126,11 @@ public class RetryPolicy {
      * @return リトライを行う場合true
      */
     public boolean isRetryableError(NetworkConnector connector, ConnectRequest request, IOException error) throws IOException {
+        if (error instanceof CircuitBreakerOpenException) {
+            // ホストが停止中と判断されているので、リトライしても失敗する
+            return false;
+        }
+
         // HTTPステータス異常でないなら、エラーハンドリングを行なう
         return !(error instanceof HttpStatusException);
     }
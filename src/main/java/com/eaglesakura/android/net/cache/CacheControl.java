@@ -0,0 +1,173 @@
+package com.eaglesakura.android.net.cache;
+
+import com.eaglesakura.android.net.HttpHeader;
+import com.eaglesakura.util.StringUtil;
+
+import android.support.annotation.Nullable;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * レスポンスヘッダのCache-Control / Expiresを解析し、キャッシュの鮮度を求める
+ * <p>
+ * 端末内のキャッシュは共有キャッシュではないため、s-maxageとprivateは参照しない。
+ */
+public class CacheControl {
+    public static final String HEADER_CACHE_CONTROL = "Cache-Control";
+
+    public static final String HEADER_EXPIRES = "Expires";
+
+    public static final String HEADER_AGE = "Age";
+
+    public static final String HEADER_DATE = "Date";
+
+    boolean mNoStore;
+
+    boolean mNoCache;
+
+    /**
+     * max-ageの指定, 指定が無い場合は負の値
+     */
+    long mMaxAgeMs = -1;
+
+    /**
+     * Expiresヘッダが含まれていた場合true
+     */
+    boolean mHasExpires;
+
+    /**
+     * Expiresの時刻, 不正な値の場合は負の値
+     */
+    long mExpires = -1;
+
+    /**
+     * Dateの時刻, 指定が無い場合は負の値
+     */
+    long mDate = -1;
+
+    /**
+     * Ageの指定
+     */
+    long mAgeMs;
+
+    CacheControl() {
+    }
+
+    /**
+     * レスポンスヘッダを解析する
+     *
+     * @param respHeader レスポンスヘッダ, nullの場合は指定が無いものとして扱う
+     */
+    public static CacheControl parse(@Nullable HttpHeader respHeader) {
+        CacheControl result = new CacheControl();
+        if (respHeader == null) {
+            return result;
+        }
+
+        String cacheControl = respHeader.get(HEADER_CACHE_CONTROL);
+        if (!StringUtil.isEmpty(cacheControl)) {
+            for (String directive : cacheControl.split(",")) {
+                String name = directive.trim().toLowerCase(Locale.US);
+                String value = null;
+                int index = name.indexOf('=');
+                if (index > 0) {
+                    value = name.substring(index + 1).trim();
+                    name = name.substring(0, index).trim();
+                }
+
+                if ("no-store".equals(name)) {
+                    result.mNoStore = true;
+                } else if ("no-cache".equals(name)) {
+                    result.mNoCache = true;
+                } else if ("max-age".equals(name)) {
+                    long seconds = parseSeconds(value);
+                    if (seconds >= 0) {
+                        result.mMaxAgeMs = seconds * 1000;
+                    }
+                }
+            }
+        }
+
+        String expires = respHeader.get(HEADER_EXPIRES);
+        if (expires != null) {
+            result.mHasExpires = true;
+            result.mExpires = parseHttpDate(expires);
+        }
+        result.mDate = parseHttpDate(respHeader.get(HEADER_DATE));
+        result.mAgeMs = Math.max(0, parseSeconds(respHeader.get(HEADER_AGE))) * 1000;
+        return result;
+    }
+
+    /**
+     * キャッシュへの保存が禁止されている場合true
+     */
+    public boolean isNoStore() {
+        return mNoStore;
+    }
+
+    /**
+     * 利用する度に再検証が必要な場合true
+     */
+    public boolean isNoCache() {
+        return mNoCache;
+    }
+
+    /**
+     * サーバーが指定した鮮度から、キャッシュの有効期限を求める
+     *
+     * @param responseTime レスポンスを受け取った時刻
+     * @return 有効期限, サーバーが鮮度を指定していない場合は0
+     */
+    public long getExpiresAt(long responseTime) {
+        if (mNoCache) {
+            // 保存はできるが、即座に再検証が必要となる
+            return responseTime;
+        }
+
+        long lifetimeMs;
+        if (mMaxAgeMs >= 0) {
+            lifetimeMs = mMaxAgeMs;
+        } else if (mHasExpires) {
+            // 不正なExpiresは期限切れとして扱う
+            lifetimeMs = (mExpires < 0) ? 0 : mExpires - (mDate >= 0 ? mDate : responseTime);
+        } else {
+            return 0;
+        }
+
+        // 中継したキャッシュで経過した時間を差し引く
+        long ageMs = Math.max(mAgeMs, (mDate >= 0) ? responseTime - mDate : 0);
+        return responseTime + Math.max(0, lifetimeMs - ageMs);
+    }
+
+    private static long parseSeconds(String value) {
+        if (StringUtil.isEmpty(value)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.replace("\"", ""));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * HTTP-date形式の時刻を解析する
+     *
+     * @return 時刻, 解析できない場合は負の値
+     */
+    static long parseHttpDate(String value) {
+        if (StringUtil.isEmpty(value)) {
+            return -1;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(value.trim()).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+}
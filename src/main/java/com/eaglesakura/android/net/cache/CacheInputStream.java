@@ -0,0 +1,39 @@
+package com.eaglesakura.android.net.cache;
+
+import android.support.annotation.Nullable;
+
+import java.io.FilterInputStream;
+import java.io.InputStream;
+
+/**
+ * キャッシュ本体と、同時に読み込んだメタデータ
+ * <p>
+ * 本体とメタデータを同じ時点のものとして扱えるよう、ICacheControllerはキャッシュを開く際にまとめて返却する。
+ */
+public class CacheInputStream extends FilterInputStream {
+    @Nullable
+    private final CacheMetadata mMetadata;
+
+    public CacheInputStream(InputStream stream, @Nullable CacheMetadata metadata) {
+        super(stream);
+        mMetadata = metadata;
+    }
+
+    @Nullable
+    public CacheMetadata getMetadata() {
+        return mMetadata;
+    }
+
+    /**
+     * キャッシュと共に読み込まれたメタデータを取得する
+     *
+     * @return メタデータ, 無い場合はnull
+     */
+    @Nullable
+    public static CacheMetadata getMetadata(@Nullable InputStream stream) {
+        if (stream instanceof CacheInputStream) {
+            return ((CacheInputStream) stream).getMetadata();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,276 @@
+package com.eaglesakura.android.net.cache;
+
+import com.eaglesakura.android.net.HttpHeader;
+import com.eaglesakura.util.StringUtil;
+
+import android.support.annotation.Nullable;
+
+import java.util.Map;
+
+/**
+ * キャッシュ本体と共に保存される付加情報
+ * <p>
+ * 条件付きリクエストで再検証するためのETag / Last-Modifiedと、キャッシュが保存された時刻を持つ。
+ * キャッシュ本体の指紋とレスポンスヘッダも保存し、キャッシュから読み込む際に本体を読み直さずに参照できるようにする。
+ */
+public class CacheMetadata {
+    public static final String HEADER_LAST_MODIFIED = "Last-Modified";
+
+    public static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+
+    public static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private static final String KEY_STORED_AT = "Stored-At";
+
+    private static final String KEY_EXPIRES_AT = "Expires-At";
+
+    private static final String KEY_CONTENT_DIGEST = "Content-Digest";
+
+    private static final String KEY_HEADER = "Header";
+
+    String mETag;
+
+    String mLastModified;
+
+    /**
+     * キャッシュが保存、もしくは最後に再検証された時刻
+     */
+    long mStoredAt;
+
+    /**
+     * サーバーが指定した有効期限, 指定が無い場合は0
+     */
+    long mExpiresAt;
+
+    /**
+     * キャッシュ本体の指紋, 不明な場合はnull
+     */
+    String mContentDigest;
+
+    /**
+     * キャッシュ本体を受信した際のレスポンスヘッダ, 不明な場合はnull
+     */
+    HttpHeader mResponseHeader;
+
+    public CacheMetadata(String eTag, String lastModified, long storedAt) {
+        mETag = eTag;
+        mLastModified = lastModified;
+        mStoredAt = storedAt;
+    }
+
+    /**
+     * レスポンスヘッダから生成する
+     *
+     * @param policy     キャッシュ設定, サーバーの指定に従う場合は有効期限も求める
+     * @param respHeader レスポンスヘッダ, nullの場合は検証情報を持たない
+     */
+    public static CacheMetadata fromResponse(@Nullable CachePolicy policy, @Nullable HttpHeader respHeader) {
+        final long NOW = System.currentTimeMillis();
+        if (respHeader == null) {
+            return new CacheMetadata(null, null, NOW);
+        }
+
+        CacheMetadata result = new CacheMetadata(respHeader.get(HttpHeader.HEADER_ETAG), respHeader.get(HEADER_LAST_MODIFIED), NOW);
+        result.mResponseHeader = copyHeader(respHeader, null);
+        if (policy != null && policy.isServerCacheControlEnabled()) {
+            result.mExpiresAt = CacheControl.parse(respHeader).getExpiresAt(NOW);
+        }
+        return result;
+    }
+
+    /**
+     * 304 Not Modifiedを受け取った時点の状態に更新したメタデータを生成する。
+     * <p>
+     * 304に含まれない検証情報は、元のものを引き継ぐ。
+     * 304が鮮度を指定しない場合、元の鮮度の長さを引き継ぐ。
+     * キャッシュ本体は変わらないため、指紋は元のものを引き継ぎ、レスポンスヘッダは304に含まれるもので更新する。
+     */
+    public CacheMetadata revalidate(@Nullable CachePolicy policy, @Nullable HttpHeader respHeader) {
+        CacheMetadata result = fromResponse(policy, respHeader);
+        result.mContentDigest = mContentDigest;
+        if (mResponseHeader != null) {
+            result.mResponseHeader = (respHeader != null) ? copyHeader(respHeader, copyHeader(mResponseHeader, null)) : mResponseHeader;
+        }
+        if (StringUtil.isEmpty(result.mETag)) {
+            result.mETag = mETag;
+        }
+        if (StringUtil.isEmpty(result.mLastModified)) {
+            result.mLastModified = mLastModified;
+        }
+        if (result.mExpiresAt == 0 && mExpiresAt > 0 && policy != null && policy.isServerCacheControlEnabled()) {
+            result.mExpiresAt = result.mStoredAt + Math.max(0, mExpiresAt - mStoredAt);
+        }
+        return result;
+    }
+
+    @Nullable
+    public String getETag() {
+        return mETag;
+    }
+
+    @Nullable
+    public String getLastModified() {
+        return mLastModified;
+    }
+
+    public long getStoredAt() {
+        return mStoredAt;
+    }
+
+    /**
+     * サーバーが指定した有効期限を取得する
+     *
+     * @return 有効期限, 指定が無い場合は0
+     */
+    public long getExpiresAt() {
+        return mExpiresAt;
+    }
+
+    /**
+     * キャッシュ本体の指紋を取得する
+     *
+     * @return 指紋, 保存時に求められていない場合はnull
+     */
+    @Nullable
+    public String getContentDigest() {
+        return mContentDigest;
+    }
+
+    /**
+     * キャッシュ本体の指紋を指定する
+     */
+    public void setContentDigest(@Nullable String contentDigest) {
+        mContentDigest = contentDigest;
+    }
+
+    /**
+     * キャッシュ本体を受信した際のレスポンスヘッダを取得する
+     *
+     * @return レスポンスヘッダ, 保存されていない場合はnull
+     */
+    @Nullable
+    public HttpHeader getResponseHeader() {
+        return mResponseHeader;
+    }
+
+    /**
+     * 保存するレスポンスヘッダをコピーする
+     * <p>
+     * Cookieは保存しない。304に含まれるContent-Lengthはキャッシュ本体のものではないため、上書きしない。
+     *
+     * @param src 保存するレスポンスヘッダ
+     * @param dst コピー先, nullの場合は新たに生成する
+     */
+    private static HttpHeader copyHeader(HttpHeader src, @Nullable HttpHeader dst) {
+        HttpHeader result = (dst != null) ? dst : new HttpHeader();
+        for (Map.Entry<String, String> entry : src.getValues().entrySet()) {
+            String key = entry.getKey();
+            String value = entry.getValue();
+            if (StringUtil.isEmpty(key) || value == null || value.indexOf('\n') >= 0 || key.indexOf(':') >= 0) {
+                // 1行に収まらないものは保存できない
+                continue;
+            }
+            if (dst != null && HttpHeader.HEADER_CONTENT_LENGTH.equalsIgnoreCase(key)) {
+                continue;
+            }
+            result.put(key, value);
+        }
+        return result;
+    }
+
+    /**
+     * キャッシュの有効期限を求める
+     * <p>
+     * サーバーが鮮度を指定していない場合、保存時刻とキャッシュ設定の有効時間から求める。
+     *
+     * @param metadata メタデータ, 無い場合はnull
+     * @param policy   キャッシュ設定
+     * @param storedAt 保存先が管理している保存時刻
+     */
+    public static long getExpiresAt(@Nullable CacheMetadata metadata, CachePolicy policy, long storedAt) {
+        if (metadata != null && metadata.mExpiresAt > 0 && policy.isServerCacheControlEnabled()) {
+            return metadata.mExpiresAt;
+        }
+        return storedAt + policy.getCacheLimitTimeMs();
+    }
+
+    /**
+     * 条件付きリクエストで再検証できる場合true
+     */
+    public boolean hasValidator() {
+        return !StringUtil.isEmpty(mETag) || !StringUtil.isEmpty(mLastModified);
+    }
+
+    /**
+     * 保存用のテキストに変換する
+     */
+    public String encode() {
+        StringBuilder result = new StringBuilder();
+        append(result, HttpHeader.HEADER_ETAG, mETag);
+        append(result, HEADER_LAST_MODIFIED, mLastModified);
+        append(result, KEY_STORED_AT, String.valueOf(mStoredAt));
+        if (mExpiresAt > 0) {
+            append(result, KEY_EXPIRES_AT, String.valueOf(mExpiresAt));
+        }
+        append(result, KEY_CONTENT_DIGEST, mContentDigest);
+        if (mResponseHeader != null) {
+            for (Map.Entry<String, String> entry : mResponseHeader.getValues().entrySet()) {
+                append(result, KEY_HEADER, entry.getKey() + ": " + entry.getValue());
+            }
+        }
+        return result.toString();
+    }
+
+    private static void append(StringBuilder builder, String key, String value) {
+        if (!StringUtil.isEmpty(value)) {
+            builder.append(key).append(": ").append(value).append('\n');
+        }
+    }
+
+    /**
+     * encode()したテキストから復元する
+     *
+     * @return 復元したメタデータ, 不正なテキストの場合はnull
+     */
+    @Nullable
+    public static CacheMetadata decode(@Nullable String text) {
+        if (StringUtil.isEmpty(text)) {
+            return null;
+        }
+
+        CacheMetadata result = new CacheMetadata(null, null, 0);
+        try {
+            for (String line : text.split("\n")) {
+                int index = line.indexOf(": ");
+                if (index <= 0) {
+                    continue;
+                }
+
+                String key = line.substring(0, index);
+                String value = line.substring(index + 2);
+                if (HttpHeader.HEADER_ETAG.equals(key)) {
+                    result.mETag = value;
+                } else if (HEADER_LAST_MODIFIED.equals(key)) {
+                    result.mLastModified = value;
+                } else if (KEY_STORED_AT.equals(key)) {
+                    result.mStoredAt = Long.parseLong(value);
+                } else if (KEY_EXPIRES_AT.equals(key)) {
+                    result.mExpiresAt = Long.parseLong(value);
+                } else if (KEY_CONTENT_DIGEST.equals(key)) {
+                    result.mContentDigest = value;
+                } else if (KEY_HEADER.equals(key)) {
+                    int headerIndex = value.indexOf(": ");
+                    if (headerIndex > 0) {
+                        if (result.mResponseHeader == null) {
+                            result.mResponseHeader = new HttpHeader();
+                        }
+                        result.mResponseHeader.put(value.substring(0, headerIndex), value.substring(headerIndex + 2));
+                    }
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return result;
+    }
+}
@@ -1,5 +1,6 @@
 package com.eaglesakura.android.net.cache;
 
+import com.eaglesakura.android.net.HttpHeader;
 import com.eaglesakura.android.net.request.ConnectRequest;
 
 /**
@@ -18,6 +19,20 @@ public class CachePolicy {
      */
     private long cacheLimitTimeMs = 0;
 
+    /**
+     * サーバーが指定したCache-Control / Expiresに従う場合true
+     */
+    private boolean serverCacheControlEnabled = false;
+
+    /**
+     * 有効期限切れのキャッシュを返しつつ、バックグラウンドで更新する猶予時間
+     */
+    private long staleWhileRevalidateMs = 0;
+
+    /**
+     * 通信に失敗した場合に、有効期限切れのキャッシュを返却する猶予時間
+     */
+    private long staleIfErrorMs = 0;
 
     /**
      * キャッシュに登録する最大バイトサイズを取得する
@@ -28,6 +43,9 @@ public class CachePolicy {
 
     /**
      * キャッシュに登録する最大バイトサイズ指定
+     * <p/>
+     * Content-Lengthもしくは受信したサイズが上限を超えた場合、キャッシュには登録しない。
+     * 0以下を指定した場合、サイズを制限しない。
      */
     public void setMaxItemBytes(long maxItemBytes) {
         this.maxItemBytes = maxItemBytes;
@@ -47,6 +65,57 @@ public class CachePolicy {
         this.cacheLimitTimeMs = cacheLimitTimeMs;
     }
 
+    /**
+     * サーバーが指定したCache-Control / Expiresに従う場合true
+     */
+    public boolean isServerCacheControlEnabled() {
+        return serverCacheControlEnabled;
+    }
+
+    /**
+     * サーバーが指定したCache-Control / Expiresに従うかを指定する。
+     * <p/>
+     * 有効な場合、no-storeのレスポンスは保存されず、max-age等による鮮度が有効時間より優先される。
+     * サーバーが鮮度を指定しなかったレスポンスは、有効時間に従う。
+     */
+    public void setServerCacheControlEnabled(boolean serverCacheControlEnabled) {
+        this.serverCacheControlEnabled = serverCacheControlEnabled;
+    }
+
+    /**
+     * 有効期限切れのキャッシュを返却する猶予時間を取得する
+     */
+    public long getStaleWhileRevalidateMs() {
+        return staleWhileRevalidateMs;
+    }
+
+    /**
+     * 有効期限切れのキャッシュを返却する猶予時間を指定する。
+     * <p/>
+     * 有効期限切れから指定時間以内であれば、通信を待たずに古いキャッシュを返却し、バックグラウンドでキャッシュを更新する。
+     * 返却された結果はResult.isStale()がtrueとなる。
+     */
+    public void setStaleWhileRevalidateMs(long staleWhileRevalidateMs) {
+        this.staleWhileRevalidateMs = staleWhileRevalidateMs;
+    }
+
+    /**
+     * 通信に失敗した場合に、有効期限切れのキャッシュを返却する猶予時間を取得する
+     */
+    public long getStaleIfErrorMs() {
+        return staleIfErrorMs;
+    }
+
+    /**
+     * 通信に失敗した場合に、有効期限切れのキャッシュを返却する猶予時間を指定する。
+     * <p/>
+     * 5xxや接続失敗等、ホスト側の障害で通信に失敗した時点で有効期限切れから指定時間以内のキャッシュがあれば、
+     * リトライを行わずにそのキャッシュを返却する。返却された結果はResult.isStale()がtrueとなる。
+     */
+    public void setStaleIfErrorMs(long staleIfErrorMs) {
+        this.staleIfErrorMs = staleIfErrorMs;
+    }
+
     /**
      * キャッシュのキーとなる文字列を生成する。
      * <p/>
@@ -56,6 +125,33 @@ public class CachePolicy {
         return String.format("%s-%s", request.getMethod().toString(), request.getUrl());
     }
 
+    /**
+     * キャッシュを読み書きする場合true
+     * <p/>
+     * 適当なしきい値以下の有効時間は実質的に無視すべきだが、サーバーの指定に従う場合は常に有効となる。
+     */
+    public static boolean isCacheEnabled(CachePolicy policy) {
+        return policy != null && (policy.isServerCacheControlEnabled() || policy.getCacheLimitTimeMs() >= 1000);
+    }
+
+    /**
+     * サーバーの指定によって、レスポンスの保存が禁止されている場合true
+     */
+    public static boolean isNoStore(CachePolicy policy, HttpHeader respHeader) {
+        return policy != null && policy.isServerCacheControlEnabled() && CacheControl.parse(respHeader).isNoStore();
+    }
+
+    /**
+     * 有効期限切れのキャッシュを削除せずに残しておく時間
+     */
+    public static long getStaleRetentionMs(CachePolicy policy) {
+        if (policy == null) {
+            return 0;
+        } else {
+            return Math.max(0, Math.max(policy.getStaleWhileRevalidateMs(), policy.getStaleIfErrorMs()));
+        }
+    }
+
     public static long getCacheLimitTimeMs(CachePolicy policy) {
         if (policy == null) {
             return 0;
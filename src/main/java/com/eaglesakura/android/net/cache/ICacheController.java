@@ -26,6 +26,7 @@ public interface ICacheController {
      * 既存のキャッシュを開く。
      * <p/>
      * キャッシュがない場合、FileNotFoundExceptionを投げる。
+     * メタデータを伴う場合、CacheInputStreamとして返却することで指紋とレスポンスヘッダを呼び出し元へ渡せる。
      */
     InputStream openCache(ConnectRequest request) throws IOException;
 }
@@ -0,0 +1,20 @@
+package com.eaglesakura.android.net.cache;
+
+import java.io.IOException;
+
+/**
+ * コンテンツの指紋をキャッシュと共に保存できるICacheWriter
+ * <p/>
+ * 実装している場合のみ指紋が渡され、キャッシュから読み込む際の指紋の計算を省ける。
+ */
+public interface IDigestCacheWriter extends ICacheWriter {
+    /**
+     * 書き込んだコンテンツ全体の指紋を指定する
+     * <p>
+     * commit()の前に呼び出され、キャッシュと共に保存される。
+     * キャッシュから読み込む際は、保存された指紋を利用して読み込み時の計算を省く。
+     *
+     * @param digest コンテンツの指紋
+     */
+    void setContentDigest(String digest) throws IOException;
+}
@@ -0,0 +1,39 @@
+package com.eaglesakura.android.net.cache;
+
+import com.eaglesakura.android.net.HttpHeader;
+import com.eaglesakura.android.net.request.ConnectRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 有効期限を過ぎたキャッシュを残し、条件付きリクエストによる再検証に対応するICacheController
+ * <p/>
+ * 実装している場合のみ、304 Not Modifiedによる再検証とstale-if-error等の期限切れキャッシュの利用が行われる。
+ */
+public interface IRevalidatingCacheController extends ICacheController {
+
+    /**
+     * キャッシュのメタデータを取得する。
+     * <p/>
+     * 有効期限を過ぎていても、再検証のために残されているキャッシュであれば取得できる。
+     *
+     * @return メタデータ, キャッシュが無い場合はnull
+     */
+    CacheMetadata getMetadata(ConnectRequest request) throws IOException;
+
+    /**
+     * 有効期限切れから指定時間以内であれば、残されているキャッシュを開く。
+     *
+     * @param maxStaleMs 有効期限切れから許容する時間, Long.MAX_VALUEの場合は有効期限に関わらず開く
+     * @return キャッシュ, 無い場合はnull
+     */
+    InputStream openStaleCache(ConnectRequest request, long maxStaleMs) throws IOException;
+
+    /**
+     * サーバーがキャッシュの内容を有効と判断した(304 Not Modified)ため、キャッシュの保存時刻と検証情報を更新する。
+     *
+     * @param respHeader 304のレスポンスヘッダ
+     */
+    void refresh(ConnectRequest request, HttpHeader respHeader) throws IOException;
+}
@@ -0,0 +1,104 @@
+package com.eaglesakura.android.net.cache;
+
+import com.eaglesakura.android.net.HttpHeader;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+
+/**
+ * 書き込み量がCachePolicy.getMaxItemBytes()を超えた時点で、キャッシュへの登録を取りやめる
+ * <p>
+ * 上限を超えた時点で書き込み先を破棄し、以降の書き込みは読み捨てる。
+ */
+public class SizeLimitedCacheWriter implements IDigestCacheWriter {
+    private final ICacheWriter mWriter;
+
+    private final long mMaxBytes;
+
+    private long mWrittenBytes;
+
+    /**
+     * 上限を超えて書き込み先を破棄した場合true
+     */
+    private boolean mDiscarded;
+
+    SizeLimitedCacheWriter(ICacheWriter writer, long maxBytes) {
+        mWriter = writer;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * 書き込み量を制限する
+     *
+     * @param writer 書き込み先, nullの場合はnullを返す
+     * @param policy キャッシュ設定
+     * @return 書き込み量を制限したwriter
+     */
+    @Nullable
+    public static ICacheWriter wrap(@Nullable ICacheWriter writer, @Nullable CachePolicy policy) {
+        if (writer == null || policy == null || policy.getMaxItemBytes() <= 0) {
+            return writer;
+        }
+        return new SizeLimitedCacheWriter(writer, policy.getMaxItemBytes());
+    }
+
+    /**
+     * Content-Lengthが上限を超えているため、書き込むまでもなくキャッシュできない場合true
+     */
+    public static boolean isTooLarge(@Nullable CachePolicy policy, @Nullable HttpHeader respHeader) {
+        if (policy == null || policy.getMaxItemBytes() <= 0 || respHeader == null) {
+            return false;
+        }
+        return respHeader.getContentLength() > policy.getMaxItemBytes();
+    }
+
+    /**
+     * 上限を超えたため、キャッシュへの登録を取りやめた場合true
+     */
+    public boolean isDiscarded() {
+        return mDiscarded;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        if (mDiscarded) {
+            return;
+        }
+
+        mWrittenBytes += length;
+        if (mWrittenBytes > mMaxBytes) {
+            // 書き込み済みのデータも破棄させる
+            mDiscarded = true;
+            mWriter.abort();
+            return;
+        }
+        mWriter.write(buffer, offset, length);
+    }
+
+    @Override
+    public void setContentDigest(String digest) throws IOException {
+        if (!mDiscarded && mWriter instanceof IDigestCacheWriter) {
+            ((IDigestCacheWriter) mWriter).setContentDigest(digest);
+        }
+    }
+
+    @Override
+    public void commit() throws IOException {
+        if (!mDiscarded) {
+            mWriter.commit();
+        }
+    }
+
+    @Override
+    public void abort() throws IOException {
+        if (!mDiscarded) {
+            mWriter.abort();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mWriter.close();
+    }
+}
@@ -0,0 +1,42 @@
+package com.eaglesakura.android.net.cache;
+
+import android.support.annotation.IntRange;
+
+/**
+ * キャッシュキーごとの排他制御に用いるロック
+ * <p>
+ * キーごとにロックを生成せず、キーのハッシュから固定数のロックへ振り分ける。
+ * 異なるキーが同じロックを共有することはあるが、全体を1つのロックで直列化することはない。
+ */
+public class StripedLock {
+    /**
+     * デフォルトのロック数
+     */
+    public static final int DEFAULT_STRIPES = 32;
+
+    private final Object[] mLocks;
+
+    public StripedLock() {
+        this(DEFAULT_STRIPES);
+    }
+
+    public StripedLock(@IntRange(from = 1) int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException();
+        }
+        mLocks = new Object[stripes];
+        for (int i = 0; i < stripes; ++i) {
+            mLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * キーに対応するロックを取得する
+     */
+    public Object get(String key) {
+        int hash = key.hashCode();
+        // 下位ビットの偏りを散らす
+        hash ^= (hash >>> 16);
+        return mLocks[(hash & 0x7FFFFFFF) % mLocks.length];
+    }
+}
@@ -0,0 +1,556 @@
+package com.eaglesakura.android.net.cache.file;
+
+import com.eaglesakura.android.net.cache.StripedLock;
+import com.eaglesakura.android.net.scheduler.HashedTimerWheel;
+import com.eaglesakura.util.IOUtil;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FileCacheControllerが保存したファイルの一覧を、ジャーナルとして記録する
+ * <p>
+ * 初回アクセス時にジャーナルから一覧を復元し、以降はメモリ上の一覧で存在確認と保存時刻の参照を行う。
+ * 合計サイズが上限を超えた場合、最も長く参照されていないものから削除する。
+ * ジャーナルへの追記と削除は、バックグラウンドでまとめて行う。
+ * <p>
+ * 同じジャーナルファイルを複数のインスタンスで書き換えると記録が失われるため、ディレクトリと拡張子ごとに1つを共有する。
+ */
+class CacheJournal {
+    private static final String MAGIC = "es-net-file-cache-journal";
+
+    private static final String VERSION = "1";
+
+    private static final String PUT = "PUT";
+
+    private static final String READ = "READ";
+
+    private static final String REMOVE = "REMOVE";
+
+    /**
+     * ジャーナルを書き直す不要な行数
+     */
+    private static final int COMPACT_THRESHOLD = 2000;
+
+    /**
+     * 変更をまとめて書き込むまでの時間
+     */
+    private static final long FLUSH_DELAY_MS = 1000;
+
+    /**
+     * 一覧に無いファイルを削除するまでの猶予
+     * <p>
+     * 一覧の復元前から書き込まれていたファイルや、時刻の精度が低いファイルシステムで誤って削除しないよう、
+     * 復元時刻よりも十分に古いものだけを削除する。
+     */
+    private static final long SWEEP_GRACE_MS = 1000 * 60;
+
+    /**
+     * 書き込みスレッドが無処理のまま待機する最大時間
+     */
+    private static final long KEEP_ALIVE_TIME_MS = 1000 * 30;
+
+    /**
+     * ディレクトリと拡張子ごとのジャーナル
+     */
+    private static final Map<String, CacheJournal> sJournals = new HashMap<>();
+
+    static class Entry {
+        final long mSizeBytes;
+
+        final long mStoredAt;
+
+        Entry(long sizeBytes, long storedAt) {
+            mSizeBytes = sizeBytes;
+            mStoredAt = storedAt;
+        }
+
+        long getSizeBytes() {
+            return mSizeBytes;
+        }
+
+        long getStoredAt() {
+            return mStoredAt;
+        }
+    }
+
+    private final File mDirectory;
+
+    private final String mFileExt;
+
+    private final File mJournalFile;
+
+    /**
+     * キャッシュファイルごとの排他制御
+     */
+    private final StripedLock mLocks;
+
+    /**
+     * 参照順に並んだキャッシュファイル
+     * <p>
+     * 参照順を変えずに取得できるよう、参照時に末尾へ移動させる。
+     */
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>();
+
+    /**
+     * ジャーナルへの書き込み待ちの行
+     */
+    private final StringBuilder mPendingLines = new StringBuilder();
+
+    private final ThreadPoolExecutor mWriter;
+
+    private long mMaxBytes;
+
+    private long mSizeBytes;
+
+    /**
+     * ジャーナル上の、現在の一覧に影響しない行数
+     */
+    private int mRedundantOpCount;
+
+    private boolean mLoaded;
+
+    private boolean mFlushScheduled;
+
+    private boolean mTrimScheduled;
+
+    CacheJournal(File directory, String fileExt, long maxBytes, StripedLock locks) {
+        mDirectory = directory;
+        mFileExt = fileExt;
+        mLocks = locks;
+        mJournalFile = new File(directory, fileExt + ".journal");
+        mMaxBytes = maxBytes;
+        mWriter = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_TIME_MS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+            Thread thread = new Thread(r, "FileCacheJournal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mWriter.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * ディレクトリと拡張子に対応するジャーナルを取得する
+     * <p>
+     * 同じファイルを扱うFileCacheControllerが複数生成されても、一覧と排他制御、サイズの上限を共有する。
+     *
+     * @param directory 正規化済みのキャッシュディレクトリ
+     */
+    static CacheJournal get(File directory, String fileExt) {
+        final String KEY = directory.getPath() + File.separator + fileExt;
+        synchronized (sJournals) {
+            CacheJournal result = sJournals.get(KEY);
+            if (result == null) {
+                result = new CacheJournal(directory, fileExt, FileCacheController.DEFAULT_MAX_BYTES, new StripedLock());
+                sJournals.put(KEY, result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * キャッシュファイルの排他制御に使用するロックを取得する
+     */
+    Object getLock(String name) {
+        return mLocks.get(name);
+    }
+
+    synchronized long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    synchronized void setMaxBytes(long maxBytes) {
+        mMaxBytes = maxBytes;
+        if (mLoaded) {
+            scheduleTrim();
+        }
+    }
+
+    synchronized long getSizeBytes() {
+        load();
+        return mSizeBytes;
+    }
+
+    synchronized int size() {
+        load();
+        return mEntries.size();
+    }
+
+    /**
+     * キャッシュファイルを参照する
+     *
+     * @param name キャッシュファイル名
+     * @return 記録, 無い場合はnull
+     */
+    synchronized Entry get(String name) {
+        load();
+        Entry entry = touch(name);
+        if (entry != null) {
+            append(READ, name);
+        }
+        return entry;
+    }
+
+    /**
+     * 参照順を変えずに記録を取得する
+     */
+    synchronized Entry peek(String name) {
+        load();
+        return mEntries.get(name);
+    }
+
+    /**
+     * 参照されたものを末尾へ移動する
+     */
+    private Entry touch(String name) {
+        Entry entry = mEntries.remove(name);
+        if (entry != null) {
+            mEntries.put(name, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * キャッシュファイルが保存された
+     */
+    synchronized void put(String name, long sizeBytes, long storedAt) {
+        load();
+        Entry old = mEntries.remove(name);
+        if (old != null) {
+            mSizeBytes -= old.mSizeBytes;
+            ++mRedundantOpCount;
+        }
+        mEntries.put(name, new Entry(sizeBytes, storedAt));
+        mSizeBytes += sizeBytes;
+        append(PUT, name + " " + sizeBytes + " " + storedAt);
+        scheduleTrim();
+    }
+
+    /**
+     * キャッシュファイルとメタデータを削除する
+     */
+    void remove(String name) {
+        synchronized (this) {
+            load();
+            Entry old = mEntries.remove(name);
+            if (old != null) {
+                mSizeBytes -= old.mSizeBytes;
+                mRedundantOpCount += 2;
+                append(REMOVE, name);
+            }
+        }
+        delete(name);
+    }
+
+    private void delete(String name) {
+        synchronized (mLocks.get(name)) {
+            synchronized (this) {
+                if (mEntries.containsKey(name)) {
+                    // 一覧から外した後に、新しいキャッシュが保存された
+                    return;
+                }
+            }
+            File file = new File(mDirectory, name);
+            file.delete();
+            FileCacheController.getMetadataFile(file).delete();
+        }
+    }
+
+    private void append(String op, String args) {
+        if (READ.equals(op)) {
+            ++mRedundantOpCount;
+        }
+        mPendingLines.append(op).append(' ').append(args).append('\n');
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            HashedTimerWheel.getDefault().newTimeout(() -> mWriter.execute(this::flush), FLUSH_DELAY_MS);
+        }
+    }
+
+    private void scheduleTrim() {
+        if (mSizeBytes > mMaxBytes && !mTrimScheduled) {
+            mTrimScheduled = true;
+            mWriter.execute(this::trim);
+        }
+    }
+
+    /**
+     * ジャーナルから一覧を復元する
+     */
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        final long LOADED_AT = System.currentTimeMillis();
+        if (!readJournal()) {
+            // ジャーナルが無い場合は、ディレクトリの内容から一覧を作り直す
+            mEntries.clear();
+            mSizeBytes = 0;
+            rebuildFromDirectory();
+            mWriter.execute(this::compact);
+        }
+
+        // ジャーナルに記録されていないファイルを片付ける
+        mWriter.execute(() -> sweep(LOADED_AT));
+        scheduleTrim();
+    }
+
+    private boolean readJournal() {
+        if (!mJournalFile.isFile()) {
+            return false;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mJournalFile), "UTF-8"));
+            if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())) {
+                return false;
+            }
+
+            int lineCount = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] args = line.split(" ");
+                if (PUT.equals(args[0]) && args.length == 4) {
+                    Entry old = mEntries.remove(args[1]);
+                    if (old != null) {
+                        mSizeBytes -= old.mSizeBytes;
+                    }
+                    mEntries.put(args[1], new Entry(Long.parseLong(args[2]), Long.parseLong(args[3])));
+                    mSizeBytes += Long.parseLong(args[2]);
+                } else if (READ.equals(args[0]) && args.length == 2) {
+                    touch(args[1]);
+                } else if (REMOVE.equals(args[0]) && args.length == 2) {
+                    Entry old = mEntries.remove(args[1]);
+                    if (old != null) {
+                        mSizeBytes -= old.mSizeBytes;
+                    }
+                } else if (!line.isEmpty()) {
+                    // 書き込み途中で終了した行は無視する
+                    continue;
+                }
+                ++lineCount;
+            }
+            mRedundantOpCount = Math.max(0, lineCount - mEntries.size());
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            IOUtil.close(reader);
+        }
+    }
+
+    /**
+     * ディレクトリ内のキャッシュファイルから一覧を作る
+     * <p>
+     * 参照順が分からないため、ファイルの更新順で代用する。
+     */
+    private void rebuildFromDirectory() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        List<File> caches = new ArrayList<>();
+        final Map<File, Long> modified = new HashMap<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.equals(getCacheName(name)) && file.isFile()) {
+                caches.add(file);
+                modified.put(file, file.lastModified());
+            }
+        }
+        Collections.sort(caches, (a, b) -> {
+            long diff = modified.get(a) - modified.get(b);
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        });
+        for (File file : caches) {
+            long size = file.length();
+            mEntries.put(file.getName(), new Entry(size, modified.get(file)));
+            mSizeBytes += size;
+        }
+    }
+
+    /**
+     * 一覧に無いキャッシュファイルと、書き込み途中で残った一時ファイルを削除する
+     *
+     * @param loadedAt 一覧を復元した時刻, 直前以降に更新されたファイルは書き込み中の可能性があるため残す
+     */
+    private void sweep(long loadedAt) {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            String cacheName = getCacheName(name);
+            if (cacheName == null) {
+                // このキャッシュが管理するファイルではない
+                continue;
+            }
+
+            boolean known;
+            synchronized (this) {
+                known = mEntries.containsKey(cacheName);
+            }
+            boolean managed = name.equals(cacheName) || name.equals(cacheName + FileCacheController.METADATA_SUFFIX);
+            if ((!known || !managed) && file.lastModified() < loadedAt - SWEEP_GRACE_MS) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * ファイル名から、対応するキャッシュファイル名を取得する
+     * <p>
+     * キャッシュファイルは"キーのハッシュ.拡張子"で、メタデータや一時ファイルはその後ろに続けた名前となる。
+     *
+     * @return キャッシュファイル名, このキャッシュが管理するファイルではない場合はnull
+     */
+    private String getCacheName(String fileName) {
+        final int HASH_LENGTH = fileName.indexOf('.');
+        if (HASH_LENGTH <= 0 || !fileName.startsWith("." + mFileExt, HASH_LENGTH)) {
+            return null;
+        }
+
+        final int CACHE_NAME_LENGTH = HASH_LENGTH + 1 + mFileExt.length();
+        if (fileName.length() > CACHE_NAME_LENGTH && fileName.charAt(CACHE_NAME_LENGTH) != '.') {
+            return null;
+        }
+
+        for (int i = 0; i < HASH_LENGTH; ++i) {
+            if (Character.digit(fileName.charAt(i), 16) < 0) {
+                return null;
+            }
+        }
+        return fileName.substring(0, CACHE_NAME_LENGTH);
+    }
+
+    /**
+     * 合計サイズが上限に収まるまで、最も長く参照されていないものから削除する
+     */
+    private void trim() {
+        List<String> evicted = new ArrayList<>();
+        synchronized (this) {
+            mTrimScheduled = false;
+            Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+            while (mSizeBytes > mMaxBytes && iterator.hasNext()) {
+                Map.Entry<String, Entry> entry = iterator.next();
+                iterator.remove();
+                mSizeBytes -= entry.getValue().mSizeBytes;
+                mRedundantOpCount += 2;
+                append(REMOVE, entry.getKey());
+                evicted.add(entry.getKey());
+            }
+        }
+
+        for (String name : evicted) {
+            delete(name);
+        }
+    }
+
+    /**
+     * 実行待ちの削除を終え、書き込み待ちの行をジャーナルへ書き込むまで待つ
+     */
+    void awaitIdle() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        // 書き込みスレッドは1本のため、先に積まれた処理は全て終わっている
+        mWriter.execute(() -> {
+            try {
+                flush();
+            } finally {
+                latch.countDown();
+            }
+        });
+        latch.await();
+    }
+
+    /**
+     * 書き込み待ちの行をジャーナルへ追記する
+     */
+    private void flush() {
+        String lines;
+        boolean compact;
+        synchronized (this) {
+            mFlushScheduled = false;
+            lines = mPendingLines.toString();
+            mPendingLines.setLength(0);
+            compact = mRedundantOpCount >= COMPACT_THRESHOLD && mRedundantOpCount >= mEntries.size();
+        }
+
+        if (compact) {
+            // 書き込み待ちの行も含めて書き直す
+            compact();
+            return;
+        }
+
+        if (lines.isEmpty()) {
+            return;
+        }
+
+        FileOutputStream os = null;
+        try {
+            os = new FileOutputStream(mJournalFile, true);
+            os.write(lines.getBytes("UTF-8"));
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            IOUtil.close(os);
+        }
+    }
+
+    /**
+     * 現在の一覧だけを記録したジャーナルに書き直す
+     */
+    private void compact() {
+        StringBuilder content = new StringBuilder();
+        synchronized (this) {
+            content.append(MAGIC).append('\n').append(VERSION).append('\n');
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                content.append(PUT).append(' ').append(entry.getKey())
+                        .append(' ').append(entry.getValue().mSizeBytes)
+                        .append(' ').append(entry.getValue().mStoredAt).append('\n');
+            }
+            mPendingLines.setLength(0);
+            mRedundantOpCount = 0;
+        }
+
+        File temp = new File(mDirectory, mJournalFile.getName() + ".tmp");
+        FileOutputStream os = null;
+        try {
+            os = new FileOutputStream(temp);
+            os.write(content.toString().getBytes("UTF-8"));
+            IOUtil.close(os);
+            os = null;
+            if (!temp.renameTo(mJournalFile)) {
+                mJournalFile.delete();
+                if (!temp.renameTo(mJournalFile)) {
+                    throw new IOException("Swap Failed :: " + mJournalFile.getAbsolutePath());
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+        } finally {
+            IOUtil.close(os);
+        }
+    }
+}
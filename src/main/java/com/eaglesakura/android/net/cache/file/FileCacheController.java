@@ -1,79 +1,281 @@
 package com.eaglesakura.android.net.cache.file;
 
 import com.eaglesakura.android.net.HttpHeader;
+import com.eaglesakura.android.net.cache.CacheInputStream;
+import com.eaglesakura.android.net.cache.CacheMetadata;
 import com.eaglesakura.android.net.cache.CachePolicy;
-import com.eaglesakura.android.net.cache.ICacheController;
 import com.eaglesakura.android.net.cache.ICacheWriter;
+import com.eaglesakura.android.net.cache.IRevalidatingCacheController;
 import com.eaglesakura.android.net.request.ConnectRequest;
 import com.eaglesakura.util.EncodeUtil;
 import com.eaglesakura.util.IOUtil;
 
+import android.support.annotation.IntRange;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
 /**
  * 指定ディレクトリ配下でファイルとしてキャッシュを制御する
+ * <p>
+ * 複数のスレッドから同時に利用できる。
+ * 同じキーへの読み書きはキーごとのロックで排他し、異なるキーへの読み書きは並行して行われる。
+ * 同じディレクトリと拡張子を使うインスタンスは、キャッシュの一覧とロック、サイズの上限を共有する。
  */
-public class FileCacheController implements ICacheController {
+public class FileCacheController implements IRevalidatingCacheController {
+    /**
+     * デフォルトのキャッシュ合計サイズの上限
+     */
+    public static final long DEFAULT_MAX_BYTES = 1024 * 1024 * 64;
+
+    static final String METADATA_SUFFIX = ".meta";
+
     File mCacheDirectory;
 
     String mFileExt = "cache";
 
+    /**
+     * このインスタンスで指定されたサイズの上限, 指定されていない場合は0
+     */
+    long mMaxBytes;
+
+    private CacheJournal mJournal;
+
     public FileCacheController(File dir) throws IOException {
-        this.mCacheDirectory = IOUtil.mkdirs(dir);
+        IOUtil.mkdirs(dir);
         if (!dir.isDirectory()) {
             throw new FileNotFoundException("Directory not found");
         }
+        // 別の表記で同じディレクトリを指定しても、同じジャーナルを共有する
+        this.mCacheDirectory = dir.getCanonicalFile();
     }
 
     /**
      * キャッシュ拡張子を指定する。
      * <p/>
-     * 拡張子は"."を除いた文字列を指定する
+     * 拡張子は"."を除いた文字列を指定する。
+     * キャッシュの読み書きを行う前に指定しなければならない。
      */
     public void setFileExt(String fileExt) {
         this.mFileExt = fileExt;
     }
 
-    private File getFile(String key) {
-        String fileName = EncodeUtil.genSHA1(key.getBytes()) + "." + mFileExt;
-        return new File(mCacheDirectory, fileName);
+    /**
+     * キャッシュの合計サイズの上限を指定する。
+     * <p/>
+     * 上限を超えた場合、最も長く参照されていないキャッシュからバックグラウンドで削除される。
+     * 上限は同じディレクトリと拡張子を使う全てのインスタンスで共有され、最後に指定された値が使われる。
+     */
+    public synchronized void setMaxBytes(@IntRange(from = 1) long maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException();
+        }
+        mMaxBytes = maxBytes;
+        if (mJournal != null) {
+            mJournal.setMaxBytes(maxBytes);
+        }
+    }
+
+    public long getMaxBytes() {
+        return getJournal().getMaxBytes();
+    }
+
+    /**
+     * 保存されているキャッシュの合計サイズ
+     */
+    public long getSizeBytes() {
+        return getJournal().getSizeBytes();
+    }
+
+    synchronized CacheJournal getJournal() {
+        if (mJournal == null) {
+            mJournal = CacheJournal.get(mCacheDirectory, mFileExt);
+            if (mMaxBytes > 0) {
+                mJournal.setMaxBytes(mMaxBytes);
+            }
+        }
+        return mJournal;
+    }
+
+    private String getFileName(String key) {
+        return EncodeUtil.genSHA1(key.getBytes()) + "." + mFileExt;
+    }
+
+    /**
+     * キャッシュ本体と対になるメタデータのファイル
+     */
+    static File getMetadataFile(File local) {
+        return new File(local.getAbsolutePath() + METADATA_SUFFIX);
+    }
+
+    /**
+     * 書き込み用の一時ファイルを作成する
+     * <p>
+     * 同じファイルへ並行して書き込まれても衝突しないよう、一意な名前で作成する。
+     */
+    static File newTempFile(File file) throws IOException {
+        return File.createTempFile(file.getName() + ".", ".tmp", file.getParentFile());
+    }
+
+    static CacheMetadata readMetadata(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            return CacheMetadata.decode(IOUtil.toString(is, false));
+        } catch (IOException e) {
+            return null;
+        } finally {
+            IOUtil.close(is);
+        }
+    }
+
+    static void writeMetadata(File file, CacheMetadata metadata) throws IOException {
+        File temp = newTempFile(file);
+        FileOutputStream os = new FileOutputStream(temp);
+        try {
+            os.write(metadata.encode().getBytes("UTF-8"));
+        } finally {
+            IOUtil.close(os);
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Swap Failed :: " + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * ジャーナル上は存在するキャッシュを開く
+     *
+     * @param metadata 同時に読み込んだメタデータ
+     * @return キャッシュ, ファイルが失われていた場合はnull
+     */
+    private InputStream openFile(String name, CacheMetadata metadata) {
+        try {
+            return new CacheInputStream(new FileInputStream(new File(mCacheDirectory, name)), metadata);
+        } catch (FileNotFoundException e) {
+            // ジャーナルへ記録される前に終了した等で、ファイルが失われている
+            getJournal().remove(name);
+            return null;
+        }
     }
 
     @Override
     public ICacheWriter newCacheWriter(ConnectRequest request, HttpHeader respHeader) throws IOException {
         CachePolicy policy = request.getCachePolicy();
-        if (CachePolicy.getCacheLimitTimeMs(policy) < 1000) {
+        if (!CachePolicy.isCacheEnabled(policy) || CachePolicy.isNoStore(policy, respHeader)) {
             return null;
         }
 
-        File local = getFile(policy.getCacheKey(request));
+        File local = new File(mCacheDirectory, getFileName(policy.getCacheKey(request)));
         // 親ディレクトリを作成する
         IOUtil.mkdirs(local.getParentFile());
         if (!mCacheDirectory.isDirectory()) {
             return null;
         }
 
-        return new FileCacheWriter(local);
+        return new FileCacheWriter(local, getMetadataFile(local), CacheMetadata.fromResponse(policy, respHeader), getJournal(), getJournal().getLock(local.getName()));
     }
 
     @Override
     public InputStream openCache(ConnectRequest request) throws IOException {
         CachePolicy policy = request.getCachePolicy();
-        if (CachePolicy.getCacheLimitTimeMs(policy) < 1000) {
+        if (!CachePolicy.isCacheEnabled(policy)) {
+            return null;
+        }
+
+        final String name = getFileName(policy.getCacheKey(request));
+        synchronized (getJournal().getLock(name)) {
+            CacheJournal.Entry entry = getJournal().peek(name);
+            if (entry == null) {
+                return null;
+            }
+
+            // サーバーの指定に従う場合、有効期限はメタデータに保存されている
+            CacheMetadata metadata = readMetadata(getMetadataFile(new File(mCacheDirectory, name)));
+            final long STALE_MS = System.currentTimeMillis() - CacheMetadata.getExpiresAt(policy.isServerCacheControlEnabled() ? metadata : null, policy, entry.getStoredAt());
+            if (STALE_MS > 0) {
+                if ((metadata == null || !metadata.hasValidator()) && STALE_MS > CachePolicy.getStaleRetentionMs(policy)) {
+                    // キャッシュの限界時間を超えていて再検証もできないため、ファイルを削除する
+                    getJournal().remove(name);
+                }
+                return null;
+            }
+
+            getJournal().get(name);
+            return openFile(name, metadata);
+        }
+    }
+
+    @Override
+    public CacheMetadata getMetadata(ConnectRequest request) throws IOException {
+        CachePolicy policy = request.getCachePolicy();
+        if (policy == null) {
             return null;
         }
 
-        File local = getFile(policy.getCacheKey(request));
-        // キャッシュの限界時間を超えているため、ファイルを削除する
-        if (System.currentTimeMillis() > (local.lastModified() + policy.getCacheLimitTimeMs())) {
-            local.delete();
+        final String name = getFileName(policy.getCacheKey(request));
+        synchronized (getJournal().getLock(name)) {
+            if (getJournal().peek(name) == null) {
+                return null;
+            }
+            return readMetadata(getMetadataFile(new File(mCacheDirectory, name)));
+        }
+    }
+
+    @Override
+    public InputStream openStaleCache(ConnectRequest request, long maxStaleMs) throws IOException {
+        CachePolicy policy = request.getCachePolicy();
+        if (policy == null) {
             return null;
         }
 
-        return new FileInputStream(local);
+        final String name = getFileName(policy.getCacheKey(request));
+        synchronized (getJournal().getLock(name)) {
+            CacheJournal.Entry entry = getJournal().peek(name);
+            if (entry == null) {
+                return null;
+            }
+
+            CacheMetadata metadata = readMetadata(getMetadataFile(new File(mCacheDirectory, name)));
+            if (maxStaleMs != Long.MAX_VALUE) {
+                if (System.currentTimeMillis() - CacheMetadata.getExpiresAt(policy.isServerCacheControlEnabled() ? metadata : null, policy, entry.getStoredAt()) > maxStaleMs) {
+                    return null;
+                }
+            }
+
+            getJournal().get(name);
+            return openFile(name, metadata);
+        }
+    }
+
+    @Override
+    public void refresh(ConnectRequest request, HttpHeader respHeader) throws IOException {
+        CachePolicy policy = request.getCachePolicy();
+        if (policy == null) {
+            return;
+        }
+
+        final String name = getFileName(policy.getCacheKey(request));
+        synchronized (getJournal().getLock(name)) {
+            CacheJournal.Entry entry = getJournal().peek(name);
+            if (entry == null) {
+                return;
+            }
+
+            // 有効期限は保存時刻から求めるため、再検証した時刻に揃える
+            getJournal().put(name, entry.getSizeBytes(), System.currentTimeMillis());
+
+            File metadataFile = getMetadataFile(new File(mCacheDirectory, name));
+            CacheMetadata metadata = readMetadata(metadataFile);
+            writeMetadata(metadataFile, metadata != null ? metadata.revalidate(policy, respHeader) : CacheMetadata.fromResponse(policy, respHeader));
+        }
     }
 }
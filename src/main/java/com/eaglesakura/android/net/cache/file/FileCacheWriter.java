@@ -1,6 +1,7 @@
 package com.eaglesakura.android.net.cache.file;
 
-import com.eaglesakura.android.net.cache.ICacheWriter;
+import com.eaglesakura.android.net.cache.CacheMetadata;
+import com.eaglesakura.android.net.cache.IDigestCacheWriter;
 import com.eaglesakura.util.IOUtil;
 
 import java.io.File;
@@ -10,40 +11,95 @@ import java.io.IOException;
 /**
  * ファイルに直接キャッシュを書き込む
  */
-public class FileCacheWriter implements ICacheWriter {
+public class FileCacheWriter implements IDigestCacheWriter {
     final File mDst;
 
     final File mSrc;
 
     final FileOutputStream mStream;
 
+    /**
+     * メタデータの保存先, 不要な場合はnull
+     */
+    final File mMetadataFile;
+
+    final CacheMetadata mMetadata;
+
+    /**
+     * 保存したファイルを記録するジャーナル, 不要な場合はnull
+     */
+    final CacheJournal mJournal;
+
+    /**
+     * 同じファイルへの読み書きと排他するロック
+     */
+    final Object mLock;
+
+    long mWrittenBytes;
+
     public FileCacheWriter(File file) throws IOException {
+        this(file, null, null);
+    }
+
+    public FileCacheWriter(File file, File metadataFile, CacheMetadata metadata) throws IOException {
+        this(file, metadataFile, metadata, null, new Object());
+    }
+
+    FileCacheWriter(File file, File metadataFile, CacheMetadata metadata, CacheJournal journal, Object lock) throws IOException {
         IOUtil.mkdirs(file.getParentFile());
         this.mDst = file;
-        this.mSrc = new File(file.getAbsolutePath() + "." + System.currentTimeMillis());
+        // 同じキーへ並行して書き込まれても衝突しない名前にする
+        this.mSrc = FileCacheController.newTempFile(file);
         this.mStream = new FileOutputStream(mSrc);
+        this.mMetadataFile = metadataFile;
+        this.mMetadata = metadata;
+        this.mJournal = journal;
+        this.mLock = lock;
     }
 
     @Override
     public void write(byte[] buffer, int offset, int length) throws IOException {
         mStream.write(buffer, offset, length);
+        mWrittenBytes += length;
+    }
+
+    @Override
+    public void setContentDigest(String digest) throws IOException {
+        if (mMetadata != null) {
+            mMetadata.setContentDigest(digest);
+        }
     }
 
     /**
      * 正常に書き込めたら、一時ファイルを正式ファイルにリネームする
+     * <p>
+     * 既存のファイルは削除せずにリネームで置き換えるため、読み込み中のストリームは古い内容を読み続けられる。
      */
     @Override
     public void commit() throws IOException {
         if (IOUtil.close(mStream)) {
-            if (mDst.isFile()) {
-                // 既にファイルがある場合は削除する
-                mDst.delete();
-            }
-            // 書き込んだファイルをdstにスワップする
-            mSrc.renameTo(mDst);
+            synchronized (mLock) {
+                // 書き込んだファイルをdstにスワップする
+                if (!mSrc.renameTo(mDst)) {
+                    // 上書きできないファイルシステムでは、削除してから再度リネームする
+                    mDst.delete();
+                    if (!mSrc.renameTo(mDst)) {
+                        mSrc.delete();
+                        throw new IOException("Swap Failed :: " + mSrc.getAbsolutePath() + " -> " + mDst.getAbsolutePath());
+                    }
+                }
+
+                if (mMetadataFile != null) {
+                    if (mMetadata != null) {
+                        FileCacheController.writeMetadata(mMetadataFile, mMetadata);
+                    } else {
+                        mMetadataFile.delete();
+                    }
+                }
 
-            if (mSrc.isFile()) {
-                throw new IOException("Swap Failed :: " + mSrc.getAbsolutePath() + " -> " + mDst.getAbsolutePath());
+                if (mJournal != null) {
+                    mJournal.put(mDst.getName(), mWrittenBytes, System.currentTimeMillis());
+                }
             }
         } else {
             // closeに失敗したから、書き込みが行えなかった
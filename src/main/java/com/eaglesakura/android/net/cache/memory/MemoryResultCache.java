@@ -0,0 +1,295 @@
+package com.eaglesakura.android.net.cache.memory;
+
+import com.eaglesakura.android.net.HttpHeader;
+import com.eaglesakura.android.net.parser.RequestParser;
+
+import android.annotation.SuppressLint;
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.support.annotation.IntRange;
+import android.support.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * パース済みの戻り値をメモリ上に保持する
+ * <p>
+ * キャッシュキーとパーサーの組み合わせで管理し、ヒットした場合はキャッシュの読み込みとパースを行わずに戻り値を返す。
+ * 保持量はSizeEstimatorが見積もったバイト数の合計で制限し、最も長く参照されていないものから削除する。
+ * <p>
+ * 戻り値は複数の呼び出し元で共有されるため、呼び出し元は戻り値を変更してはならない。
+ * 同じパーサーとして扱うためには、パーサーがequals()を実装している必要がある。
+ */
+public class MemoryResultCache {
+    /**
+     * 戻り値のメモリ上のサイズを見積もる
+     */
+    public interface SizeEstimator {
+        /**
+         * @param result パース済みの戻り値
+         * @return 見積もったバイト数, 保持しない場合は負の値
+         */
+        long sizeOf(Object result);
+    }
+
+    /**
+     * byte[] / String / Bitmapのみを保持する見積もり
+     */
+    public static final SizeEstimator DEFAULT_ESTIMATOR = result -> {
+        if (result instanceof byte[]) {
+            return ((byte[]) result).length;
+        } else if (result instanceof String) {
+            return ((String) result).length() * 2;
+        } else if (result instanceof Bitmap) {
+            Bitmap bitmap = (Bitmap) result;
+            return bitmap.isRecycled() ? -1 : (long) bitmap.getRowBytes() * bitmap.getHeight();
+        } else {
+            return -1;
+        }
+    };
+
+    private final SizeEstimator mEstimator;
+
+    /**
+     * 参照順に並んだ戻り値
+     */
+    private final LinkedHashMap<Key, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long mMaxBytes;
+
+    private long mSizeBytes;
+
+    private int mHitCount;
+
+    private int mMissCount;
+
+    public MemoryResultCache(@IntRange(from = 1) long maxBytes) {
+        this(maxBytes, DEFAULT_ESTIMATOR);
+    }
+
+    public MemoryResultCache(@IntRange(from = 1) long maxBytes, SizeEstimator estimator) {
+        if (maxBytes < 1 || estimator == null) {
+            throw new IllegalArgumentException();
+        }
+        mMaxBytes = maxBytes;
+        mEstimator = estimator;
+    }
+
+    /**
+     * 保持されている戻り値
+     */
+    public static class Entry {
+        final Object mResult;
+
+        final String mDigest;
+
+        final long mSizeBytes;
+
+        final long mExpiresAt;
+
+        final HttpHeader mResponseHeader;
+
+        Entry(Object result, String digest, HttpHeader responseHeader, long sizeBytes, long expiresAt) {
+            mResult = result;
+            mDigest = digest;
+            mResponseHeader = responseHeader;
+            mSizeBytes = sizeBytes;
+            mExpiresAt = expiresAt;
+        }
+
+        public Object getResult() {
+            return mResult;
+        }
+
+        /**
+         * 戻り値のパース元となったコンテンツの指紋
+         */
+        public String getDigest() {
+            return mDigest;
+        }
+
+        /**
+         * 戻り値のパース元となったコンテンツを受信した際のレスポンスヘッダ
+         */
+        @Nullable
+        public HttpHeader getResponseHeader() {
+            return mResponseHeader;
+        }
+    }
+
+    /**
+     * 保持する最大バイト数を指定する
+     */
+    public synchronized void setMaxBytes(@IntRange(from = 1) long maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException();
+        }
+        mMaxBytes = maxBytes;
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * 有効期限内の戻り値を取得する
+     *
+     * @return 戻り値, 無い場合はnull
+     */
+    @Nullable
+    public synchronized Entry get(String cacheKey, RequestParser<?> parser) {
+        Key key = new Key(cacheKey, parser);
+        Entry entry = mEntries.get(key);
+        if (entry != null && System.currentTimeMillis() > entry.mExpiresAt) {
+            // 期限切れの戻り値は返さない
+            remove(key);
+            entry = null;
+        }
+
+        if (entry != null) {
+            ++mHitCount;
+        } else {
+            ++mMissCount;
+        }
+        return entry;
+    }
+
+    /**
+     * 戻り値を保持する
+     *
+     * @param cacheKey  キャッシュキー
+     * @param parser    戻り値をパースしたパーサー
+     * @param result    パース済みの戻り値
+     * @param digest    戻り値のパース元となったコンテンツの指紋
+     * @param expiresAt 有効期限
+     */
+    public void put(String cacheKey, RequestParser<?> parser, Object result, String digest, long expiresAt) {
+        put(cacheKey, parser, result, digest, null, expiresAt);
+    }
+
+    /**
+     * 戻り値を保持する
+     *
+     * @param cacheKey       キャッシュキー
+     * @param parser         戻り値をパースしたパーサー
+     * @param result         パース済みの戻り値
+     * @param digest         戻り値のパース元となったコンテンツの指紋
+     * @param responseHeader 戻り値のパース元となったコンテンツを受信した際のレスポンスヘッダ
+     * @param expiresAt      有効期限
+     */
+    public void put(String cacheKey, RequestParser<?> parser, Object result, String digest, @Nullable HttpHeader responseHeader, long expiresAt) {
+        final long SIZE = mEstimator.sizeOf(result);
+        synchronized (this) {
+            Key key = new Key(cacheKey, parser);
+            if (SIZE < 0 || SIZE > mMaxBytes || expiresAt <= System.currentTimeMillis()) {
+                // 保持できないため、古い戻り値も破棄する
+                remove(key);
+                return;
+            }
+
+            Entry old = mEntries.put(key, new Entry(result, digest, responseHeader, SIZE, expiresAt));
+            if (old != null) {
+                mSizeBytes -= old.mSizeBytes;
+            }
+            mSizeBytes += SIZE;
+            trimToSize(mMaxBytes);
+        }
+    }
+
+    /**
+     * 戻り値を破棄する
+     */
+    public synchronized void remove(String cacheKey, RequestParser<?> parser) {
+        remove(new Key(cacheKey, parser));
+    }
+
+    private void remove(Key key) {
+        Entry old = mEntries.remove(key);
+        if (old != null) {
+            mSizeBytes -= old.mSizeBytes;
+        }
+    }
+
+    /**
+     * 全ての戻り値を破棄する
+     */
+    public synchronized void evictAll() {
+        mEntries.clear();
+        mSizeBytes = 0;
+    }
+
+    /**
+     * 指定サイズに収まるまで、最も長く参照されていないものから破棄する
+     */
+    public synchronized void trimToSize(long maxBytes) {
+        Iterator<Map.Entry<Key, Entry>> iterator = mEntries.entrySet().iterator();
+        while (mSizeBytes > maxBytes && iterator.hasNext()) {
+            mSizeBytes -= iterator.next().getValue().mSizeBytes;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * メモリ不足の通知に合わせて破棄する
+     * <p>
+     * ComponentCallbacks2.onTrimMemory()から呼び出す。
+     */
+    @SuppressLint("InlinedApi")
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(getMaxBytes() / 2);
+        }
+    }
+
+    public synchronized long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * 保持している戻り値の見積もりバイト数の合計
+     */
+    public synchronized long getSizeBytes() {
+        return mSizeBytes;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * キャッシュキーとパーサーの組み合わせ
+     */
+    private static class Key {
+        final String mCacheKey;
+
+        final RequestParser<?> mParser;
+
+        Key(String cacheKey, RequestParser<?> parser) {
+            mCacheKey = cacheKey;
+            mParser = parser;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Key key = (Key) o;
+            return mParser.equals(key.mParser) && mCacheKey.equals(key.mCacheKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mCacheKey.hashCode() + mParser.hashCode();
+        }
+    }
+}
@@ -0,0 +1,607 @@
+package com.eaglesakura.android.net.cache.tkvs;
+
+import com.eaglesakura.android.net.cache.StripedLock;
+import com.eaglesakura.android.net.internal.DigestIndex;
+import com.eaglesakura.android.net.scheduler.HashedTimerWheel;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * キャッシュ本体をバイナリのままBLOBとして保存する
+ * <p>
+ * 文字列やBase64への変換を行わないため、バイナリのレスポンスもそのまま保存できる。
+ * 読み込みは一定サイズごとに行い、巨大なエントリーでも一度にメモリへ載せない。
+ * <p>
+ * 書き込みは呼び出し元を待たせずにキューへ積み、バックグラウンドでまとめて1トランザクションとして書き込む。
+ * 書き込み待ちのエントリーも読み込み時に参照されるため、呼び出し元からは即座に反映されたように見える。
+ * 書き込み待ちが上限を超えた場合、書き込みが追いつくまで呼び出し元を待たせる。
+ * <p>
+ * データベースはWALモードで開いたまま保持し、読み込みは書き込み中でも待たされずに並行して行われる。
+ * 書き込みは専用のスレッドのみが行い、ステートメントは使い回す。
+ */
+public class BlobCacheStore {
+    static final String DATABASE_NAME = "es_net_blob_cache.db";
+
+    private static final int DATABASE_VERSION = 2;
+
+    private static final String TABLE_NAME = "BLOB_CACHE";
+
+    /**
+     * 以前のバージョンがキャッシュを保存していたデータベース
+     */
+    private static final String LEGACY_DATABASE_NAME = "es_net_cache.db";
+
+    /**
+     * 1回の読み込みで取得するサイズ
+     */
+    private static final int CHUNK_BYTES = 1024 * 256;
+
+    /**
+     * 変更をまとめて書き込むまでの時間
+     */
+    private static final long FLUSH_DELAY_MS = 100;
+
+    /**
+     * 書き込みスレッドが無処理のまま待機する最大時間
+     */
+    private static final long KEEP_ALIVE_TIME_MS = 1000 * 30;
+
+    /**
+     * 書き込み待ちとして保持する最大サイズ
+     */
+    static final long MAX_PENDING_BYTES = 1024 * 1024 * 4;
+
+    /**
+     * 書き込み待ちとして保持する最大数
+     */
+    static final int MAX_PENDING_WRITES = 256;
+
+    private static final int WRITE_PUT = 0;
+
+    private static final int WRITE_REFRESH = 1;
+
+    private static final int WRITE_REMOVE = 2;
+
+    private static BlobCacheStore sInstance;
+
+    private final OpenHelper mHelper;
+
+    /**
+     * 開いたまま保持するデータベース
+     */
+    private volatile SQLiteDatabase mDatabase;
+
+    private final ThreadPoolExecutor mWriter;
+
+    /**
+     * 書き込みスレッドでのみ利用するステートメント
+     */
+    private SQLiteStatement mInsertStatement;
+
+    private SQLiteStatement mUpdateStatement;
+
+    private SQLiteStatement mDeleteStatement;
+
+    private final Object mFlushLock = new Object();
+
+    /**
+     * キャッシュキーごとの排他制御
+     */
+    private final StripedLock mLocks = new StripedLock();
+
+    /**
+     * 書き込み待ちの変更
+     */
+    private Map<String, PendingWrite> mPendingWrites = new LinkedHashMap<>();
+
+    /**
+     * 書き込み中の変更
+     */
+    private Map<String, PendingWrite> mFlushingWrites = Collections.emptyMap();
+
+    /**
+     * 書き込み待ちと書き込み中の合計サイズ
+     */
+    private long mPendingBytes;
+
+    private boolean mFlushScheduled;
+
+    private boolean mFlushRequested;
+
+    /**
+     * 保存されているエントリー
+     */
+    public static class Entry {
+        final String mKey;
+
+        /**
+         * 保存ごとに割り当てられるID, 書き込み待ちの場合は-1
+         * <p>
+         * AUTOINCREMENTにより、削除されたエントリーのIDが再利用されることはない。
+         */
+        final long mId;
+
+        final long mDate;
+
+        final String mMetadata;
+
+        final long mLength;
+
+        /**
+         * 先頭から読み込み済みのデータ
+         */
+        final byte[] mHead;
+
+        Entry(String key, long id, long date, String metadata, long length, byte[] head) {
+            mKey = key;
+            mId = id;
+            mDate = date;
+            mMetadata = metadata;
+            mLength = length;
+            mHead = head;
+        }
+
+        /**
+         * 保存もしくは再検証された時刻
+         */
+        public long getDate() {
+            return mDate;
+        }
+
+        @Nullable
+        public String getMetadata() {
+            return mMetadata;
+        }
+
+        public long getLength() {
+            return mLength;
+        }
+    }
+
+    /**
+     * 書き込み待ちの変更
+     */
+    static class PendingWrite {
+        final int mType;
+
+        final byte[] mValue;
+
+        final String mMetadata;
+
+        final long mDate;
+
+        PendingWrite(int type, byte[] value, String metadata, long date) {
+            mType = type;
+            mValue = value;
+            mMetadata = metadata;
+            mDate = date;
+        }
+
+        /**
+         * 先に積まれた変更へ、この変更を重ねる
+         */
+        PendingWrite mergeInto(@Nullable PendingWrite older) {
+            if (mType != WRITE_REFRESH || older == null) {
+                return this;
+            } else if (older.mType == WRITE_PUT) {
+                return new PendingWrite(WRITE_PUT, older.mValue, mMetadata, mDate);
+            } else if (older.mType == WRITE_REMOVE) {
+                return older;
+            } else {
+                return this;
+            }
+        }
+
+        long getBytes() {
+            return mValue != null ? mValue.length : 0;
+        }
+    }
+
+    BlobCacheStore(Context context, String databaseName) {
+        mWriter = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_TIME_MS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+            Thread thread = new Thread(r, "BlobCacheStore");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mWriter.allowCoreThreadTimeOut(true);
+        mHelper = new OpenHelper(context, databaseName);
+    }
+
+    /**
+     * プロセスで共有されるインスタンスを取得する
+     */
+    public static synchronized BlobCacheStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BlobCacheStore(context.getApplicationContext(), DATABASE_NAME);
+        }
+        return sInstance;
+    }
+
+    /**
+     * キャッシュキーに対応するロックを取得する
+     * <p>
+     * 読み込んだ内容に応じて書き換える場合、このロックで他の書き込みと排他する。
+     * put()は書き込み待ちが溢れていると待たされるため、このロックを保持したまま呼び出さない。
+     */
+    public Object getLock(String key) {
+        return mLocks.get(key);
+    }
+
+    /**
+     * エントリーを取得する
+     *
+     * @return エントリー, 無い場合はnull
+     */
+    @Nullable
+    public Entry get(String key) {
+        PendingWrite pending = getPendingWrite(key);
+        if (pending != null && pending.mType == WRITE_PUT) {
+            return new Entry(key, -1, pending.mDate, pending.mMetadata, pending.mValue.length, pending.mValue);
+        } else if (pending != null && pending.mType == WRITE_REMOVE) {
+            return null;
+        }
+
+        Entry entry = query(key);
+        if (entry != null && pending != null) {
+            // 再検証の結果が書き込み待ちになっている
+            entry = new Entry(key, entry.mId, pending.mDate, pending.mMetadata, entry.mLength, entry.mHead);
+        }
+        return entry;
+    }
+
+    private Entry query(String key) {
+        Cursor cursor = getDatabase().rawQuery(
+                "SELECT ID, DATE, METADATA, length(VALUE), substr(VALUE, 1, " + CHUNK_BYTES + ") FROM " + TABLE_NAME + " WHERE CACHE_KEY = ?",
+                new String[]{key});
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            return new Entry(key, cursor.getLong(0), cursor.getLong(1), cursor.isNull(2) ? null : cursor.getString(2), cursor.getLong(3), cursor.getBlob(4));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * メタデータのみを取得する
+     *
+     * @return メタデータ, エントリーが無い場合はnull
+     */
+    @Nullable
+    public String getMetadata(String key) {
+        PendingWrite pending = getPendingWrite(key);
+        if (pending != null) {
+            return pending.mMetadata;
+        }
+
+        Cursor cursor = getDatabase().rawQuery("SELECT METADATA FROM " + TABLE_NAME + " WHERE CACHE_KEY = ?", new String[]{key});
+        try {
+            if (!cursor.moveToFirst() || cursor.isNull(0)) {
+                return null;
+            }
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * エントリーの内容を読み込む
+     * <p>
+     * 読み込み中にエントリーが更新された場合、以降の読み込みはIOExceptionとなる。
+     */
+    public InputStream open(Entry entry) {
+        return new BlobInputStream(entry);
+    }
+
+    /**
+     * エントリーを保存する
+     * <p>
+     * データベースへの書き込みは後から非同期に行われる。
+     *
+     * @param metadata メタデータ, 不要な場合はnull
+     */
+    public void put(String key, byte[] value, @Nullable String metadata) {
+        enqueue(key, new PendingWrite(WRITE_PUT, value, metadata, System.currentTimeMillis()));
+    }
+
+    /**
+     * 内容を変えずに、保存時刻とメタデータを更新する
+     */
+    public void refresh(String key, @Nullable String metadata) {
+        enqueue(key, new PendingWrite(WRITE_REFRESH, null, metadata, System.currentTimeMillis()));
+    }
+
+    public void remove(String key) {
+        enqueue(key, new PendingWrite(WRITE_REMOVE, null, null, 0));
+    }
+
+    @Nullable
+    private synchronized PendingWrite getPendingWrite(String key) {
+        PendingWrite write = mPendingWrites.get(key);
+        PendingWrite flushing = mFlushingWrites.get(key);
+        return write != null ? write.mergeInto(flushing) : flushing;
+    }
+
+    private synchronized void enqueue(String key, PendingWrite write) {
+        // 書き込み待ちが上限を超えている場合、書き込みが追いつくまで待つ
+        while (write.mType == WRITE_PUT && mPendingBytes > 0
+                && (mPendingBytes + write.getBytes() > MAX_PENDING_BYTES || mPendingWrites.size() >= MAX_PENDING_WRITES)) {
+            if (!mFlushRequested) {
+                mFlushRequested = true;
+                mWriter.execute(this::flush);
+            }
+
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // キャッシュのため、保存を諦めても問題ない
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        PendingWrite older = mPendingWrites.remove(key);
+        if (older != null) {
+            mPendingBytes -= older.getBytes();
+        }
+        write = write.mergeInto(older);
+        mPendingWrites.put(key, write);
+        mPendingBytes += write.getBytes();
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (mFlushScheduled || mPendingWrites.isEmpty()) {
+            return;
+        }
+        mFlushScheduled = true;
+        HashedTimerWheel.getDefault().newTimeout(() -> mWriter.execute(this::flush), FLUSH_DELAY_MS);
+    }
+
+    /**
+     * 書き込み待ちの変更を即座にデータベースへ書き込む
+     */
+    public void flush() {
+        synchronized (mFlushLock) {
+            Map<String, PendingWrite> writes;
+            synchronized (this) {
+                mFlushScheduled = false;
+                mFlushRequested = false;
+                if (mPendingWrites.isEmpty()) {
+                    return;
+                }
+                writes = mPendingWrites;
+                mFlushingWrites = writes;
+                mPendingWrites = new LinkedHashMap<>();
+            }
+
+            try {
+                write(writes);
+            } catch (Exception e) {
+                // キャッシュのため、書き込めなかった分は破棄する
+                e.printStackTrace();
+            } finally {
+                synchronized (this) {
+                    mFlushingWrites = Collections.emptyMap();
+                    for (PendingWrite write : writes.values()) {
+                        mPendingBytes -= write.getBytes();
+                    }
+                    notifyAll();
+                    scheduleFlush();
+                }
+            }
+        }
+    }
+
+    /**
+     * データベースを取得する
+     * <p>
+     * 一度開いたデータベースは閉じずに使い回す。
+     */
+    private SQLiteDatabase getDatabase() {
+        SQLiteDatabase db = mDatabase;
+        if (db == null) {
+            synchronized (mHelper) {
+                if (mDatabase == null) {
+                    mDatabase = mHelper.getWritableDatabase();
+                }
+                db = mDatabase;
+            }
+        }
+        return db;
+    }
+
+    private void write(Map<String, PendingWrite> writes) {
+        SQLiteDatabase db = getDatabase();
+        if (mInsertStatement == null) {
+            mInsertStatement = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_NAME + " (CACHE_KEY, VALUE, METADATA, DATE) VALUES (?, ?, ?, ?)");
+            mUpdateStatement = db.compileStatement("UPDATE " + TABLE_NAME + " SET METADATA = ?, DATE = ? WHERE CACHE_KEY = ?");
+            mDeleteStatement = db.compileStatement("DELETE FROM " + TABLE_NAME + " WHERE CACHE_KEY = ?");
+        }
+
+        final SQLiteStatement insert = mInsertStatement;
+        final SQLiteStatement update = mUpdateStatement;
+        final SQLiteStatement delete = mDeleteStatement;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            // 読み込みを妨げないよう、WALでは排他ロックを取らない
+            db.beginTransactionNonExclusive();
+        } else {
+            db.beginTransaction();
+        }
+        try {
+            for (Map.Entry<String, PendingWrite> entry : writes.entrySet()) {
+                PendingWrite write = entry.getValue();
+                if (write.mType == WRITE_PUT) {
+                    insert.bindString(1, entry.getKey());
+                    insert.bindBlob(2, write.mValue);
+                    bindStringOrNull(insert, 3, write.mMetadata);
+                    insert.bindLong(4, write.mDate);
+                    insert.executeInsert();
+                } else if (write.mType == WRITE_REFRESH) {
+                    bindStringOrNull(update, 1, write.mMetadata);
+                    update.bindLong(2, write.mDate);
+                    update.bindString(3, entry.getKey());
+                    update.execute();
+                } else {
+                    delete.bindString(1, entry.getKey());
+                    delete.execute();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            // 保持しているBLOBを参照し続けないよう、引数を解放する
+            insert.clearBindings();
+        }
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, @Nullable String value) {
+        if (value != null) {
+            statement.bindString(index, value);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+
+    /**
+     * 一定サイズごとにBLOBを読み込む
+     */
+    private class BlobInputStream extends InputStream {
+        final Entry mEntry;
+
+        byte[] mChunk;
+
+        /**
+         * 読み込み中のデータの、エントリー上の位置
+         */
+        long mChunkOffset;
+
+        int mChunkPosition;
+
+        BlobInputStream(Entry entry) {
+            mEntry = entry;
+            mChunk = entry.mHead != null ? entry.mHead : new byte[0];
+        }
+
+        private boolean fill() throws IOException {
+            if (mChunkPosition < mChunk.length) {
+                return true;
+            }
+
+            long offset = mChunkOffset + mChunk.length;
+            if (offset >= mEntry.mLength) {
+                return false;
+            }
+
+            // SQLが変わらないよう位置は引数で渡し、コンパイル済みのステートメントを使い回させる
+            // 削除後に同じキーで保存し直された場合も、IDが異なるため別のエントリーを読むことはない
+            Cursor cursor = getDatabase().rawQuery(
+                    "SELECT substr(VALUE, CAST(? AS INTEGER), " + CHUNK_BYTES + ") FROM " + TABLE_NAME + " WHERE CACHE_KEY = ? AND ID = CAST(? AS INTEGER)",
+                    new String[]{String.valueOf(offset + 1), mEntry.mKey, String.valueOf(mEntry.mId)});
+            try {
+                if (!cursor.moveToFirst()) {
+                    throw new IOException("Cache entry replaced");
+                }
+                mChunk = cursor.isNull(0) ? new byte[0] : cursor.getBlob(0);
+            } finally {
+                cursor.close();
+            }
+            mChunkOffset = offset;
+            mChunkPosition = 0;
+            return mChunk.length > 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return mChunk[mChunkPosition++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+
+            int read = Math.min(length, mChunk.length - mChunkPosition);
+            System.arraycopy(mChunk, mChunkPosition, buffer, offset, read);
+            mChunkPosition += read;
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return mChunk.length - mChunkPosition;
+        }
+    }
+
+    /**
+     * データベースと、SQLiteが作成するジャーナル類を削除する
+     */
+    static void deleteDatabaseFiles(File file) {
+        file.delete();
+        for (String suffix : new String[]{"-journal", "-wal", "-shm"}) {
+            new File(file.getAbsolutePath() + suffix).delete();
+        }
+    }
+
+    private static class OpenHelper extends SQLiteOpenHelper {
+        final Context mContext;
+
+        OpenHelper(Context context, String databaseName) {
+            super(context, new File(context.getCacheDir(), databaseName).getAbsolutePath(), null, DATABASE_VERSION);
+            mContext = context;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                setWriteAheadLoggingEnabled(true);
+            }
+        }
+
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            super.onOpen(db);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+                db.enableWriteAheadLogging();
+            }
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            // 保存し直したエントリーを読み込み中のものと区別するため、IDは再利用させない
+            db.execSQL("CREATE TABLE " + TABLE_NAME + " (ID INTEGER PRIMARY KEY AUTOINCREMENT, CACHE_KEY TEXT NOT NULL UNIQUE, VALUE BLOB NOT NULL, METADATA TEXT, DATE INTEGER NOT NULL)");
+
+            // 以前のバージョンが文字列として保存していたキャッシュは読めないため、片付ける
+            // 同じデータベースに記録されていたダイジェストは、削除する前にDigestIndexへ引き継がせる
+            DigestIndex.getInstance(mContext).size();
+            deleteDatabaseFiles(new File(mContext.getCacheDir(), LEGACY_DATABASE_NAME));
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+            onCreate(db);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.eaglesakura.android.net.cache.tkvs;
+
+import com.eaglesakura.android.net.cache.CacheMetadata;
+import com.eaglesakura.android.net.cache.IDigestCacheWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * レスポンスをバイナリのままBlobCacheStoreへ保存する
+ */
+class BlobCacheWriter implements IDigestCacheWriter {
+    /**
+     * Content-Lengthに合わせて事前に確保するバッファの上限
+     */
+    static final int MAX_PREALLOCATE_BYTES = 1024 * 1024;
+
+    static final int DEFAULT_BUFFER_BYTES = 1024 * 16;
+
+    final BlobCacheStore mStore;
+
+    final String mCacheKey;
+
+    /**
+     * キャッシュと共に保存するメタデータ, 不要な場合はnull
+     */
+    final CacheMetadata mMetadata;
+
+    final BlobOutputStream mStream;
+
+    /**
+     * @param contentLength Content-Length, 不明な場合は0以下
+     */
+    BlobCacheWriter(BlobCacheStore store, String cacheKey, CacheMetadata metadata, long contentLength) {
+        mStore = store;
+        mCacheKey = cacheKey;
+        mMetadata = metadata;
+        mStream = new BlobOutputStream(contentLength > 0 && contentLength <= MAX_PREALLOCATE_BYTES ? (int) contentLength : DEFAULT_BUFFER_BYTES);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        mStream.write(buffer, offset, length);
+    }
+
+    @Override
+    public void setContentDigest(String digest) throws IOException {
+        if (mMetadata != null) {
+            mMetadata.setContentDigest(digest);
+        }
+    }
+
+    @Override
+    public void commit() throws IOException {
+        // 書き込み待ちが溢れている場合は待たされるため、キーのロックは取らない
+        // 同じキーへの書き込みはBlobCacheStoreのキューで後から積まれたものが優先される
+        mStore.put(mCacheKey, mStream.toBlob(), mMetadata != null ? mMetadata.encode() : null);
+    }
+
+    @Override
+    public void abort() throws IOException {
+        mStream.reset();
+    }
+
+    @Override
+    public void close() throws IOException {
+
+    }
+
+    /**
+     * 書き込み量がバッファと一致した場合、コピーせずにバッファを返す
+     */
+    static class BlobOutputStream extends ByteArrayOutputStream {
+        BlobOutputStream(int size) {
+            super(size);
+        }
+
+        byte[] toBlob() {
+            if (count == buf.length) {
+                return buf;
+            }
+            return toByteArray();
+        }
+    }
+}
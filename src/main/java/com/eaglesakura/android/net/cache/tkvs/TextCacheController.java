@@ -1,92 +1,127 @@
 package com.eaglesakura.android.net.cache.tkvs;
 
-import com.eaglesakura.android.db.DBOpenType;
-import com.eaglesakura.android.db.TextKeyValueStore;
 import com.eaglesakura.android.net.HttpHeader;
+import com.eaglesakura.android.net.cache.CacheInputStream;
+import com.eaglesakura.android.net.cache.CacheMetadata;
 import com.eaglesakura.android.net.cache.CachePolicy;
-import com.eaglesakura.android.net.cache.ICacheController;
 import com.eaglesakura.android.net.cache.ICacheWriter;
+import com.eaglesakura.android.net.cache.IRevalidatingCacheController;
 import com.eaglesakura.android.net.request.ConnectRequest;
-import com.eaglesakura.util.StringUtil;
 
 import android.content.Context;
 
-import java.io.ByteArrayInputStream;
-import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 
 /**
  * テキストベースAPIのキャッシュを制御する
+ * <p>
+ * キャッシュはBlobCacheStoreへバイナリのまま保存されるため、テキスト以外のレスポンスも扱える。
+ * 複数のスレッドから同時に利用でき、同じキーへの読み書きはキーごとのロックで排他する。
  */
-public class TextCacheController implements ICacheController {
+public class TextCacheController implements IRevalidatingCacheController {
     private final Context context;
 
-    private final TextKeyValueStore kvs;
-
-    private boolean encodeBase64 = false;
+    private final BlobCacheStore store;
 
     public TextCacheController(Context context) {
         this.context = context.getApplicationContext();
-
-        File dbFile = new File(context.getCacheDir(), "es_net_cache.db");
-        this.kvs = new TextKeyValueStore(this.context, dbFile, TextKeyValueStore.TABLE_NAME_DEFAULT);
+        this.store = BlobCacheStore.getInstance(this.context);
     }
 
     @Override
     public ICacheWriter newCacheWriter(ConnectRequest request, HttpHeader respHeader) throws IOException {
         CachePolicy policy = request.getCachePolicy();
-        long timeMs = CachePolicy.getCacheLimitTimeMs(request.getCachePolicy());
-        if (timeMs < 1000) {
+        if (!CachePolicy.isCacheEnabled(policy) || CachePolicy.isNoStore(policy, respHeader)) {
             return null;
         }
-        return new TextCacheWriter(kvs, policy.getCacheKey(request), encodeBase64);
+        return new BlobCacheWriter(store, policy.getCacheKey(request), CacheMetadata.fromResponse(policy, respHeader),
+                respHeader != null ? respHeader.getContentLength() : -1);
     }
 
     @Override
     public InputStream openCache(ConnectRequest request) throws IOException {
         CachePolicy policy = request.getCachePolicy();
-        long timeMs = CachePolicy.getCacheLimitTimeMs(request.getCachePolicy());
-        if (timeMs < 1000) {
+        if (!CachePolicy.isCacheEnabled(policy)) {
             // 適当なしきい値以下のタイムアウトは実質的に無視すべき
             throw new FileNotFoundException();
         }
 
-        try {
-            kvs.open(DBOpenType.Write);
-
-            final String key = policy.getCacheKey(request);
-            TextKeyValueStore.Data data = kvs.get(key);
-            if (data == null) {
+        final String key = policy.getCacheKey(request);
+        synchronized (store.getLock(key)) {
+            BlobCacheStore.Entry entry = store.get(key);
+            if (entry == null) {
                 return null;
             }
 
-            if (System.currentTimeMillis() > (data.date + timeMs)) {
-                // タイムアウト時間を超えていたら、キャッシュをローカルから削除する
-                kvs.remove(key);
+            // サーバーの指定に従う場合、有効期限はメタデータに保存されている
+            CacheMetadata metadata = CacheMetadata.decode(entry.getMetadata());
+            final long STALE_MS = System.currentTimeMillis() - CacheMetadata.getExpiresAt(policy.isServerCacheControlEnabled() ? metadata : null, policy, entry.getDate());
+            if (STALE_MS > 0) {
+                if ((metadata == null || !metadata.hasValidator()) && STALE_MS > CachePolicy.getStaleRetentionMs(policy)) {
+                    // タイムアウト時間を超えていて再検証もできないため、キャッシュをローカルから削除する
+                    store.remove(key);
+                }
                 return null;
             } else {
                 // キャッシュが有効なので、それを利用する
-                return new ByteArrayInputStream(toByteArray(data.value));
+                return new CacheInputStream(store.open(entry), metadata);
+            }
+        }
+    }
+
+    @Override
+    public CacheMetadata getMetadata(ConnectRequest request) throws IOException {
+        CachePolicy policy = request.getCachePolicy();
+        if (policy == null) {
+            return null;
+        }
+        return CacheMetadata.decode(store.getMetadata(policy.getCacheKey(request)));
+    }
+
+    @Override
+    public InputStream openStaleCache(ConnectRequest request, long maxStaleMs) throws IOException {
+        CachePolicy policy = request.getCachePolicy();
+        if (policy == null) {
+            return null;
+        }
+
+        BlobCacheStore.Entry entry = store.get(policy.getCacheKey(request));
+        if (entry == null) {
+            return null;
+        }
+
+        CacheMetadata metadata = CacheMetadata.decode(entry.getMetadata());
+        if (maxStaleMs != Long.MAX_VALUE) {
+            if (System.currentTimeMillis() - CacheMetadata.getExpiresAt(policy.isServerCacheControlEnabled() ? metadata : null, policy, entry.getDate()) > maxStaleMs) {
+                return null;
             }
-        } finally {
-            kvs.close();
+        }
+        return new CacheInputStream(store.open(entry), metadata);
+    }
+
+    @Override
+    public void refresh(ConnectRequest request, HttpHeader respHeader) throws IOException {
+        CachePolicy policy = request.getCachePolicy();
+        if (policy == null) {
+            return;
+        }
+
+        // 有効期限は保存日時から求めるため、本体を書き換えずに日時を更新する
+        final String key = policy.getCacheKey(request);
+        synchronized (store.getLock(key)) {
+            CacheMetadata metadata = CacheMetadata.decode(store.getMetadata(key));
+            store.refresh(key, (metadata != null ? metadata.revalidate(policy, respHeader) : CacheMetadata.fromResponse(policy, respHeader)).encode());
         }
     }
 
     /**
      * base64エンコードを行う場合true
+     *
+     * @deprecated キャッシュはバイナリのまま保存されるため、この設定は無視される
      */
+    @Deprecated
     public void setEncodeBase64(boolean encodeBase64) {
-        this.encodeBase64 = encodeBase64;
-    }
-
-    private byte[] toByteArray(String dbText) {
-        if (encodeBase64) {
-            return StringUtil.toByteArray(dbText);
-        } else {
-            return dbText.getBytes();
-        }
     }
 }
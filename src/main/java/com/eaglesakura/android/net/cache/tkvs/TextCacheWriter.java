@@ -2,13 +2,18 @@ package com.eaglesakura.android.net.cache.tkvs;
 
 import com.eaglesakura.android.db.DBOpenType;
 import com.eaglesakura.android.db.TextKeyValueStore;
-import com.eaglesakura.android.net.cache.ICacheWriter;
+import com.eaglesakura.android.net.cache.CacheMetadata;
+import com.eaglesakura.android.net.cache.IDigestCacheWriter;
 import com.eaglesakura.util.StringUtil;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
-public class TextCacheWriter implements ICacheWriter {
+/**
+ * @deprecated TextCacheControllerはBlobCacheStoreへバイナリのまま保存するため、利用されない
+ */
+@Deprecated
+public class TextCacheWriter implements IDigestCacheWriter {
     /**
      * Base64エンコードを行う場合はtrue
      */
@@ -29,10 +34,20 @@ public class TextCacheWriter implements ICacheWriter {
      */
     final String cacheKey;
 
+    /**
+     * キャッシュと共に保存するメタデータ, 不要な場合はnull
+     */
+    final CacheMetadata metadata;
+
     public TextCacheWriter(TextKeyValueStore kvs, String cacheKey, boolean encodeBase64) {
+        this(kvs, cacheKey, encodeBase64, null);
+    }
+
+    public TextCacheWriter(TextKeyValueStore kvs, String cacheKey, boolean encodeBase64, CacheMetadata metadata) {
         this.encodeBase64 = encodeBase64;
         this.kvs = kvs;
         this.cacheKey = cacheKey;
+        this.metadata = metadata;
         this.stream = new ByteArrayOutputStream(1024 * 16);
     }
 
@@ -41,6 +56,13 @@ public class TextCacheWriter implements ICacheWriter {
         stream.write(buffer, offset, length);
     }
 
+    @Override
+    public void setContentDigest(String digest) throws IOException {
+        if (metadata != null) {
+            metadata.setContentDigest(digest);
+        }
+    }
+
     @Override
     public void commit() throws IOException {
         final byte[] buffer = stream.toByteArray();
@@ -54,11 +76,23 @@ public class TextCacheWriter implements ICacheWriter {
         try {
             kvs.open(DBOpenType.Write);
             kvs.putDirect(cacheKey, value);
+            if (metadata != null) {
+                kvs.putDirect(getMetadataKey(cacheKey), metadata.encode());
+            } else {
+                kvs.remove(getMetadataKey(cacheKey));
+            }
         } finally {
             kvs.close();
         }
     }
 
+    /**
+     * メタデータを保存するキー
+     */
+    static String getMetadataKey(String cacheKey) {
+        return "meta:" + cacheKey;
+    }
+
     @Override
     public void abort() throws IOException {
 
@@ -0,0 +1,29 @@
+package com.eaglesakura.android.net.error;
+
+import java.io.IOException;
+
+/**
+ * 接続先ホストのサーキットブレーカーが開いているため、通信を行わずに失敗した
+ */
+public class CircuitBreakerOpenException extends IOException {
+    final String mHost;
+
+    final long mRetryAfterMs;
+
+    public CircuitBreakerOpenException(String message, String host, long retryAfterMs) {
+        super(message);
+        mHost = host;
+        mRetryAfterMs = retryAfterMs;
+    }
+
+    public String getHost() {
+        return mHost;
+    }
+
+    /**
+     * 通信が再開されるまでの目安時間を取得する
+     */
+    public long getRetryAfterMs() {
+        return mRetryAfterMs;
+    }
+}
@@ -0,0 +1,22 @@
+package com.eaglesakura.android.net.error;
+
+import java.io.InterruptedIOException;
+
+/**
+ * リクエスト全体の期限を過ぎたため、リトライを含む通信を打ち切った
+ */
+public class DeadlineExceededException extends InterruptedIOException {
+    final long mDeadlineMs;
+
+    public DeadlineExceededException(String message, long deadlineMs) {
+        super(message);
+        mDeadlineMs = deadlineMs;
+    }
+
+    /**
+     * リクエストに指定されていた期限を取得する
+     */
+    public long getDeadlineMs() {
+        return mDeadlineMs;
+    }
+}
@@ -0,0 +1,40 @@
+package com.eaglesakura.android.net.error;
+
+import com.eaglesakura.android.net.Result;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 一括通信で1つ以上のリクエストが失敗した
+ * <p>
+ * 成功したリクエストの結果は入力順に格納され、失敗したリクエストの位置はnullとなる。
+ */
+public class HttpBatchFailedException extends IOException {
+
+    final List<? extends Result<?>> mResults;
+
+    final Map<Integer, IOException> mErrors;
+
+    public HttpBatchFailedException(String message, List<? extends Result<?>> results, Map<Integer, IOException> errors) {
+        super(message);
+        mResults = results;
+        mErrors = errors;
+    }
+
+    /**
+     * 入力順に並んだ通信結果を取得する
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<Result<T>> getResults() {
+        return (List<Result<T>>) mResults;
+    }
+
+    /**
+     * 失敗したリクエストの入力位置と例外を取得する
+     */
+    public Map<Integer, IOException> getErrors() {
+        return mErrors;
+    }
+}
@@ -2,6 +2,7 @@ package com.eaglesakura.android.net.error;
 
 import com.eaglesakura.android.net.internal.CallbackHolder;
 import com.eaglesakura.android.net.request.ConnectRequest;
+import com.eaglesakura.android.net.transport.HttpExchange;
 import com.eaglesakura.json.JSON;
 
 import android.annotation.SuppressLint;
@@ -10,7 +11,6 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
 
 public class HttpStatusException extends IOException {
@@ -53,16 +53,36 @@ public class HttpStatusException extends IOException {
         return JSON.decode(new ByteArrayInputStream(mErrorBuffer), clazz);
     }
 
-    @SuppressLint("NewApi")
+    /**
+     * @deprecated 通信はHttpExchangeを経由して行われるため、setErrorResponse(HttpExchange, ConnectRequest, CallbackHolder)を使うべき
+     */
+    @Deprecated
     public HttpStatusException setErrorResponse(HttpURLConnection connection, ConnectRequest request, CallbackHolder holder) throws IOException {
         if (request.getErrorPolicy() == null || !request.getErrorPolicy().isHandleErrorStream()) {
             return this;
         }
 
+        return readErrorStream(connection.getErrorStream(), holder);
+    }
+
+    public HttpStatusException setErrorResponse(HttpExchange connection, ConnectRequest request, CallbackHolder holder) throws IOException {
+        if (request.getErrorPolicy() == null || !request.getErrorPolicy().isHandleErrorStream()) {
+            return this;
+        }
+
+        return readErrorStream(connection.getErrorStream(), holder);
+    }
+
+    @SuppressLint("NewApi")
+    private HttpStatusException readErrorStream(InputStream errorStream, CallbackHolder holder) throws IOException {
+        if (errorStream == null) {
+            return this;
+        }
+
         byte[] buffer = new byte[1024];
         ByteArrayOutputStream os = new ByteArrayOutputStream();
         try (
-                InputStream is = connection.getErrorStream()
+                InputStream is = errorStream
         ) {
             // バッファを全て読み取る
             int length;
@@ -71,7 +91,7 @@ public class HttpStatusException extends IOException {
 
                 // キャンセルされた
                 if (holder.isCanceled()) {
-                    throw new InterruptedIOException();
+                    throw holder.newCanceledException();
                 }
             }
         }
@@ -0,0 +1,165 @@
+package com.eaglesakura.android.net.host;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1ホスト分のサーキットブレーカー
+ * <p>
+ * 連続して失敗した場合にOPENとなり、一定時間は通信を行わずに失敗させる。
+ * 時間が経過するとHALF_OPENとなり、少数の試行が成功すればCLOSEDへ戻る。
+ * スレッドセーフではないため、呼び出し側で同期を行う。
+ */
+public class CircuitBreaker {
+    public enum State {
+        /**
+         * 通常通り通信を行う
+         */
+        CLOSED,
+
+        /**
+         * 通信を行わずに失敗させる
+         */
+        OPEN,
+
+        /**
+         * 復旧を確認するため、少数の通信のみ許可する
+         */
+        HALF_OPEN,
+    }
+
+    /**
+     * OPENとなる連続失敗回数
+     */
+    final int mFailureThreshold;
+
+    /**
+     * OPENを維持する時間
+     */
+    final long mOpenDurationNanos;
+
+    /**
+     * HALF_OPENで同時に許可する通信数
+     */
+    final int mHalfOpenMaxCalls;
+
+    State mState = State.CLOSED;
+
+    int mConsecutiveFailures;
+
+    /**
+     * HALF_OPENで実行中の通信数
+     */
+    int mHalfOpenCalls;
+
+    long mOpenUntilNanos;
+
+    long mTripCount;
+
+    long mRejectedCount;
+
+    public CircuitBreaker(int failureThreshold, long openDurationMs, int halfOpenMaxCalls) {
+        if (failureThreshold < 1 || openDurationMs <= 0 || halfOpenMaxCalls < 1) {
+            throw new IllegalArgumentException();
+        }
+        mFailureThreshold = failureThreshold;
+        mOpenDurationNanos = TimeUnit.MILLISECONDS.toNanos(openDurationMs);
+        mHalfOpenMaxCalls = halfOpenMaxCalls;
+    }
+
+    State getState(long nowNanos) {
+        if (mState == State.OPEN && nowNanos - mOpenUntilNanos >= 0) {
+            mState = State.HALF_OPEN;
+            mHalfOpenCalls = 0;
+        }
+        return mState;
+    }
+
+    public State getState() {
+        return getState(System.nanoTime());
+    }
+
+    /**
+     * 通信の許可を得る。
+     *
+     * @return 許可された場合は0, 許可されない場合はOPENが解除されるまでの時間(ms)
+     */
+    long tryAcquire(long nowNanos) {
+        switch (getState(nowNanos)) {
+            case CLOSED:
+                return 0;
+            case HALF_OPEN:
+                if (mHalfOpenCalls < mHalfOpenMaxCalls) {
+                    ++mHalfOpenCalls;
+                    return 0;
+                }
+                // 試行中の結果を待つ
+                ++mRejectedCount;
+                return 1;
+            default:
+                ++mRejectedCount;
+                return Math.max(1, TimeUnit.NANOSECONDS.toMillis(mOpenUntilNanos - nowNanos));
+        }
+    }
+
+    public long tryAcquire() {
+        return tryAcquire(System.nanoTime());
+    }
+
+    /**
+     * 許可された通信が成功した
+     */
+    public void onSuccess() {
+        if (mState == State.HALF_OPEN) {
+            // 復旧を確認できた
+            mState = State.CLOSED;
+            mHalfOpenCalls = 0;
+        }
+        mConsecutiveFailures = 0;
+    }
+
+    void onFailure(long nowNanos) {
+        if (mState == State.HALF_OPEN) {
+            trip(nowNanos);
+        } else if (mState == State.CLOSED && ++mConsecutiveFailures >= mFailureThreshold) {
+            trip(nowNanos);
+        }
+    }
+
+    /**
+     * 許可された通信が失敗した
+     */
+    public void onFailure() {
+        onFailure(System.nanoTime());
+    }
+
+    /**
+     * 許可された通信が結果を得ずに終了した
+     */
+    public void onIgnored() {
+        if (mState == State.HALF_OPEN && mHalfOpenCalls > 0) {
+            --mHalfOpenCalls;
+        }
+    }
+
+    private void trip(long nowNanos) {
+        mState = State.OPEN;
+        mOpenUntilNanos = nowNanos + mOpenDurationNanos;
+        mConsecutiveFailures = 0;
+        mHalfOpenCalls = 0;
+        ++mTripCount;
+    }
+
+    /**
+     * OPENとなった回数を取得する
+     */
+    public long getTripCount() {
+        return mTripCount;
+    }
+
+    /**
+     * 通信を許可しなかった回数を取得する
+     */
+    public long getRejectedCount() {
+        return mRejectedCount;
+    }
+}
@@ -0,0 +1,178 @@
+package com.eaglesakura.android.net.host;
+
+import com.eaglesakura.android.net.error.CircuitBreakerOpenException;
+
+import android.support.annotation.IntRange;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ホストごとのサーキットブレーカーとリトライ予算を管理する
+ * <p>
+ * 障害中のホストへの通信を早期に失敗させ、リトライによる負荷の増幅を防ぐ。
+ * 1つのインスタンスを複数のNetworkConnectorで共有することもできる。
+ */
+public class HostHealth {
+    private final Map<String, HostState> mHosts = new HashMap<>();
+
+    private int mFailureThreshold = 5;
+
+    private long mOpenDurationMs = 1000 * 30;
+
+    private int mHalfOpenMaxCalls = 1;
+
+    private double mRetryRatio = 0.2;
+
+    private double mMinRetriesPerSec = 1.0;
+
+    private long mRetryWindowMs = 1000 * 10;
+
+    private static class HostState {
+        final CircuitBreaker mCircuitBreaker;
+
+        final RetryBudget mRetryBudget;
+
+        HostState(CircuitBreaker circuitBreaker, RetryBudget retryBudget) {
+            mCircuitBreaker = circuitBreaker;
+            mRetryBudget = retryBudget;
+        }
+    }
+
+    /**
+     * サーキットブレーカーの設定を行う。
+     * <p>
+     * 既に状態を持っているホストはリセットされる。
+     *
+     * @param failureThreshold OPENとなる連続失敗回数
+     * @param openDurationMs   OPENを維持する時間
+     * @param halfOpenMaxCalls HALF_OPENで同時に許可する通信数
+     */
+    public synchronized void setCircuitBreaker(@IntRange(from = 1) int failureThreshold, long openDurationMs, @IntRange(from = 1) int halfOpenMaxCalls) {
+        // 値の検証を行う
+        new CircuitBreaker(failureThreshold, openDurationMs, halfOpenMaxCalls);
+        mFailureThreshold = failureThreshold;
+        mOpenDurationMs = openDurationMs;
+        mHalfOpenMaxCalls = halfOpenMaxCalls;
+        mHosts.clear();
+    }
+
+    /**
+     * リトライ予算の設定を行う。
+     * <p>
+     * 既に状態を持っているホストはリセットされる。
+     *
+     * @param retryRatio       直近に成功した通信数に対して許可するリトライの割合
+     * @param minRetriesPerSec 成功数に関わらず1秒あたりに許可するリトライ数
+     * @param windowMs         集計期間
+     */
+    public synchronized void setRetryBudget(double retryRatio, double minRetriesPerSec, long windowMs) {
+        // 値の検証を行う
+        new RetryBudget(retryRatio, minRetriesPerSec, windowMs);
+        mRetryRatio = retryRatio;
+        mMinRetriesPerSec = minRetriesPerSec;
+        mRetryWindowMs = windowMs;
+        mHosts.clear();
+    }
+
+    private HostState getHostState(String host) {
+        HostState state = mHosts.get(host);
+        if (state == null) {
+            state = new HostState(
+                    new CircuitBreaker(mFailureThreshold, mOpenDurationMs, mHalfOpenMaxCalls),
+                    new RetryBudget(mRetryRatio, mMinRetriesPerSec, mRetryWindowMs)
+            );
+            mHosts.put(host, state);
+        }
+        return state;
+    }
+
+    /**
+     * 通信の許可を得る。
+     * <p>
+     * 許可された場合、通信終了後にonSuccess() / onFailure() / onIgnored()のいずれかを呼び出す。
+     *
+     * @throws CircuitBreakerOpenException ホストのサーキットブレーカーが開いている
+     */
+    public synchronized void acquire(String host) throws CircuitBreakerOpenException {
+        long retryAfterMs = getHostState(host).mCircuitBreaker.tryAcquire();
+        if (retryAfterMs > 0) {
+            throw new CircuitBreakerOpenException("Circuit breaker open :: " + host, host, retryAfterMs);
+        }
+    }
+
+    /**
+     * 通信が成功した
+     */
+    public synchronized void onSuccess(String host) {
+        HostState state = getHostState(host);
+        state.mCircuitBreaker.onSuccess();
+        state.mRetryBudget.onSuccess();
+    }
+
+    /**
+     * ホストの障害により通信が失敗した
+     */
+    public synchronized void onFailure(String host) {
+        getHostState(host).mCircuitBreaker.onFailure();
+    }
+
+    /**
+     * キャンセル等、ホストの状態と無関係に通信が終了した
+     */
+    public synchronized void onIgnored(String host) {
+        getHostState(host).mCircuitBreaker.onIgnored();
+    }
+
+    /**
+     * リトライの許可を得る
+     *
+     * @return リトライ予算が残っている場合true
+     */
+    public synchronized boolean tryRetry(String host) {
+        return getHostState(host).mRetryBudget.tryRetry();
+    }
+
+    /**
+     * ホストのサーキットブレーカーの状態を取得する
+     */
+    public synchronized CircuitBreaker.State getState(String host) {
+        HostState state = mHosts.get(host);
+        return state != null ? state.mCircuitBreaker.getState() : CircuitBreaker.State.CLOSED;
+    }
+
+    /**
+     * ホストのサーキットブレーカーがOPENとなった回数を取得する
+     */
+    public synchronized long getTripCount(String host) {
+        HostState state = mHosts.get(host);
+        return state != null ? state.mCircuitBreaker.getTripCount() : 0;
+    }
+
+    /**
+     * 全ホストでサーキットブレーカーがOPENとなった回数を取得する
+     */
+    public synchronized long getTripCount() {
+        long result = 0;
+        for (HostState state : mHosts.values()) {
+            result += state.mCircuitBreaker.getTripCount();
+        }
+        return result;
+    }
+
+    /**
+     * ホストのサーキットブレーカーが通信を拒否した回数を取得する
+     */
+    public synchronized long getRejectedCount(String host) {
+        HostState state = mHosts.get(host);
+        return state != null ? state.mCircuitBreaker.getRejectedCount() : 0;
+    }
+
+    /**
+     * ホストのリトライ予算が足りずにリトライを拒否した回数を取得する
+     */
+    public synchronized long getRetryExhaustedCount(String host) {
+        HostState state = mHosts.get(host);
+        return state != null ? state.mRetryBudget.getExhaustedCount() : 0;
+    }
+}
@@ -0,0 +1,236 @@
+package com.eaglesakura.android.net.host;
+
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ホストごとに直近の応答時間を記録する
+ * <p>
+ * HedgePolicyの待ち時間を求めるためのパーセンタイルと、ヘッジ数の上限を管理する。
+ * ヘッジ数はリトライと同じく、直近に完了した通信数に対する割合で制限する。
+ * <p>
+ * 適応タイムアウトを有効にした場合、接続時間と応答時間の平滑化平均と分散からホストごとのタイムアウト時間を求める。
+ */
+public class LatencyTracker {
+    /**
+     * 1ホストあたりに保持するサンプル数
+     */
+    private static final int SAMPLE_NUM = 128;
+
+    private final Map<String, HostState> mHosts = new HashMap<>();
+
+    private double mHedgeRatio = 0.05;
+
+    private double mMinHedgesPerSec = 0.1;
+
+    private long mHedgeWindowMs = 1000 * 10;
+
+    private boolean mAdaptiveTimeoutEnabled;
+
+    private long mMinTimeoutMs = 1000 * 2;
+
+    private long mMaxTimeoutMs = 1000 * 60;
+
+    private static class HostState {
+        final long[] mSamples = new long[SAMPLE_NUM];
+
+        /**
+         * 記録したサンプルの総数
+         */
+        long mSampleCount;
+
+        RetryBudget mHedgeBudget;
+
+        /**
+         * 接続からレスポンスヘッダを受け取るまでの時間
+         */
+        final RttEstimator mConnectionTime = new RttEstimator();
+
+        /**
+         * レスポンスボディを受け取るまでの時間
+         */
+        final RttEstimator mTurnaroundTime = new RttEstimator();
+
+        long mHedgeCount;
+
+        HostState(RetryBudget hedgeBudget) {
+            mHedgeBudget = hedgeBudget;
+        }
+    }
+
+    /**
+     * ヘッジ数の上限を指定する。
+     * <p>
+     * 既に状態を持っているホストは、応答時間を残して上限のみリセットされる。
+     *
+     * @param hedgeRatio      直近に完了した通信数に対して許可するヘッジの割合
+     * @param minHedgesPerSec 通信数に関わらず1秒あたりに許可するヘッジ数
+     * @param windowMs        集計期間
+     */
+    public synchronized void setHedgeBudget(double hedgeRatio, double minHedgesPerSec, long windowMs) {
+        // 値の検証を行う
+        new RetryBudget(hedgeRatio, minHedgesPerSec, windowMs);
+        mHedgeRatio = hedgeRatio;
+        mMinHedgesPerSec = minHedgesPerSec;
+        mHedgeWindowMs = windowMs;
+        for (HostState state : mHosts.values()) {
+            state.mHedgeBudget = new RetryBudget(mHedgeRatio, mMinHedgesPerSec, mHedgeWindowMs);
+        }
+    }
+
+    /**
+     * 適応タイムアウトを有効にする。
+     * <p>
+     * 有効な場合、ConnectRequestに指定されたタイムアウト時間の代わりに、ホストの応答時間から推定したタイムアウト時間を使用する。
+     * 応答の速いホストでは停止した接続を早期に打ち切り、遅いホストでのみタイムアウトを延長する。
+     * 応答時間の記録が無いホストでは、ConnectRequestの指定値を使用する。
+     */
+    public synchronized void setAdaptiveTimeoutEnabled(boolean enabled) {
+        mAdaptiveTimeoutEnabled = enabled;
+    }
+
+    public synchronized boolean isAdaptiveTimeoutEnabled() {
+        return mAdaptiveTimeoutEnabled;
+    }
+
+    /**
+     * 適応タイムアウトの範囲を指定する
+     *
+     * @param minTimeoutMs 下限
+     * @param maxTimeoutMs 上限
+     */
+    public synchronized void setAdaptiveTimeoutRange(long minTimeoutMs, long maxTimeoutMs) {
+        if (minTimeoutMs <= 0 || maxTimeoutMs < minTimeoutMs) {
+            throw new IllegalArgumentException();
+        }
+        mMinTimeoutMs = minTimeoutMs;
+        mMaxTimeoutMs = maxTimeoutMs;
+    }
+
+    private HostState getHostState(String host) {
+        HostState state = mHosts.get(host);
+        if (state == null) {
+            state = new HostState(new RetryBudget(mHedgeRatio, mMinHedgesPerSec, mHedgeWindowMs));
+            mHosts.put(host, state);
+        }
+        return state;
+    }
+
+    /**
+     * 通信の完了を記録する
+     *
+     * @param host         接続先ホスト
+     * @param connectionMs 接続からレスポンスヘッダを受け取るまでの時間
+     * @param turnaroundMs 応答時間
+     */
+    public synchronized void onCompleted(String host, long connectionMs, long turnaroundMs) {
+        HostState state = getHostState(host);
+        state.mSamples[(int) (state.mSampleCount % SAMPLE_NUM)] = turnaroundMs;
+        ++state.mSampleCount;
+        state.mHedgeBudget.onSuccess();
+        state.mConnectionTime.onSample(connectionMs);
+        state.mTurnaroundTime.onSample(turnaroundMs);
+    }
+
+    /**
+     * 接続タイムアウト時間を取得する
+     *
+     * @param host      接続先ホスト
+     * @param defaultMs 適応タイムアウトが使用できない場合の値
+     */
+    public synchronized long getConnectTimeoutMs(String host, long defaultMs) {
+        HostState state = mHosts.get(host);
+        if (!mAdaptiveTimeoutEnabled || state == null || state.mConnectionTime.getSampleCount() == 0) {
+            return defaultMs;
+        }
+        return state.mConnectionTime.getTimeoutMs(mMinTimeoutMs, mMaxTimeoutMs);
+    }
+
+    /**
+     * 読み込みタイムアウト時間を取得する。
+     * <p>
+     * レスポンスヘッダの待ち時間とボディの受信時間のどちらにも収まる値となる。
+     *
+     * @param host      接続先ホスト
+     * @param defaultMs 適応タイムアウトが使用できない場合の値
+     */
+    public synchronized long getReadTimeoutMs(String host, long defaultMs) {
+        HostState state = mHosts.get(host);
+        if (!mAdaptiveTimeoutEnabled || state == null || state.mConnectionTime.getSampleCount() == 0) {
+            return defaultMs;
+        }
+        return Math.max(
+                state.mConnectionTime.getTimeoutMs(mMinTimeoutMs, mMaxTimeoutMs),
+                state.mTurnaroundTime.getTimeoutMs(mMinTimeoutMs, mMaxTimeoutMs)
+        );
+    }
+
+    /**
+     * ホストの平滑化された応答時間を取得する
+     *
+     * @return 応答時間、記録が無い場合はnull
+     */
+    @Nullable
+    public synchronized Long getSmoothedTurnaroundMs(String host) {
+        HostState state = mHosts.get(host);
+        if (state == null || state.mTurnaroundTime.getSampleCount() == 0) {
+            return null;
+        }
+        return state.mTurnaroundTime.getSmoothedMs();
+    }
+
+    /**
+     * ヘッジの許可を得る
+     *
+     * @return ヘッジを送信できる場合true
+     */
+    public synchronized boolean tryHedge(String host) {
+        HostState state = getHostState(host);
+        if (!state.mHedgeBudget.tryRetry()) {
+            return false;
+        }
+        ++state.mHedgeCount;
+        return true;
+    }
+
+    /**
+     * 直近の応答時間のパーセンタイルを取得する
+     *
+     * @param host       接続先ホスト
+     * @param percentile パーセンタイル(0.0 - 1.0)
+     * @param minSamples 必要なサンプル数
+     * @return 応答時間、サンプルが足りない場合はnull
+     */
+    @Nullable
+    public synchronized Long getPercentileMs(String host, double percentile, int minSamples) {
+        HostState state = mHosts.get(host);
+        if (state == null || state.mSampleCount < Math.max(minSamples, 1)) {
+            return null;
+        }
+
+        final int SAMPLES = (int) Math.min(state.mSampleCount, SAMPLE_NUM);
+        long[] sorted = Arrays.copyOf(state.mSamples, SAMPLES);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * SAMPLES) - 1;
+        return sorted[Math.max(0, Math.min(index, SAMPLES - 1))];
+    }
+
+    /**
+     * ホストへ送信したヘッジ数を取得する
+     */
+    public synchronized long getHedgeCount(String host) {
+        HostState state = mHosts.get(host);
+        return state != null ? state.mHedgeCount : 0;
+    }
+
+    /**
+     * 上限によりヘッジを行わなかった回数を取得する
+     */
+    public synchronized long getHedgeRejectedCount(String host) {
+        HostState state = mHosts.get(host);
+        return state != null ? state.mHedgeBudget.getExhaustedCount() : 0;
+    }
+}
@@ -0,0 +1,124 @@
+package com.eaglesakura.android.net.host;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1ホスト分のリトライ予算
+ * <p>
+ * 直近の一定時間に成功した通信数に対する割合でリトライ数を制限し、障害時にリトライで負荷が増幅されることを防ぐ。
+ * 通信が少ない場合にもリトライできるよう、1秒あたりの最低リトライ数を別に持つ。
+ * スレッドセーフではないため、呼び出し側で同期を行う。
+ */
+public class RetryBudget {
+    /**
+     * 集計期間の分割数
+     */
+    private static final int BUCKET_NUM = 10;
+
+    /**
+     * 成功数に対して許可するリトライの割合
+     */
+    final double mRetryRatio;
+
+    /**
+     * 成功数に関わらず許可するリトライ数
+     */
+    final double mMinRetries;
+
+    final long mBucketNanos;
+
+    final int[] mSuccesses = new int[BUCKET_NUM];
+
+    final int[] mRetries = new int[BUCKET_NUM];
+
+    /**
+     * 最後に更新したバケットの通し番号
+     */
+    long mCurrentBucket;
+
+    long mExhaustedCount;
+
+    /**
+     * @param retryRatio       成功数に対して許可するリトライの割合
+     * @param minRetriesPerSec 成功数に関わらず1秒あたりに許可するリトライ数
+     * @param windowMs         集計期間
+     */
+    public RetryBudget(double retryRatio, double minRetriesPerSec, long windowMs) {
+        if (retryRatio < 0 || minRetriesPerSec < 0 || windowMs < BUCKET_NUM) {
+            throw new IllegalArgumentException();
+        }
+        mRetryRatio = retryRatio;
+        mMinRetries = minRetriesPerSec * windowMs / 1000.0;
+        mBucketNanos = TimeUnit.MILLISECONDS.toNanos(windowMs) / BUCKET_NUM;
+        mCurrentBucket = System.nanoTime() / mBucketNanos;
+    }
+
+    /**
+     * 集計期間から外れたバケットを空にする
+     */
+    private void advance(long nowNanos) {
+        final long bucket = nowNanos / mBucketNanos;
+        final long expired = Math.min(bucket - mCurrentBucket, BUCKET_NUM);
+        for (long i = 1; i <= expired; ++i) {
+            int index = indexOf(mCurrentBucket + i);
+            mSuccesses[index] = 0;
+            mRetries[index] = 0;
+        }
+        if (bucket > mCurrentBucket) {
+            mCurrentBucket = bucket;
+        }
+    }
+
+    /**
+     * nanoTime()は負の値を取り得るため、常に正のインデックスへ変換する
+     */
+    private static int indexOf(long bucket) {
+        return (int) (((bucket % BUCKET_NUM) + BUCKET_NUM) % BUCKET_NUM);
+    }
+
+    private static int sum(int[] values) {
+        int result = 0;
+        for (int value : values) {
+            result += value;
+        }
+        return result;
+    }
+
+    void onSuccess(long nowNanos) {
+        advance(nowNanos);
+        ++mSuccesses[indexOf(mCurrentBucket)];
+    }
+
+    /**
+     * 通信の成功を記録する
+     */
+    public void onSuccess() {
+        onSuccess(System.nanoTime());
+    }
+
+    boolean tryRetry(long nowNanos) {
+        advance(nowNanos);
+        if (sum(mRetries) + 1 > mMinRetries + sum(mSuccesses) * mRetryRatio) {
+            ++mExhaustedCount;
+            return false;
+        }
+        ++mRetries[indexOf(mCurrentBucket)];
+        return true;
+    }
+
+    /**
+     * リトライの許可を得る
+     *
+     * @return リトライできる場合true
+     */
+    public boolean tryRetry() {
+        return tryRetry(System.nanoTime());
+    }
+
+    /**
+     * 予算が足りずにリトライを拒否した回数を取得する
+     */
+    public long getExhaustedCount() {
+        return mExhaustedCount;
+    }
+}
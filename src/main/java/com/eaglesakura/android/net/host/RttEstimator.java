@@ -0,0 +1,83 @@
+package com.eaglesakura.android.net.host;
+
+/**
+ * 応答時間の平滑化平均と分散からタイムアウト時間を推定する
+ * <p>
+ * TCPの再送タイムアウト(RFC 6298)と同じく、指数加重移動平均を用いる。
+ * スレッドセーフではないため、呼び出し側で同期を行う。
+ */
+public class RttEstimator {
+    /**
+     * 平滑化平均の重み
+     */
+    private static final double ALPHA = 1.0 / 8.0;
+
+    /**
+     * 分散の重み
+     */
+    private static final double BETA = 1.0 / 4.0;
+
+    /**
+     * 分散に掛ける係数
+     */
+    private static final double K = 4.0;
+
+    /**
+     * 平滑化された応答時間
+     */
+    double mSmoothedMs;
+
+    /**
+     * 応答時間のばらつき
+     */
+    double mVarianceMs;
+
+    long mSampleCount;
+
+    /**
+     * 応答時間を記録する
+     */
+    public void onSample(long sampleMs) {
+        if (sampleMs < 0) {
+            return;
+        }
+
+        if (mSampleCount == 0) {
+            mSmoothedMs = sampleMs;
+            mVarianceMs = sampleMs / 2.0;
+        } else {
+            mVarianceMs = (1.0 - BETA) * mVarianceMs + BETA * Math.abs(mSmoothedMs - sampleMs);
+            mSmoothedMs = (1.0 - ALPHA) * mSmoothedMs + ALPHA * sampleMs;
+        }
+        ++mSampleCount;
+    }
+
+    public long getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * 平滑化された応答時間を取得する
+     */
+    public long getSmoothedMs() {
+        return (long) mSmoothedMs;
+    }
+
+    /**
+     * 応答時間のばらつきを取得する
+     */
+    public long getVarianceMs() {
+        return (long) mVarianceMs;
+    }
+
+    /**
+     * 推定されたタイムアウト時間を取得する
+     *
+     * @param minMs 下限
+     * @param maxMs 上限
+     */
+    public long getTimeoutMs(long minMs, long maxMs) {
+        long result = (long) Math.ceil(mSmoothedMs + K * mVarianceMs);
+        return Math.max(minMs, Math.min(result, maxMs));
+    }
+}
@@ -1,34 +1,35 @@
 package com.eaglesakura.android.net.internal;
 
-import com.eaglesakura.android.db.DBOpenType;
-import com.eaglesakura.android.db.TextKeyValueStore;
+import com.eaglesakura.android.net.CancellationToken;
 import com.eaglesakura.android.net.HttpHeader;
 import com.eaglesakura.android.net.NetworkConnector;
+import com.eaglesakura.android.net.cache.CacheInputStream;
+import com.eaglesakura.android.net.cache.CacheMetadata;
+import com.eaglesakura.android.net.cache.ICacheController;
 import com.eaglesakura.android.net.cache.ICacheWriter;
+import com.eaglesakura.android.net.cache.IRevalidatingCacheController;
 import com.eaglesakura.android.net.error.HttpAccessFailedException;
 import com.eaglesakura.android.net.error.HttpStatusException;
 import com.eaglesakura.android.net.error.InternalServerErrorException;
+import com.eaglesakura.android.net.host.LatencyTracker;
 import com.eaglesakura.android.net.parser.RequestParser;
 import com.eaglesakura.android.net.request.ConnectContent;
 import com.eaglesakura.android.net.request.ConnectRequest;
+import com.eaglesakura.android.net.scheduler.RequestScheduler;
+import com.eaglesakura.android.net.transport.HttpExchange;
 import com.eaglesakura.util.CollectionUtil;
 import com.eaglesakura.util.IOUtil;
 import com.eaglesakura.util.StringUtil;
 
-import android.content.Context;
-
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.SocketTimeoutException;
-import java.net.URL;
 import java.security.MessageDigest;
 
 /**
- * HttpUrlConnectionで接続試行を行う
+ * NetworkConnectorに設定されたHttpTransportで接続試行を行う
  */
 public class AndroidHttpClientResultImpl<T> extends HttpResult<T> {
 
@@ -37,34 +38,34 @@ public class AndroidHttpClientResultImpl<T> extends HttpResult<T> {
      */
     private final String mLastReceivedDigest;
 
-    private static final String DATABASE_NAME = "es_net_cache.db";
-    private static final String DATABASE_TABLE_NAME = "DIGEST_CACHE";
-
     private final String mDigestCacheKey;
 
     private long mReadTimeoutMs;
 
     private long mConnectTimeoutMs;
 
+    /**
+     * 条件付きリクエストを行わない場合true
+     * <p>
+     * 304を受け取ったのに手元のキャッシュが失われていた場合、次の試行では通常のリクエストを行う。
+     */
+    private boolean mConditionalDisabled;
+
     public AndroidHttpClientResultImpl(NetworkConnector connector, ConnectRequest request, RequestParser<T> parser) {
         super(connector, request, parser);
 
-        mReadTimeoutMs = request.getReadTimeoutMs();
-        mConnectTimeoutMs = request.getConnectTimeoutMs();
+        // 適応タイムアウトが有効であれば、ホストの応答時間から求める
+        LatencyTracker tracker = connector.getLatencyTracker();
+        String host = RequestScheduler.getHost(request.getUrl());
+        mReadTimeoutMs = tracker.getReadTimeoutMs(host, request.getReadTimeoutMs());
+        mConnectTimeoutMs = tracker.getConnectTimeoutMs(host, request.getConnectTimeoutMs());
         mDigestCacheKey = "dig." + request.getCachePolicy().getCacheKey(request);
-        Context context = connector.getContext();
-        TextKeyValueStore kvs = new TextKeyValueStore(context, new File(context.getCacheDir(), DATABASE_NAME), DATABASE_TABLE_NAME);
-        try {
-            kvs.open(DBOpenType.Read);
-            mLastReceivedDigest = kvs.getOrNull(mDigestCacheKey);
-        } finally {
-            kvs.close();
-        }
+        mLastReceivedDigest = DigestIndex.getInstance(connector.getContext()).get(mDigestCacheKey);
     }
 
     @Override
     public boolean isModified() {
-        if (!StringUtil.isEmpty(mCacheDigest)) {
+        if (!StringUtil.isEmpty(mCacheDigest) || mNotModified) {
             // キャッシュから取得したらデータは変動しない
             return false;
         }
@@ -75,7 +76,7 @@ public class AndroidHttpClientResultImpl<T> extends HttpResult<T> {
         }
     }
 
-    private void close(HttpURLConnection connection) {
+    private void close(HttpExchange connection) {
         try {
             if (connection != null) {
                 connection.disconnect();
@@ -85,13 +86,89 @@ public class AndroidHttpClientResultImpl<T> extends HttpResult<T> {
         }
     }
 
-    private void setRequestHeaders(HttpURLConnection connection) throws Throwable {
+    private void setRequestHeaders(HttpExchange connection) throws Throwable {
         CollectionUtil.each(mRequest.getHeader().listHeaderKeyValues(), it -> {
-            connection.addRequestProperty(it.first, it.second);
+            connection.addRequestHeader(it.first, it.second);
         });
     }
 
-    private void writeContents(CallbackHolder<T> callback, HttpURLConnection connection) throws IOException {
+    /**
+     * 再検証可能なキャッシュがあれば、条件付きリクエストのヘッダを設定する
+     *
+     * @return 再検証するキャッシュのメタデータ, 条件付きリクエストを行わない場合はnull
+     */
+    private CacheMetadata setConditionalHeaders(HttpExchange connection) {
+        ICacheController controller = mConnector.getCacheController();
+        if (mConditionalDisabled || !(controller instanceof IRevalidatingCacheController) || mRequest.getCachePolicy() == null || mRequest.getMethod() != ConnectRequest.Method.GET) {
+            return null;
+        }
+
+        CacheMetadata metadata;
+        try {
+            metadata = ((IRevalidatingCacheController) controller).getMetadata(mRequest);
+        } catch (Exception e) {
+            // メタデータが読めなければ、通常のリクエストを行う
+            return null;
+        }
+        if (metadata == null || !metadata.hasValidator()) {
+            return null;
+        }
+
+        // 呼び出し元が指定した条件を優先する
+        HttpHeader header = mRequest.getHeader();
+        boolean conditional = false;
+        if (!StringUtil.isEmpty(metadata.getETag()) && header.get(CacheMetadata.HEADER_IF_NONE_MATCH) == null) {
+            connection.addRequestHeader(CacheMetadata.HEADER_IF_NONE_MATCH, metadata.getETag());
+            conditional = true;
+        }
+        if (!StringUtil.isEmpty(metadata.getLastModified()) && header.get(CacheMetadata.HEADER_IF_MODIFIED_SINCE) == null) {
+            connection.addRequestHeader(CacheMetadata.HEADER_IF_MODIFIED_SINCE, metadata.getLastModified());
+            conditional = true;
+        }
+        return conditional ? metadata : null;
+    }
+
+    /**
+     * 304 Not Modifiedを受け取ったので、手元のキャッシュからパースする
+     */
+    private T parseNotModified(CallbackHolder<T> callback, MessageDigest digest) throws IOException {
+        // 条件付きリクエストは再検証に対応している場合のみ行われる
+        IRevalidatingCacheController controller = (IRevalidatingCacheController) mConnector.getCacheController();
+        controller.refresh(mRequest, getResponseHeader());
+
+        InputStream stream = controller.openStaleCache(mRequest, Long.MAX_VALUE);
+        if (stream == null) {
+            // 再検証中にキャッシュが消えたので、通常のリクエストで取り直させる
+            mConditionalDisabled = true;
+            throw new IOException("Not Modified but cache missing :: " + mRequest.getUrl());
+        }
+
+        try {
+            // 保存時に求めた指紋があれば、読み込み時に求め直さない
+            CacheMetadata metadata = CacheInputStream.getMetadata(stream);
+            String storedDigest = (metadata != null) ? metadata.getContentDigest() : null;
+
+            // 304はContent-Type等を含まないため、保存時のレスポンスヘッダに304の内容を反映したものをパースに使う
+            HttpHeader mergedHeader = (metadata != null) ? metadata.revalidate(mRequest.getCachePolicy(), getResponseHeader()).getResponseHeader() : null;
+            if (mergedHeader != null) {
+                mResponseHeader = mergedHeader;
+            }
+            T result = parseFromStream(callback, getResponseHeader(), stream, null, (storedDigest == null) ? digest : null);
+            mNotModified = (result != null);
+            if (result != null && storedDigest != null) {
+                mNetDigest = storedDigest;
+            }
+            return result;
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        } finally {
+            IOUtil.close(stream);
+        }
+    }
+
+    private void writeContents(CallbackHolder<T> callback, HttpExchange connection) throws IOException {
         if (!mRequest.getMethod().hasContent()) {
             // メソッドによっては不要である
             return;
@@ -103,28 +180,27 @@ public class AndroidHttpClientResultImpl<T> extends HttpResult<T> {
             // no content
             return;
         } else {
-            connection.addRequestProperty(HttpHeader.HEADER_CONTENT_LENGTH, String.valueOf(length));
+            connection.addRequestHeader(HttpHeader.HEADER_CONTENT_LENGTH, String.valueOf(length));
         }
 
         String contentType = content.getContentType();
         if (!StringUtil.isEmpty(contentType)) {
-            connection.addRequestProperty(HttpHeader.HEADER_CONTENT_TYPE, contentType);
+            connection.addRequestHeader(HttpHeader.HEADER_CONTENT_TYPE, contentType);
         }
-        connection.setDoOutput(true);
 
         // データを書き込む
         InputStream is = null;
         OutputStream os = null;
         try {
             is = content.openStream();
-            os = connection.getOutputStream();
+            os = connection.openRequestBody(content.getLength());
 
             byte[] buffer = new byte[1024 * 4];
             int read;
             while (length > 0) {
                 // キャンセルチェック
                 if (callback.isCanceled()) {
-                    throw new InterruptedIOException("task canceled");
+                    throw callback.newCanceledException();
                 }
 
                 read = is.read(buffer, 0, (int) Math.min(buffer.length, length));
@@ -146,8 +222,8 @@ public class AndroidHttpClientResultImpl<T> extends HttpResult<T> {
     /**
      * ヘッダを解析する
      */
-    private void parseResponseHeader(HttpURLConnection connection) throws Throwable {
-        CollectionUtil.each(connection.getHeaderFields(), (key, value) -> {
+    private void parseResponseHeader(HttpExchange connection) throws Throwable {
+        CollectionUtil.each(connection.getResponseHeaders(), (key, value) -> {
             if (CollectionUtil.isEmpty(value)) {
                 return;
             }
@@ -159,23 +235,45 @@ public class AndroidHttpClientResultImpl<T> extends HttpResult<T> {
 
     @Override
     protected T tryNetworkParse(CallbackHolder<T> callback, MessageDigest digest) throws IOException {
+        while (true) {
+            final boolean CONDITIONAL = !mConditionalDisabled;
+            try {
+                return connectOnce(callback, digest);
+            } catch (IOException e) {
+                if (!CONDITIONAL || !mConditionalDisabled) {
+                    throw e;
+                }
+                // 304を受け取ったがキャッシュが消えていた
+                // サーバーの障害ではないため、リトライを消費せずに条件を付けずに送信し直す
+                mResponseHeader = new HttpHeader();
+                mNotModified = false;
+            }
+        }
+    }
 
-        URL url = new URL(mRequest.getUrl());
-        HttpURLConnection connection = null;
+    private T connectOnce(CallbackHolder<T> callback, MessageDigest digest) throws IOException {
+
+        HttpExchange connection = null;
+        CancellationToken.Registration cancelRegistration = null;
         InputStream readContent = null;
         ICacheWriter cacheWriter = null;
         T result = null;
 
         try {
+            if (callback.isCanceled()) {
+                throw callback.newCanceledException();
+            }
+
+            // 期限が指定されている場合、タイムアウトは残り時間に収める
+            final long REMAINING_MS = Math.max(1, callback.getRemainingMs());
             mProfile.onConnectStart();
-            connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod(mRequest.getMethod().toString());
-            connection.setInstanceFollowRedirects(true);
-            connection.setReadTimeout((int) mReadTimeoutMs);
-            connection.setConnectTimeout((int) mConnectTimeoutMs);
+            connection = mConnector.getTransport().open(mRequest, mRequest.getUrl(), Math.min(mConnectTimeoutMs, REMAINING_MS), Math.min(mReadTimeoutMs, REMAINING_MS));
+            // キャンセルされたら、ブロック中の読み書きを待たずに接続を切断する
+            cancelRegistration = callback.registerCancelListener(connection::cancel);
 
             // ヘッダを設定する
             setRequestHeaders(connection);
+            final CacheMetadata REVALIDATE = setConditionalHeaders(connection);
             // コンテンツを書き込む
             writeContents(callback, connection);
 
@@ -183,10 +281,20 @@ public class AndroidHttpClientResultImpl<T> extends HttpResult<T> {
             final int RESP_CODE = connection.getResponseCode();
 
             if (callback.isCanceled()) {
-                throw new InterruptedIOException("task canceled");
+                throw callback.newCanceledException();
             }
 
-            if ((RESP_CODE / 100) == 4) {
+            if (RESP_CODE == HttpURLConnection.HTTP_NOT_MODIFIED && REVALIDATE != null) {
+                // キャッシュの内容がそのまま有効である
+                parseResponseHeader(connection);
+                mProfile.onConnectionCompleted();
+                try {
+                    result = parseNotModified(callback, digest);
+                    return result;
+                } finally {
+                    mProfile.onDownloadCompleted();
+                }
+            } else if ((RESP_CODE / 100) == 4) {
                 throw new HttpAccessFailedException("Status Code == " + RESP_CODE + " :: " + mRequest.getUrl(), RESP_CODE).setErrorResponse(connection, mRequest, callback);
             } else if ((RESP_CODE / 100) == 5) {
                 throw new InternalServerErrorException("InternalServerError :: " + RESP_CODE + " :: " + mRequest.getUrl(), RESP_CODE).setErrorResponse(connection, mRequest, callback);
@@ -215,35 +323,34 @@ public class AndroidHttpClientResultImpl<T> extends HttpResult<T> {
             }
         } catch (SocketTimeoutException e) {
             // タイムアウト時間が短いようなので、長くする
-            mReadTimeoutMs = (long) (mReadTimeoutMs * mRequest.getRetryPolicy().getTimeoutBackoff());
-            mConnectTimeoutMs = (long) (mConnectTimeoutMs * mRequest.getRetryPolicy().getTimeoutBackoff());
+            mReadTimeoutMs = (long) (mReadTimeoutMs * getRetryPolicy().getTimeoutBackoff());
+            mConnectTimeoutMs = (long) (mConnectTimeoutMs * getRetryPolicy().getTimeoutBackoff());
             throw e;
         } catch (IOException e) {
             throw e;
         } catch (Throwable e) {
             throw new IOException(e);
         } finally {
+            if (cancelRegistration != null) {
+                cancelRegistration.unregister();
+            }
             IOUtil.close(readContent);
             close(connection);
-            closeCacheWriter(result, cacheWriter);
+            closeCacheWriter(result, cacheWriter, digest);
         }
     }
 
     @Override
-    public void connect(CallbackHolder<T> callback) throws IOException {
-        super.connect(callback);
+    protected HttpResult<T> newHedgeConnection() {
+        return new AndroidHttpClientResultImpl<>(mConnector, mRequest, mParser);
+    }
+
+    @Override
+    protected void onNetworkCompleted() {
         if (!StringUtil.isEmpty(mNetDigest)) {
             // digestを保存する
-            Context context = mConnector.getContext();
-            TextKeyValueStore kvs = new TextKeyValueStore(context, new File(context.getCacheDir(), DATABASE_NAME), DATABASE_TABLE_NAME);
-            try {
-                kvs.open(DBOpenType.Write);
-                kvs.putDirect(mDigestCacheKey, mNetDigest);
-            } catch (Exception e) {
-                e.printStackTrace();
-            } finally {
-                kvs.close();
-            }
+            // データベースへの書き込みはDigestIndexがまとめて行う
+            DigestIndex.getInstance(mConnector.getContext()).put(mDigestCacheKey, mNetDigest);
         }
     }
 }
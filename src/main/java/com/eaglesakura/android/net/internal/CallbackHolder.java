@@ -1,23 +1,211 @@
 package com.eaglesakura.android.net.internal;
 
+import com.eaglesakura.android.net.CancellationToken;
 import com.eaglesakura.android.net.Result;
 import com.eaglesakura.android.net.NetworkConnector;
+import com.eaglesakura.android.net.error.DeadlineExceededException;
+import com.eaglesakura.android.net.scheduler.HashedTimerWheel;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
 
 public class CallbackHolder<T> {
     public final NetworkConnector.CancelCallback<T> mCancelCallback;
 
     public final Result<T> mConnection;
 
+    public final CancellationToken mToken;
+
+    /**
+     * リクエスト全体の期限(ms)、0の場合は期限なし
+     */
+    final long mDeadlineMs;
+
+    /**
+     * 期限となるSystem.nanoTime()
+     */
+    final long mDeadlineNanos;
+
+    /**
+     * 親のCancellationTokenとの関連付け
+     */
+    CancellationToken.Registration mParentRegistration;
+
+    /**
+     * 期限切れを通知するタイマー
+     */
+    HashedTimerWheel.Timeout mDeadlineTimeout;
+
+    private volatile boolean mDeadlineExceeded;
+
     public CallbackHolder(NetworkConnector.CancelCallback<T> cancelCallback, Result<T> mConnection) {
+        this(cancelCallback, mConnection, new CancellationToken());
+    }
+
+    public CallbackHolder(NetworkConnector.CancelCallback<T> cancelCallback, Result<T> mConnection, CancellationToken token) {
+        this(cancelCallback, mConnection, token, 0);
+    }
+
+    private CallbackHolder(NetworkConnector.CancelCallback<T> cancelCallback, Result<T> mConnection, CancellationToken token, long deadlineMs) {
+        this(cancelCallback, mConnection, token, deadlineMs, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMs));
+    }
+
+    private CallbackHolder(NetworkConnector.CancelCallback<T> cancelCallback, Result<T> mConnection, CancellationToken token, long deadlineMs, long deadlineNanos) {
         this.mCancelCallback = cancelCallback;
         this.mConnection = mConnection;
+        this.mToken = token;
+        this.mDeadlineMs = deadlineMs;
+        this.mDeadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * 期限付きのCallbackHolderを生成する。
+     * <p>
+     * 期限を過ぎた場合は生成されたHolderのみがキャンセルされ、呼び出し元のCancellationTokenには影響しない。
+     * 呼び出し元のキャンセルは生成されたHolderにも伝わる。使用後はrelease()を呼び出す。
+     *
+     * @param deadlineMs 現在からの期限、0の場合はこのHolderをそのまま返す
+     */
+    public CallbackHolder<T> withDeadline(long deadlineMs) {
+        if (deadlineMs <= 0) {
+            return this;
+        }
+
+        final CallbackHolder<T> result = new CallbackHolder<>(mCancelCallback, mConnection, new CancellationToken(), deadlineMs);
+        result.mParentRegistration = mToken.register(result.mToken::cancel);
+        // 期限を迎えたら、isCanceled()の中でTokenへ通知される
+        result.mDeadlineTimeout = HashedTimerWheel.getDefault().newTimeout(result::isCanceled, deadlineMs);
+        return result;
+    }
+
+    /**
+     * 同じCancelCallbackと期限を持ち、指定したTokenでキャンセルされるCallbackHolderを生成する。
+     * <p>
+     * 1つのリクエストから複数の通信を行う場合に、通信ごとに中断できるようにする。
+     * このHolderのキャンセルは生成されたHolderへ伝わらないため、必要であれば呼び出し元で関連付ける。
+     */
+    public CallbackHolder<T> withToken(CancellationToken token) {
+        return new CallbackHolder<>(mCancelCallback, mConnection, token, mDeadlineMs, mDeadlineNanos);
+    }
+
+    /**
+     * withDeadline()で生成された場合、親との関連付けを解除する
+     */
+    public void release() {
+        if (mParentRegistration != null) {
+            mParentRegistration.unregister();
+        }
+        if (mDeadlineTimeout != null) {
+            mDeadlineTimeout.cancel();
+        }
     }
 
     public boolean isCanceled() {
+        if (mToken.isCanceled()) {
+            return true;
+        }
+
+        if (mDeadlineMs > 0 && (System.nanoTime() - mDeadlineNanos) >= 0) {
+            // 期限切れとして待機中の処理を中断させる
+            mDeadlineExceeded = true;
+            mToken.cancel();
+            return true;
+        }
+
         if (mCancelCallback == null) {
             return false;
         }
 
-        return mCancelCallback.isCanceled(mConnection);
+        if (mCancelCallback.isCanceled(mConnection)) {
+            // 待機中の処理を中断させる
+            mToken.cancel();
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * 期限までに完了できないことが分かったため、期限切れとしてキャンセルする
+     *
+     * @return 呼び出し元へ投げる例外
+     */
+    public InterruptedIOException failDeadline() {
+        mDeadlineExceeded = true;
+        mToken.cancel();
+        return newCanceledException();
+    }
+
+    /**
+     * 期限を過ぎたことでキャンセルされた場合true
+     */
+    public boolean isDeadlineExceeded() {
+        return mDeadlineExceeded;
+    }
+
+    /**
+     * 期限までの残り時間を取得する
+     *
+     * @return 残り時間、期限が無い場合はLong.MAX_VALUE
+     */
+    public long getRemainingMs() {
+        if (mDeadlineMs <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(mDeadlineNanos - System.nanoTime()));
+    }
+
+    /**
+     * キャンセル理由に応じた例外を生成する
+     */
+    public InterruptedIOException newCanceledException() {
+        if (mDeadlineExceeded) {
+            return new DeadlineExceededException("Deadline exceeded : " + mDeadlineMs + "ms", mDeadlineMs);
+        } else {
+            return new InterruptedIOException("task canceled");
+        }
+    }
+
+    /**
+     * キャンセル時に呼び出されるリスナーを登録する。
+     * <p>
+     * CancelCallbackが指定されている場合、登録中はCancelWatchdogがチェックを代行するため、
+     * 通信スレッドがブロックしていてもキャンセルが即座にリスナーへ通知される。
+     */
+    public CancellationToken.Registration registerCancelListener(Runnable listener) {
+        final CancellationToken.Registration registration = mToken.register(listener);
+        if (mCancelCallback == null) {
+            return registration;
+        }
+
+        CancelWatchdog.watch(this);
+        return () -> {
+            registration.unregister();
+            CancelWatchdog.unwatch(this);
+        };
+    }
+
+    /**
+     * キャンセルされるか、指定時間が経過するまで待つ
+     *
+     * @return キャンセルされた場合true
+     */
+    public boolean awaitCancel(long timeoutMs) throws InterruptedIOException {
+        if (isCanceled()) {
+            return true;
+        } else if (timeoutMs <= 0) {
+            return false;
+        }
+
+        if (mCancelCallback != null) {
+            CancelWatchdog.watch(this);
+        }
+        try {
+            return mToken.await(timeoutMs);
+        } finally {
+            if (mCancelCallback != null) {
+                CancelWatchdog.unwatch(this);
+            }
+        }
     }
 }
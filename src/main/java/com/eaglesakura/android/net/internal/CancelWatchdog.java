@@ -0,0 +1,81 @@
+package com.eaglesakura.android.net.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * CancelCallbackによるキャンセルを監視する
+ * <p>
+ * 通信スレッドがブロックしている間、代わりにCancelCallbackのチェックを行い、キャンセルされていればCancellationTokenへ通知する。
+ * 監視対象がある間のみ、1本のデーモンスレッドが動作する。
+ */
+class CancelWatchdog {
+    /**
+     * キャンセルチェックを行う間隔
+     */
+    static final long CHECK_INTERVAL_MS = 20;
+
+    /**
+     * 監視中のCallbackHolderと、その登録数
+     */
+    private static final Map<CallbackHolder<?>, Integer> sTargets = new HashMap<>();
+
+    private static boolean sRunning;
+
+    static void watch(CallbackHolder<?> holder) {
+        synchronized (sTargets) {
+            Integer count = sTargets.get(holder);
+            sTargets.put(holder, count != null ? count + 1 : 1);
+            if (!sRunning) {
+                sRunning = true;
+                Thread thread = new Thread(CancelWatchdog::run, "CancelWatchdog");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    static void unwatch(CallbackHolder<?> holder) {
+        synchronized (sTargets) {
+            Integer count = sTargets.get(holder);
+            if (count == null) {
+                return;
+            } else if (count > 1) {
+                sTargets.put(holder, count - 1);
+            } else {
+                sTargets.remove(holder);
+            }
+        }
+    }
+
+    private static void run() {
+        while (true) {
+            CallbackHolder<?>[] targets;
+            synchronized (sTargets) {
+                if (sTargets.isEmpty()) {
+                    sRunning = false;
+                    return;
+                }
+                targets = sTargets.keySet().toArray(new CallbackHolder<?>[sTargets.size()]);
+            }
+
+            for (CallbackHolder<?> holder : targets) {
+                try {
+                    // キャンセルされていれば、isCanceled()の中でTokenへ通知される
+                    holder.isCanceled();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+
+            try {
+                Thread.sleep(CHECK_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                synchronized (sTargets) {
+                    sRunning = false;
+                }
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package com.eaglesakura.android.net.internal;
+
+import com.eaglesakura.android.net.scheduler.HashedTimerWheel;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.IntRange;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 前回受信したコンテンツのダイジェストをプロセス全体で管理する
+ * <p>
+ * 初回アクセス時にデータベースから1度だけ読み込み、以降はメモリ上で参照する。
+ * 変更と参照日時は一定時間ごとにまとめ、バックグラウンドで1トランザクションとして書き込む。
+ * 保持数には上限があり、最も長く参照されていないものから削除される。参照順は再起動後も引き継がれる。
+ */
+public class DigestIndex {
+    static final String DATABASE_NAME = "es_net_digest.db";
+
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE_NAME = "DIGEST";
+
+    /**
+     * 以前のバージョンがダイジェストを保存していたデータベースとテーブル
+     */
+    private static final String LEGACY_DATABASE_NAME = "es_net_cache.db";
+
+    private static final String LEGACY_TABLE_NAME = "DIGEST_CACHE";
+
+    /**
+     * デフォルトの最大保持数
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 1024 * 4;
+
+    /**
+     * 変更をまとめて書き込むまでの時間
+     */
+    private static final long FLUSH_DELAY_MS = 1000;
+
+    /**
+     * 書き込みスレッドが無処理のまま待機する最大時間
+     */
+    private static final long KEEP_ALIVE_TIME_MS = 1000 * 30;
+
+    private static DigestIndex sInstance;
+
+    private final OpenHelper mHelper;
+
+    /**
+     * 参照順に並んだダイジェスト
+     */
+    private final LinkedHashMap<String, String> mDigests = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * 書き込み待ちの変更、値がnullの場合は削除
+     */
+    private final Map<String, String> mPendingWrites = new HashMap<>();
+
+    /**
+     * 書き込み待ちの参照日時
+     */
+    private final Map<String, Long> mPendingAccesses = new HashMap<>();
+
+    private final ThreadPoolExecutor mWriter;
+
+    private int mMaxEntries = DEFAULT_MAX_ENTRIES;
+
+    private boolean mLoaded;
+
+    private boolean mFlushScheduled;
+
+    /**
+     * 最後に割り当てた参照日時
+     */
+    private long mLastAccess;
+
+    DigestIndex(Context context, String databaseName) {
+        mWriter = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_TIME_MS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+            Thread thread = new Thread(r, "DigestIndex");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mWriter.allowCoreThreadTimeOut(true);
+        mHelper = new OpenHelper(context, databaseName);
+    }
+
+    /**
+     * プロセスで共有されるインスタンスを取得する
+     */
+    public static synchronized DigestIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DigestIndex(context.getApplicationContext(), DATABASE_NAME);
+        }
+        return sInstance;
+    }
+
+    /**
+     * 最大保持数を指定する
+     */
+    public synchronized void setMaxEntries(@IntRange(from = 1) int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException();
+        }
+        mMaxEntries = maxEntries;
+        if (mLoaded) {
+            trim();
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * 前回受信したダイジェストを取得する
+     *
+     * @return ダイジェスト、記録が無い場合はnull
+     */
+    @Nullable
+    public synchronized String get(String key) {
+        load();
+        String result = mDigests.get(key);
+        if (result != null) {
+            touch(key);
+        }
+        return result;
+    }
+
+    /**
+     * 受信したダイジェストを記録する。
+     * <p>
+     * データベースへの書き込みは後から非同期に行われる。
+     */
+    public synchronized void put(String key, String digest) {
+        load();
+        if (digest.equals(mDigests.put(key, digest))) {
+            // 変更が無ければ参照順の更新のみでよい
+            touch(key);
+            return;
+        }
+        mPendingWrites.put(key, digest);
+        mPendingAccesses.put(key, nextAccessTime());
+        trim();
+        scheduleFlush();
+    }
+
+    /**
+     * メモリ上の保持数
+     */
+    public synchronized int size() {
+        load();
+        return mDigests.size();
+    }
+
+    /**
+     * データベースから読み込む
+     */
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        try {
+            SQLiteDatabase db = mHelper.getWritableDatabase();
+            Cursor cursor = db.rawQuery("SELECT CACHE_KEY, DIGEST, LAST_ACCESS FROM " + TABLE_NAME + " ORDER BY LAST_ACCESS ASC, ROWID ASC", null);
+            try {
+                while (cursor.moveToNext()) {
+                    mDigests.put(cursor.getString(0), cursor.getString(1));
+                    mLastAccess = Math.max(mLastAccess, cursor.getLong(2));
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (Exception e) {
+            // 読み込めない場合は空の状態から始める
+            e.printStackTrace();
+        }
+
+        // 上限を超えていた分は削除する
+        trim();
+        scheduleFlush();
+    }
+
+    /**
+     * 参照日時を更新する
+     * <p>
+     * 書き込みは変更と共にまとめて行う。
+     */
+    private void touch(String key) {
+        mPendingAccesses.put(key, nextAccessTime());
+        scheduleFlush();
+    }
+
+    /**
+     * 参照日時を割り当てる
+     * <p>
+     * 同じミリ秒内の参照でも順序が失われないよう、前回より必ず大きな値とする。
+     */
+    private long nextAccessTime() {
+        mLastAccess = Math.max(System.currentTimeMillis(), mLastAccess + 1);
+        return mLastAccess;
+    }
+
+    /**
+     * 上限を超えた分を、最も長く参照されていないものから削除する
+     */
+    private void trim() {
+        Iterator<String> iterator = mDigests.keySet().iterator();
+        while (mDigests.size() > mMaxEntries && iterator.hasNext()) {
+            String key = iterator.next();
+            iterator.remove();
+            mPendingWrites.put(key, null);
+            mPendingAccesses.remove(key);
+        }
+    }
+
+    private void scheduleFlush() {
+        if (mFlushScheduled || (mPendingWrites.isEmpty() && mPendingAccesses.isEmpty())) {
+            return;
+        }
+        mFlushScheduled = true;
+        HashedTimerWheel.getDefault().newTimeout(() -> mWriter.execute(this::flush), FLUSH_DELAY_MS);
+    }
+
+    /**
+     * 書き込み待ちの変更を即座にデータベースへ書き込む
+     */
+    public void flush() {
+        Map<String, String> writes;
+        Map<String, Long> accesses;
+        synchronized (this) {
+            mFlushScheduled = false;
+            if (mPendingWrites.isEmpty() && mPendingAccesses.isEmpty()) {
+                return;
+            }
+            writes = new HashMap<>(mPendingWrites);
+            accesses = new HashMap<>(mPendingAccesses);
+            mPendingWrites.clear();
+            mPendingAccesses.clear();
+        }
+
+        try {
+            synchronized (mHelper) {
+                write(mHelper.getWritableDatabase(), writes, accesses);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            // 書き込めなかった分は、より新しい変更が無ければ次回に回す
+            synchronized (this) {
+                for (Map.Entry<String, String> entry : writes.entrySet()) {
+                    if (!mPendingWrites.containsKey(entry.getKey())) {
+                        mPendingWrites.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                for (Map.Entry<String, Long> entry : accesses.entrySet()) {
+                    if (!mPendingAccesses.containsKey(entry.getKey()) && mDigests.containsKey(entry.getKey())) {
+                        mPendingAccesses.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        }
+    }
+
+    private static void write(SQLiteDatabase db, Map<String, String> writes, Map<String, Long> accesses) {
+        final long NOW = System.currentTimeMillis();
+        SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_NAME + " (CACHE_KEY, DIGEST, LAST_ACCESS) VALUES (?, ?, ?)");
+        SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_NAME + " SET LAST_ACCESS = ? WHERE CACHE_KEY = ?");
+        SQLiteStatement delete = db.compileStatement("DELETE FROM " + TABLE_NAME + " WHERE CACHE_KEY = ?");
+        db.beginTransaction();
+        try {
+            for (Map.Entry<String, String> entry : writes.entrySet()) {
+                if (entry.getValue() != null) {
+                    Long access = accesses.get(entry.getKey());
+                    insert.bindString(1, entry.getKey());
+                    insert.bindString(2, entry.getValue());
+                    insert.bindLong(3, access != null ? access : NOW);
+                    insert.executeInsert();
+                } else {
+                    delete.bindString(1, entry.getKey());
+                    delete.execute();
+                }
+            }
+
+            // 内容が変わらずに参照されたものは、参照日時のみを更新する
+            for (Map.Entry<String, Long> entry : accesses.entrySet()) {
+                if (writes.containsKey(entry.getKey())) {
+                    continue;
+                }
+                update.bindLong(1, entry.getValue());
+                update.bindString(2, entry.getKey());
+                update.execute();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+            update.close();
+            delete.close();
+        }
+    }
+
+    /**
+     * 以前のバージョンが記録していたダイジェストを引き継ぐ
+     * <p>
+     * 古いテーブルは無制限に書き込まれていたため、最後に書き込まれたものから最大保持数までを引き継ぐ。
+     * 古いテーブルの列名はTextKeyValueStoreの実装に依存するため、キー・値・日時を表す列を名前から探す。
+     */
+    private static void importLegacyTable(Context context, SQLiteDatabase db, int maxEntries) {
+        File file = new File(context.getCacheDir(), LEGACY_DATABASE_NAME);
+        if (!file.isFile()) {
+            return;
+        }
+
+        SQLiteDatabase legacy = null;
+        try {
+            legacy = SQLiteDatabase.openDatabase(file.getAbsolutePath(), null, SQLiteDatabase.OPEN_READONLY);
+            String[] columns;
+            Cursor cursor = legacy.rawQuery("SELECT * FROM " + LEGACY_TABLE_NAME + " LIMIT 0", null);
+            try {
+                columns = cursor.getColumnNames();
+            } finally {
+                cursor.close();
+            }
+
+            final String KEY_COLUMN = findColumn(columns, "key");
+            final String VALUE_COLUMN = findColumn(columns, "value");
+            final String DATE_COLUMN = findColumn(columns, "date");
+            if (KEY_COLUMN == null || VALUE_COLUMN == null) {
+                return;
+            }
+
+            cursor = legacy.rawQuery("SELECT \"" + KEY_COLUMN + "\", \"" + VALUE_COLUMN + "\", " + (DATE_COLUMN != null ? "\"" + DATE_COLUMN + "\"" : "0")
+                    + " FROM " + LEGACY_TABLE_NAME + " ORDER BY " + (DATE_COLUMN != null ? "\"" + DATE_COLUMN + "\" DESC, " : "") + "ROWID DESC LIMIT " + maxEntries, null);
+            SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_NAME + " (CACHE_KEY, DIGEST, LAST_ACCESS) VALUES (?, ?, ?)");
+            try {
+                // 日時が記録されていなければ、後から書き込まれたものほど新しく参照されたものとする
+                long order = maxEntries;
+                while (cursor.moveToNext()) {
+                    String key = cursor.getString(0);
+                    String digest = cursor.getString(1);
+                    long access = (DATE_COLUMN != null) ? cursor.getLong(2) : order;
+                    --order;
+                    if (key == null || digest == null) {
+                        continue;
+                    }
+                    insert.bindString(1, key);
+                    insert.bindString(2, digest);
+                    insert.bindLong(3, access);
+                    insert.executeInsert();
+                }
+            } finally {
+                cursor.close();
+                insert.close();
+            }
+        } catch (Exception e) {
+            // 引き継げない場合は、以前のバージョンから更新した直後と同じく全て変更ありとして扱う
+            e.printStackTrace();
+        } finally {
+            if (legacy != null) {
+                legacy.close();
+            }
+        }
+    }
+
+    @Nullable
+    private static String findColumn(String[] columns, String name) {
+        for (String column : columns) {
+            if (column.toLowerCase().contains(name)) {
+                return column;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 以前のバージョンが無制限に書き込んでいたテーブルを削除する
+     */
+    private static void dropLegacyTable(Context context) {
+        File file = new File(context.getCacheDir(), LEGACY_DATABASE_NAME);
+        if (!file.isFile()) {
+            return;
+        }
+
+        SQLiteDatabase db = null;
+        try {
+            db = SQLiteDatabase.openDatabase(file.getAbsolutePath(), null, SQLiteDatabase.OPEN_READWRITE);
+            db.execSQL("DROP TABLE IF EXISTS " + LEGACY_TABLE_NAME);
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (db != null) {
+                db.close();
+            }
+        }
+    }
+
+    private class OpenHelper extends SQLiteOpenHelper {
+        final Context mContext;
+
+        /**
+         * 古いテーブルを引き継いだため、作成の完了後に削除する
+         */
+        boolean mLegacyImported;
+
+        OpenHelper(Context context, String databaseName) {
+            super(context, new File(context.getCacheDir(), databaseName).getAbsolutePath(), null, DATABASE_VERSION);
+            mContext = context;
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_NAME + " (CACHE_KEY TEXT PRIMARY KEY, DIGEST TEXT NOT NULL, LAST_ACCESS INTEGER NOT NULL)");
+            // 移行時に1度だけ、古いテーブルの内容を引き継ぐ
+            importLegacyTable(mContext, db, mMaxEntries);
+            mLegacyImported = true;
+        }
+
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            if (mLegacyImported) {
+                // 引き継いだ内容が書き込まれてから、古いテーブルを片付ける
+                mLegacyImported = false;
+                mWriter.execute(() -> dropLegacyTable(mContext));
+            }
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+            onCreate(db);
+        }
+    }
+}
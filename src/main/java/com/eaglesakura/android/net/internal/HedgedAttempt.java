@@ -0,0 +1,233 @@
+package com.eaglesakura.android.net.internal;
+
+import com.eaglesakura.android.net.CancellationToken;
+import com.eaglesakura.android.net.host.HostHealth;
+import com.eaglesakura.android.net.host.LatencyTracker;
+import com.eaglesakura.android.net.scheduler.HashedTimerWheel;
+import com.eaglesakura.android.net.scheduler.RequestScheduler;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * ヘッジ付きで1回分の通信を行う
+ * <p>
+ * 最初の通信は呼び出しスレッドで行い、待ち時間を過ぎても完了しなければDispatcherのスレッドで同じリクエストを送信する。
+ * 待ち時間はHashedTimerWheelで計測するため、ヘッジが不要だった場合はスレッドを消費しない。
+ * 先に成功した方を採用し、もう一方はキャンセルする。
+ * キャッシュへの書き込みは採用された通信のみが行い、採用されなかった通信は完了していても書き込みを破棄する。
+ * ヘッジも通常の通信と同じく期限を引き継ぎ、ホストの状態と同時接続数の制限に従う。
+ */
+class HedgedAttempt<T> {
+    final HttpResult<T> mPrimary;
+
+    final CallbackHolder<T> mCallback;
+
+    final LatencyTracker mTracker;
+
+    final String mHost;
+
+    final long mDelayMs;
+
+    final CancellationToken mPrimaryToken = new CancellationToken();
+
+    final CancellationToken mHedgeToken = new CancellationToken();
+
+    /**
+     * 採用された通信
+     */
+    HttpResult<T> mWinner;
+
+    T mWinnerResult;
+
+    boolean mPrimaryDone;
+
+    boolean mHedgeStarted;
+
+    /**
+     * ヘッジが実行許可を得て、送信を始めた
+     */
+    boolean mHedgeSending;
+
+    boolean mHedgeDone;
+
+    HedgedAttempt(HttpResult<T> primary, CallbackHolder<T> callback, LatencyTracker tracker, String host, long delayMs) {
+        mPrimary = primary;
+        mCallback = callback;
+        mTracker = tracker;
+        mHost = host;
+        mDelayMs = delayMs;
+    }
+
+    /**
+     * 通信を行い、採用された結果を返す
+     */
+    T run() throws IOException {
+        // 呼び出し元のキャンセルは両方の通信へ伝える
+        CancellationToken.Registration registration = mCallback.registerCancelListener(() -> {
+            mPrimaryToken.cancel();
+            mHedgeToken.cancel();
+        });
+        mPrimary.mHedgedAttempt = this;
+        try {
+            HashedTimerWheel.Timeout hedgeTimeout = HashedTimerWheel.getDefault().newTimeout(() -> {
+                mPrimary.mConnector.getDispatcher().execute(this::runHedge);
+            }, mDelayMs);
+
+            T result = null;
+            IOException error = null;
+            try {
+                result = mPrimary.executeAttempt(mCallback.withToken(mPrimaryToken));
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                hedgeTimeout.cancel();
+                synchronized (this) {
+                    mPrimaryDone = true;
+                }
+            }
+
+            if (result != null) {
+                claim(mPrimary, result);
+            }
+
+            HttpResult<T> winner;
+            synchronized (this) {
+                if (mWinner == null && mHedgeStarted && !mHedgeSending) {
+                    // 実行許可を待っているヘッジは、最初の通信が許可を返すまで始まらないため打ち切る
+                    mHedgeToken.cancel();
+                }
+
+                // 最初の通信が採用されなかった場合、ヘッジの完了を待つ
+                // ヘッジはキャッシュへの書き込みを確定する時点で採用されるため、採用後も完了を待つ
+                while (mWinner != mPrimary && mHedgeStarted && !mHedgeDone) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        mHedgeToken.cancel();
+                        throw new InterruptedIOException("task interrupted");
+                    }
+                }
+                winner = mWinner;
+                result = mWinnerResult;
+            }
+
+            if (winner == null) {
+                if (error != null) {
+                    throw error;
+                }
+                return null;
+            } else if (winner != mPrimary) {
+                // ヘッジの結果を採用する
+                mPrimary.mResponseHeader = winner.mResponseHeader;
+                mPrimary.mProfile = winner.mProfile;
+                mPrimary.mNetDigest = winner.mNetDigest;
+                mPrimary.mNotModified = winner.mNotModified;
+            }
+            return result;
+        } finally {
+            mPrimary.mHedgedAttempt = null;
+            registration.unregister();
+        }
+    }
+
+    /**
+     * 通信結果を採用するよう求める
+     * <p>
+     * 最初に求めた通信を採用し、もう一方の通信は中断する。
+     * キャッシュへの書き込みを確定する前に呼び出され、採用されなかった通信は書き込みを破棄する。
+     *
+     * @return 指定した通信が採用されている場合true
+     */
+    boolean claim(HttpResult<T> attempt, T result) {
+        synchronized (this) {
+            if (mWinner != null) {
+                return mWinner == attempt;
+            }
+            mWinner = attempt;
+            mWinnerResult = result;
+            notifyAll();
+        }
+
+        // 遅れている通信を中断する
+        if (attempt == mPrimary) {
+            mHedgeToken.cancel();
+        } else {
+            mPrimaryToken.cancel();
+        }
+        return true;
+    }
+
+    /**
+     * 待ち時間が経過してもまだ最初の通信が終わっていなければ、ヘッジを送信する
+     */
+    private void runHedge() {
+        synchronized (this) {
+            if (mPrimaryDone || mHedgeToken.isCanceled() || !mTracker.tryHedge(mHost)) {
+                return;
+            }
+            mHedgeStarted = true;
+        }
+
+        final CallbackHolder<T> callback = mCallback.withToken(mHedgeToken);
+        final HostHealth hostHealth = mPrimary.mConnector.getHostHealth();
+        final RequestScheduler scheduler = mPrimary.mConnector.getScheduler();
+        RequestScheduler.Ticket ticket = null;
+        boolean acquired = false;
+        HttpResult<T> hedge = null;
+        T result = null;
+        try {
+            // ホストが停止中であれば、ヘッジは送信しない
+            if (hostHealth != null) {
+                hostHealth.acquire(mHost);
+                acquired = true;
+            }
+
+            // 実行許可が得られるまで待つ
+            if (scheduler != null) {
+                ticket = scheduler.acquire(mPrimary.mRequest, callback);
+            }
+            synchronized (this) {
+                mHedgeSending = true;
+            }
+
+            hedge = mPrimary.newHedgeConnection();
+            hedge.mHedgedAttempt = this;
+            result = hedge.executeAttempt(callback);
+            if (acquired) {
+                acquired = false;
+                hostHealth.onSuccess(mHost);
+            }
+        } catch (IOException e) {
+            // 失敗したヘッジは採用しないだけでよい
+            if (acquired) {
+                acquired = false;
+                if (callback.isCanceled()) {
+                    hostHealth.onIgnored(mHost);
+                } else if (HttpResult.isHostFailure(e)) {
+                    hostHealth.onFailure(mHost);
+                } else {
+                    hostHealth.onSuccess(mHost);
+                }
+            }
+        } catch (Exception e) {
+            // 失敗したヘッジは採用しないだけでよい
+        } finally {
+            if (acquired) {
+                hostHealth.onIgnored(mHost);
+            }
+            if (ticket != null) {
+                ticket.release();
+            }
+        }
+
+        if (result != null) {
+            claim(hedge, result);
+        }
+
+        synchronized (this) {
+            mHedgeDone = true;
+            notifyAll();
+        }
+    }
+}
@@ -1,20 +1,30 @@
 package com.eaglesakura.android.net.internal;
 
+import com.eaglesakura.android.net.HedgePolicy;
 import com.eaglesakura.android.net.HttpHeader;
 import com.eaglesakura.android.net.NetworkConnector;
 import com.eaglesakura.android.net.NetworkProfile;
 import com.eaglesakura.android.net.Result;
 import com.eaglesakura.android.net.RetryPolicy;
+import com.eaglesakura.android.net.cache.CacheInputStream;
+import com.eaglesakura.android.net.cache.CacheMetadata;
+import com.eaglesakura.android.net.cache.CachePolicy;
 import com.eaglesakura.android.net.cache.ICacheController;
 import com.eaglesakura.android.net.cache.ICacheWriter;
+import com.eaglesakura.android.net.cache.IDigestCacheWriter;
+import com.eaglesakura.android.net.cache.IRevalidatingCacheController;
+import com.eaglesakura.android.net.cache.SizeLimitedCacheWriter;
+import com.eaglesakura.android.net.cache.memory.MemoryResultCache;
 import com.eaglesakura.android.net.error.HttpAccessRetryFailedException;
+import com.eaglesakura.android.net.error.HttpStatusException;
+import com.eaglesakura.android.net.host.HostHealth;
+import com.eaglesakura.android.net.host.LatencyTracker;
 import com.eaglesakura.android.net.parser.RequestParser;
 import com.eaglesakura.android.net.request.ConnectRequest;
+import com.eaglesakura.android.net.scheduler.RequestScheduler;
 import com.eaglesakura.android.net.stream.IStreamController;
 import com.eaglesakura.util.IOUtil;
 import com.eaglesakura.util.StringUtil;
-import com.eaglesakura.util.Timer;
-import com.eaglesakura.util.Util;
 
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -22,7 +32,6 @@ import android.support.annotation.Nullable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InterruptedIOException;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.List;
@@ -48,11 +57,31 @@ public abstract class HttpResult<T> extends Result<T> {
      */
     protected String mNetDigest;
 
+    /**
+     * 304 Not Modifiedによって、キャッシュの内容が有効と確認された場合true
+     */
+    protected boolean mNotModified;
+
+    /**
+     * 有効期限切れのキャッシュから読み込んだ場合true
+     */
+    protected boolean mStale;
+
+    /**
+     * 通信に失敗したため、有効期限切れのキャッシュから読み込んだ場合true
+     */
+    protected boolean mStaleOnError;
+
     /**
      * ヘッダ戻り値
      */
     protected HttpHeader mResponseHeader;
 
+    /**
+     * キャッシュと共に読み込んだメタデータ
+     */
+    private CacheMetadata mCacheMetadata;
+
     protected NetworkProfileImpl mProfile = new NetworkProfileImpl();
 
     /**
@@ -60,6 +89,13 @@ public abstract class HttpResult<T> extends Result<T> {
      */
     protected T mResult;
 
+    /**
+     * ヘッジ付きで通信している場合、結果を採用するかを判定する
+     * <p>
+     * 採用されなかった通信は、キャッシュへの書き込みを破棄する。
+     */
+    HedgedAttempt<T> mHedgedAttempt;
+
     public HttpResult(NetworkConnector connector, ConnectRequest request, RequestParser<T> parser) {
         this.mParser = parser;
         this.mRequest = request;
@@ -76,6 +112,10 @@ public abstract class HttpResult<T> extends Result<T> {
         return mRequest;
     }
 
+    public RequestParser<T> getParser() {
+        return mParser;
+    }
+
     public ICacheController getCacheController() {
         return mConnector.getCacheController();
     }
@@ -135,21 +175,33 @@ public abstract class HttpResult<T> extends Result<T> {
     protected ICacheWriter newCacheWriter(HttpHeader header) {
         try {
             ICacheController controller = mConnector.getCacheController();
-            if (controller != null) {
-                return controller.newCacheWriter(mRequest, header);
+            // 上限を超えるコンテンツはキャッシュしない
+            if (controller != null && !SizeLimitedCacheWriter.isTooLarge(mRequest.getCachePolicy(), header)) {
+                return SizeLimitedCacheWriter.wrap(controller.newCacheWriter(mRequest, header), mRequest.getCachePolicy());
             }
         } catch (Exception e) {
         }
         return null;
     }
 
-    protected void closeCacheWriter(T result, ICacheWriter writer) {
+    /**
+     * キャッシュの書き込みを完了する
+     *
+     * @param digest 書き込んだコンテンツの指紋を計算したもの, 成功した場合は指紋もキャッシュと共に保存する
+     */
+    protected void closeCacheWriter(T result, ICacheWriter writer, MessageDigest digest) {
         if (writer == null) {
             return;
         }
 
         try {
-            if (result != null) {
+            if (result != null && (mHedgedAttempt == null || mHedgedAttempt.claim(this, result))) {
+                if (digest != null) {
+                    mNetDigest = StringUtil.toHexString(digest.digest());
+                    if (writer instanceof IDigestCacheWriter) {
+                        ((IDigestCacheWriter) writer).setContentDigest(mNetDigest);
+                    }
+                }
                 writer.commit();
             } else {
                 writer.abort();
@@ -164,25 +216,41 @@ public abstract class HttpResult<T> extends Result<T> {
 
     /**
      * キャッシュからデータをパースする
+     *
+     * @param maxStaleMs 有効期限切れから許容する時間, 0の場合は有効なキャッシュのみを読み込む
      */
-    private T tryCacheParse(CallbackHolder<T> taskResult) {
+    private T tryCacheParse(CallbackHolder<T> taskResult, long maxStaleMs) {
         ICacheController controller = mConnector.getCacheController();
         if (controller == null) {
             return null;
         }
 
-        MessageDigest digest = newMessageDigest();
+        if (maxStaleMs > 0 && !(controller instanceof IRevalidatingCacheController)) {
+            // 期限切れのキャッシュは残されていない
+            return null;
+        }
+
         InputStream stream = null;
         try {
-            stream = controller.openCache(mRequest);
+            stream = (maxStaleMs > 0) ? ((IRevalidatingCacheController) controller).openStaleCache(mRequest, maxStaleMs) : controller.openCache(mRequest);
             if (stream == null) {
                 // キャッシュが無いので何もできない
                 return null;
             }
-            T parsed = parseFromStream(taskResult, null, stream, null, digest);
+
+            // 保存時に求めた指紋があれば、読み込み時に求め直さない
+            CacheMetadata metadata = CacheInputStream.getMetadata(stream);
+            String storedDigest = (metadata != null) ? metadata.getContentDigest() : null;
+            HttpHeader storedHeader = (metadata != null) ? metadata.getResponseHeader() : null;
+            MessageDigest digest = (storedDigest == null) ? newMessageDigest() : null;
+            T parsed = parseFromStream(taskResult, storedHeader, stream, null, digest);
             if (parsed != null) {
                 // パースに成功したら指紋を残す
-                mCacheDigest = StringUtil.toHexString(digest.digest());
+                mCacheDigest = (storedDigest != null) ? storedDigest : StringUtil.toHexString(digest.digest());
+                mCacheMetadata = metadata;
+                if (storedHeader != null) {
+                    mResponseHeader = storedHeader;
+                }
             }
             return parsed;
         } catch (FileNotFoundException e) {
@@ -202,6 +270,56 @@ public abstract class HttpResult<T> extends Result<T> {
      */
     protected abstract T tryNetworkParse(CallbackHolder<T> callback, MessageDigest digest) throws IOException;
 
+    /**
+     * ヘッジ用に、同じリクエストを行う接続を生成する
+     */
+    protected abstract HttpResult<T> newHedgeConnection();
+
+    /**
+     * 1回分の接続を行い、成功したらダイジェストを残す
+     */
+    T executeAttempt(CallbackHolder<T> callback) throws IOException {
+        mResponseHeader = new HttpHeader();
+        mNotModified = false;
+        mNetDigest = null;
+        MessageDigest digest = newMessageDigest();
+        T parsed = tryNetworkParse(callback, digest);
+        if (parsed != null && mNetDigest == null) {
+            // キャッシュへの保存時や、保存済みの指紋から求められていない
+            mNetDigest = StringUtil.toHexString(digest.digest());
+        }
+        return parsed;
+    }
+
+    /**
+     * 1回分の接続を行う。
+     * <p>
+     * HedgePolicyが指定されている場合、応答が遅ければ同じリクエストを並行して送信する。
+     */
+    private T tryNetworkAttempt(CallbackHolder<T> callback, String host) throws IOException {
+        LatencyTracker tracker = mConnector.getLatencyTracker();
+        HedgePolicy hedgePolicy = mRequest.getHedgePolicy();
+        ConnectRequest.Method method = mRequest.getMethod();
+        long hedgeDelayMs = -1;
+        if (hedgePolicy != null && (method == ConnectRequest.Method.GET || method == ConnectRequest.Method.HEAD)) {
+            hedgeDelayMs = hedgePolicy.getHedgeDelayMs(tracker, host);
+        }
+
+        T parsed;
+        if (hedgeDelayMs >= 0) {
+            parsed = new HedgedAttempt<>(this, callback, tracker, host, hedgeDelayMs).run();
+        } else {
+            parsed = executeAttempt(callback);
+        }
+
+        Integer connectionTimeMs = mProfile.getConnectionTimeMs();
+        Integer turnaroundTimeMs = mProfile.getTurnaroundTimeMs();
+        if (parsed != null && connectionTimeMs != null && turnaroundTimeMs != null) {
+            tracker.onCompleted(host, connectionTimeMs, turnaroundTimeMs);
+        }
+        return parsed;
+    }
+
     @Nullable
     @Override
     public HttpHeader getResponseHeader() {
@@ -213,76 +331,306 @@ public abstract class HttpResult<T> extends Result<T> {
         return false;
     }
 
+    @Override
+    public boolean isStale() {
+        return mStale;
+    }
+
+    /**
+     * 古いキャッシュを返却したため、バックグラウンドでの更新が必要な場合true
+     * <p>
+     * 通信の失敗によって古いキャッシュを返却した場合、ホストへの負荷を増やさないよう更新は行わない。
+     */
+    public boolean isRevalidationRequired() {
+        return mStale && !mStaleOnError;
+    }
+
+    /**
+     * ホスト側の障害による失敗であればtrue
+     * <p>
+     * 4xx系のステータスはホストが正常に応答しているため、失敗として扱わない。
+     */
+    static boolean isHostFailure(IOException error) {
+        if (error instanceof HttpStatusException) {
+            int status = ((HttpStatusException) error).getStatusCode();
+            return status >= 500 || status == 429;
+        }
+        return true;
+    }
+
+    /**
+     * リトライ設定を取得する
+     * <p>
+     * リクエストに指定が無い場合、リトライを行わない設定となる。
+     */
+    @NonNull
+    protected RetryPolicy getRetryPolicy() {
+        RetryPolicy result = mRequest.getRetryPolicy();
+        return result != null ? result : new RetryPolicy(0);
+    }
+
     /**
      * streamから戻り値のパースを行う
      */
     private T parseFromStream(CallbackHolder<T> callback) throws IOException {
-        RetryPolicy retryPolicy = mRequest.getRetryPolicy();
+        final RetryPolicy retryPolicy = getRetryPolicy();
+        final int MAX_RETRY = retryPolicy.getRetryNum();
         int tryCount = 0;
-        final int MAX_RETRY;
-        long waitTime = 0;
-        if (retryPolicy != null) {
-            MAX_RETRY = retryPolicy.getRetryNum();
-            waitTime = retryPolicy.getBaseWaitTime();
-        } else {
-            MAX_RETRY = 0;
-        }
+        long waitTime = retryPolicy.getBaseWaitTime();
 
         List<IOException> errorList = new ArrayList<>();
-        Timer waitTimer = new Timer();
+        RequestScheduler scheduler = mConnector.getScheduler();
+        HostHealth hostHealth = mConnector.getHostHealth();
+        String host = RequestScheduler.getHost(mRequest.getUrl());
         // 施行回数が残っていたら通信を行う
         while ((++tryCount) <= (MAX_RETRY + 1)) {
+            RequestScheduler.Ticket ticket = null;
+            boolean acquired = false;
             try {
-                mResponseHeader = new HttpHeader();
-                MessageDigest digest = newMessageDigest();
-                T parsed = tryNetworkParse(callback, digest);
+                // ホストが停止中であれば、通信せずに失敗させる
+                if (hostHealth != null) {
+                    hostHealth.acquire(host);
+                    acquired = true;
+                }
+
+                // 実行許可が得られるまで待つ
+                if (scheduler != null) {
+                    ticket = scheduler.acquire(mRequest, callback);
+                }
+
+                T parsed = tryNetworkAttempt(callback, host);
+                if (acquired) {
+                    acquired = false;
+                    hostHealth.onSuccess(host);
+                }
                 if (parsed != null) {
-                    mNetDigest = StringUtil.toHexString(digest.digest());
                     return parsed;
                 }
             } catch (IOException e) {
+                if (acquired) {
+                    acquired = false;
+                    if (callback.isCanceled()) {
+                        hostHealth.onIgnored(host);
+                    } else if (isHostFailure(e)) {
+                        hostHealth.onFailure(host);
+                    } else {
+                        hostHealth.onSuccess(host);
+                    }
+                }
+
+                if (callback.isCanceled()) {
+                    // キャンセルか期限切れによって接続が切断されたので、リトライしない
+                    throw callback.newCanceledException();
+                }
+
+                // ホスト側の障害であれば、リトライせずに古いキャッシュを返却する
+                if (isHostFailure(e)) {
+                    T stale = tryStaleIfError(callback);
+                    if (stale != null) {
+                        return stale;
+                    }
+                }
+
                 // その他のIO例外はひとまずリトライくらいはできる
-                if (!mRequest.getRetryPolicy().isRetryableError(mConnector, mRequest, e)) {
+                if (!retryPolicy.isRetryableError(mConnector, mRequest, e)) {
                     e.printStackTrace();
                     // リトライ対象の例外ではない
                     throw e;
                 }
                 errorList.add(e);
+            } finally {
+                if (acquired) {
+                    // パース失敗等、通信結果を判断できない
+                    hostHealth.onIgnored(host);
+                }
+                if (ticket != null) {
+                    ticket.release();
+                }
+            }
+
+            if (tryCount > MAX_RETRY) {
+                // 最後の試行の後は待たずに打ち切る
+                break;
+            }
+
+            // リトライ予算を使い切っている場合、ホストへの負荷を増やさないよう打ち切る
+            if (hostHealth != null && !hostHealth.tryRetry(host)) {
+                throw new HttpAccessRetryFailedException("Retry budget exhausted try : " + tryCount + " : " + getRequest().getUrl(), tryCount, errorList);
+            }
+
+            final long SLEEP_MS = retryPolicy.getWaitTimeMs(waitTime);
+
+            // 待機中に期限を過ぎるのであれば、待たずに打ち切る
+            if (SLEEP_MS >= callback.getRemainingMs()) {
+                throw callback.failDeadline();
             }
 
             // 必要時間だけウェイトをかける
-            {
-                waitTimer.start();
-                // キャンセルされてない、かつウェイト時間が残っていたら眠らせる
-                while (!callback.isCanceled() && (waitTimer.end() < waitTime)) {
-                    Util.sleep(1);
-                }
-                if (callback.isCanceled()) {
-                    throw new InterruptedIOException("task canceled");
-                }
+            // キャンセルされた時点で待機を打ち切る
+            if (callback.awaitCancel(SLEEP_MS)) {
+                throw callback.newCanceledException();
             }
 
 
             waitTime = retryPolicy.nextBackoffTimeMs(tryCount, waitTime);
         }
 
-        throw new HttpAccessRetryFailedException("Connection Failed try : " + (tryCount - 1) + " : " + getRequest().getUrl(), tryCount, errorList);
+        throw new HttpAccessRetryFailedException("Connection Failed try : " + tryCount + " : " + getRequest().getUrl(), tryCount, errorList);
     }
 
 
     /**
-     * ネットワーク接続を行い、結果を返す
+     * 通信に失敗したので、猶予時間内の古いキャッシュの読み込みを試みる
+     *
+     * @return キャッシュのパース結果, 無い場合はnull
      */
-    public void connect(CallbackHolder<T> callback) throws IOException {
-        mResult = tryCacheParse(callback);
+    private T tryStaleIfError(CallbackHolder<T> callback) {
+        final long STALE_MS = (mRequest.getCachePolicy() != null) ? mRequest.getCachePolicy().getStaleIfErrorMs() : 0;
+        if (STALE_MS <= 0) {
+            return null;
+        }
+
+        T parsed = tryCacheParse(callback, STALE_MS);
+        if (parsed != null) {
+            mStale = true;
+            mStaleOnError = true;
+        }
+        return parsed;
+    }
+
+    /**
+     * キャッシュからの読み込みを試みる
+     *
+     * @return キャッシュから結果を得られた場合true
+     */
+    public boolean connectCache(CallbackHolder<T> callback) {
+        if (tryMemoryCache()) {
+            return true;
+        }
+
+        mResult = tryCacheParse(callback, 0);
         if (mResult != null) {
+            putMemoryCache(mCacheDigest, (mCacheMetadata != null) ? mCacheMetadata : getCacheMetadata());
+        }
+        return mResult != null;
+    }
+
+    /**
+     * メモリ上のパース済みの戻り値を取得する
+     *
+     * @return 戻り値を得られた場合true
+     */
+    @SuppressWarnings("unchecked")
+    private boolean tryMemoryCache() {
+        MemoryResultCache memoryCache = mConnector.getMemoryCache();
+        CachePolicy policy = mRequest.getCachePolicy();
+        if (memoryCache == null || !CachePolicy.isCacheEnabled(policy)) {
+            return false;
+        }
+
+        MemoryResultCache.Entry entry = memoryCache.get(policy.getCacheKey(mRequest), mParser);
+        if (entry == null) {
+            return false;
+        }
+
+        mResult = (T) entry.getResult();
+        mCacheDigest = entry.getDigest();
+        if (entry.getResponseHeader() != null) {
+            mResponseHeader = entry.getResponseHeader();
+        }
+        return true;
+    }
+
+    /**
+     * パース済みの戻り値をメモリ上に保持する
+     *
+     * @param digest   戻り値のパース元となったコンテンツの指紋
+     * @param metadata 有効期限を求めるためのメタデータ, nullの場合は保持しない
+     */
+    private void putMemoryCache(String digest, CacheMetadata metadata) {
+        MemoryResultCache memoryCache = mConnector.getMemoryCache();
+        CachePolicy policy = mRequest.getCachePolicy();
+        if (memoryCache == null || metadata == null || mResult == null || !CachePolicy.isCacheEnabled(policy)) {
             return;
         }
 
+        // ローカルのキャッシュより長く保持しないよう、同じ有効期限とする
+        memoryCache.put(policy.getCacheKey(mRequest), mParser, mResult, digest, metadata.getResponseHeader(), CacheMetadata.getExpiresAt(metadata, policy, metadata.getStoredAt()));
+    }
+
+    private CacheMetadata getCacheMetadata() {
+        ICacheController controller = getCacheController();
+        if (!(controller instanceof IRevalidatingCacheController)) {
+            return null;
+        }
+        try {
+            return ((IRevalidatingCacheController) controller).getMetadata(mRequest);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * 有効期限切れから猶予時間内のキャッシュの読み込みを試みる
+     *
+     * @return キャッシュから結果を得られた場合true
+     */
+    public boolean connectStaleCache(CallbackHolder<T> callback) {
+        final long STALE_MS = (mRequest.getCachePolicy() != null) ? mRequest.getCachePolicy().getStaleWhileRevalidateMs() : 0;
+        if (STALE_MS <= 0) {
+            return false;
+        }
+
+        mResult = tryCacheParse(callback, STALE_MS);
+        mStale = (mResult != null);
+        return mStale;
+    }
+
+    /**
+     * ネットワークからの取得が完了した時に呼び出される
+     * <p>
+     * connect()とconnectNetwork()のどちらから通信した場合も呼び出される。
+     */
+    protected void onNetworkCompleted() {
+    }
+
+    /**
+     * キャッシュを利用せずにネットワーク接続を行う
+     */
+    public void connectNetwork(CallbackHolder<T> callback) throws IOException {
         if (callback.isCanceled()) {
-            throw new InterruptedIOException();
+            throw callback.newCanceledException();
         }
 
         mResult = parseFromStream(callback);
+        onNetworkCompleted();
+
+        // 保存が許可されていれば、パース済みの戻り値も保持する
+        if (mStale) {
+            return;
+        }
+        MemoryResultCache memoryCache = mConnector.getMemoryCache();
+        if (memoryCache != null && CachePolicy.isNoStore(mRequest.getCachePolicy(), mResponseHeader)) {
+            // 以前の戻り値も破棄する
+            memoryCache.remove(mRequest.getCachePolicy().getCacheKey(mRequest), mParser);
+        } else {
+            putMemoryCache(mNetDigest, CacheMetadata.fromResponse(mRequest.getCachePolicy(), mResponseHeader));
+        }
+    }
+
+    /**
+     * ネットワーク接続を行い、結果を返す
+     */
+    public void connect(CallbackHolder<T> callback) throws IOException {
+        if (connectCache(callback)) {
+            return;
+        }
+
+        // 猶予時間内であれば古いキャッシュを返却し、更新は呼び出し元に任せる
+        if (connectStaleCache(callback)) {
+            return;
+        }
+
+        connectNetwork(callback);
     }
 }
@@ -0,0 +1,160 @@
+package com.eaglesakura.android.net.internal;
+
+import com.eaglesakura.android.net.CancellationToken;
+import com.eaglesakura.android.net.Result;
+import com.eaglesakura.android.net.parser.RequestParser;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 実行中のリクエストを管理し、同一リクエストの多重ダウンロードを抑制する
+ * <p>
+ * 同じキャッシュキーとパーサーの組み合わせで通信中のリクエストがある場合、後続のリクエストは先行リクエストの完了を待ち、同じ結果を受け取る。
+ */
+public class InFlightRequests {
+    private final Map<Key, Call> mCalls = new HashMap<>();
+
+    public interface Loader<T> {
+        Result<T> load() throws IOException;
+    }
+
+    /**
+     * リクエストを実行する。
+     * <p>
+     * 同一リクエストが実行中であればその完了を待ち、そうでなければloaderを実行する。
+     *
+     * @param cacheKey キャッシュキー
+     * @param parser   パーサー
+     * @param callback 呼び出し元のキャンセルチェック
+     * @param loader   通信の実行本体
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Result<T> execute(String cacheKey, RequestParser<T> parser, CallbackHolder<T> callback, Loader<T> loader) throws IOException {
+        final Key key = new Key(cacheKey, parser);
+        while (true) {
+            Call call;
+            boolean leader = false;
+            synchronized (mCalls) {
+                call = mCalls.get(key);
+                if (call == null) {
+                    call = new Call();
+                    mCalls.put(key, call);
+                    leader = true;
+                }
+            }
+
+            if (leader) {
+                return executeLeader(key, call, loader);
+            }
+
+            // 先行リクエストの完了を待つ
+            call.await(callback);
+            if (call.mError == null) {
+                return (Result<T>) call.mResult;
+            } else if (isCanceledError(call.mError)) {
+                // 先行リクエストが自身の都合でキャンセルされたか期限を過ぎたので、改めて通信を行う
+                continue;
+            } else {
+                throw call.mError;
+            }
+        }
+    }
+
+    private <T> Result<T> executeLeader(Key key, Call call, Loader<T> loader) throws IOException {
+        try {
+            Result<T> result = loader.load();
+            call.mResult = result;
+            return result;
+        } catch (IOException e) {
+            call.mError = e;
+            throw e;
+        } catch (RuntimeException e) {
+            call.mError = new IOException(e);
+            throw e;
+        } finally {
+            synchronized (mCalls) {
+                mCalls.remove(key);
+            }
+            call.finish();
+        }
+    }
+
+    /**
+     * 呼び出し元のキャンセルによって失敗した場合true
+     * <p>
+     * 期限は呼び出し元ごとに異なるため、先行リクエストの期限切れもキャンセルと同じく扱い、
+     * 待機中の呼び出し元は自身の期限で通信をやり直す。
+     */
+    private static boolean isCanceledError(IOException error) {
+        return (error instanceof InterruptedIOException)
+                && !(error instanceof SocketTimeoutException);
+    }
+
+    private static class Call {
+        volatile Result<?> mResult;
+
+        volatile IOException mError;
+
+        boolean mFinished;
+
+        synchronized void finish() {
+            mFinished = true;
+            notifyAll();
+        }
+
+        synchronized void wakeUp() {
+            notifyAll();
+        }
+
+        void await(CallbackHolder<?> callback) throws IOException {
+            // キャンセルされたら先行リクエストの完了を待たずに起こす
+            CancellationToken.Registration registration = callback.registerCancelListener(this::wakeUp);
+            try {
+                synchronized (this) {
+                    while (!mFinished) {
+                        if (callback.isCanceled()) {
+                            throw callback.newCanceledException();
+                        }
+                        wait();
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("task interrupted");
+            } finally {
+                registration.unregister();
+            }
+        }
+    }
+
+    /**
+     * キャッシュキーとパーサーインスタンスの組み合わせ
+     */
+    private static class Key {
+        final String mCacheKey;
+
+        final RequestParser<?> mParser;
+
+        Key(String cacheKey, RequestParser<?> parser) {
+            mCacheKey = cacheKey;
+            mParser = parser;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Key key = (Key) o;
+            return mParser == key.mParser && mCacheKey.equals(key.mCacheKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mCacheKey.hashCode() + System.identityHashCode(mParser);
+        }
+    }
+}
@@ -4,7 +4,6 @@ import com.eaglesakura.android.net.cache.ICacheWriter;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InterruptedIOException;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 
@@ -26,6 +25,8 @@ public class NetworkParseInputStream extends DigestInputStream {
 
     public NetworkParseInputStream(InputStream stream, NetworkProfileImpl profile, ICacheWriter cacheWriter, MessageDigest digest, CallbackHolder callback) {
         super(stream, digest);
+        // 指紋が不要な場合は計算しない
+        on(digest != null);
         mCallback = callback;
         mCacheWriter = cacheWriter;
         mProfile = profile;
@@ -33,7 +34,7 @@ public class NetworkParseInputStream extends DigestInputStream {
 
     private void throwIfCanceled() throws IOException {
         if (mCallback.isCanceled()) {
-            throw new InterruptedIOException("task canceled");
+            throw mCallback.newCanceledException();
         }
     }
 
@@ -32,4 +32,18 @@ public class BitmapParser implements RequestParser<Bitmap> {
             return bitmap;
         }
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        BitmapParser that = (BitmapParser) o;
+        return maxWidth == that.maxWidth && maxHeight == that.maxHeight;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * maxWidth + maxHeight;
+    }
 }
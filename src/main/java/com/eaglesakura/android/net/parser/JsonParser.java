@@ -16,4 +16,18 @@ public class JsonParser<T> implements RequestParser<T> {
     public T parse(Result<T> sender, InputStream data) throws Exception {
         return JSON.decode(data, clazz);
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        JsonParser<?> that = (JsonParser<?>) o;
+        return clazz.equals(that.clazz);
+    }
+
+    @Override
+    public int hashCode() {
+        return clazz.hashCode();
+    }
 }
@@ -1,6 +1,7 @@
 package com.eaglesakura.android.net.request;
 
 import com.eaglesakura.android.net.ErrorPolicy;
+import com.eaglesakura.android.net.HedgePolicy;
 import com.eaglesakura.android.net.HttpHeader;
 import com.eaglesakura.android.net.RetryPolicy;
 import com.eaglesakura.android.net.cache.CachePolicy;
@@ -66,6 +67,28 @@ public abstract class ConnectRequest {
         public abstract boolean hasContent();
     }
 
+    /**
+     * 通信の優先度
+     * <p>
+     * RequestSchedulerを使用している場合、同じホストへのリクエストは優先度の高いものから実行される。
+     */
+    public enum Priority {
+        /**
+         * ユーザー操作に直結する通信
+         */
+        INTERACTIVE,
+
+        /**
+         * 通常の通信
+         */
+        NORMAL,
+
+        /**
+         * 先読み等、遅延しても問題ない通信
+         */
+        PREFETCH,
+    }
+
     private final Method method;
 
     protected String url;
@@ -82,6 +105,21 @@ public abstract class ConnectRequest {
      */
     private long connectTimeoutMs = 1000 * 10;
 
+    /**
+     * リトライを含めたリクエスト全体の期限
+     */
+    private long deadlineMs;
+
+    /**
+     * 通信の優先度
+     */
+    private Priority priority = Priority.NORMAL;
+
+    /**
+     * ヘッジリクエスト設定
+     */
+    private HedgePolicy hedgePolicy;
+
     protected ConnectRequest(Method method) {
         this.method = method;
     }
@@ -120,6 +158,50 @@ public abstract class ConnectRequest {
         this.connectTimeoutMs = connectTimeoutMs;
     }
 
+    public long getDeadlineMs() {
+        return deadlineMs;
+    }
+
+    /**
+     * リトライやバックオフの待機、パースを含めたリクエスト全体の期限を指定する。
+     * <p>
+     * 期限を過ぎた場合DeadlineExceededExceptionで失敗する。各通信のタイムアウトは残り時間に合わせて短縮される。
+     * 0の場合、期限を設けない。
+     */
+    public void setDeadlineMs(long deadlineMs) {
+        if (deadlineMs < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.deadlineMs = deadlineMs;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * 通信の優先度を指定する
+     */
+    public void setPriority(Priority priority) {
+        if (priority == null) {
+            throw new IllegalArgumentException();
+        }
+        this.priority = priority;
+    }
+
+    public HedgePolicy getHedgePolicy() {
+        return hedgePolicy;
+    }
+
+    /**
+     * ヘッジリクエスト設定を指定する。
+     * <p>
+     * nullの場合、ヘッジを行わない。GET/HEAD以外のリクエストでは無視される。
+     */
+    public void setHedgePolicy(HedgePolicy hedgePolicy) {
+        this.hedgePolicy = hedgePolicy;
+    }
+
     /**
      * キャッシュ制御を取得する
      * nullを返却した場合、キャッシュ制御を行わない
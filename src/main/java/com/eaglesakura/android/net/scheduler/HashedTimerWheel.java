@@ -0,0 +1,250 @@
+package com.eaglesakura.android.net.scheduler;
+
+import android.support.annotation.IntRange;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多数のタイムアウトを1本のスレッドで管理するタイマー
+ * <p>
+ * 時間をtick単位のスロットに区切ったリングへタイムアウトを登録し、スロットを順に進めながら期限を迎えたものを実行する。
+ * 登録とキャンセルは定数時間で行えるため、リクエストごとの期限やリトライの継続を大量に登録しても負荷が増えない。
+ * 精度はtick単位となる。タスクはタイマーのスレッドで実行されるため、重い処理は別スレッドへ渡すこと。
+ * <p>
+ * 登録済みのタイムアウトがある間のみ、1本のデーモンスレッドが動作する。
+ * スレッドは最も早い期限までスリープし、tickごとには起床しない。登録が無くなってから一定時間後に停止する。
+ */
+public class HashedTimerWheel {
+    /**
+     * デフォルトのtick間隔
+     */
+    public static final long DEFAULT_TICK_MS = 10;
+
+    /**
+     * デフォルトのスロット数
+     */
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    /**
+     * 登録が無くなってからスレッドを停止するまでの時間
+     */
+    private static final long IDLE_KEEP_ALIVE_MS = 1000;
+
+    private static HashedTimerWheel sDefault;
+
+    private final long mTickNanos;
+
+    private final int mMask;
+
+    private final List<Set<Timeout>> mWheel;
+
+    /**
+     * 登録済みのタイムアウト数
+     */
+    private int mPendingCount;
+
+    /**
+     * 基準時刻からのtick数
+     */
+    private long mTick;
+
+    /**
+     * 登録済みのうち、最も早く期限を迎えるtick
+     * <p>
+     * キャンセルでは更新しないため、実際より早い場合がある。
+     */
+    private long mNextDeadlineTick = Long.MAX_VALUE;
+
+    /**
+     * タイマースレッドの基準時刻
+     */
+    private long mStartNanos;
+
+    private boolean mRunning;
+
+    /**
+     * 登録されたタイムアウト
+     */
+    public class Timeout {
+        final Runnable mTask;
+
+        /**
+         * 期限を迎えるtick
+         */
+        final long mDeadlineTick;
+
+        boolean mDone;
+
+        Timeout(Runnable task, long deadlineTick) {
+            mTask = task;
+            mDeadlineTick = deadlineTick;
+        }
+
+        /**
+         * タイムアウトを取り消す
+         *
+         * @return 実行前に取り消せた場合true
+         */
+        public boolean cancel() {
+            synchronized (HashedTimerWheel.this) {
+                if (mDone) {
+                    return false;
+                }
+                mDone = true;
+                mWheel.get((int) (mDeadlineTick & mMask)).remove(this);
+                --mPendingCount;
+                return true;
+            }
+        }
+    }
+
+    public HashedTimerWheel(@IntRange(from = 1) long tickMs, @IntRange(from = 1) int wheelSize) {
+        if (tickMs < 1 || wheelSize < 1) {
+            throw new IllegalArgumentException();
+        }
+
+        // スロットの位置をマスクで求められるよう、2の累乗に揃える
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+
+        mTickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        mMask = size - 1;
+        mWheel = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i) {
+            mWheel.add(new LinkedHashSet<Timeout>());
+        }
+    }
+
+    /**
+     * 全てのNetworkConnectorで共有されるタイマーを取得する
+     */
+    public static synchronized HashedTimerWheel getDefault() {
+        if (sDefault == null) {
+            sDefault = new HashedTimerWheel(DEFAULT_TICK_MS, DEFAULT_WHEEL_SIZE);
+        }
+        return sDefault;
+    }
+
+    /**
+     * 指定時間後にタスクを実行する
+     *
+     * @param task    実行するタスク
+     * @param delayMs 実行までの時間
+     * @return 取り消しのためのハンドル
+     */
+    public synchronized Timeout newTimeout(Runnable task, long delayMs) {
+        if (!mRunning) {
+            // 停止中は基準時刻を更新してからスレッドを起動する
+            mRunning = true;
+            mStartNanos = System.nanoTime();
+            mTick = 0;
+            mNextDeadlineTick = Long.MAX_VALUE;
+            Thread thread = new Thread(this::run, "HashedTimerWheel");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        // 現在時刻より前のスロットへは登録しない
+        long elapsedNanos = System.nanoTime() - mStartNanos + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs));
+        long deadlineTick = Math.max(mTick, (elapsedNanos + mTickNanos - 1) / mTickNanos);
+
+        Timeout timeout = new Timeout(task, deadlineTick);
+        mWheel.get((int) (deadlineTick & mMask)).add(timeout);
+        ++mPendingCount;
+        if (deadlineTick < mNextDeadlineTick) {
+            // 待機中のスレッドを起こし、待ち時間を短くさせる
+            mNextDeadlineTick = deadlineTick;
+            notifyAll();
+        }
+        return timeout;
+    }
+
+    /**
+     * 登録済みのタイムアウト数を取得する
+     */
+    public synchronized int getPendingCount() {
+        return mPendingCount;
+    }
+
+    /**
+     * 登録済みのうち、最も早く期限を迎えるtickを探す
+     * <p>
+     * 現在のスロットから順に探し、見つかった期限のスロットに達した時点で打ち切る。
+     */
+    private long findNextDeadlineTick() {
+        long result = Long.MAX_VALUE;
+        if (mPendingCount == 0) {
+            return result;
+        }
+        for (long tick = mTick; tick <= mTick + mMask && tick < result; ++tick) {
+            for (Timeout timeout : mWheel.get((int) (tick & mMask))) {
+                result = Math.min(result, timeout.mDeadlineTick);
+            }
+        }
+        return result;
+    }
+
+    private void run() {
+        List<Timeout> expired = new ArrayList<>();
+        while (true) {
+            synchronized (this) {
+                try {
+                    // 登録が途切れても、すぐには停止せずに次の登録を待つ
+                    final long idleDeadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(IDLE_KEEP_ALIVE_MS);
+                    long waitNanos;
+                    while (mPendingCount == 0 && (waitNanos = idleDeadlineNanos - System.nanoTime()) > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+                    }
+
+                    // 最も早い期限まで待つ
+                    while (mPendingCount > 0 && (waitNanos = mStartNanos + mNextDeadlineTick * mTickNanos - System.nanoTime()) > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+                    }
+                } catch (InterruptedException e) {
+                    mRunning = false;
+                    return;
+                }
+
+                if (mPendingCount == 0) {
+                    mRunning = false;
+                    return;
+                }
+
+                // 経過したスロットを処理する
+                // スリープ等で大きく遅れた場合も、全スロットを1周すれば期限切れのものは全て見つかる
+                final long nowTick = (System.nanoTime() - mStartNanos) / mTickNanos;
+                final long lastTick = Math.min(nowTick, mTick + mMask);
+                for (long tick = mTick; tick <= lastTick && mPendingCount > expired.size(); ++tick) {
+                    Iterator<Timeout> iterator = mWheel.get((int) (tick & mMask)).iterator();
+                    while (iterator.hasNext()) {
+                        Timeout timeout = iterator.next();
+                        if (timeout.mDeadlineTick <= nowTick) {
+                            iterator.remove();
+                            timeout.mDone = true;
+                            expired.add(timeout);
+                        }
+                    }
+                }
+                mTick = nowTick + 1;
+                mPendingCount -= expired.size();
+                mNextDeadlineTick = findNextDeadlineTick();
+            }
+
+            for (Timeout timeout : expired) {
+                try {
+                    timeout.mTask.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+            expired.clear();
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package com.eaglesakura.android.net.scheduler;
+
+import com.eaglesakura.android.net.CancellationToken;
+import com.eaglesakura.android.net.internal.CallbackHolder;
+import com.eaglesakura.android.net.request.ConnectRequest;
+
+import android.support.annotation.IntRange;
+
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ホストごとに通信の実行許可を管理する
+ * <p>
+ * ホスト単位で同時接続数とリクエストレートを制限し、待機中のリクエストは優先度の高いものから実行を許可する。
+ * 1つのSchedulerを複数のNetworkConnectorで共有することもできる。
+ */
+public class RequestScheduler {
+    /**
+     * 待機中にキャンセルチェックを行う間隔
+     */
+    private static final long CANCEL_CHECK_INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    private final Condition mCondition = mLock.newCondition();
+
+    private final Map<String, HostState> mHosts = new HashMap<>();
+
+    private final Map<String, HostLimit> mHostLimits = new HashMap<>();
+
+    private HostLimit mDefaultLimit = new HostLimit(6, 0, 0);
+
+    /**
+     * 待機順序を確定させるための通し番号
+     */
+    private long mSequence;
+
+    /**
+     * 全ホストで待機中のリクエスト数
+     */
+    private final int[] mQueueDepth = new int[ConnectRequest.Priority.values().length];
+
+    /**
+     * ホストごとの制限値
+     */
+    private static class HostLimit {
+        final int mMaxConcurrency;
+
+        final double mRequestsPerSec;
+
+        final int mBurst;
+
+        HostLimit(int maxConcurrency, double requestsPerSec, int burst) {
+            if (maxConcurrency < 1 || requestsPerSec < 0) {
+                throw new IllegalArgumentException();
+            }
+            mMaxConcurrency = maxConcurrency;
+            mRequestsPerSec = requestsPerSec;
+            mBurst = Math.max(1, burst);
+        }
+    }
+
+    /**
+     * 実行許可
+     * <p>
+     * 通信が終了したら、必ずrelease()を呼び出す。
+     */
+    public class Ticket {
+        final HostState mHost;
+
+        boolean mReleased;
+
+        Ticket(HostState host) {
+            mHost = host;
+        }
+
+        public void release() {
+            mLock.lock();
+            try {
+                if (mReleased) {
+                    return;
+                }
+                mReleased = true;
+                --mHost.mRunning;
+                mCondition.signalAll();
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 全ホストのデフォルト制限を指定する
+     *
+     * @param maxConcurrency 同時接続数
+     * @param requestsPerSec 1秒あたりのリクエスト数, 0の場合は制限しない
+     * @param burst          瞬間的に許可するリクエスト数
+     */
+    public void setDefaultLimit(@IntRange(from = 1) int maxConcurrency, double requestsPerSec, int burst) {
+        mLock.lock();
+        try {
+            mDefaultLimit = new HostLimit(maxConcurrency, requestsPerSec, burst);
+            for (Map.Entry<String, HostState> entry : mHosts.entrySet()) {
+                if (!mHostLimits.containsKey(entry.getKey())) {
+                    entry.getValue().setLimit(mDefaultLimit);
+                }
+            }
+            mCondition.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 特定ホストの制限を指定する
+     *
+     * @param host           ホスト名
+     * @param maxConcurrency 同時接続数
+     * @param requestsPerSec 1秒あたりのリクエスト数, 0の場合は制限しない
+     * @param burst          瞬間的に許可するリクエスト数
+     */
+    public void setHostLimit(String host, @IntRange(from = 1) int maxConcurrency, double requestsPerSec, int burst) {
+        mLock.lock();
+        try {
+            HostLimit limit = new HostLimit(maxConcurrency, requestsPerSec, burst);
+            mHostLimits.put(host, limit);
+            HostState state = mHosts.get(host);
+            if (state != null) {
+                state.setLimit(limit);
+            }
+            mCondition.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private HostState getHostState(String host) {
+        HostState state = mHosts.get(host);
+        if (state == null) {
+            HostLimit limit = mHostLimits.get(host);
+            state = new HostState(limit != null ? limit : mDefaultLimit);
+            mHosts.put(host, state);
+        }
+        return state;
+    }
+
+    /**
+     * リクエストの実行許可を得る。
+     * <p>
+     * 許可が得られるまで呼び出しスレッドをブロックする。
+     *
+     * @param request  対象リクエスト
+     * @param callback キャンセルチェック
+     * @return 実行許可
+     */
+    public Ticket acquire(ConnectRequest request, CallbackHolder<?> callback) throws InterruptedIOException {
+        final String host = getHost(request.getUrl());
+        final ConnectRequest.Priority priority = request.getPriority();
+
+        // キャンセルされたら即座に待機を打ち切る
+        CancellationToken.Registration registration = null;
+        if (callback != null) {
+            registration = callback.registerCancelListener(this::wakeUp);
+        }
+
+        mLock.lock();
+        try {
+            final HostState state = getHostState(host);
+            final Waiter waiter = new Waiter(priority, ++mSequence);
+            state.mWaiters.add(waiter);
+            ++mQueueDepth[priority.ordinal()];
+            try {
+                while (true) {
+                    if (callback != null && callback.isCanceled()) {
+                        throw callback.newCanceledException();
+                    }
+
+                    long waitNanos = CANCEL_CHECK_INTERVAL_NS;
+                    if (state.mWaiters.peek() == waiter && state.mRunning < state.mLimit.mMaxConcurrency) {
+                        long tokenWaitNanos = (state.mBucket != null) ? state.mBucket.tryAcquire() : 0;
+                        if (tokenWaitNanos == 0) {
+                            ++state.mRunning;
+                            return new Ticket(state);
+                        }
+                        waitNanos = Math.min(waitNanos, tokenWaitNanos);
+                    }
+
+                    mCondition.awaitNanos(waitNanos);
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("task interrupted");
+            } finally {
+                state.mWaiters.remove(waiter);
+                --mQueueDepth[priority.ordinal()];
+                // 先頭が入れ替わった可能性があるので、他の待機スレッドを起こす
+                mCondition.signalAll();
+            }
+        } finally {
+            mLock.unlock();
+            if (registration != null) {
+                registration.unregister();
+            }
+        }
+    }
+
+    /**
+     * 待機中のスレッドを起こす
+     */
+    private void wakeUp() {
+        mLock.lock();
+        try {
+            mCondition.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 全ホストで実行許可を待っているリクエスト数を取得する
+     */
+    public int getQueueDepth() {
+        mLock.lock();
+        try {
+            int result = 0;
+            for (int depth : mQueueDepth) {
+                result += depth;
+            }
+            return result;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 指定した優先度で実行許可を待っているリクエスト数を取得する
+     */
+    public int getQueueDepth(ConnectRequest.Priority priority) {
+        mLock.lock();
+        try {
+            return mQueueDepth[priority.ordinal()];
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 指定したホストで実行許可を待っているリクエスト数を取得する
+     */
+    public int getHostQueueDepth(String host) {
+        mLock.lock();
+        try {
+            HostState state = mHosts.get(host);
+            return state != null ? state.mWaiters.size() : 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 指定したホストで実行中のリクエスト数を取得する
+     */
+    public int getHostRunningCount(String host) {
+        mLock.lock();
+        try {
+            HostState state = mHosts.get(host);
+            return state != null ? state.mRunning : 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * URLから制御単位となるホスト名を取得する
+     */
+    public static String getHost(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (Exception e) {
+            return url;
+        }
+    }
+
+    private static class HostState {
+        HostLimit mLimit;
+
+        TokenBucket mBucket;
+
+        final PriorityQueue<Waiter> mWaiters = new PriorityQueue<>();
+
+        int mRunning;
+
+        HostState(HostLimit limit) {
+            setLimit(limit);
+        }
+
+        void setLimit(HostLimit limit) {
+            mLimit = limit;
+            if (limit.mRequestsPerSec > 0) {
+                mBucket = new TokenBucket(limit.mRequestsPerSec, limit.mBurst);
+            } else {
+                mBucket = null;
+            }
+        }
+    }
+
+    private static class Waiter implements Comparable<Waiter> {
+        final ConnectRequest.Priority mPriority;
+
+        final long mSequence;
+
+        Waiter(ConnectRequest.Priority priority, long sequence) {
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Waiter another) {
+            int result = mPriority.compareTo(another.mPriority);
+            if (result != 0) {
+                return result;
+            }
+            return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+    }
+}
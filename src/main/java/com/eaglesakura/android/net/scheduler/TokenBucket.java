@@ -0,0 +1,63 @@
+package com.eaglesakura.android.net.scheduler;
+
+/**
+ * リクエストレートを制限するトークンバケット
+ * <p>
+ * トークンは一定レートで補充され、最大でcapacity個まで蓄えられる。
+ * スレッドセーフではないため、呼び出し側で同期を行う。
+ */
+public class TokenBucket {
+    /**
+     * 蓄えられる最大トークン数
+     */
+    final double mCapacity;
+
+    /**
+     * 1秒あたりに補充されるトークン数
+     */
+    final double mTokensPerSec;
+
+    double mTokens;
+
+    long mLastRefillNanos;
+
+    public TokenBucket(double tokensPerSec, int capacity) {
+        if (tokensPerSec <= 0 || capacity < 1) {
+            throw new IllegalArgumentException();
+        }
+        mTokensPerSec = tokensPerSec;
+        mCapacity = capacity;
+        mTokens = capacity;
+        mLastRefillNanos = System.nanoTime();
+    }
+
+    private void refill(long nowNanos) {
+        double elapsedSec = (double) (nowNanos - mLastRefillNanos) / 1000.0 / 1000.0 / 1000.0;
+        mTokens = Math.min(mCapacity, mTokens + elapsedSec * mTokensPerSec);
+        mLastRefillNanos = nowNanos;
+    }
+
+    /**
+     * トークンを1つ取得する。
+     *
+     * @return 取得できた場合は0, 取得できない場合はトークンが補充されるまでの時間(ns)
+     */
+    public long tryAcquire() {
+        refill(System.nanoTime());
+        if (mTokens >= 1.0) {
+            mTokens -= 1.0;
+            return 0;
+        }
+
+        long waitNanos = (long) ((1.0 - mTokens) / mTokensPerSec * 1000.0 * 1000.0 * 1000.0);
+        return Math.max(1, waitNanos);
+    }
+
+    /**
+     * 現在利用可能なトークン数を取得する
+     */
+    public double getAvailableTokens() {
+        refill(System.nanoTime());
+        return mTokens;
+    }
+}
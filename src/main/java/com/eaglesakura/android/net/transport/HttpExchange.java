@@ -0,0 +1,70 @@
+package com.eaglesakura.android.net.transport;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 1回分のHTTPリクエスト/レスポンスのやり取りを行う
+ * <p>
+ * 呼び出し順は addRequestHeader() -> openRequestBody() -> getResponseCode() -> getInputStream() -> disconnect() となる。
+ */
+public interface HttpExchange {
+    /**
+     * リクエストヘッダを追加する
+     */
+    void addRequestHeader(String key, String value);
+
+    /**
+     * リクエストボディを書き込むためのストリームを開く。
+     * <p>
+     * 書き込み完了後、呼び出し側でcloseする。
+     *
+     * @param length ボディの長さ
+     */
+    OutputStream openRequestBody(long length) throws IOException;
+
+    /**
+     * レスポンスのステータスコードを取得する。
+     * <p>
+     * 必要であれば、この時点でリクエストの送信とレスポンスヘッダの受信を行う。
+     */
+    int getResponseCode() throws IOException;
+
+    /**
+     * レスポンスヘッダを取得する。
+     * <p>
+     * HttpURLConnectionと同じく、ステータス行はnullキーで格納される。
+     */
+    Map<String, List<String>> getResponseHeaders() throws IOException;
+
+    /**
+     * レスポンスボディを読み込むためのストリームを取得する
+     */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * エラーレスポンスのボディを読み込むためのストリームを取得する
+     */
+    @Nullable
+    InputStream getErrorStream() throws IOException;
+
+    /**
+     * 通信を中断する。
+     * <p>
+     * 通信中のスレッドとは別のスレッドから呼び出され、ブロックしている読み書きを即座に失敗させる。
+     * 接続の解放は通信中のスレッドがdisconnect()で行う。
+     */
+    void cancel();
+
+    /**
+     * 通信を終了し、接続を解放する。
+     * <p>
+     * 複数回呼び出されても問題ないようにする。
+     */
+    void disconnect();
+}
@@ -0,0 +1,24 @@
+package com.eaglesakura.android.net.transport;
+
+import com.eaglesakura.android.net.request.ConnectRequest;
+
+import java.io.IOException;
+
+/**
+ * HTTP通信の実装を切り替えるためのインターフェース
+ * <p>
+ * 実装は複数スレッドから同時に呼び出される可能性がある。
+ */
+public interface HttpTransport {
+    /**
+     * リクエストに対応する通信を準備する。
+     * <p>
+     * この時点では実際の送信は行われなくても良い。
+     *
+     * @param request          通信リクエスト
+     * @param url              接続先URL
+     * @param connectTimeoutMs 接続タイムアウト時間
+     * @param readTimeoutMs    読み込みタイムアウト時間
+     */
+    HttpExchange open(ConnectRequest request, String url, long connectTimeoutMs, long readTimeoutMs) throws IOException;
+}
@@ -0,0 +1,81 @@
+package com.eaglesakura.android.net.transport;
+
+import com.eaglesakura.android.net.request.ConnectRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HttpURLConnectionを利用して通信を行う
+ */
+public class UrlConnectionTransport implements HttpTransport {
+
+    @Override
+    public HttpExchange open(ConnectRequest request, String url, long connectTimeoutMs, long readTimeoutMs) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(request.getMethod().toString());
+        connection.setInstanceFollowRedirects(true);
+        connection.setReadTimeout((int) readTimeoutMs);
+        connection.setConnectTimeout((int) connectTimeoutMs);
+        return new UrlConnectionExchange(connection);
+    }
+
+    static class UrlConnectionExchange implements HttpExchange {
+        final HttpURLConnection mConnection;
+
+        UrlConnectionExchange(HttpURLConnection connection) {
+            mConnection = connection;
+        }
+
+        @Override
+        public void addRequestHeader(String key, String value) {
+            mConnection.addRequestProperty(key, value);
+        }
+
+        @Override
+        public OutputStream openRequestBody(long length) throws IOException {
+            mConnection.setDoOutput(true);
+            return mConnection.getOutputStream();
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            return mConnection.getResponseCode();
+        }
+
+        @Override
+        public Map<String, List<String>> getResponseHeaders() throws IOException {
+            return mConnection.getHeaderFields();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mConnection.getInputStream();
+        }
+
+        @Override
+        public InputStream getErrorStream() throws IOException {
+            return mConnection.getErrorStream();
+        }
+
+        @Override
+        public void cancel() {
+            // 別スレッドからのdisconnect()でソケットが閉じられ、ブロック中の読み込みが失敗する
+            disconnect();
+        }
+
+        @Override
+        public void disconnect() {
+            try {
+                mConnection.disconnect();
+            } catch (Exception e) {
+
+            }
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package com.eaglesakura.android.net.transport.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * HTTP/2のヘッダ圧縮 (RFC 7541)
+ * <p>
+ * ヘッダは {名前, 値} の配列として扱う。名前は小文字でなければならない。
+ */
+class Hpack {
+    /**
+     * デフォルトの動的テーブルサイズ
+     */
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    /**
+     * エントリごとに加算されるオーバーヘッド
+     */
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""},
+            {":method", "GET"},
+            {":method", "POST"},
+            {":path", "/"},
+            {":path", "/index.html"},
+            {":scheme", "http"},
+            {":scheme", "https"},
+            {":status", "200"},
+            {":status", "204"},
+            {":status", "206"},
+            {":status", "304"},
+            {":status", "400"},
+            {":status", "404"},
+            {":status", "500"},
+            {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""},
+            {"accept-ranges", ""},
+            {"accept", ""},
+            {"access-control-allow-origin", ""},
+            {"age", ""},
+            {"allow", ""},
+            {"authorization", ""},
+            {"cache-control", ""},
+            {"content-disposition", ""},
+            {"content-encoding", ""},
+            {"content-language", ""},
+            {"content-length", ""},
+            {"content-location", ""},
+            {"content-range", ""},
+            {"content-type", ""},
+            {"cookie", ""},
+            {"date", ""},
+            {"etag", ""},
+            {"expect", ""},
+            {"expires", ""},
+            {"from", ""},
+            {"host", ""},
+            {"if-match", ""},
+            {"if-modified-since", ""},
+            {"if-none-match", ""},
+            {"if-range", ""},
+            {"if-unmodified-since", ""},
+            {"last-modified", ""},
+            {"link", ""},
+            {"location", ""},
+            {"max-forwards", ""},
+            {"proxy-authenticate", ""},
+            {"proxy-authorization", ""},
+            {"range", ""},
+            {"referer", ""},
+            {"refresh", ""},
+            {"retry-after", ""},
+            {"server", ""},
+            {"set-cookie", ""},
+            {"strict-transport-security", ""},
+            {"transfer-encoding", ""},
+            {"user-agent", ""},
+            {"vary", ""},
+            {"via", ""},
+            {"www-authenticate", ""},
+    };
+
+    private static byte[] toBytes(String value) {
+        try {
+            return value.getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toString(byte[] value) {
+        try {
+            return new String(value, "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 動的テーブル
+     * <p>
+     * 新しいエントリが先頭となり、インデックスは静的テーブルの直後から始まる。
+     */
+    static class DynamicTable {
+        final LinkedList<String[]> mEntries = new LinkedList<>();
+
+        int mSize;
+
+        int mMaxSize = DEFAULT_TABLE_SIZE;
+
+        static int sizeOf(String[] entry) {
+            return entry[0].length() + entry[1].length() + ENTRY_OVERHEAD;
+        }
+
+        void setMaxSize(int maxSize) {
+            mMaxSize = maxSize;
+            evict(0);
+        }
+
+        private void evict(int required) {
+            while (!mEntries.isEmpty() && mSize + required > mMaxSize) {
+                mSize -= sizeOf(mEntries.removeLast());
+            }
+        }
+
+        void add(String[] entry) {
+            int size = sizeOf(entry);
+            evict(size);
+            if (size > mMaxSize) {
+                // 入りきらないエントリはテーブルを空にするだけとなる
+                return;
+            }
+            mEntries.addFirst(entry);
+            mSize += size;
+        }
+
+        /**
+         * 1から始まるテーブル全体のインデックスでエントリを取得する
+         */
+        String[] get(int index) throws IOException {
+            if (index <= 0) {
+                throw new IOException("Invalid hpack index :: " + index);
+            } else if (index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1];
+            }
+
+            int dynamicIndex = index - STATIC_TABLE.length - 1;
+            if (dynamicIndex >= mEntries.size()) {
+                throw new IOException("Invalid hpack index :: " + index);
+            }
+            return mEntries.get(dynamicIndex);
+        }
+    }
+
+    /**
+     * ヘッダブロックの符号化を行う
+     * <p>
+     * 符号化した順に送信しなければならないため、呼び出し側で送信と合わせて同期を行う。
+     */
+    static class Encoder {
+        final DynamicTable mTable = new DynamicTable();
+
+        /**
+         * 次のヘッダブロックで通知するテーブルサイズ, 変更が無い場合は-1
+         */
+        int mPendingTableSize = -1;
+
+        /**
+         * 相手が許可した動的テーブルサイズを反映する
+         */
+        void setMaxTableSize(int maxSize) {
+            int size = Math.min(maxSize, DEFAULT_TABLE_SIZE);
+            if (size != mTable.mMaxSize) {
+                mTable.setMaxSize(size);
+                mPendingTableSize = size;
+            }
+        }
+
+        /**
+         * 値を動的テーブルに登録すべきではないヘッダであればtrue
+         */
+        private static boolean isSensitive(String name) {
+            return "authorization".equals(name) || "cookie".equals(name) || "proxy-authorization".equals(name);
+        }
+
+        byte[] encode(List<String[]> headers) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream(256);
+            if (mPendingTableSize >= 0) {
+                writeInteger(os, 0x20, 5, mPendingTableSize);
+                mPendingTableSize = -1;
+            }
+
+            for (String[] header : headers) {
+                final String name = header[0];
+                final String value = header[1];
+
+                int nameIndex = 0;
+                int exactIndex = 0;
+                for (int i = 0; i < STATIC_TABLE.length && exactIndex == 0; ++i) {
+                    if (STATIC_TABLE[i][0].equals(name)) {
+                        if (nameIndex == 0) {
+                            nameIndex = i + 1;
+                        }
+                        if (STATIC_TABLE[i][1].equals(value)) {
+                            exactIndex = i + 1;
+                        }
+                    }
+                }
+                int dynamicIndex = STATIC_TABLE.length + 1;
+                for (String[] entry : mTable.mEntries) {
+                    if (exactIndex != 0) {
+                        break;
+                    }
+                    if (entry[0].equals(name)) {
+                        if (nameIndex == 0) {
+                            nameIndex = dynamicIndex;
+                        }
+                        if (entry[1].equals(value)) {
+                            exactIndex = dynamicIndex;
+                        }
+                    }
+                    ++dynamicIndex;
+                }
+
+                if (exactIndex != 0) {
+                    // Indexed Header Field
+                    writeInteger(os, 0x80, 7, exactIndex);
+                } else if (isSensitive(name)) {
+                    // Literal Header Field Never Indexed
+                    writeInteger(os, 0x10, 4, nameIndex);
+                    if (nameIndex == 0) {
+                        writeString(os, name);
+                    }
+                    writeString(os, value);
+                } else {
+                    // Literal Header Field with Incremental Indexing
+                    writeInteger(os, 0x40, 6, nameIndex);
+                    if (nameIndex == 0) {
+                        writeString(os, name);
+                    }
+                    writeString(os, value);
+                    mTable.add(new String[]{name, value});
+                }
+            }
+            return os.toByteArray();
+        }
+
+        static void writeInteger(ByteArrayOutputStream os, int firstByte, int prefixBits, int value) {
+            final int MAX_PREFIX = (1 << prefixBits) - 1;
+            if (value < MAX_PREFIX) {
+                os.write(firstByte | value);
+                return;
+            }
+
+            os.write(firstByte | MAX_PREFIX);
+            value -= MAX_PREFIX;
+            while (value >= 0x80) {
+                os.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            os.write(value);
+        }
+
+        static void writeString(ByteArrayOutputStream os, String value) {
+            byte[] raw = toBytes(value);
+            if (Huffman.encodedLength(raw) < raw.length) {
+                byte[] encoded = Huffman.encode(raw);
+                writeInteger(os, 0x80, 7, encoded.length);
+                os.write(encoded, 0, encoded.length);
+            } else {
+                writeInteger(os, 0x00, 7, raw.length);
+                os.write(raw, 0, raw.length);
+            }
+        }
+    }
+
+    /**
+     * ヘッダブロックの復号を行う
+     * <p>
+     * 受信した順に復号しなければならない。
+     */
+    static class Decoder {
+        final DynamicTable mTable = new DynamicTable();
+
+        /**
+         * 自身が許可している動的テーブルの最大サイズ
+         */
+        final int mMaxTableSize;
+
+        Decoder(int maxTableSize) {
+            mMaxTableSize = maxTableSize;
+            mTable.setMaxSize(maxTableSize);
+        }
+
+        List<String[]> decode(byte[] block) throws IOException {
+            List<String[]> result = new ArrayList<>();
+            int[] position = {0};
+            while (position[0] < block.length) {
+                final int b = block[position[0]] & 0xFF;
+                if ((b & 0x80) != 0) {
+                    // Indexed Header Field
+                    result.add(mTable.get(readInteger(block, position, 7)));
+                } else if ((b & 0xC0) == 0x40) {
+                    // Literal Header Field with Incremental Indexing
+                    String[] header = readLiteral(block, position, 6);
+                    mTable.add(header);
+                    result.add(header);
+                } else if ((b & 0xE0) == 0x20) {
+                    // Dynamic Table Size Update
+                    int size = readInteger(block, position, 5);
+                    if (size > mMaxTableSize) {
+                        throw new IOException("Invalid hpack table size :: " + size);
+                    }
+                    mTable.setMaxSize(size);
+                } else {
+                    // Literal Header Field without Indexing / Never Indexed
+                    result.add(readLiteral(block, position, 4));
+                }
+            }
+            return result;
+        }
+
+        private String[] readLiteral(byte[] block, int[] position, int prefixBits) throws IOException {
+            int nameIndex = readInteger(block, position, prefixBits);
+            String name = (nameIndex == 0) ? readString(block, position) : mTable.get(nameIndex)[0];
+            String value = readString(block, position);
+            return new String[]{name, value};
+        }
+
+        static int readInteger(byte[] block, int[] position, int prefixBits) throws IOException {
+            final int MAX_PREFIX = (1 << prefixBits) - 1;
+            int value = block[position[0]++] & MAX_PREFIX;
+            if (value < MAX_PREFIX) {
+                return value;
+            }
+
+            int shift = 0;
+            while (true) {
+                if (position[0] >= block.length || shift > 28) {
+                    throw new IOException("Invalid hpack integer");
+                }
+                int b = block[position[0]++] & 0xFF;
+                value += (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    if (value < 0) {
+                        throw new IOException("Invalid hpack integer");
+                    }
+                    return value;
+                }
+                shift += 7;
+            }
+        }
+
+        static String readString(byte[] block, int[] position) throws IOException {
+            if (position[0] >= block.length) {
+                throw new IOException("Invalid hpack string");
+            }
+            boolean huffman = (block[position[0]] & 0x80) != 0;
+            int length = readInteger(block, position, 7);
+            if (position[0] + length > block.length) {
+                throw new IOException("Invalid hpack string length");
+            }
+
+            final int offset = position[0];
+            position[0] += length;
+            if (huffman) {
+                return Hpack.toString(Huffman.decode(block, offset, length));
+            } else {
+                byte[] raw = new byte[length];
+                System.arraycopy(block, offset, raw, 0, length);
+                return Hpack.toString(raw);
+            }
+        }
+    }
+}
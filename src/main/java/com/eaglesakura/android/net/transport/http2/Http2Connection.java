@@ -0,0 +1,844 @@
+package com.eaglesakura.android.net.transport.http2;
+
+import com.eaglesakura.util.IOUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1本のTCP接続上でHTTP/2のストリームを多重化する
+ * <p>
+ * TLSを利用しないh2c(prior knowledge)のみに対応する。
+ * フレームの受信は専用スレッドで行い、各ストリームのバッファへ振り分ける。
+ * 状態の変更はこのオブジェクトで同期し、フレームの送信はmWriteLockで同期する。
+ */
+class Http2Connection {
+    static final byte[] CONNECTION_PREFACE = {
+            'P', 'R', 'I', ' ', '*', ' ', 'H', 'T', 'T', 'P', '/', '2', '.', '0', '\r', '\n',
+            '\r', '\n',
+            'S', 'M', '\r', '\n',
+            '\r', '\n',
+    };
+
+    static final int TYPE_DATA = 0x0;
+    static final int TYPE_HEADERS = 0x1;
+    static final int TYPE_PRIORITY = 0x2;
+    static final int TYPE_RST_STREAM = 0x3;
+    static final int TYPE_SETTINGS = 0x4;
+    static final int TYPE_PUSH_PROMISE = 0x5;
+    static final int TYPE_PING = 0x6;
+    static final int TYPE_GOAWAY = 0x7;
+    static final int TYPE_WINDOW_UPDATE = 0x8;
+    static final int TYPE_CONTINUATION = 0x9;
+
+    static final int FLAG_END_STREAM = 0x1;
+    static final int FLAG_ACK = 0x1;
+    static final int FLAG_END_HEADERS = 0x4;
+    static final int FLAG_PADDED = 0x8;
+    static final int FLAG_PRIORITY = 0x20;
+
+    static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    static final int SETTINGS_ENABLE_PUSH = 0x2;
+    static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    static final int ERROR_NO_ERROR = 0x0;
+    static final int ERROR_PROTOCOL_ERROR = 0x1;
+    static final int ERROR_FLOW_CONTROL_ERROR = 0x3;
+    static final int ERROR_REFUSED_STREAM = 0x7;
+    static final int ERROR_CANCEL = 0x8;
+
+    /**
+     * プロトコルで定められたウィンドウサイズの初期値
+     */
+    static final int DEFAULT_WINDOW_SIZE = 65535;
+
+    /**
+     * プロトコルで定められたフレームサイズの初期値
+     */
+    static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+
+    /**
+     * 自身が受け入れるストリームごとの受信ウィンドウ
+     */
+    static final int STREAM_WINDOW_SIZE = 1024 * 1024;
+
+    /**
+     * 自身が受け入れる接続全体の受信ウィンドウ
+     */
+    static final int CONNECTION_WINDOW_SIZE = 1024 * 1024 * 16;
+
+    private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+
+    final String mHost;
+
+    final int mPort;
+
+    private final Socket mSocket;
+
+    private final DataInputStream mInput;
+
+    private final OutputStream mOutput;
+
+    /**
+     * フレーム送信の同期を行う
+     * <p>
+     * HPACKの符号化は送信順と一致させる必要があるため、Encoderもこのロックで保護する。
+     */
+    private final Object mWriteLock = new Object();
+
+    private final Hpack.Encoder mEncoder = new Hpack.Encoder();
+
+    private final Hpack.Decoder mDecoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+
+    private final Map<Integer, Http2Stream> mStreams = new HashMap<>();
+
+    private int mNextStreamId = 1;
+
+    /**
+     * ストリームIDの割り当てを待っている数
+     */
+    private int mReservedStreams;
+
+    private int mPeerMaxConcurrentStreams = Integer.MAX_VALUE;
+
+    private int mPeerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+
+    private int mPeerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+    /**
+     * 接続全体の送信ウィンドウ
+     */
+    private long mSendWindow = DEFAULT_WINDOW_SIZE;
+
+    /**
+     * 消費したがWINDOW_UPDATEを送っていない受信バイト数
+     */
+    private long mUnacknowledgedBytes;
+
+    /**
+     * GOAWAYを受信、もしくは接続に失敗した場合true
+     */
+    private boolean mShutdown;
+
+    /**
+     * 接続が失敗した理由
+     */
+    private IOException mFailure;
+
+    private long mStreamCount;
+
+    private Http2Connection(String host, int port, Socket socket) throws IOException {
+        mHost = host;
+        mPort = port;
+        mSocket = socket;
+        mInput = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1024 * 16));
+        mOutput = new BufferedOutputStream(socket.getOutputStream(), 1024 * 16);
+    }
+
+    /**
+     * 接続を開き、コネクションプリフェイスを送信する
+     */
+    static Http2Connection open(String host, int port, long connectTimeoutMs) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), (int) Math.min(Integer.MAX_VALUE, Math.max(connectTimeoutMs, 0)));
+            Http2Connection connection = new Http2Connection(host, port, socket);
+            connection.start();
+            return connection;
+        } catch (IOException e) {
+            IOUtil.close(socket);
+            throw e;
+        }
+    }
+
+    private void start() throws IOException {
+        synchronized (mWriteLock) {
+            mOutput.write(CONNECTION_PREFACE);
+
+            byte[] settings = new byte[12];
+            putSetting(settings, 0, SETTINGS_ENABLE_PUSH, 0);
+            putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW_SIZE);
+            writeFrame(TYPE_SETTINGS, 0, 0, settings, 0, settings.length);
+            writeWindowUpdate(0, CONNECTION_WINDOW_SIZE - DEFAULT_WINDOW_SIZE);
+            mOutput.flush();
+        }
+
+        Thread thread = new Thread(this::readLoop, "Http2Connection-" + mHost + ":" + mPort);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void putSetting(byte[] buffer, int offset, int id, int value) {
+        buffer[offset] = (byte) (id >>> 8);
+        buffer[offset + 1] = (byte) id;
+        putInt(buffer, offset + 2, value);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xFF) << 24)
+                | ((buffer[offset + 1] & 0xFF) << 16)
+                | ((buffer[offset + 2] & 0xFF) << 8)
+                | (buffer[offset + 3] & 0xFF);
+    }
+
+    /**
+     * 新しいストリームを割り当てられる状態であればtrue
+     */
+    synchronized boolean isUsable() {
+        return !mShutdown;
+    }
+
+    /**
+     * これまでに開いたストリーム数を取得する
+     */
+    synchronized long getStreamCount() {
+        return mStreamCount;
+    }
+
+    /**
+     * 現在開いているストリーム数を取得する
+     */
+    synchronized int getOpenStreamCount() {
+        return mStreams.size();
+    }
+
+    /**
+     * ストリームを開き、リクエストヘッダを送信する。
+     * <p>
+     * 相手の同時ストリーム数の上限に達している場合、空きができるまで待つ。
+     *
+     * @param headers   擬似ヘッダを含むリクエストヘッダ
+     * @param endStream リクエストボディが無い場合true
+     * @param timeoutMs 空きを待つ最大時間
+     */
+    Http2Stream newStream(List<String[]> headers, boolean endStream, long timeoutMs) throws IOException {
+        synchronized (this) {
+            final long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            while (true) {
+                checkUsable();
+                if (mStreams.size() + mReservedStreams < mPeerMaxConcurrentStreams) {
+                    ++mReservedStreams;
+                    break;
+                }
+                awaitUntil(deadlineNanos, timeoutMs > 0);
+            }
+        }
+
+        Http2Stream stream = null;
+        try {
+            synchronized (mWriteLock) {
+                synchronized (this) {
+                    checkUsable();
+                    if (mNextStreamId < 0) {
+                        // IDを使い切ったので、以降は新しい接続を利用させる
+                        mShutdown = true;
+                        throw new Http2Stream.RefusedStreamException("stream id exhausted :: " + mHost);
+                    }
+                    stream = new Http2Stream(this, mNextStreamId, mPeerInitialWindowSize);
+                    mNextStreamId += 2;
+                    mStreams.put(stream.mId, stream);
+                    ++mStreamCount;
+                    if (endStream) {
+                        stream.mLocalClosed = true;
+                    }
+                }
+                writeHeaders(stream.mId, mEncoder.encode(headers), endStream);
+                mOutput.flush();
+            }
+            return stream;
+        } catch (IOException e) {
+            if (stream != null) {
+                failConnection(e);
+            }
+            throw e;
+        } finally {
+            synchronized (this) {
+                --mReservedStreams;
+                notifyAll();
+            }
+        }
+    }
+
+    private void checkUsable() throws IOException {
+        if (mFailure != null) {
+            throw new IOException("connection failed :: " + mHost, mFailure);
+        } else if (mShutdown) {
+            throw new Http2Stream.RefusedStreamException("connection shutdown :: " + mHost);
+        }
+    }
+
+    /**
+     * 状態の変化を待つ
+     *
+     * @param deadlineNanos 待機期限
+     * @param hasDeadline   期限が有効な場合true
+     */
+    void awaitUntil(long deadlineNanos, boolean hasDeadline) throws IOException {
+        try {
+            if (hasDeadline) {
+                long waitNanos = deadlineNanos - System.nanoTime();
+                if (waitNanos <= 0) {
+                    throw new SocketTimeoutException("timed out :: " + mHost + ":" + mPort);
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+            } else {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted :: " + mHost);
+        }
+    }
+
+    private void writeHeaders(int streamId, byte[] block, boolean endStream) throws IOException {
+        int offset = 0;
+        int type = TYPE_HEADERS;
+        do {
+            int length = Math.min(block.length - offset, mPeerMaxFrameSize);
+            int flags = (offset + length == block.length) ? FLAG_END_HEADERS : 0;
+            if (type == TYPE_HEADERS && endStream) {
+                flags |= FLAG_END_STREAM;
+            }
+            writeFrame(type, flags, streamId, block, offset, length);
+            offset += length;
+            type = TYPE_CONTINUATION;
+        } while (offset < block.length);
+    }
+
+    /**
+     * mWriteLockを保持した状態で呼び出す
+     */
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length) throws IOException {
+        byte[] header = new byte[9];
+        header[0] = (byte) (length >>> 16);
+        header[1] = (byte) (length >>> 8);
+        header[2] = (byte) length;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        putInt(header, 5, streamId & 0x7FFFFFFF);
+        mOutput.write(header);
+        if (length > 0) {
+            mOutput.write(payload, offset, length);
+        }
+    }
+
+    private void writeWindowUpdate(int streamId, long increment) throws IOException {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, (int) increment);
+        writeFrame(TYPE_WINDOW_UPDATE, 0, streamId, payload, 0, payload.length);
+    }
+
+    /**
+     * 制御フレームを送信する
+     */
+    private void sendFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+        synchronized (mWriteLock) {
+            writeFrame(type, flags, streamId, payload, 0, payload.length);
+            mOutput.flush();
+        }
+    }
+
+    /**
+     * ストリームのデータを送信する。
+     * <p>
+     * 送信ウィンドウが足りない場合、相手からのWINDOW_UPDATEを待つ。
+     */
+    void writeData(Http2Stream stream, byte[] buffer, int offset, int length, boolean endStream, long timeoutMs) throws IOException {
+        do {
+            int sendLength;
+            synchronized (this) {
+                final long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+                while (length > 0 && (mSendWindow <= 0 || stream.mSendWindow <= 0)) {
+                    checkUsable();
+                    stream.checkWritable();
+                    awaitUntil(deadlineNanos, timeoutMs > 0);
+                }
+                stream.checkWritable();
+                sendLength = (length == 0) ? 0 : (int) Math.min(Math.min(length, mPeerMaxFrameSize), Math.min(mSendWindow, stream.mSendWindow));
+                mSendWindow -= sendLength;
+                stream.mSendWindow -= sendLength;
+                if (endStream && sendLength == length) {
+                    stream.mLocalClosed = true;
+                }
+            }
+
+            final boolean last = endStream && sendLength == length;
+            synchronized (mWriteLock) {
+                writeFrame(TYPE_DATA, last ? FLAG_END_STREAM : 0, stream.mId, buffer, offset, sendLength);
+                mOutput.flush();
+            }
+            offset += sendLength;
+            length -= sendLength;
+        } while (length > 0);
+        removeIfClosed(stream);
+    }
+
+    /**
+     * ストリームを中断する
+     */
+    void resetStream(Http2Stream stream, int errorCode) {
+        synchronized (this) {
+            if (mStreams.get(stream.mId) != stream) {
+                // 送受信を終えたストリームなので、読み残しのみ破棄する
+                mUnacknowledgedBytes += stream.discardBuffer();
+                return;
+            }
+            releaseStream(stream);
+        }
+
+        byte[] payload = new byte[4];
+        putInt(payload, 0, errorCode);
+        try {
+            sendFrame(TYPE_RST_STREAM, 0, stream.mId, payload);
+        } catch (IOException e) {
+            failConnection(e);
+        }
+    }
+
+    /**
+     * 受信データを消費したことを通知し、必要であればWINDOW_UPDATEを送信する
+     */
+    void onDataConsumed(Http2Stream stream, int length) {
+        long streamIncrement = 0;
+        long connectionIncrement = 0;
+        synchronized (this) {
+            mUnacknowledgedBytes += length;
+            if (mUnacknowledgedBytes >= CONNECTION_WINDOW_SIZE / 2) {
+                connectionIncrement = mUnacknowledgedBytes;
+                mUnacknowledgedBytes = 0;
+            }
+            if (stream != null && !stream.mRemoteClosed && mStreams.get(stream.mId) == stream) {
+                stream.mUnacknowledgedBytes += length;
+                if (stream.mUnacknowledgedBytes >= STREAM_WINDOW_SIZE / 2) {
+                    streamIncrement = stream.mUnacknowledgedBytes;
+                    stream.mUnacknowledgedBytes = 0;
+                }
+            }
+        }
+
+        if (streamIncrement == 0 && connectionIncrement == 0) {
+            return;
+        }
+        try {
+            synchronized (mWriteLock) {
+                if (connectionIncrement > 0) {
+                    writeWindowUpdate(0, connectionIncrement);
+                }
+                if (streamIncrement > 0) {
+                    writeWindowUpdate(stream.mId, streamIncrement);
+                }
+                mOutput.flush();
+            }
+        } catch (IOException e) {
+            failConnection(e);
+        }
+    }
+
+    /**
+     * 送受信が共に完了したストリームを取り除く
+     */
+    void removeIfClosed(Http2Stream stream) {
+        boolean idle;
+        synchronized (this) {
+            if (stream.mLocalClosed && stream.mRemoteClosed && mStreams.get(stream.mId) == stream) {
+                mStreams.remove(stream.mId);
+                notifyAll();
+            }
+            idle = mShutdown && mFailure == null && mStreams.isEmpty() && mReservedStreams == 0;
+        }
+
+        if (idle) {
+            // 新しいストリームを受け付けない接続は、最後のストリームが閉じた時点で閉じる
+            failConnection(new IOException("connection closed :: " + mHost));
+        }
+    }
+
+    /**
+     * ストリームを取り除き、読み残しのデータを接続全体のウィンドウへ戻す。
+     * <p>
+     * このオブジェクトで同期した状態で呼び出す。
+     */
+    private void releaseStream(Http2Stream stream) {
+        mStreams.remove(stream.mId);
+        stream.mLocalClosed = true;
+        mUnacknowledgedBytes += stream.discardBuffer();
+        notifyAll();
+    }
+
+    /**
+     * 接続を閉じ、全てのストリームを失敗させる
+     */
+    void failConnection(IOException failure) {
+        synchronized (this) {
+            if (mFailure == null) {
+                mFailure = failure;
+            }
+            mShutdown = true;
+            for (Http2Stream stream : new ArrayList<>(mStreams.values())) {
+                stream.fail(new IOException("connection failed :: " + mHost, failure));
+            }
+            mStreams.clear();
+            notifyAll();
+        }
+        IOUtil.close(mSocket);
+    }
+
+    /**
+     * 新しいストリームの受付を終了し、開いているストリームが無ければ接続を閉じる
+     */
+    void shutdown() {
+        boolean idle;
+        synchronized (this) {
+            mShutdown = true;
+            idle = mStreams.isEmpty() && mReservedStreams == 0;
+            notifyAll();
+        }
+
+        if (idle) {
+            byte[] payload = new byte[8];
+            putInt(payload, 4, ERROR_NO_ERROR);
+            try {
+                sendFrame(TYPE_GOAWAY, 0, 0, payload);
+            } catch (IOException e) {
+                // 閉じるだけなので問題ない
+            }
+            failConnection(new IOException("connection closed :: " + mHost));
+        }
+    }
+
+    /**
+     * フレームを受信し続ける
+     */
+    private void readLoop() {
+        try {
+            while (true) {
+                readFrame();
+            }
+        } catch (ProtocolException e) {
+            byte[] payload = new byte[8];
+            synchronized (this) {
+                putInt(payload, 0, mNextStreamId);
+            }
+            putInt(payload, 4, ERROR_PROTOCOL_ERROR);
+            try {
+                sendFrame(TYPE_GOAWAY, 0, 0, payload);
+            } catch (IOException sendError) {
+                // 接続を閉じるので問題ない
+            }
+            failConnection(e);
+        } catch (IOException e) {
+            failConnection(e);
+        } catch (RuntimeException e) {
+            failConnection(new IOException(e));
+        }
+    }
+
+    /**
+     * HEADERSに続くCONTINUATIONを待っているストリーム, 待っていない場合は0
+     */
+    private int mHeaderStreamId;
+
+    private boolean mHeaderEndStream;
+
+    private final ByteArrayOutputStream mHeaderBlock = new ByteArrayOutputStream();
+
+    private void readFrame() throws IOException {
+        byte[] header = new byte[9];
+        mInput.readFully(header);
+        final int length = ((header[0] & 0xFF) << 16) | ((header[1] & 0xFF) << 8) | (header[2] & 0xFF);
+        final int type = header[3] & 0xFF;
+        final int flags = header[4] & 0xFF;
+        final int streamId = getInt(header, 5) & 0x7FFFFFFF;
+        if (length > DEFAULT_MAX_FRAME_SIZE) {
+            throw new ProtocolException("frame too large :: " + length);
+        }
+        byte[] payload = new byte[length];
+        mInput.readFully(payload);
+
+        if (mHeaderStreamId != 0 && (type != TYPE_CONTINUATION || streamId != mHeaderStreamId)) {
+            throw new ProtocolException("expected CONTINUATION :: " + mHeaderStreamId);
+        }
+
+        switch (type) {
+            case TYPE_DATA:
+                onDataFrame(streamId, flags, payload);
+                break;
+            case TYPE_HEADERS:
+                onHeadersFrame(streamId, flags, payload);
+                break;
+            case TYPE_CONTINUATION:
+                if (mHeaderStreamId == 0) {
+                    throw new ProtocolException("unexpected CONTINUATION :: " + streamId);
+                }
+                mHeaderBlock.write(payload, 0, payload.length);
+                if ((flags & FLAG_END_HEADERS) != 0) {
+                    onHeaderBlock();
+                }
+                break;
+            case TYPE_RST_STREAM:
+                onResetFrame(streamId, payload);
+                break;
+            case TYPE_SETTINGS:
+                onSettingsFrame(flags, payload);
+                break;
+            case TYPE_PUSH_PROMISE:
+                // SETTINGS_ENABLE_PUSH=0を通知しているため、受け付けない
+                throw new ProtocolException("unexpected PUSH_PROMISE");
+            case TYPE_PING:
+                if ((flags & FLAG_ACK) == 0) {
+                    sendFrame(TYPE_PING, FLAG_ACK, 0, payload);
+                }
+                break;
+            case TYPE_GOAWAY:
+                onGoAwayFrame(payload);
+                break;
+            case TYPE_WINDOW_UPDATE:
+                onWindowUpdateFrame(streamId, payload);
+                break;
+            default:
+                // PRIORITYや未知のフレームは無視する
+                break;
+        }
+    }
+
+    private void onDataFrame(int streamId, int flags, byte[] payload) throws IOException {
+        int offset = 0;
+        int padding = 0;
+        if ((flags & FLAG_PADDED) != 0) {
+            if (payload.length == 0) {
+                throw new ProtocolException("invalid padding");
+            }
+            padding = payload[0] & 0xFF;
+            offset = 1;
+        }
+        final int dataLength = payload.length - offset - padding;
+        if (dataLength < 0) {
+            throw new ProtocolException("invalid padding");
+        }
+
+        Http2Stream stream;
+        synchronized (this) {
+            stream = mStreams.get(streamId);
+            if (stream != null) {
+                stream.onData(payload, offset, dataLength);
+                if ((flags & FLAG_END_STREAM) != 0) {
+                    stream.mRemoteClosed = true;
+                }
+                notifyAll();
+            }
+        }
+
+        if (stream == null) {
+            // 既に閉じたストリームのデータは読み捨てる
+            onDataConsumed(null, payload.length);
+        } else {
+            if (payload.length > dataLength) {
+                onDataConsumed(stream, payload.length - dataLength);
+            }
+            removeIfClosed(stream);
+        }
+    }
+
+    private void onHeadersFrame(int streamId, int flags, byte[] payload) throws IOException {
+        int offset = 0;
+        int padding = 0;
+        if ((flags & FLAG_PADDED) != 0) {
+            if (payload.length == 0) {
+                throw new ProtocolException("invalid padding");
+            }
+            padding = payload[0] & 0xFF;
+            offset = 1;
+        }
+        if ((flags & FLAG_PRIORITY) != 0) {
+            offset += 5;
+        }
+        final int blockLength = payload.length - offset - padding;
+        if (blockLength < 0 || streamId == 0) {
+            throw new ProtocolException("invalid HEADERS");
+        }
+
+        mHeaderStreamId = streamId;
+        mHeaderEndStream = (flags & FLAG_END_STREAM) != 0;
+        mHeaderBlock.reset();
+        mHeaderBlock.write(payload, offset, blockLength);
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            onHeaderBlock();
+        }
+    }
+
+    private void onHeaderBlock() throws IOException {
+        final int streamId = mHeaderStreamId;
+        mHeaderStreamId = 0;
+
+        // 動的テーブルを同期させるため、閉じたストリームのヘッダも復号する
+        List<String[]> headers;
+        try {
+            headers = mDecoder.decode(mHeaderBlock.toByteArray());
+        } catch (IOException e) {
+            throw new ProtocolException("hpack decode failed :: " + e.getMessage());
+        }
+
+        Http2Stream stream;
+        synchronized (this) {
+            stream = mStreams.get(streamId);
+            if (stream == null) {
+                return;
+            }
+            stream.onHeaders(headers);
+            if (mHeaderEndStream) {
+                stream.mRemoteClosed = true;
+            }
+            notifyAll();
+        }
+        removeIfClosed(stream);
+    }
+
+    private void onResetFrame(int streamId, byte[] payload) throws IOException {
+        if (payload.length != 4) {
+            throw new ProtocolException("invalid RST_STREAM");
+        }
+        final int errorCode = getInt(payload, 0);
+        synchronized (this) {
+            Http2Stream stream = mStreams.get(streamId);
+            if (stream == null) {
+                return;
+            }
+            releaseStream(stream);
+            if (errorCode == ERROR_REFUSED_STREAM) {
+                stream.fail(new Http2Stream.RefusedStreamException("stream refused :: " + mHost));
+            } else {
+                stream.fail(new IOException("stream reset :: " + mHost + " code=" + errorCode));
+            }
+        }
+    }
+
+    private void onSettingsFrame(int flags, byte[] payload) throws IOException {
+        if ((flags & FLAG_ACK) != 0) {
+            return;
+        }
+        if (payload.length % 6 != 0) {
+            throw new ProtocolException("invalid SETTINGS");
+        }
+
+        for (int i = 0; i < payload.length; i += 6) {
+            final int id = ((payload[i] & 0xFF) << 8) | (payload[i + 1] & 0xFF);
+            final int value = getInt(payload, i + 2);
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    synchronized (mWriteLock) {
+                        mEncoder.setMaxTableSize(value);
+                    }
+                    break;
+                case SETTINGS_MAX_CONCURRENT_STREAMS:
+                    synchronized (this) {
+                        mPeerMaxConcurrentStreams = value;
+                        notifyAll();
+                    }
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value < 0) {
+                        throw new ProtocolException("invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                    }
+                    synchronized (this) {
+                        // 開いているストリームの送信ウィンドウも差分だけ変化する
+                        long delta = (long) value - mPeerInitialWindowSize;
+                        mPeerInitialWindowSize = value;
+                        for (Http2Stream stream : mStreams.values()) {
+                            stream.mSendWindow += delta;
+                        }
+                        notifyAll();
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < DEFAULT_MAX_FRAME_SIZE || value > 0xFFFFFF) {
+                        throw new ProtocolException("invalid SETTINGS_MAX_FRAME_SIZE");
+                    }
+                    synchronized (this) {
+                        mPeerMaxFrameSize = value;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        sendFrame(TYPE_SETTINGS, FLAG_ACK, 0, new byte[0]);
+    }
+
+    private void onGoAwayFrame(byte[] payload) throws IOException {
+        if (payload.length < 8) {
+            throw new ProtocolException("invalid GOAWAY");
+        }
+        final int lastStreamId = getInt(payload, 0) & 0x7FFFFFFF;
+        boolean idle;
+        synchronized (this) {
+            mShutdown = true;
+            // 処理されなかったストリームは別の接続で再試行できる
+            for (Http2Stream stream : new ArrayList<>(mStreams.values())) {
+                if (stream.mId > lastStreamId) {
+                    releaseStream(stream);
+                    stream.fail(new Http2Stream.RefusedStreamException("connection shutdown :: " + mHost));
+                }
+            }
+            idle = mStreams.isEmpty() && mReservedStreams == 0;
+            notifyAll();
+        }
+        if (idle) {
+            failConnection(new IOException("connection closed by GOAWAY :: " + mHost));
+        }
+    }
+
+    private void onWindowUpdateFrame(int streamId, byte[] payload) throws IOException {
+        if (payload.length != 4) {
+            throw new ProtocolException("invalid WINDOW_UPDATE");
+        }
+        final int increment = getInt(payload, 0) & 0x7FFFFFFF;
+        Http2Stream overflow = null;
+        synchronized (this) {
+            if (streamId == 0) {
+                if (increment == 0 || mSendWindow + increment > MAX_WINDOW_SIZE) {
+                    throw new ProtocolException("invalid WINDOW_UPDATE");
+                }
+                mSendWindow += increment;
+            } else {
+                Http2Stream stream = mStreams.get(streamId);
+                if (stream == null) {
+                    return;
+                }
+                if (increment == 0 || stream.mSendWindow + increment > MAX_WINDOW_SIZE) {
+                    overflow = stream;
+                } else {
+                    stream.mSendWindow += increment;
+                }
+            }
+            notifyAll();
+        }
+
+        if (overflow != null) {
+            overflow.fail(new ProtocolException("invalid WINDOW_UPDATE :: " + streamId));
+            resetStream(overflow, ERROR_FLOW_CONTROL_ERROR);
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package com.eaglesakura.android.net.transport.http2;
+
+import com.eaglesakura.android.net.HttpHeader;
+import com.eaglesakura.android.net.request.ConnectRequest;
+import com.eaglesakura.android.net.transport.HttpExchange;
+import com.eaglesakura.util.StringUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Http2Stream上でリクエスト/レスポンスを処理する
+ */
+class Http2Exchange implements HttpExchange {
+    /**
+     * 追従する最大リダイレクト回数
+     */
+    private static final int MAX_REDIRECTS = 5;
+
+    /**
+     * 拒否されたストリームを再試行する最大回数
+     */
+    private static final int MAX_REFUSED_RETRY = 2;
+
+    /**
+     * HTTP/2では送信できない接続固有のヘッダ
+     */
+    private static final String[] CONNECTION_SPECIFIC_HEADERS = {
+            "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade", "host",
+    };
+
+    /**
+     * HttpHeaderで参照される、大文字小文字が一般的な表記と異なるヘッダ
+     */
+    private static final String[] KNOWN_HEADERS = {
+            HttpHeader.HEADER_ETAG,
+    };
+
+    final Http2Transport mTransport;
+
+    final ConnectRequest.Method mMethod;
+
+    final long mConnectTimeoutMs;
+
+    final long mReadTimeoutMs;
+
+    final List<String[]> mRequestHeaders = new ArrayList<>();
+
+    URL mUrl;
+
+    volatile Http2Stream mStream;
+
+    /**
+     * cancel()が呼び出されたらtrue
+     */
+    volatile boolean mCanceled;
+
+    /**
+     * リクエストボディを送信したらtrue
+     */
+    boolean mHasRequestBody;
+
+    int mRefusedCount;
+
+    int mResponseCode = -1;
+
+    Map<String, List<String>> mResponseHeaders;
+
+    ResponseBodyStream mResponseBody;
+
+    Http2Exchange(Http2Transport transport, ConnectRequest.Method method, URL url, long connectTimeoutMs, long readTimeoutMs) {
+        mTransport = transport;
+        mMethod = method;
+        mUrl = url;
+        mConnectTimeoutMs = connectTimeoutMs;
+        mReadTimeoutMs = readTimeoutMs;
+    }
+
+    static int getPort(URL url) {
+        return url.getPort() > 0 ? url.getPort() : url.getDefaultPort();
+    }
+
+    @Override
+    public void addRequestHeader(String key, String value) {
+        mRequestHeaders.add(new String[]{key, value});
+    }
+
+    /**
+     * 擬似ヘッダを含むHTTP/2のリクエストヘッダを生成する
+     */
+    private List<String[]> newRequestHeaders() {
+        String path = mUrl.getFile();
+        if (StringUtil.isEmpty(path)) {
+            path = "/";
+        }
+        String authority = mUrl.getHost();
+        if (mUrl.getPort() > 0 && mUrl.getPort() != mUrl.getDefaultPort()) {
+            authority += ":" + mUrl.getPort();
+        }
+
+        List<String[]> result = new ArrayList<>();
+        result.add(new String[]{":method", mMethod.toString()});
+        result.add(new String[]{":scheme", mUrl.getProtocol()});
+        result.add(new String[]{":authority", authority});
+        result.add(new String[]{":path", path});
+        for (String[] header : mRequestHeaders) {
+            String name = header[0].toLowerCase(Locale.US);
+            if (isConnectionSpecific(name) || ("te".equals(name) && !"trailers".equalsIgnoreCase(header[1]))) {
+                continue;
+            }
+            result.add(new String[]{name, header[1]});
+        }
+        return result;
+    }
+
+    private static boolean isConnectionSpecific(String name) {
+        for (String header : CONNECTION_SPECIFIC_HEADERS) {
+            if (header.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * ストリームを開き、リクエストヘッダを送信する
+     */
+    private void openStream(boolean endStream) throws IOException {
+        while (true) {
+            if (mCanceled) {
+                throw new IOException("exchange canceled :: " + mUrl);
+            }
+            Http2Connection connection = mTransport.getConnection(mUrl.getHost(), getPort(mUrl), mConnectTimeoutMs);
+            try {
+                mStream = connection.newStream(newRequestHeaders(), endStream, mConnectTimeoutMs);
+                if (mCanceled) {
+                    mStream.cancel();
+                }
+                return;
+            } catch (Http2Stream.RefusedStreamException e) {
+                // 接続がGOAWAYを受信していたので、新しい接続でやり直す
+                if (++mRefusedCount > MAX_REFUSED_RETRY) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    @Override
+    public OutputStream openRequestBody(long length) throws IOException {
+        if (mStream != null) {
+            throw new ProtocolException("request already sent");
+        }
+
+        openStream(false);
+        mHasRequestBody = true;
+        final Http2Stream stream = mStream;
+        return new OutputStream() {
+            boolean mClosed;
+
+            @Override
+            public void write(int oneByte) throws IOException {
+                write(new byte[]{(byte) oneByte}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int count) throws IOException {
+                stream.write(buffer, offset, count, false, mReadTimeoutMs);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!mClosed) {
+                    mClosed = true;
+                    stream.write(new byte[0], 0, 0, true, mReadTimeoutMs);
+                }
+            }
+        };
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        if (mResponseCode >= 0) {
+            return mResponseCode;
+        }
+
+        int redirects = 0;
+        while (true) {
+            if (mStream == null) {
+                openStream(true);
+            }
+
+            List<String[]> headers;
+            try {
+                headers = mStream.awaitHeaders(mReadTimeoutMs);
+            } catch (Http2Stream.RefusedStreamException e) {
+                // 処理されていないリクエストなので、ボディが無ければ再送できる
+                if (mHasRequestBody || ++mRefusedCount > MAX_REFUSED_RETRY) {
+                    throw e;
+                }
+                mStream = null;
+                continue;
+            }
+            readResponseHeaders(headers);
+
+            // ボディを持たないリクエストであればリダイレクトに追従する
+            String location = getHeaderValue("location");
+            if (!mHasRequestBody && isRedirect(mResponseCode) && !StringUtil.isEmpty(location) && redirects < MAX_REDIRECTS) {
+                URL next = new URL(mUrl, location);
+                if (!"http".equals(next.getProtocol())) {
+                    throw new ProtocolException("Unsupported redirect :: " + next);
+                }
+                ++redirects;
+                mStream.cancel();
+                mStream = null;
+                mUrl = next;
+                mResponseCode = -1;
+                mResponseHeaders = null;
+                continue;
+            }
+
+            mResponseBody = new ResponseBodyStream(mStream);
+            return mResponseCode;
+        }
+    }
+
+    private static boolean isRedirect(int code) {
+        return code == 301 || code == 302 || code == 303 || code == 307 || code == 308;
+    }
+
+    private void readResponseHeaders(List<String[]> headers) throws IOException {
+        String status = null;
+        Map<String, List<String>> result = new LinkedHashMap<>();
+        for (String[] header : headers) {
+            if (":status".equals(header[0])) {
+                status = header[1];
+                continue;
+            } else if (header[0].startsWith(":")) {
+                continue;
+            }
+
+            String key = toCanonicalName(header[0]);
+            List<String> values = result.get(key);
+            if (values == null) {
+                values = new ArrayList<>();
+                result.put(key, values);
+            }
+            values.add(header[1]);
+        }
+
+        try {
+            mResponseCode = Integer.parseInt(status);
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Unexpected :status :: " + status);
+        }
+
+        // HttpURLConnectionと同じく、ステータス行をnullキーで格納する
+        Map<String, List<String>> responseHeaders = new LinkedHashMap<>();
+        responseHeaders.put(null, Collections.singletonList("HTTP/2 " + status));
+        responseHeaders.putAll(result);
+        mResponseHeaders = responseHeaders;
+    }
+
+    /**
+     * 小文字で届くヘッダ名を、HttpHeaderが参照する一般的な表記に揃える
+     */
+    static String toCanonicalName(String name) {
+        for (String known : KNOWN_HEADERS) {
+            if (known.equalsIgnoreCase(name)) {
+                return known;
+            }
+        }
+
+        StringBuilder result = new StringBuilder(name.length());
+        boolean upper = true;
+        for (int i = 0; i < name.length(); ++i) {
+            char c = name.charAt(i);
+            result.append(upper ? Character.toUpperCase(c) : c);
+            upper = (c == '-');
+        }
+        return result.toString();
+    }
+
+    private String getHeaderValue(String key) {
+        for (Map.Entry<String, List<String>> entry : mResponseHeaders.entrySet()) {
+            if (key.equalsIgnoreCase(entry.getKey()) && !entry.getValue().isEmpty()) {
+                return entry.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Map<String, List<String>> getResponseHeaders() throws IOException {
+        getResponseCode();
+        return mResponseHeaders;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        getResponseCode();
+        return mResponseBody;
+    }
+
+    @Override
+    public InputStream getErrorStream() throws IOException {
+        if (getResponseCode() < 400) {
+            return null;
+        }
+        return mResponseBody;
+    }
+
+    @Override
+    public void cancel() {
+        mCanceled = true;
+        Http2Stream stream = mStream;
+        if (stream != null) {
+            // ストリームのみを中断し、接続は他のストリームのために残す
+            stream.cancel();
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        if (mResponseBody != null && mResponseBody.mFinished) {
+            // ボディを読み切っていればストリームは閉じている
+            return;
+        }
+        if (mStream != null) {
+            mStream.cancel();
+        }
+    }
+
+    /**
+     * レスポンスボディの読み込みを行う
+     * <p>
+     * 読み切らずに閉じた場合、ストリームを中断する。
+     */
+    class ResponseBodyStream extends InputStream {
+        final Http2Stream mStream;
+
+        boolean mFinished;
+
+        boolean mClosed;
+
+        ResponseBodyStream(Http2Stream stream) {
+            mStream = stream;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] buffer = new byte[1];
+            int read = read(buffer, 0, 1);
+            return read > 0 ? (buffer[0] & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (mClosed) {
+                throw new IOException("stream closed");
+            }
+            if (mFinished) {
+                return -1;
+            }
+
+            int read = mStream.read(buffer, offset, length, mReadTimeoutMs);
+            if (read < 0) {
+                mFinished = true;
+            }
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return mFinished ? 0 : mStream.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            if (!mFinished) {
+                // 読み残しがあるストリームは中断する
+                mFinished = true;
+                mStream.cancel();
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.eaglesakura.android.net.transport.http2;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP/2の1ストリーム
+ * <p>
+ * 状態は全てHttp2Connectionで同期して操作する。
+ */
+class Http2Stream {
+    /**
+     * 相手がストリームを処理せずに拒否したことを示す
+     * <p>
+     * リクエストは処理されていないため、別の接続で安全に再試行できる。
+     */
+    static class RefusedStreamException extends IOException {
+        RefusedStreamException(String message) {
+            super(message);
+        }
+    }
+
+    final Http2Connection mConnection;
+
+    final int mId;
+
+    /**
+     * ストリームの送信ウィンドウ
+     */
+    long mSendWindow;
+
+    /**
+     * 消費したがWINDOW_UPDATEを送っていない受信バイト数
+     */
+    long mUnacknowledgedBytes;
+
+    /**
+     * 自身がEND_STREAMを送信したらtrue
+     */
+    boolean mLocalClosed;
+
+    /**
+     * 相手からEND_STREAMを受信したらtrue
+     */
+    boolean mRemoteClosed;
+
+    /**
+     * 最終レスポンスのヘッダ
+     */
+    List<String[]> mResponseHeaders;
+
+    /**
+     * 受信済みで読み出されていないデータ
+     */
+    private final ArrayDeque<byte[]> mBuffer = new ArrayDeque<>();
+
+    /**
+     * mBuffer先頭の読み出し位置
+     */
+    private int mBufferOffset;
+
+    IOException mFailure;
+
+    Http2Stream(Http2Connection connection, int id, long sendWindow) {
+        mConnection = connection;
+        mId = id;
+        mSendWindow = sendWindow;
+    }
+
+    void onData(byte[] payload, int offset, int length) {
+        if (length > 0) {
+            byte[] data = new byte[length];
+            System.arraycopy(payload, offset, data, 0, length);
+            mBuffer.addLast(data);
+        }
+    }
+
+    void onHeaders(List<String[]> headers) {
+        if (mResponseHeaders != null) {
+            // トレーラーは利用しない
+            return;
+        }
+
+        for (String[] header : headers) {
+            if (":status".equals(header[0]) && header[1].startsWith("1")) {
+                // 中間レスポンスは読み捨てる
+                return;
+            }
+        }
+        mResponseHeaders = headers;
+    }
+
+    void fail(IOException failure) {
+        if (mFailure == null) {
+            mFailure = failure;
+        }
+    }
+
+    /**
+     * 読み残しのデータを破棄する
+     *
+     * @return 破棄したバイト数
+     */
+    long discardBuffer() {
+        long result = 0;
+        for (byte[] data : mBuffer) {
+            result += data.length;
+        }
+        result -= mBufferOffset;
+        mBuffer.clear();
+        mBufferOffset = 0;
+        return result;
+    }
+
+    void checkWritable() throws IOException {
+        if (mFailure != null) {
+            throw mFailure;
+        } else if (mLocalClosed) {
+            throw new IOException("stream closed :: " + mId);
+        }
+    }
+
+    /**
+     * レスポンスヘッダの受信を待つ
+     */
+    List<String[]> awaitHeaders(long timeoutMs) throws IOException {
+        synchronized (mConnection) {
+            final long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            while (mResponseHeaders == null) {
+                if (mFailure != null) {
+                    throw mFailure;
+                } else if (mRemoteClosed) {
+                    throw new IOException("stream closed without headers :: " + mId);
+                }
+                mConnection.awaitUntil(deadlineNanos, timeoutMs > 0);
+            }
+            return mResponseHeaders;
+        }
+    }
+
+    /**
+     * 受信データを読み込む
+     *
+     * @return 読み込んだバイト数, ストリームの終端に達した場合は-1
+     */
+    int read(byte[] buffer, int offset, int length, long timeoutMs) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        int result = 0;
+        synchronized (mConnection) {
+            final long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            while (mBuffer.isEmpty()) {
+                if (mRemoteClosed) {
+                    return -1;
+                } else if (mFailure != null) {
+                    throw mFailure;
+                }
+                mConnection.awaitUntil(deadlineNanos, timeoutMs > 0);
+            }
+
+            while (result < length && !mBuffer.isEmpty()) {
+                byte[] data = mBuffer.peekFirst();
+                int copy = Math.min(length - result, data.length - mBufferOffset);
+                System.arraycopy(data, mBufferOffset, buffer, offset + result, copy);
+                result += copy;
+                mBufferOffset += copy;
+                if (mBufferOffset == data.length) {
+                    mBuffer.removeFirst();
+                    mBufferOffset = 0;
+                }
+            }
+        }
+
+        mConnection.onDataConsumed(this, result);
+        return result;
+    }
+
+    /**
+     * 待機せずに読み込めるバイト数を取得する
+     */
+    int available() {
+        synchronized (mConnection) {
+            long result = -mBufferOffset;
+            for (byte[] data : mBuffer) {
+                result += data.length;
+            }
+            return (int) Math.min(Integer.MAX_VALUE, result);
+        }
+    }
+
+    /**
+     * データを送信する
+     */
+    void write(byte[] buffer, int offset, int length, boolean endStream, long timeoutMs) throws IOException {
+        mConnection.writeData(this, buffer, offset, length, endStream, timeoutMs);
+    }
+
+    /**
+     * ストリームを中断する
+     */
+    void cancel() {
+        synchronized (mConnection) {
+            fail(new IOException("stream canceled :: " + mId));
+        }
+        mConnection.resetStream(this, Http2Connection.ERROR_CANCEL);
+    }
+}
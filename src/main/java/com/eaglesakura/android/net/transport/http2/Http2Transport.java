@@ -0,0 +1,125 @@
+package com.eaglesakura.android.net.transport.http2;
+
+import com.eaglesakura.android.net.request.ConnectRequest;
+import com.eaglesakura.android.net.transport.HttpExchange;
+import com.eaglesakura.android.net.transport.HttpTransport;
+import com.eaglesakura.android.net.transport.UrlConnectionTransport;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HTTP/2で通信を行う
+ * <p>
+ * 接続先ごとに1本の接続を保持し、同時に発行されたリクエストはその上のストリームとして多重化される。
+ * TLS(ALPN)には対応しないため、httpのURLはh2c(prior knowledge)で接続し、それ以外のURLはフォールバック用のTransportで処理する。
+ * 接続先がHTTP/2に対応していることが分かっている場合のみ利用する。
+ */
+public class Http2Transport implements HttpTransport {
+    private final HttpTransport mFallbackTransport;
+
+    private final Map<String, Http2Connection> mConnections = new HashMap<>();
+
+    /**
+     * 接続先ごとの接続処理のロック
+     * <p>
+     * 同じ接続先へ同時に接続しないようにする。
+     */
+    private final Map<String, Object> mConnectLocks = new HashMap<>();
+
+    public Http2Transport() {
+        this(new UrlConnectionTransport());
+    }
+
+    /**
+     * @param fallbackTransport http以外のURLを処理するTransport
+     */
+    public Http2Transport(HttpTransport fallbackTransport) {
+        if (fallbackTransport == null) {
+            throw new IllegalArgumentException();
+        }
+        mFallbackTransport = fallbackTransport;
+    }
+
+    private static String toKey(String host, int port) {
+        return host + ":" + port;
+    }
+
+    /**
+     * 接続先への接続を取得する。
+     * <p>
+     * 利用可能な接続が無ければ新たに接続する。
+     */
+    Http2Connection getConnection(String host, int port, long connectTimeoutMs) throws IOException {
+        final String key = toKey(host, port);
+        Object lock;
+        synchronized (mConnections) {
+            lock = mConnectLocks.get(key);
+            if (lock == null) {
+                lock = new Object();
+                mConnectLocks.put(key, lock);
+            }
+        }
+
+        synchronized (lock) {
+            synchronized (mConnections) {
+                Http2Connection connection = mConnections.get(key);
+                if (connection != null && connection.isUsable()) {
+                    return connection;
+                }
+                mConnections.remove(key);
+            }
+
+            Http2Connection connection = Http2Connection.open(host, port, connectTimeoutMs);
+            synchronized (mConnections) {
+                mConnections.put(key, connection);
+            }
+            return connection;
+        }
+    }
+
+    /**
+     * 保持している接続数を取得する
+     */
+    public int getConnectionCount() {
+        synchronized (mConnections) {
+            int result = 0;
+            for (Http2Connection connection : mConnections.values()) {
+                if (connection.isUsable()) {
+                    ++result;
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * 全ての接続を閉じる。
+     * <p>
+     * 通信中のストリームがある接続は、全てのストリームが完了した時点で閉じられる。
+     */
+    public void evictAll() {
+        List<Http2Connection> connections;
+        synchronized (mConnections) {
+            connections = new ArrayList<>(mConnections.values());
+            mConnections.clear();
+        }
+
+        for (Http2Connection connection : connections) {
+            connection.shutdown();
+        }
+    }
+
+    @Override
+    public HttpExchange open(ConnectRequest request, String url, long connectTimeoutMs, long readTimeoutMs) throws IOException {
+        URL target = new URL(url);
+        if (!"http".equals(target.getProtocol())) {
+            return mFallbackTransport.open(request, url, connectTimeoutMs, readTimeoutMs);
+        }
+        return new Http2Exchange(this, request.getMethod(), target, connectTimeoutMs, readTimeoutMs);
+    }
+}
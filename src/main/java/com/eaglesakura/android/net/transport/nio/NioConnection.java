@@ -0,0 +1,252 @@
+package com.eaglesakura.android.net.transport.nio;
+
+import com.eaglesakura.util.IOUtil;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * SocketChannelによる1本のTCP接続
+ * <p>
+ * ノンブロッキングモードのChannelをSelectorで待ち合わせることで、読み書きのタイムアウトを実現する。
+ * 同時に利用できるのは1スレッドのみとなる。
+ */
+class NioConnection implements Closeable {
+    /**
+     * ヘッダ1行の最大長
+     */
+    private static final int MAX_LINE_LENGTH = 1024 * 64;
+
+    final String mHost;
+
+    final int mPort;
+
+    final SocketChannel mChannel;
+
+    final Selector mSelector;
+
+    final SelectionKey mSelectionKey;
+
+    /**
+     * 受信バッファ
+     * <p>
+     * 常に読み出しモード(position～limitが未読データ)で保持する。
+     */
+    final ByteBuffer mReadBuffer = ByteBuffer.allocate(1024 * 8);
+
+    /**
+     * プールに戻された時刻
+     */
+    long mIdleAtNanos;
+
+    /**
+     * この接続で行ったリクエスト数
+     */
+    int mRequestCount;
+
+    volatile boolean mClosed;
+
+    private NioConnection(String host, int port, SocketChannel channel, Selector selector, SelectionKey key) {
+        mHost = host;
+        mPort = port;
+        mChannel = channel;
+        mSelector = selector;
+        mSelectionKey = key;
+        mReadBuffer.flip();
+    }
+
+    /**
+     * 接続を開く
+     */
+    static NioConnection open(String host, int port, long connectTimeoutMs) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        Selector selector = null;
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            selector = Selector.open();
+            SelectionKey key = channel.register(selector, 0);
+
+            if (!channel.connect(new InetSocketAddress(host, port))) {
+                key.interestOps(SelectionKey.OP_CONNECT);
+                while (!channel.finishConnect()) {
+                    if (select(selector, connectTimeoutMs) == 0) {
+                        throw new SocketTimeoutException("connect timed out :: " + host + ":" + port);
+                    }
+                }
+            }
+            key.interestOps(0);
+            return new NioConnection(host, port, channel, selector, key);
+        } catch (IOException e) {
+            closeQuietly(selector);
+            IOUtil.close(channel);
+            throw e;
+        }
+    }
+
+    private static int select(Selector selector, long timeoutMs) throws IOException {
+        try {
+            int result = (timeoutMs > 0) ? selector.select(timeoutMs) : selector.select();
+            selector.selectedKeys().clear();
+            return result;
+        } catch (ClosedSelectorException e) {
+            throw new IOException("connection closed");
+        }
+    }
+
+    private void await(int ops, long timeoutMs) throws IOException {
+        try {
+            mSelectionKey.interestOps(ops);
+            if (select(mSelector, timeoutMs) == 0) {
+                if (mClosed) {
+                    throw new IOException("connection closed");
+                }
+                throw new SocketTimeoutException("timed out :: " + mHost + ":" + mPort);
+            }
+        } catch (CancelledKeyException e) {
+            throw new IOException("connection closed");
+        } catch (ClosedSelectorException e) {
+            // 待機に入る前にcancel()で閉じられた
+            throw new IOException("connection closed");
+        } finally {
+            try {
+                mSelectionKey.interestOps(0);
+            } catch (CancelledKeyException e) {
+                // 既に閉じられている
+            } catch (ClosedSelectorException e) {
+                // 既に閉じられている
+            }
+        }
+    }
+
+    /**
+     * 受信バッファへデータを読み込む
+     *
+     * @return 読み込んだバイト数, 接続が閉じられた場合は-1
+     */
+    int fill(long timeoutMs) throws IOException {
+        mReadBuffer.compact();
+        try {
+            while (true) {
+                int read = mChannel.read(mReadBuffer);
+                if (read != 0) {
+                    return read;
+                }
+                await(SelectionKey.OP_READ, timeoutMs);
+            }
+        } finally {
+            mReadBuffer.flip();
+        }
+    }
+
+    /**
+     * CRLFで終わる1行を読み込む。
+     *
+     * @return 読み込んだ行, 何も読み込まずに接続が閉じられた場合null
+     */
+    String readLine(long timeoutMs) throws IOException {
+        StringBuilder result = new StringBuilder();
+        while (true) {
+            while (mReadBuffer.hasRemaining()) {
+                char c = (char) (mReadBuffer.get() & 0xFF);
+                if (c == '\n') {
+                    int length = result.length();
+                    if (length > 0 && result.charAt(length - 1) == '\r') {
+                        result.setLength(length - 1);
+                    }
+                    return result.toString();
+                }
+                result.append(c);
+                if (result.length() > MAX_LINE_LENGTH) {
+                    throw new IOException("Line too long :: " + mHost);
+                }
+            }
+
+            if (fill(timeoutMs) < 0) {
+                if (result.length() == 0) {
+                    return null;
+                }
+                throw new EOFException("unexpected end of stream :: " + mHost);
+            }
+        }
+    }
+
+    /**
+     * 受信データを読み込む
+     *
+     * @return 読み込んだバイト数, 接続が閉じられた場合は-1
+     */
+    int read(byte[] buffer, int offset, int length, long timeoutMs) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        if (!mReadBuffer.hasRemaining() && fill(timeoutMs) < 0) {
+            return -1;
+        }
+
+        int result = Math.min(length, mReadBuffer.remaining());
+        mReadBuffer.get(buffer, offset, result);
+        return result;
+    }
+
+    /**
+     * データを全て書き込む
+     */
+    void write(ByteBuffer buffer, long timeoutMs) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (mChannel.write(buffer) == 0) {
+                await(SelectionKey.OP_WRITE, timeoutMs);
+            }
+        }
+    }
+
+    /**
+     * 再利用可能な状態であればtrue
+     * <p>
+     * サーバー側から切断されている、もしくは想定外のデータが届いている場合は再利用できない。
+     */
+    boolean isHealthy() {
+        if (mClosed || !mChannel.isOpen() || mReadBuffer.hasRemaining()) {
+            return false;
+        }
+
+        mReadBuffer.compact();
+        try {
+            return mChannel.read(mReadBuffer) == 0;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            mReadBuffer.flip();
+        }
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        closeQuietly(mSelector);
+        IOUtil.close(mChannel);
+    }
+
+    /**
+     * 古いAPI LevelではSelectorがCloseableを実装していないため、個別にcloseする
+     */
+    private static void closeQuietly(Selector selector) {
+        try {
+            if (selector != null) {
+                selector.close();
+            }
+        } catch (Exception e) {
+
+        }
+    }
+}
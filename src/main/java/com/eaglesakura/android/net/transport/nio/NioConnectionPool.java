@@ -0,0 +1,322 @@
+package com.eaglesakura.android.net.transport.nio;
+
+import android.support.annotation.IntRange;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keep-Alive接続のプール
+ * <p>
+ * ホストごとに同時接続数の上限を持ち、一定時間利用されなかった接続は自動的に閉じられる。
+ */
+public class NioConnectionPool {
+    /**
+     * ホストごとの最大接続数
+     */
+    private int mMaxConnectionsPerHost = 5;
+
+    /**
+     * ホストごとに保持する待機接続の最大数
+     */
+    private int mMaxIdleConnectionsPerHost = 5;
+
+    /**
+     * 待機接続を保持する最大時間
+     */
+    private long mKeepAliveTimeMs = 1000 * 60;
+
+    private final Map<String, HostPool> mHosts = new HashMap<>();
+
+    private boolean mCleanupRunning;
+
+    private long mCreatedCount;
+
+    private long mReusedCount;
+
+    private long mEvictedCount;
+
+    private static class HostPool {
+        /**
+         * 待機中の接続
+         * <p>
+         * 最後に戻された接続が先頭となる。
+         */
+        final ArrayDeque<NioConnection> mIdle = new ArrayDeque<>();
+
+        /**
+         * 貸し出し中の接続数
+         */
+        int mActive;
+    }
+
+    public synchronized void setMaxConnectionsPerHost(@IntRange(from = 1) int maxConnectionsPerHost) {
+        if (maxConnectionsPerHost < 1) {
+            throw new IllegalArgumentException();
+        }
+        mMaxConnectionsPerHost = maxConnectionsPerHost;
+        notifyAll();
+    }
+
+    public synchronized int getMaxConnectionsPerHost() {
+        return mMaxConnectionsPerHost;
+    }
+
+    public synchronized void setMaxIdleConnectionsPerHost(@IntRange(from = 0) int maxIdleConnectionsPerHost) {
+        if (maxIdleConnectionsPerHost < 0) {
+            throw new IllegalArgumentException();
+        }
+        mMaxIdleConnectionsPerHost = maxIdleConnectionsPerHost;
+    }
+
+    /**
+     * 待機接続を保持する最大時間を指定する
+     */
+    public synchronized void setKeepAliveTimeMs(long keepAliveTimeMs) {
+        if (keepAliveTimeMs <= 0) {
+            throw new IllegalArgumentException();
+        }
+        mKeepAliveTimeMs = keepAliveTimeMs;
+        notifyAll();
+    }
+
+    private static String toKey(String host, int port) {
+        return host + ":" + port;
+    }
+
+    private HostPool getHostPool(String key) {
+        HostPool pool = mHosts.get(key);
+        if (pool == null) {
+            pool = new HostPool();
+            mHosts.put(key, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * 接続を取得する。
+     * <p>
+     * 再利用可能な接続があればそれを返却し、無ければ新たに接続する。
+     * ホストの接続数が上限に達している場合、connectTimeoutMsまで空きを待つ。
+     */
+    NioConnection acquire(String host, int port, long connectTimeoutMs) throws IOException {
+        final String key = toKey(host, port);
+        final long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connectTimeoutMs);
+        List<NioConnection> discarded = new ArrayList<>();
+        try {
+            synchronized (this) {
+                HostPool pool = getHostPool(key);
+                while (true) {
+                    // 再利用できる接続を探す
+                    NioConnection idle;
+                    while ((idle = pool.mIdle.pollFirst()) != null) {
+                        if (idle.isHealthy()) {
+                            ++pool.mActive;
+                            ++mReusedCount;
+                            return idle;
+                        }
+                        discarded.add(idle);
+                        ++mEvictedCount;
+                    }
+
+                    if (pool.mActive < mMaxConnectionsPerHost) {
+                        // 枠を確保してから接続する
+                        ++pool.mActive;
+                        break;
+                    }
+
+                    long waitMs = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+                    if (connectTimeoutMs > 0 && waitMs <= 0) {
+                        throw new SocketTimeoutException("connection pool timed out :: " + key);
+                    }
+                    try {
+                        wait(connectTimeoutMs > 0 ? waitMs : 0);
+                    } catch (InterruptedException e) {
+                        throw new SocketTimeoutException("connection pool interrupted :: " + key);
+                    }
+                }
+            }
+        } finally {
+            for (NioConnection connection : discarded) {
+                connection.close();
+            }
+        }
+
+        try {
+            NioConnection connection = NioConnection.open(host, port, connectTimeoutMs);
+            synchronized (this) {
+                ++mCreatedCount;
+            }
+            return connection;
+        } catch (IOException e) {
+            synchronized (this) {
+                --getHostPool(key).mActive;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 接続を返却する。
+     *
+     * @param reusable 次のリクエストで再利用できる場合true
+     */
+    void release(NioConnection connection, boolean reusable) {
+        boolean close = !reusable || connection.mClosed;
+        synchronized (this) {
+            HostPool pool = getHostPool(toKey(connection.mHost, connection.mPort));
+            --pool.mActive;
+            if (!close && pool.mIdle.size() < mMaxIdleConnectionsPerHost) {
+                connection.mIdleAtNanos = System.nanoTime();
+                pool.mIdle.addFirst(connection);
+                startCleanup();
+            } else {
+                close = true;
+            }
+            notifyAll();
+        }
+
+        if (close) {
+            connection.close();
+        }
+    }
+
+    /**
+     * 待機中の接続を全て閉じる
+     */
+    public void evictAll() {
+        List<NioConnection> evicted = new ArrayList<>();
+        synchronized (this) {
+            for (HostPool pool : mHosts.values()) {
+                evicted.addAll(pool.mIdle);
+                mEvictedCount += pool.mIdle.size();
+                pool.mIdle.clear();
+            }
+        }
+
+        for (NioConnection connection : evicted) {
+            connection.close();
+        }
+    }
+
+    /**
+     * 期限切れの待機接続を閉じる
+     *
+     * @return 次に期限切れとなるまでの時間(ns), 待機接続が無い場合は-1
+     */
+    private long cleanup(long nowNanos) {
+        List<NioConnection> evicted = new ArrayList<>();
+        long nextNanos = -1;
+        synchronized (this) {
+            final long keepAliveNanos = TimeUnit.MILLISECONDS.toNanos(mKeepAliveTimeMs);
+            for (HostPool pool : mHosts.values()) {
+                Iterator<NioConnection> iterator = pool.mIdle.iterator();
+                while (iterator.hasNext()) {
+                    NioConnection connection = iterator.next();
+                    long expireNanos = connection.mIdleAtNanos + keepAliveNanos - nowNanos;
+                    if (expireNanos <= 0 || connection.mClosed) {
+                        iterator.remove();
+                        evicted.add(connection);
+                        ++mEvictedCount;
+                    } else if (nextNanos < 0 || expireNanos < nextNanos) {
+                        nextNanos = expireNanos;
+                    }
+                }
+            }
+        }
+
+        for (NioConnection connection : evicted) {
+            connection.close();
+        }
+        return nextNanos;
+    }
+
+    /**
+     * 待機接続がある間、期限切れの接続を閉じ続けるスレッドを起動する
+     */
+    private synchronized void startCleanup() {
+        if (mCleanupRunning) {
+            return;
+        }
+        mCleanupRunning = true;
+
+        Thread thread = new Thread(() -> {
+            while (true) {
+                long waitNanos = cleanup(System.nanoTime());
+                synchronized (NioConnectionPool.this) {
+                    if (waitNanos < 0) {
+                        mCleanupRunning = false;
+                        return;
+                    }
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(NioConnectionPool.this, waitNanos);
+                    } catch (InterruptedException e) {
+                        mCleanupRunning = false;
+                        return;
+                    }
+                }
+            }
+        }, "NioConnectionPool-cleanup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 待機中の接続数を取得する
+     */
+    public synchronized int getIdleConnectionCount() {
+        int result = 0;
+        for (HostPool pool : mHosts.values()) {
+            result += pool.mIdle.size();
+        }
+        return result;
+    }
+
+    /**
+     * 貸し出し中の接続数を取得する
+     */
+    public synchronized int getActiveConnectionCount() {
+        int result = 0;
+        for (HostPool pool : mHosts.values()) {
+            result += pool.mActive;
+        }
+        return result;
+    }
+
+    /**
+     * 指定ホストで貸し出し中の接続数を取得する
+     */
+    public synchronized int getActiveConnectionCount(String host, int port) {
+        HostPool pool = mHosts.get(toKey(host, port));
+        return pool != null ? pool.mActive : 0;
+    }
+
+    /**
+     * 新たに接続した回数を取得する
+     */
+    public synchronized long getCreatedCount() {
+        return mCreatedCount;
+    }
+
+    /**
+     * 待機接続を再利用した回数を取得する
+     */
+    public synchronized long getReusedCount() {
+        return mReusedCount;
+    }
+
+    /**
+     * 期限切れや切断により破棄した待機接続の数を取得する
+     */
+    public synchronized long getEvictedCount() {
+        return mEvictedCount;
+    }
+}
@@ -0,0 +1,538 @@
+package com.eaglesakura.android.net.transport.nio;
+
+import com.eaglesakura.android.net.HttpHeader;
+import com.eaglesakura.android.net.request.ConnectRequest;
+import com.eaglesakura.android.net.transport.HttpExchange;
+import com.eaglesakura.util.StringUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * NioConnection上でHTTP/1.1のリクエスト/レスポンスを処理する
+ */
+class NioHttpExchange implements HttpExchange {
+    /**
+     * 追従する最大リダイレクト回数
+     */
+    private static final int MAX_REDIRECTS = 5;
+
+    private static final String HEADER_HOST = "Host";
+
+    private static final String HEADER_LOCATION = "Location";
+
+    private static final String HEADER_CONNECTION = "Connection";
+
+    private static final String HEADER_TRANSFER_ENCODING = "Transfer-Encoding";
+
+    final NioHttpTransport mTransport;
+
+    final ConnectRequest.Method mMethod;
+
+    final long mConnectTimeoutMs;
+
+    final long mReadTimeoutMs;
+
+    final List<String[]> mRequestHeaders = new ArrayList<>();
+
+    URL mUrl;
+
+    /**
+     * 通信中のスレッドが読み書きに使用する接続
+     */
+    volatile NioConnection mConnection;
+
+    /**
+     * 閉じる、もしくはプールへ返却する権利を持つ接続
+     * <p>
+     * 通信中のスレッドとcancel()を呼び出したスレッドのうち、先に取り出した側だけが接続を手放す。
+     * 手放した接続が別の通信で再利用されている間に、遅れたcancel()で閉じられることを防ぐ。
+     */
+    private NioConnection mOwnedConnection;
+
+    /**
+     * cancel()が呼び出されたらtrue
+     */
+    volatile boolean mCanceled;
+
+    /**
+     * リクエストヘッダを送信済みであればtrue
+     */
+    boolean mRequestSent;
+
+    /**
+     * リクエストボディを送信したらtrue
+     */
+    boolean mHasRequestBody;
+
+    int mResponseCode = -1;
+
+    Map<String, List<String>> mResponseHeaders;
+
+    /**
+     * 接続を再利用できるレスポンスであればtrue
+     */
+    boolean mKeepAlive;
+
+    ResponseBodyStream mResponseBody;
+
+    NioHttpExchange(NioHttpTransport transport, ConnectRequest.Method method, URL url, long connectTimeoutMs, long readTimeoutMs) {
+        mTransport = transport;
+        mMethod = method;
+        mUrl = url;
+        mConnectTimeoutMs = connectTimeoutMs;
+        mReadTimeoutMs = readTimeoutMs;
+    }
+
+    static int getPort(URL url) {
+        return url.getPort() > 0 ? url.getPort() : url.getDefaultPort();
+    }
+
+    @Override
+    public void addRequestHeader(String key, String value) {
+        mRequestHeaders.add(new String[]{key, value});
+    }
+
+    private void ensureConnection() throws IOException {
+        if (mCanceled) {
+            throw new IOException("exchange canceled :: " + mUrl);
+        }
+        if (mConnection == null) {
+            NioConnection connection = mTransport.getConnectionPool().acquire(mUrl.getHost(), getPort(mUrl), mConnectTimeoutMs);
+            synchronized (this) {
+                if (!mCanceled) {
+                    mConnection = connection;
+                    mOwnedConnection = connection;
+                    return;
+                }
+            }
+
+            // 接続中にキャンセルされた
+            mTransport.getConnectionPool().release(connection, false);
+            throw new IOException("exchange canceled :: " + mUrl);
+        }
+    }
+
+    /**
+     * リクエスト行とヘッダを送信する
+     */
+    private void sendRequestHead() throws IOException {
+        ensureConnection();
+
+        String target = mUrl.getFile();
+        if (StringUtil.isEmpty(target)) {
+            target = "/";
+        }
+
+        StringBuilder head = new StringBuilder(256);
+        head.append(mMethod.toString()).append(' ').append(target).append(" HTTP/1.1\r\n");
+        boolean hasHost = false;
+        for (String[] header : mRequestHeaders) {
+            hasHost |= HEADER_HOST.equalsIgnoreCase(header[0]);
+            head.append(header[0]).append(": ").append(header[1]).append("\r\n");
+        }
+        if (!hasHost) {
+            head.append(HEADER_HOST).append(": ").append(mUrl.getHost());
+            if (mUrl.getPort() > 0 && mUrl.getPort() != mUrl.getDefaultPort()) {
+                head.append(':').append(mUrl.getPort());
+            }
+            head.append("\r\n");
+        }
+        head.append("\r\n");
+
+        ++mConnection.mRequestCount;
+        mConnection.write(ByteBuffer.wrap(head.toString().getBytes(NioHttpTransport.ISO_8859_1)), mReadTimeoutMs);
+        mRequestSent = true;
+    }
+
+    @Override
+    public OutputStream openRequestBody(long length) throws IOException {
+        if (mRequestSent) {
+            throw new ProtocolException("request already sent");
+        }
+
+        sendRequestHead();
+        mHasRequestBody = true;
+        final NioConnection connection = mConnection;
+        return new OutputStream() {
+            @Override
+            public void write(int oneByte) throws IOException {
+                write(new byte[]{(byte) oneByte}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int count) throws IOException {
+                connection.write(ByteBuffer.wrap(buffer, offset, count), mReadTimeoutMs);
+            }
+        };
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        if (mResponseCode >= 0) {
+            return mResponseCode;
+        }
+
+        int redirects = 0;
+        while (true) {
+            if (!mRequestSent) {
+                sendRequestWithRetry();
+            }
+            readResponseHead();
+
+            // ボディを持たないリクエストであればリダイレクトに追従する
+            String location = getHeaderValue(HEADER_LOCATION);
+            if (!mHasRequestBody && isRedirect(mResponseCode) && !StringUtil.isEmpty(location) && redirects < MAX_REDIRECTS) {
+                URL next = new URL(mUrl, location);
+                if (!"http".equals(next.getProtocol())) {
+                    throw new ProtocolException("Unsupported redirect :: " + next);
+                }
+                ++redirects;
+                releaseConnection(false);
+                mUrl = next;
+                mRequestSent = false;
+                mResponseCode = -1;
+                mResponseHeaders = null;
+                continue;
+            }
+
+            return mResponseCode;
+        }
+    }
+
+    /**
+     * リクエストを送信し、レスポンスヘッダの先頭を待つ。
+     * <p>
+     * 再利用した接続がサーバー側で切断されていた場合、新しい接続でやり直す。
+     */
+    private void sendRequestWithRetry() throws IOException {
+        while (true) {
+            ensureConnection();
+            final boolean reused = mConnection.mRequestCount > 0;
+            try {
+                sendRequestHead();
+                if (mConnection.mReadBuffer.hasRemaining() || mConnection.fill(mReadTimeoutMs) > 0) {
+                    return;
+                }
+                if (!reused) {
+                    throw new ProtocolException("unexpected end of stream :: " + mUrl);
+                }
+            } catch (SocketTimeoutException e) {
+                throw e;
+            } catch (IOException e) {
+                if (!reused) {
+                    throw e;
+                }
+            }
+
+            // 切断済みの接続だったので、別の接続でやり直す
+            releaseConnection(false);
+            mRequestSent = false;
+        }
+    }
+
+    private static boolean isRedirect(int code) {
+        return code == 301 || code == 302 || code == 303 || code == 307 || code == 308;
+    }
+
+    /**
+     * ステータス行とヘッダを読み込む
+     */
+    private void readResponseHead() throws IOException {
+        while (true) {
+            String statusLine = mConnection.readLine(mReadTimeoutMs);
+            if (statusLine == null) {
+                throw new ProtocolException("unexpected end of stream :: " + mUrl);
+            }
+
+            // HTTP/1.1 200 OK
+            String[] status = statusLine.split(" ", 3);
+            if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+                throw new ProtocolException("Unexpected status line :: " + statusLine);
+            }
+            int code;
+            try {
+                code = Integer.parseInt(status[1]);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Unexpected status line :: " + statusLine);
+            }
+
+            Map<String, List<String>> headers = new LinkedHashMap<>();
+            headers.put(null, Collections.singletonList(statusLine));
+            String line;
+            while (!StringUtil.isEmpty(line = mConnection.readLine(mReadTimeoutMs))) {
+                int index = line.indexOf(':');
+                if (index <= 0) {
+                    continue;
+                }
+                String key = line.substring(0, index).trim();
+                String value = line.substring(index + 1).trim();
+                List<String> values = headers.get(key);
+                if (values == null) {
+                    values = new ArrayList<>();
+                    headers.put(key, values);
+                }
+                values.add(value);
+            }
+            if (line == null) {
+                throw new ProtocolException("unexpected end of stream :: " + mUrl);
+            }
+
+            if (code >= 100 && code < 200) {
+                // 中間レスポンスは読み捨てる
+                continue;
+            }
+
+            mResponseCode = code;
+            mResponseHeaders = headers;
+            mKeepAlive = "HTTP/1.1".equals(status[0]) && !"close".equalsIgnoreCase(getHeaderValue(HEADER_CONNECTION));
+            mResponseBody = newResponseBody();
+            return;
+        }
+    }
+
+    private String getHeaderValue(String key) {
+        for (Map.Entry<String, List<String>> entry : mResponseHeaders.entrySet()) {
+            if (key.equalsIgnoreCase(entry.getKey()) && !entry.getValue().isEmpty()) {
+                return entry.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    private ResponseBodyStream newResponseBody() throws IOException {
+        if (mMethod == ConnectRequest.Method.HEAD || mResponseCode == 204 || mResponseCode == 304) {
+            return new ResponseBodyStream(ResponseBodyStream.MODE_FIXED, 0);
+        }
+
+        String transferEncoding = getHeaderValue(HEADER_TRANSFER_ENCODING);
+        if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+            return new ResponseBodyStream(ResponseBodyStream.MODE_CHUNKED, 0);
+        }
+
+        String contentLength = getHeaderValue(HttpHeader.HEADER_CONTENT_LENGTH);
+        if (!StringUtil.isEmpty(contentLength)) {
+            try {
+                return new ResponseBodyStream(ResponseBodyStream.MODE_FIXED, Long.parseLong(contentLength));
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Unexpected Content-Length :: " + contentLength);
+            }
+        }
+
+        // 長さが不明なので、切断までをボディとする
+        mKeepAlive = false;
+        return new ResponseBodyStream(ResponseBodyStream.MODE_UNTIL_CLOSE, 0);
+    }
+
+    @Override
+    public Map<String, List<String>> getResponseHeaders() throws IOException {
+        getResponseCode();
+        return mResponseHeaders;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        getResponseCode();
+        return mResponseBody;
+    }
+
+    @Override
+    public InputStream getErrorStream() throws IOException {
+        if (getResponseCode() < 400) {
+            return null;
+        }
+        return mResponseBody;
+    }
+
+    @Override
+    public void cancel() {
+        NioConnection connection;
+        synchronized (this) {
+            mCanceled = true;
+            connection = takeConnection();
+        }
+        if (connection != null) {
+            // Selectorが閉じられ、待機中の読み書きが失敗する
+            mTransport.getConnectionPool().release(connection, false);
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        // ボディを読み切っていれば、接続を再利用できる
+        releaseConnection(mResponseBody != null && mResponseBody.mFinished && mKeepAlive);
+    }
+
+    /**
+     * 接続を手放す権利を取り出す
+     *
+     * @return 接続, 既に手放されている場合はnull
+     */
+    private synchronized NioConnection takeConnection() {
+        NioConnection connection = mOwnedConnection;
+        mOwnedConnection = null;
+        return connection;
+    }
+
+    /**
+     * 接続をプールへ返却する
+     * <p>
+     * 既にcancel()が接続を閉じている場合は何もしない。
+     */
+    void releaseConnection(boolean reusable) {
+        mConnection = null;
+        NioConnection connection = takeConnection();
+        if (connection != null) {
+            mTransport.getConnectionPool().release(connection, reusable);
+        }
+    }
+
+    /**
+     * レスポンスボディの読み込みを行う
+     * <p>
+     * 最後まで読み込んだ接続は、disconnect()でプールへ返却する。
+     * 読み込み中にキャンセルされた接続を返却しないよう、呼び出し元がキャンセルの監視を終えるまで返却を遅らせる。
+     */
+    class ResponseBodyStream extends InputStream {
+        static final int MODE_FIXED = 0;
+
+        static final int MODE_CHUNKED = 1;
+
+        static final int MODE_UNTIL_CLOSE = 2;
+
+        final int mMode;
+
+        /**
+         * 現在のチャンク、もしくはボディ全体の残りバイト数
+         */
+        long mRemaining;
+
+        boolean mFinished;
+
+        boolean mClosed;
+
+        ResponseBodyStream(int mode, long length) {
+            mMode = mode;
+            mRemaining = length;
+            if (mode == MODE_FIXED && length == 0) {
+                onFinished();
+            }
+        }
+
+        private void onFinished() {
+            mFinished = true;
+        }
+
+        /**
+         * 次のチャンクの長さを読み込む
+         */
+        private boolean nextChunk() throws IOException {
+            String line = mConnection.readLine(mReadTimeoutMs);
+            if (line != null && line.isEmpty()) {
+                // 前のチャンク末尾のCRLF
+                line = mConnection.readLine(mReadTimeoutMs);
+            }
+            if (line == null) {
+                throw new ProtocolException("unexpected end of chunk :: " + mUrl);
+            }
+
+            int extension = line.indexOf(';');
+            if (extension >= 0) {
+                line = line.substring(0, extension);
+            }
+            try {
+                mRemaining = Long.parseLong(line.trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Unexpected chunk size :: " + line);
+            }
+
+            if (mRemaining == 0) {
+                // トレーラーを読み捨てる
+                String trailer;
+                while (!StringUtil.isEmpty(trailer = mConnection.readLine(mReadTimeoutMs))) {
+                }
+                if (trailer == null) {
+                    throw new ProtocolException("unexpected end of chunk :: " + mUrl);
+                }
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] buffer = new byte[1];
+            int read = read(buffer, 0, 1);
+            return read > 0 ? (buffer[0] & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (mClosed) {
+                throw new IOException("stream closed");
+            }
+            if (mFinished) {
+                return -1;
+            }
+            if (length == 0) {
+                return 0;
+            }
+
+            if (mMode == MODE_CHUNKED && mRemaining == 0 && !nextChunk()) {
+                onFinished();
+                return -1;
+            }
+
+            if (mMode != MODE_UNTIL_CLOSE) {
+                length = (int) Math.min(length, mRemaining);
+            }
+
+            int read = mConnection.read(buffer, offset, length, mReadTimeoutMs);
+            if (read < 0) {
+                if (mMode == MODE_UNTIL_CLOSE) {
+                    onFinished();
+                    return -1;
+                }
+                throw new ProtocolException("unexpected end of stream :: " + mUrl);
+            }
+
+            mRemaining -= read;
+            if (mMode == MODE_FIXED && mRemaining == 0) {
+                onFinished();
+            }
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (mFinished || mConnection == null) {
+                return 0;
+            }
+            int available = mConnection.mReadBuffer.remaining();
+            return (mMode == MODE_UNTIL_CLOSE) ? available : (int) Math.min(available, mRemaining);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            if (!mFinished) {
+                // 読み残しがある接続は再利用できない
+                mFinished = true;
+                releaseConnection(false);
+            }
+        }
+    }
+}
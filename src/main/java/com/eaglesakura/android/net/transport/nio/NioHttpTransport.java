@@ -0,0 +1,52 @@
+package com.eaglesakura.android.net.transport.nio;
+
+import com.eaglesakura.android.net.request.ConnectRequest;
+import com.eaglesakura.android.net.transport.HttpExchange;
+import com.eaglesakura.android.net.transport.HttpTransport;
+import com.eaglesakura.android.net.transport.UrlConnectionTransport;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * SocketChannelを利用したHTTP/1.1通信を行う
+ * <p>
+ * 接続はNioConnectionPoolで管理され、Keep-Aliveにより再利用される。
+ * TLSには対応しないため、http以外のURLはフォールバック用のTransportで処理する。
+ */
+public class NioHttpTransport implements HttpTransport {
+    static final String ISO_8859_1 = "ISO-8859-1";
+
+    private final NioConnectionPool mConnectionPool;
+
+    private final HttpTransport mFallbackTransport;
+
+    public NioHttpTransport() {
+        this(new NioConnectionPool(), new UrlConnectionTransport());
+    }
+
+    /**
+     * @param connectionPool    接続プール
+     * @param fallbackTransport http以外のURLを処理するTransport
+     */
+    public NioHttpTransport(NioConnectionPool connectionPool, HttpTransport fallbackTransport) {
+        if (connectionPool == null || fallbackTransport == null) {
+            throw new IllegalArgumentException();
+        }
+        mConnectionPool = connectionPool;
+        mFallbackTransport = fallbackTransport;
+    }
+
+    public NioConnectionPool getConnectionPool() {
+        return mConnectionPool;
+    }
+
+    @Override
+    public HttpExchange open(ConnectRequest request, String url, long connectTimeoutMs, long readTimeoutMs) throws IOException {
+        URL target = new URL(url);
+        if (!"http".equals(target.getProtocol())) {
+            return mFallbackTransport.open(request, url, connectTimeoutMs, readTimeoutMs);
+        }
+        return new NioHttpExchange(this, request.getMethod(), target, connectTimeoutMs, readTimeoutMs);
+    }
+}
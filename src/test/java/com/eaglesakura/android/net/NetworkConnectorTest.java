@@ -1,9 +1,521 @@
 package com.eaglesakura.android.net;
 
+import com.eaglesakura.android.net.cache.CacheMetadata;
+import com.eaglesakura.android.net.cache.ICacheController;
+import com.eaglesakura.android.net.cache.ICacheWriter;
+import com.eaglesakura.android.net.cache.IRevalidatingCacheController;
+import com.eaglesakura.android.net.cache.file.FileCacheController;
+import com.eaglesakura.android.net.error.HttpAccessRetryFailedException;
+import com.eaglesakura.android.net.error.HttpStatusException;
+import com.eaglesakura.android.net.parser.ByteArrayParser;
+import com.eaglesakura.android.net.parser.RequestParser;
+import com.eaglesakura.android.net.request.ConnectRequest;
+import com.eaglesakura.android.net.request.SimpleHttpRequest;
+import com.eaglesakura.util.IOUtil;
+
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 public class NetworkConnectorTest extends UnitTestCase {
+
+    /**
+     * ループバックで動作するテスト用HTTP/1.1サーバー
+     */
+    static class LoopbackServer {
+        /**
+         * レスポンスを生成する
+         */
+        interface Handler {
+            /**
+             * @param path    リクエストパス
+             * @param headers 小文字に揃えたリクエストヘッダ
+             * @return ステータス行から始まるレスポンス全体, nullの場合は応答せずに切断する
+             */
+            String respond(String path, Map<String, String> headers);
+        }
+
+        final ServerSocket mServerSocket;
+
+        final Handler mHandler;
+
+        final AtomicInteger mRequestCount = new AtomicInteger();
+
+        LoopbackServer(Handler handler) throws IOException {
+            mHandler = handler;
+            mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            Thread thread = new Thread(() -> {
+                try {
+                    while (true) {
+                        final Socket socket = mServerSocket.accept();
+                        new Thread(() -> handle(socket)).start();
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String getUrl(String path) {
+            return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+        }
+
+        static String readLine(InputStream is) throws IOException {
+            StringBuilder result = new StringBuilder();
+            int c;
+            while ((c = is.read()) >= 0 && c != '\n') {
+                if (c != '\r') {
+                    result.append((char) c);
+                }
+            }
+            return (c < 0 && result.length() == 0) ? null : result.toString();
+        }
+
+        static String response(int statusCode, String body, String... headers) {
+            StringBuilder result = new StringBuilder("HTTP/1.1 " + statusCode + " Status\r\n");
+            for (String header : headers) {
+                result.append(header).append("\r\n");
+            }
+            result.append("Content-Length: ").append(body.length()).append("\r\n\r\n").append(body);
+            return result.toString();
+        }
+
+        void handle(Socket socket) {
+            try {
+                InputStream is = socket.getInputStream();
+                OutputStream os = socket.getOutputStream();
+                String requestLine;
+                while ((requestLine = readLine(is)) != null) {
+                    Map<String, String> headers = new HashMap<>();
+                    String line;
+                    while (!(line = readLine(is)).isEmpty()) {
+                        int index = line.indexOf(':');
+                        headers.put(line.substring(0, index).trim().toLowerCase(), line.substring(index + 1).trim());
+                    }
+
+                    mRequestCount.incrementAndGet();
+                    String response = mHandler.respond(requestLine.split(" ")[1], headers);
+                    if (response == null) {
+                        return;
+                    }
+                    os.write(response.getBytes("UTF-8"));
+                    os.flush();
+                }
+            } catch (Exception e) {
+                // closed
+            } finally {
+                IOUtil.close(socket);
+            }
+        }
+
+        void close() {
+            IOUtil.close(mServerSocket);
+        }
+    }
+
+    static SimpleHttpRequest newRequest(String url) {
+        SimpleHttpRequest request = new SimpleHttpRequest(ConnectRequest.Method.GET);
+        request.setUrl(url, null);
+        return request;
+    }
+
     @Test
-    public void stub() throws Exception {
+    public void connectAllで取得した内容の指紋が保存される() throws Exception {
+        LoopbackServer server = new LoopbackServer((path, headers) -> LoopbackServer.response(200, "body:" + path));
+        try {
+            NetworkConnector connector = new NetworkConnector(getContext());
+            List<ConnectRequest> requests = new ArrayList<>();
+            for (int i = 0; i < 3; ++i) {
+                requests.add(newRequest(server.getUrl("/batch/" + System.currentTimeMillis() + "/" + i)));
+            }
+
+            for (Result<byte[]> result : connector.connectAll(requests, ByteArrayParser.getInstance())) {
+                assertTrue(result.isModified());
+            }
+
+            // 2回目は前回と同じ内容なので、変更されていない
+            List<Result<byte[]>> results = connector.connectAll(requests, ByteArrayParser.getInstance());
+            for (int i = 0; i < results.size(); ++i) {
+                assertEquals(results.get(i).isModified(), false);
+                assertEquals(new String(results.get(i).getResult(), "UTF-8"), "body:" + requests.get(i).getUrl().substring(server.getUrl("").length()));
+            }
+            assertEquals(server.mRequestCount.get(), 6);
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * ETagが一致すれば304を返すサーバー
+     */
+    static LoopbackServer newValidatorServer(final List<String> ifNoneMatches) throws IOException {
+        return new LoopbackServer((path, headers) -> {
+            String ifNoneMatch = headers.get("if-none-match");
+            ifNoneMatches.add(String.valueOf(ifNoneMatch));
+            if ("\"v1\"".equals(ifNoneMatch)) {
+                return LoopbackServer.response(304, "", "ETag: \"v1\"", "Cache-Control: max-age=0");
+            }
+            return LoopbackServer.response(200, "hello", "ETag: \"v1\"", "Cache-Control: max-age=0");
+        });
+    }
+
+    @Test
+    public void 期限切れのキャッシュを304で再検証する() throws Exception {
+        List<String> ifNoneMatches = new CopyOnWriteArrayList<>();
+        LoopbackServer server = newValidatorServer(ifNoneMatches);
+        try {
+            NetworkConnector connector = new NetworkConnector(getContext());
+            connector.setCacheController(new FileCacheController(new File(getContext().getCacheDir(), "es-net-test-" + System.nanoTime())));
+            String url = server.getUrl("/validator/" + System.nanoTime());
+
+            SimpleHttpRequest request = newRequest(url);
+            // 即座に期限切れとなるが、ETagで再検証できる
+            request.getCachePolicy().setServerCacheControlEnabled(true);
+            assertEquals(new String(connector.connect(request, ByteArrayParser.getInstance(), null).getResult(), "UTF-8"), "hello");
+
+            Result<byte[]> result = connector.connect(request, ByteArrayParser.getInstance(), null);
+            assertEquals(new String(result.getResult(), "UTF-8"), "hello");
+            assertEquals(result.isModified(), false);
+            assertEquals(ifNoneMatches, Arrays.asList("null", "\"v1\""));
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void 再検証したキャッシュは保存時のレスポンスヘッダを使ってパースする() throws Exception {
+        LoopbackServer server = new LoopbackServer((path, headers) -> {
+            if ("\"v1\"".equals(headers.get("if-none-match"))) {
+                return LoopbackServer.response(304, "", "ETag: \"v1\"", "Cache-Control: max-age=0");
+            }
+            return LoopbackServer.response(200, "hello", "ETag: \"v1\"", "Cache-Control: max-age=0", "Content-Type: text/plain");
+        });
+        try {
+            NetworkConnector connector = new NetworkConnector(getContext());
+            connector.setCacheController(new FileCacheController(new File(getContext().getCacheDir(), "es-net-test-" + System.nanoTime())));
+            SimpleHttpRequest request = newRequest(server.getUrl("/merged/" + System.nanoTime()));
+            request.getCachePolicy().setServerCacheControlEnabled(true);
+
+            final List<String> contentTypes = new CopyOnWriteArrayList<>();
+            RequestParser<byte[]> parser = (sender, data) -> {
+                contentTypes.add(String.valueOf(sender.getResponseHeader().get("Content-Type")));
+                return ByteArrayParser.getInstance().parse(sender, data);
+            };
+            connector.connect(request, parser, null);
+
+            // 304に含まれないヘッダも、保存時のものが引き継がれる
+            Result<byte[]> result = connector.connect(request, parser, null);
+            assertEquals(result.isModified(), false);
+            assertEquals(contentTypes, Arrays.asList("text/plain", "text/plain"));
+            assertEquals(server.mRequestCount.get(), 2);
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void 再検証中にキャッシュが消えていたら同じ試行の中で取り直す() throws Exception {
+        List<String> ifNoneMatches = new CopyOnWriteArrayList<>();
+        LoopbackServer server = newValidatorServer(ifNoneMatches);
+        try {
+            NetworkConnector connector = new NetworkConnector(getContext());
+            // 検証情報だけが残り、本体が消えたキャッシュ
+            connector.setCacheController(new IRevalidatingCacheController() {
+                @Override
+                public ICacheWriter newCacheWriter(ConnectRequest request, HttpHeader respHeader) throws IOException {
+                    return null;
+                }
+
+                @Override
+                public InputStream openCache(ConnectRequest request) throws IOException {
+                    return null;
+                }
+
+                @Override
+                public CacheMetadata getMetadata(ConnectRequest request) throws IOException {
+                    return new CacheMetadata("\"v1\"", null, System.currentTimeMillis());
+                }
+
+                @Override
+                public InputStream openStaleCache(ConnectRequest request, long maxStaleMs) throws IOException {
+                    return null;
+                }
+
+                @Override
+                public void refresh(ConnectRequest request, HttpHeader respHeader) throws IOException {
+                }
+            });
+
+            SimpleHttpRequest request = newRequest(server.getUrl("/missing/" + System.nanoTime()));
+            request.getCachePolicy().setCacheLimitTimeMs(ICacheController.CACHE_ONE_HOUR);
+            request.setRetryPolicy(new RetryPolicy(0));
+            Result<byte[]> result = connector.connect(request, ByteArrayParser.getInstance(), null);
+            assertEquals(new String(result.getResult(), "UTF-8"), "hello");
+            assertEquals(ifNoneMatches, Arrays.asList("\"v1\"", "null"));
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void 最後の試行に失敗したらバックオフを待たずに失敗する() throws Exception {
+        LoopbackServer server = new LoopbackServer((path, headers) -> null);
+        try {
+            NetworkConnector connector = new NetworkConnector(getContext());
+            SimpleHttpRequest request = newRequest(server.getUrl("/disconnect"));
+            request.setRetryPolicy(new RetryPolicy(1, 1.0f, 1000));
+
+            long startTime = System.currentTimeMillis();
+            try {
+                connector.connect(request, ByteArrayParser.getInstance(), null);
+                fail();
+            } catch (HttpAccessRetryFailedException e) {
+                assertEquals(e.getTryCount(), 2);
+            }
+            // 待機は試行の間の1回のみ
+            long elapsedMs = System.currentTimeMillis() - startTime;
+            assertTrue(elapsedMs >= 1000);
+            assertTrue(elapsedMs < 2000);
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * 1回目は200、以降は指定したステータスを返すサーバーからキャッシュを取得し、期限切れの後に再度取得する
+     */
+    Result<byte[]> connectAfterError(int errorStatus) throws Exception {
+        final AtomicInteger status = new AtomicInteger(200);
+        LoopbackServer server = new LoopbackServer((path, headers) -> LoopbackServer.response(status.get(), status.get() == 200 ? "hello" : "error", "Cache-Control: max-age=0"));
+        try {
+            NetworkConnector connector = new NetworkConnector(getContext());
+            connector.setCacheController(new FileCacheController(new File(getContext().getCacheDir(), "es-net-test-" + System.nanoTime())));
+            SimpleHttpRequest request = newRequest(server.getUrl("/stale/" + System.nanoTime()));
+            request.getCachePolicy().setServerCacheControlEnabled(true);
+            request.getCachePolicy().setStaleIfErrorMs(ICacheController.CACHE_ONE_HOUR);
+            request.setRetryPolicy(new RetryPolicy(0));
+            assertEquals(connector.connect(request, ByteArrayParser.getInstance(), null).isStale(), false);
+
+            status.set(errorStatus);
+            return connector.connect(request, ByteArrayParser.getInstance(), null);
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void サーバー障害の場合は期限切れのキャッシュを返す() throws Exception {
+        Result<byte[]> result = connectAfterError(503);
+        assertEquals(new String(result.getResult(), "UTF-8"), "hello");
+        assertEquals(result.isStale(), true);
+    }
+
+    @Test
+    public void クライアントエラーの場合は期限切れのキャッシュを返さない() throws Exception {
+        try {
+            connectAfterError(404);
+            fail();
+        } catch (HttpStatusException e) {
+            assertEquals(e.getStatusCode(), 404);
+        }
+    }
+
+    @Test
+    public void ContentLengthが上限を超えていればキャッシュの書き込みを開始しない() throws Exception {
+        LoopbackServer server = new LoopbackServer((path, headers) -> LoopbackServer.response(200, "0123456789ABCDEF"));
+        try {
+            final AtomicInteger newWriterCount = new AtomicInteger();
+            NetworkConnector connector = new NetworkConnector(getContext());
+            connector.setCacheController(new ICacheController() {
+                @Override
+                public ICacheWriter newCacheWriter(ConnectRequest request, HttpHeader respHeader) throws IOException {
+                    newWriterCount.incrementAndGet();
+                    return null;
+                }
+
+                @Override
+                public InputStream openCache(ConnectRequest request) throws IOException {
+                    return null;
+                }
+            });
+
+            SimpleHttpRequest request = newRequest(server.getUrl("/large/" + System.nanoTime()));
+            request.getCachePolicy().setCacheLimitTimeMs(ICacheController.CACHE_ONE_HOUR);
+            request.getCachePolicy().setMaxItemBytes(10);
+            assertEquals(new String(connector.connect(request, ByteArrayParser.getInstance(), null).getResult(), "UTF-8"), "0123456789ABCDEF");
+            assertEquals(newWriterCount.get(), 0);
+
+            // 上限以内であれば書き込みを開始する
+            request.getCachePolicy().setMaxItemBytes(16);
+            connector.connect(request, ByteArrayParser.getInstance(), null);
+            assertEquals(newWriterCount.get(), 1);
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void ヘッジが両方とも完了しても採用された通信だけがキャッシュへ書き込む() throws Exception {
+        // 最初の通信とヘッジが揃ってから、同時に応答する
+        final CountDownLatch arrived = new CountDownLatch(2);
+        LoopbackServer server = new LoopbackServer((path, headers) -> {
+            arrived.countDown();
+            try {
+                arrived.await(2, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return null;
+            }
+            return LoopbackServer.response(200, "hello");
+        });
+        try {
+            final AtomicInteger writerCount = new AtomicInteger();
+            final AtomicInteger commitCount = new AtomicInteger();
+            final AtomicInteger abortCount = new AtomicInteger();
+            NetworkConnector connector = new NetworkConnector(getContext());
+            connector.setCacheController(new ICacheController() {
+                @Override
+                public ICacheWriter newCacheWriter(ConnectRequest request, HttpHeader respHeader) throws IOException {
+                    writerCount.incrementAndGet();
+                    return new ICacheWriter() {
+                        @Override
+                        public void write(byte[] buffer, int offset, int length) throws IOException {
+                        }
+
+                        @Override
+                        public void commit() throws IOException {
+                            commitCount.incrementAndGet();
+                        }
+
+                        @Override
+                        public void abort() throws IOException {
+                            abortCount.incrementAndGet();
+                        }
+
+                        @Override
+                        public void close() throws IOException {
+                        }
+                    };
+                }
+
+                @Override
+                public InputStream openCache(ConnectRequest request) throws IOException {
+                    return null;
+                }
+            });
+
+            SimpleHttpRequest request = newRequest(server.getUrl("/hedge/" + System.nanoTime()));
+            request.getCachePolicy().setCacheLimitTimeMs(ICacheController.CACHE_ONE_HOUR);
+            request.setHedgePolicy(new HedgePolicy(50));
+            assertEquals(new String(connector.connect(request, ByteArrayParser.getInstance(), null).getResult(), "UTF-8"), "hello");
+            assertEquals(server.mRequestCount.get(), 2);
+
+            // 採用されなかった通信は、完了していても書き込みを破棄する
+            assertEquals(commitCount.get(), 1);
+            assertEquals(abortCount.get(), writerCount.get() - 1);
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void connectAllもconnectと同じく期限切れのキャッシュを返して裏で更新する() throws Exception {
+        final AtomicInteger version = new AtomicInteger();
+        LoopbackServer server = new LoopbackServer((path, headers) -> LoopbackServer.response(200, "v" + version.incrementAndGet(), "Cache-Control: max-age=0"));
+        try {
+            NetworkConnector connector = new NetworkConnector(getContext());
+            connector.setCacheController(new FileCacheController(new File(getContext().getCacheDir(), "es-net-test-" + System.nanoTime())));
+            SimpleHttpRequest request = newRequest(server.getUrl("/batch-stale/" + System.nanoTime()));
+            request.getCachePolicy().setServerCacheControlEnabled(true);
+            request.getCachePolicy().setStaleWhileRevalidateMs(ICacheController.CACHE_ONE_HOUR);
+            assertEquals(new String(connector.connect(request, ByteArrayParser.getInstance(), null).getResult(), "UTF-8"), "v1");
+
+            Result<byte[]> result = connector.connectAll(Arrays.asList(request), ByteArrayParser.getInstance()).get(0);
+            assertEquals(new String(result.getResult(), "UTF-8"), "v1");
+            assertEquals(result.isStale(), true);
+
+            // バックグラウンドで更新される
+            for (int i = 0; i < 100 && server.mRequestCount.get() < 2; ++i) {
+                Thread.sleep(10);
+            }
+            assertEquals(server.mRequestCount.get(), 2);
+        } finally {
+            server.close();
+        }
+    }
+
+    static boolean isCancelWatchdogRunning() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if ("CancelWatchdog".equals(thread.getName()) && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void connectAsyncはCancelWatchdogを使わずにcancelで通信を中断する() throws Exception {
+        final CountDownLatch respond = new CountDownLatch(1);
+        LoopbackServer server = new LoopbackServer((path, headers) -> {
+            try {
+                respond.await();
+            } catch (InterruptedException e) {
+                return null;
+            }
+            return LoopbackServer.response(200, "hello");
+        });
+        try {
+            // 他のテストが監視していたものが終了するのを待つ
+            for (int i = 0; i < 100 && isCancelWatchdogRunning(); ++i) {
+                Thread.sleep(10);
+            }
+            assertEquals(isCancelWatchdogRunning(), false);
+
+            NetworkConnector connector = new NetworkConnector(getContext());
+            NetworkDispatcher dispatcher = new NetworkDispatcher(1);
+            connector.setDispatcher(dispatcher);
+            SimpleHttpRequest request = newRequest(server.getUrl("/async/" + System.nanoTime()));
+            request.setReadTimeoutMs(1000 * 60);
+            ConnectFuture<byte[]> future = connector.connectAsync(request, ByteArrayParser.getInstance());
+            for (int i = 0; i < 100 && server.mRequestCount.get() == 0; ++i) {
+                Thread.sleep(10);
+            }
+            assertEquals(server.mRequestCount.get(), 1);
+
+            // CancelCallbackが無ければ、通信中も監視スレッドは動かない
+            Thread.sleep(100);
+            assertEquals(isCancelWatchdogRunning(), false);
+
+            // レスポンスを待たずに、通信スレッドが解放される
+            assertTrue(future.cancel(true));
+            for (int i = 0; i < 100 && dispatcher.getActiveCount() > 0; ++i) {
+                Thread.sleep(10);
+            }
+            assertEquals(dispatcher.getActiveCount(), 0);
+            assertEquals(server.mRequestCount.get(), 1);
+        } finally {
+            respond.countDown();
+            server.close();
+        }
     }
 }
@@ -0,0 +1,54 @@
+package com.eaglesakura.android.net.cache;
+
+import com.eaglesakura.android.net.HttpHeader;
+import com.eaglesakura.android.net.UnitTestCase;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CacheControlTest extends UnitTestCase {
+
+    @Test
+    public void max_ageからAgeを差し引いて有効期限を求める() throws Exception {
+        HttpHeader header = new HttpHeader()
+                .put("cache-control", "public, max-age=60")
+                .put(CacheControl.HEADER_AGE, "10")
+                .put(CacheControl.HEADER_EXPIRES, "Thu, 01 Jan 1970 00:00:00 GMT");
+        CacheControl cacheControl = CacheControl.parse(header);
+
+        // max-ageはExpiresより優先される
+        assertFalse(cacheControl.isNoStore());
+        assertEquals(cacheControl.getExpiresAt(1000), 1000 + 50 * 1000);
+    }
+
+    @Test
+    public void ExpiresはDateからの差で有効期限を求める() throws Exception {
+        HttpHeader header = new HttpHeader()
+                .put(CacheControl.HEADER_DATE, "Sun, 06 Nov 1994 08:49:37 GMT")
+                .put(CacheControl.HEADER_EXPIRES, "Sun, 06 Nov 1994 08:50:37 GMT");
+        long date = CacheControl.parseHttpDate("Sun, 06 Nov 1994 08:49:37 GMT");
+        assertTrue(date > 0);
+
+        // 端末の時計がずれていても、サーバーが指定した長さだけ有効となる
+        assertEquals(CacheControl.parse(header).getExpiresAt(date), date + 60 * 1000);
+
+        // 不正なExpiresは期限切れとして扱う
+        header.put(CacheControl.HEADER_EXPIRES, "0");
+        assertEquals(CacheControl.parse(header).getExpiresAt(date), date);
+    }
+
+    @Test
+    public void no_storeとno_cacheを判定する() throws Exception {
+        assertTrue(CacheControl.parse(new HttpHeader().put(CacheControl.HEADER_CACHE_CONTROL, "no-store")).isNoStore());
+
+        CacheControl noCache = CacheControl.parse(new HttpHeader().put(CacheControl.HEADER_CACHE_CONTROL, "no-cache, max-age=3600"));
+        assertTrue(noCache.isNoCache());
+        assertEquals(noCache.getExpiresAt(1000), 1000);
+
+        // 指定が無い場合はキャッシュ設定に従う
+        assertEquals(CacheControl.parse(new HttpHeader()).getExpiresAt(1000), 0);
+    }
+}
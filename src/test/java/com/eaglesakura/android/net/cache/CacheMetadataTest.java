@@ -0,0 +1,40 @@
+package com.eaglesakura.android.net.cache;
+
+import com.eaglesakura.android.net.HttpHeader;
+import com.eaglesakura.android.net.UnitTestCase;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CacheMetadataTest extends UnitTestCase {
+
+    @Test
+    public void 指紋とレスポンスヘッダを保存して復元する() throws Exception {
+        HttpHeader header = new HttpHeader()
+                .put(HttpHeader.HEADER_ETAG, "\"v1\"")
+                .put(HttpHeader.HEADER_CONTENT_TYPE, "application/json")
+                .put(HttpHeader.HEADER_CONTENT_LENGTH, "5")
+                .put(HttpHeader.HEADER_SET_COOKIE, "session=secret");
+        CacheMetadata metadata = CacheMetadata.fromResponse(null, header);
+        metadata.setContentDigest("5d41402abc4b2a76b9719d911017c592");
+
+        CacheMetadata decoded = CacheMetadata.decode(metadata.encode());
+        assertEquals(decoded.getContentDigest(), "5d41402abc4b2a76b9719d911017c592");
+        assertEquals(decoded.getResponseHeader().getContentType(), "application/json");
+        assertEquals(decoded.getResponseHeader().getContentLength(), 5);
+        // Cookieは保存しない
+        assertEquals(decoded.getResponseHeader().getCookies().size(), 0);
+
+        // 304では本体が変わらないため、指紋とContent-Lengthを引き継ぐ
+        CacheMetadata revalidated = decoded.revalidate(null, new HttpHeader()
+                .put(HttpHeader.HEADER_ETAG, "\"v2\"")
+                .put(HttpHeader.HEADER_CONTENT_LENGTH, "0"));
+        assertEquals(revalidated.getContentDigest(), "5d41402abc4b2a76b9719d911017c592");
+        assertEquals(revalidated.getResponseHeader().get(HttpHeader.HEADER_ETAG), "\"v2\"");
+        assertEquals(revalidated.getResponseHeader().getContentLength(), 5);
+
+        assertNull(CacheMetadata.decode(new CacheMetadata(null, null, 1).encode()).getResponseHeader());
+    }
+}
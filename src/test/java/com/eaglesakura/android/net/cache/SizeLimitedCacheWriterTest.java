@@ -0,0 +1,103 @@
+package com.eaglesakura.android.net.cache;
+
+import com.eaglesakura.android.net.HttpHeader;
+import com.eaglesakura.android.net.UnitTestCase;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SizeLimitedCacheWriterTest extends UnitTestCase {
+
+    /**
+     * 書き込まれた内容と呼び出しを記録する
+     */
+    static class RecordingWriter implements IDigestCacheWriter {
+        final ByteArrayOutputStream mWritten = new ByteArrayOutputStream();
+
+        String mDigest;
+
+        boolean mCommitted;
+
+        boolean mAborted;
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            mWritten.write(buffer, offset, length);
+        }
+
+        @Override
+        public void setContentDigest(String digest) throws IOException {
+            mDigest = digest;
+        }
+
+        @Override
+        public void commit() throws IOException {
+            mCommitted = true;
+        }
+
+        @Override
+        public void abort() throws IOException {
+            mAborted = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    static CachePolicy newPolicy(long maxItemBytes) {
+        CachePolicy policy = new CachePolicy();
+        policy.setMaxItemBytes(maxItemBytes);
+        return policy;
+    }
+
+    @Test
+    public void 上限以内であればそのまま書き込む() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        SizeLimitedCacheWriter limited = (SizeLimitedCacheWriter) SizeLimitedCacheWriter.wrap(writer, newPolicy(10));
+
+        limited.write(new byte[10], 0, 10);
+        limited.setContentDigest("digest");
+        limited.commit();
+
+        assertEquals(limited.isDiscarded(), false);
+        assertEquals(writer.mWritten.size(), 10);
+        assertEquals(writer.mDigest, "digest");
+        assertEquals(writer.mCommitted, true);
+    }
+
+    @Test
+    public void 上限を超えた時点で書き込み先を破棄する() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        SizeLimitedCacheWriter limited = (SizeLimitedCacheWriter) SizeLimitedCacheWriter.wrap(writer, newPolicy(10));
+
+        limited.write(new byte[6], 0, 6);
+        limited.write(new byte[6], 0, 6);
+        assertTrue(limited.isDiscarded());
+        assertTrue(writer.mAborted);
+
+        // 破棄した後の書き込みと登録は無視される
+        limited.write(new byte[1], 0, 1);
+        limited.setContentDigest("digest");
+        limited.commit();
+        assertEquals(writer.mWritten.size(), 6);
+        assertNull(writer.mDigest);
+        assertEquals(writer.mCommitted, false);
+    }
+
+    @Test
+    public void ContentLengthが上限を超えていればキャッシュしない() throws Exception {
+        HttpHeader header = new HttpHeader().put(HttpHeader.HEADER_CONTENT_LENGTH, "11");
+        assertEquals(SizeLimitedCacheWriter.isTooLarge(newPolicy(10), header), true);
+        assertEquals(SizeLimitedCacheWriter.isTooLarge(newPolicy(11), header), false);
+        // 上限が無ければ制限しない
+        assertEquals(SizeLimitedCacheWriter.isTooLarge(newPolicy(0), header), false);
+        assertEquals(SizeLimitedCacheWriter.isTooLarge(newPolicy(10), new HttpHeader()), false);
+    }
+}
@@ -0,0 +1,154 @@
+package com.eaglesakura.android.net.cache.file;
+
+import com.eaglesakura.android.net.UnitTestCase;
+import com.eaglesakura.android.net.cache.ICacheController;
+import com.eaglesakura.android.net.cache.ICacheWriter;
+import com.eaglesakura.android.net.cache.StripedLock;
+import com.eaglesakura.android.net.request.ConnectRequest;
+import com.eaglesakura.android.net.request.SimpleHttpRequest;
+import com.eaglesakura.util.IOUtil;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FileCacheControllerTest extends UnitTestCase {
+
+    private static ConnectRequest newRequest(String path) {
+        SimpleHttpRequest request = new SimpleHttpRequest(ConnectRequest.Method.GET);
+        request.setUrl("https://example.com/" + path, null);
+        request.getCachePolicy().setCacheLimitTimeMs(ICacheController.CACHE_ONE_HOUR);
+        return request;
+    }
+
+    private static void write(FileCacheController controller, String path, int length) throws Exception {
+        ICacheWriter writer = controller.newCacheWriter(newRequest(path), null);
+        writer.write(new byte[length], 0, length);
+        writer.commit();
+        writer.close();
+    }
+
+    private static boolean hasCache(FileCacheController controller, String path) throws Exception {
+        InputStream stream = controller.openCache(newRequest(path));
+        IOUtil.close(stream);
+        return stream != null;
+    }
+
+    @Test
+    public void 上限を超えたら最も長く参照されていないものから削除する() throws Exception {
+        File dir = new File(getContext().getCacheDir(), "es-net-test-" + System.nanoTime());
+        FileCacheController controller = new FileCacheController(dir);
+        controller.setMaxBytes(250);
+
+        write(controller, "a", 100);
+        write(controller, "b", 100);
+        assertTrue(hasCache(controller, "a"));
+        write(controller, "c", 100);
+
+        // 削除はバックグラウンドで行われる
+        controller.getJournal().awaitIdle();
+        assertEquals(controller.getSizeBytes(), 200);
+        assertNull(controller.openCache(newRequest("b")));
+        assertTrue(hasCache(controller, "a"));
+        assertTrue(hasCache(controller, "c"));
+
+        // ジャーナルから一覧を復元する
+        controller.getJournal().awaitIdle();
+        CacheJournal restored = new CacheJournal(controller.mCacheDirectory, controller.mFileExt, FileCacheController.DEFAULT_MAX_BYTES, new StripedLock());
+        assertEquals(restored.getSizeBytes(), 200);
+        assertEquals(restored.size(), 2);
+    }
+
+    @Test
+    public void 同じディレクトリを使うインスタンスは一覧と上限を共有する() throws Exception {
+        File dir = new File(getContext().getCacheDir(), "es-net-test-" + System.nanoTime());
+        FileCacheController first = new FileCacheController(dir);
+        // 別の表記で同じディレクトリを指定する
+        FileCacheController second = new FileCacheController(new File(dir, "."));
+        first.setMaxBytes(250);
+
+        write(first, "a", 100);
+        write(second, "b", 100);
+        write(first, "c", 100);
+        first.getJournal().awaitIdle();
+
+        // 上限は合計に対して適用される
+        assertEquals(first.getSizeBytes(), 200);
+        assertEquals(second.getSizeBytes(), 200);
+        assertEquals(second.getMaxBytes(), 250);
+        assertNull(second.openCache(newRequest("a")));
+        assertNotNull(second.getMetadata(newRequest("c")));
+        assertTrue(hasCache(first, "b"));
+
+        // どちらのインスタンスが書き込んだ記録もジャーナルに残る
+        first.getJournal().awaitIdle();
+        CacheJournal restored = new CacheJournal(first.mCacheDirectory, first.mFileExt, FileCacheController.DEFAULT_MAX_BYTES, new StripedLock());
+        assertEquals(restored.getSizeBytes(), 200);
+        assertEquals(restored.size(), 2);
+    }
+
+    @Test
+    public void 同じキーへ並行して書き込んでも壊れたキャッシュを読まない() throws Exception {
+        File dir = new File(getContext().getCacheDir(), "es-net-test-" + System.nanoTime());
+        final FileCacheController controller = new FileCacheController(dir);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; ++i) {
+            final byte VALUE = (byte) i;
+            Thread thread = new Thread(() -> {
+                try {
+                    byte[] expected = new byte[1024 * 16];
+                    Arrays.fill(expected, VALUE);
+                    for (int k = 0; k < 50; ++k) {
+                        ICacheWriter writer = controller.newCacheWriter(newRequest("same"), null);
+                        writer.write(expected, 0, expected.length);
+                        writer.commit();
+                        writer.close();
+
+                        InputStream stream = controller.openCache(newRequest("same"));
+                        assertNotNull(stream);
+                        try {
+                            // いずれかのスレッドが書き込んだ内容が、混ざらずに読める
+                            byte[] read = IOUtil.toByteArray(stream, false);
+                            assertEquals(read.length, expected.length);
+                            byte[] filled = new byte[read.length];
+                            Arrays.fill(filled, read[0]);
+                            assertArrayEquals(read, filled);
+                        } finally {
+                            IOUtil.close(stream);
+                        }
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+
+        // 一時ファイルは残らない
+        String[] files = dir.list();
+        for (String file : files) {
+            assertTrue(file, !file.endsWith(".tmp"));
+        }
+    }
+}
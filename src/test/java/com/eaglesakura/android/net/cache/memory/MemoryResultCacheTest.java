@@ -0,0 +1,58 @@
+package com.eaglesakura.android.net.cache.memory;
+
+import com.eaglesakura.android.net.UnitTestCase;
+import com.eaglesakura.android.net.parser.ByteArrayParser;
+import com.eaglesakura.android.net.parser.JsonParser;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class MemoryResultCacheTest extends UnitTestCase {
+
+    @Test
+    public void 容量を超えたら最も長く参照されていないものから破棄する() throws Exception {
+        MemoryResultCache cache = new MemoryResultCache(300);
+        ByteArrayParser parser = ByteArrayParser.getInstance();
+        final long EXPIRES_AT = System.currentTimeMillis() + 1000 * 60;
+
+        cache.put("a", parser, new byte[100], "a", EXPIRES_AT);
+        cache.put("b", parser, new byte[100], "b", EXPIRES_AT);
+        cache.put("c", parser, new byte[100], "c", EXPIRES_AT);
+        assertEquals(cache.getSizeBytes(), 300);
+
+        // 参照されたものは残る
+        assertNotNull(cache.get("a", parser));
+        cache.put("d", parser, new byte[100], "d", EXPIRES_AT);
+        assertNull(cache.get("b", parser));
+        assertEquals(cache.get("a", parser).getDigest(), "a");
+        assertEquals(cache.getSizeBytes(), 300);
+
+        // 容量を超える戻り値は保持しない
+        cache.put("e", parser, new byte[301], "e", EXPIRES_AT);
+        assertNull(cache.get("e", parser));
+        assertEquals(cache.size(), 3);
+
+        cache.onTrimMemory(80);
+        assertEquals(cache.getSizeBytes(), 0);
+    }
+
+    @Test
+    public void 有効期限とパーサーの種類を区別する() throws Exception {
+        MemoryResultCache cache = new MemoryResultCache(1024);
+
+        cache.put("a", new JsonParser<>(String.class), "value", null, System.currentTimeMillis() + 1000 * 60);
+        assertNotNull(cache.get("a", new JsonParser<>(String.class)));
+        assertNull(cache.get("a", new JsonParser<>(Integer.class)));
+        assertNull(cache.get("a", ByteArrayParser.getInstance()));
+
+        cache.put("b", ByteArrayParser.getInstance(), new byte[1], null, System.currentTimeMillis() - 1);
+        assertNull(cache.get("b", ByteArrayParser.getInstance()));
+
+        // 見積もれない戻り値は保持しない
+        cache.put("c", ByteArrayParser.getInstance(), new Object(), null, System.currentTimeMillis() + 1000 * 60);
+        assertNull(cache.get("c", ByteArrayParser.getInstance()));
+    }
+}
@@ -0,0 +1,167 @@
+package com.eaglesakura.android.net.cache.tkvs;
+
+import com.eaglesakura.android.net.UnitTestCase;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BlobCacheStoreTest extends UnitTestCase {
+
+    private BlobCacheStore newStore() {
+        return new BlobCacheStore(getContext(), "es-net-test-" + System.nanoTime() + ".db");
+    }
+
+    private static byte[] newValue(int length, byte value) {
+        byte[] result = new byte[length];
+        Arrays.fill(result, value);
+        return result;
+    }
+
+    @Test
+    public void 読み込み中に削除されて保存し直されたエントリーを混ぜて読まない() throws Exception {
+        BlobCacheStore store = newStore();
+        final int LENGTH = 1024 * 600;
+        store.put("key", newValue(LENGTH, (byte) 1), null);
+        store.flush();
+
+        BlobCacheStore.Entry entry = store.get("key");
+        assertEquals(entry.getLength(), (long) LENGTH);
+        InputStream stream = store.open(entry);
+        byte[] buffer = new byte[1024];
+        assertEquals(stream.read(buffer), buffer.length);
+        assertEquals(buffer[0], (byte) 1);
+
+        // 同じキー、同じサイズで別の内容に置き換える
+        store.remove("key");
+        store.flush();
+        store.put("key", newValue(LENGTH, (byte) 2), null);
+        store.flush();
+
+        try {
+            int read;
+            while ((read = stream.read(buffer)) > 0) {
+                for (int i = 0; i < read; ++i) {
+                    assertEquals(buffer[i], (byte) 1);
+                }
+            }
+            fail();
+        } catch (IOException e) {
+            // 置き換えられたことを検出する
+        }
+
+        // 新しいエントリーは最後まで読める
+        InputStream replaced = store.open(store.get("key"));
+        int total = 0;
+        int read;
+        while ((read = replaced.read(buffer)) > 0) {
+            assertEquals(buffer[0], (byte) 2);
+            total += read;
+        }
+        assertEquals(total, LENGTH);
+    }
+
+    @Test
+    public void 複数のチャンクに分かれたエントリーを読み込める() throws Exception {
+        BlobCacheStore store = newStore();
+        byte[] value = new byte[1024 * 700];
+        for (int i = 0; i < value.length; ++i) {
+            value[i] = (byte) i;
+        }
+        store.put("key", value, "metadata");
+        store.flush();
+
+        BlobCacheStore.Entry entry = store.get("key");
+        assertEquals(entry.getMetadata(), "metadata");
+        InputStream stream = store.open(entry);
+        byte[] result = new byte[value.length];
+        int offset = 0;
+        int read;
+        while ((read = stream.read(result, offset, result.length - offset)) > 0) {
+            offset += read;
+        }
+        assertEquals(offset, value.length);
+        assertArrayEquals(result, value);
+        assertTrue(stream.read() < 0);
+    }
+
+    private static byte[] readAll(InputStream stream) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = stream.read(buffer)) > 0) {
+            result.write(buffer, 0, read);
+        }
+        return result.toByteArray();
+    }
+
+    @Test
+    public void 書き込み待ちの変更が書き込み前から見える() throws Exception {
+        BlobCacheStore store = newStore();
+        store.put("key", newValue(16, (byte) 1), "v1");
+        store.flush();
+
+        // 書き込み待ちの保存
+        store.put("key", newValue(32, (byte) 2), "v2");
+        BlobCacheStore.Entry entry = store.get("key");
+        assertEquals(entry.getMetadata(), "v2");
+        assertArrayEquals(readAll(store.open(entry)), newValue(32, (byte) 2));
+        assertEquals(store.getMetadata("key"), "v2");
+
+        // 書き込み待ちの削除
+        store.remove("key");
+        assertNull(store.get("key"));
+        assertNull(store.getMetadata("key"));
+
+        store.flush();
+        assertNull(store.get("key"));
+    }
+
+    @Test
+    public void 書き込み待ちの再検証は内容を変えずにメタデータだけを差し替える() throws Exception {
+        BlobCacheStore store = newStore();
+        store.put("key", newValue(16, (byte) 1), "v1");
+        store.flush();
+
+        store.refresh("key", "v2");
+        BlobCacheStore.Entry entry = store.get("key");
+        assertEquals(entry.getMetadata(), "v2");
+        assertArrayEquals(readAll(store.open(entry)), newValue(16, (byte) 1));
+
+        store.flush();
+        entry = store.get("key");
+        assertEquals(entry.getMetadata(), "v2");
+        assertArrayEquals(readAll(store.open(entry)), newValue(16, (byte) 1));
+    }
+
+    @Test
+    public void 作成時に以前のバージョンのデータベースをジャーナルごと削除する() throws Exception {
+        File legacy = new File(getContext().getCacheDir(), "es_net_cache.db");
+        File[] files = {
+                legacy,
+                new File(legacy.getAbsolutePath() + "-journal"),
+                new File(legacy.getAbsolutePath() + "-wal"),
+                new File(legacy.getAbsolutePath() + "-shm"),
+        };
+        for (File file : files) {
+            new FileOutputStream(file).close();
+        }
+
+        // 最初の読み込みでデータベースが作成される
+        assertNull(newStore().get("key"));
+        for (File file : files) {
+            assertEquals(file.exists(), false);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.eaglesakura.android.net.host;
+
+import com.eaglesakura.android.net.UnitTestCase;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest extends UnitTestCase {
+
+    @Test
+    public void 連続失敗でOPENとなり時間経過でHALF_OPENとなる() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(3, 1000, 1);
+        long now = 0;
+
+        for (int i = 0; i < 3; ++i) {
+            assertEquals(breaker.tryAcquire(now), 0);
+            breaker.onFailure(now);
+        }
+        assertEquals(breaker.getState(now), CircuitBreaker.State.OPEN);
+        assertEquals(breaker.getTripCount(), 1);
+
+        // OPEN中は拒否される
+        assertTrue(breaker.tryAcquire(now) > 0);
+        assertEquals(breaker.getRejectedCount(), 1);
+
+        // 時間経過後は1件のみ許可される
+        now += TimeUnit.MILLISECONDS.toNanos(1000);
+        assertEquals(breaker.getState(now), CircuitBreaker.State.HALF_OPEN);
+        assertEquals(breaker.tryAcquire(now), 0);
+        assertTrue(breaker.tryAcquire(now) > 0);
+
+        // 試行に成功したら閉じる
+        breaker.onSuccess();
+        assertEquals(breaker.getState(now), CircuitBreaker.State.CLOSED);
+        assertEquals(breaker.tryAcquire(now), 0);
+    }
+
+    @Test
+    public void HALF_OPENで失敗したら再度OPENとなる() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 1000, 1);
+        long now = 0;
+
+        breaker.tryAcquire(now);
+        breaker.onFailure(now);
+        now += TimeUnit.MILLISECONDS.toNanos(1000);
+        assertEquals(breaker.tryAcquire(now), 0);
+        breaker.onFailure(now);
+
+        assertEquals(breaker.getState(now), CircuitBreaker.State.OPEN);
+        assertEquals(breaker.getTripCount(), 2);
+    }
+
+    @Test
+    public void リトライ予算は成功数に比例して増える() throws Exception {
+        RetryBudget budget = new RetryBudget(0.5, 0, 1000);
+        long now = TimeUnit.SECONDS.toNanos(10);
+
+        assertTrue(!budget.tryRetry(now));
+        for (int i = 0; i < 4; ++i) {
+            budget.onSuccess(now);
+        }
+        assertTrue(budget.tryRetry(now));
+        assertTrue(budget.tryRetry(now));
+        assertTrue(!budget.tryRetry(now));
+        assertEquals(budget.getExhaustedCount(), 2);
+
+        // 集計期間を過ぎたら成功数は失効する
+        now += TimeUnit.MILLISECONDS.toNanos(2000);
+        assertTrue(!budget.tryRetry(now));
+    }
+}
@@ -0,0 +1,71 @@
+package com.eaglesakura.android.net.host;
+
+import com.eaglesakura.android.net.HedgePolicy;
+import com.eaglesakura.android.net.UnitTestCase;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyTrackerTest extends UnitTestCase {
+
+    @Test
+    public void 応答時間のパーセンタイルからヘッジの待ち時間を求める() throws Exception {
+        LatencyTracker tracker = new LatencyTracker();
+        HedgePolicy policy = new HedgePolicy();
+        policy.setMinSamples(10);
+
+        // サンプルが足りないうちはヘッジしない
+        for (int i = 1; i <= 9; ++i) {
+            tracker.onCompleted("example.com", 10, i * 10);
+        }
+        assertEquals(policy.getHedgeDelayMs(tracker, "example.com"), -1);
+
+        tracker.onCompleted("example.com", 10, 1000);
+        assertEquals((long) tracker.getPercentileMs("example.com", 0.5, 1), 50);
+        assertEquals(policy.getHedgeDelayMs(tracker, "example.com"), 1000);
+
+        // 固定値が指定されていれば統計を使わない
+        assertEquals(new HedgePolicy(200).getHedgeDelayMs(tracker, "other.example.com"), 200);
+    }
+
+    @Test
+    public void ヘッジ数は完了した通信数の割合に制限される() throws Exception {
+        LatencyTracker tracker = new LatencyTracker();
+        tracker.setHedgeBudget(0.1, 0, 1000 * 10);
+
+        assertTrue(!tracker.tryHedge("example.com"));
+        for (int i = 0; i < 20; ++i) {
+            tracker.onCompleted("example.com", 10, 100);
+        }
+        assertTrue(tracker.tryHedge("example.com"));
+        assertTrue(tracker.tryHedge("example.com"));
+        assertTrue(!tracker.tryHedge("example.com"));
+        assertEquals(tracker.getHedgeCount("example.com"), 2);
+        assertEquals(tracker.getHedgeRejectedCount("example.com"), 2);
+    }
+
+    @Test
+    public void 適応タイムアウトは応答時間の平均と分散から求める() throws Exception {
+        LatencyTracker tracker = new LatencyTracker();
+        tracker.setAdaptiveTimeoutRange(100, 1000 * 60);
+
+        // 無効な場合と記録が無い場合は指定値を使う
+        tracker.onCompleted("example.com", 200, 200);
+        assertEquals(tracker.getConnectTimeoutMs("example.com", 10000), 10000);
+        tracker.setAdaptiveTimeoutEnabled(true);
+        assertEquals(tracker.getConnectTimeoutMs("other.example.com", 10000), 10000);
+
+        // 安定したホストでは平均に近づく
+        for (int i = 0; i < 100; ++i) {
+            tracker.onCompleted("example.com", 200, 200);
+        }
+        long stable = tracker.getConnectTimeoutMs("example.com", 10000);
+        assertTrue(stable >= 200 && stable < 300);
+
+        // ばらつきが大きくなればタイムアウトは延びる
+        tracker.onCompleted("example.com", 3000, 3000);
+        assertTrue(tracker.getReadTimeoutMs("example.com", 10000) > 1000);
+    }
+}
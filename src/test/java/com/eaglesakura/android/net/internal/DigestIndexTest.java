@@ -0,0 +1,126 @@
+package com.eaglesakura.android.net.internal;
+
+import com.eaglesakura.android.net.UnitTestCase;
+
+import org.junit.Test;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DigestIndexTest extends UnitTestCase {
+
+    private static String newDatabaseName() {
+        return "es-net-test-" + System.nanoTime() + ".db";
+    }
+
+    @Test
+    public void 書き込んだダイジェストを読み込み直せる() throws Exception {
+        final String DATABASE_NAME = newDatabaseName();
+        DigestIndex index = new DigestIndex(getContext(), DATABASE_NAME);
+        index.put("a", "digest-a");
+        index.put("b", "digest-b");
+        index.put("a", "digest-a2");
+        index.flush();
+
+        DigestIndex loaded = new DigestIndex(getContext(), DATABASE_NAME);
+        assertEquals(loaded.size(), 2);
+        assertEquals(loaded.get("a"), "digest-a2");
+        assertEquals(loaded.get("b"), "digest-b");
+        assertNull(loaded.get("c"));
+    }
+
+    @Test
+    public void 上限を超えたら最も長く参照されていないものから削除する() throws Exception {
+        final String DATABASE_NAME = newDatabaseName();
+        DigestIndex index = new DigestIndex(getContext(), DATABASE_NAME);
+        index.setMaxEntries(2);
+        index.put("a", "digest-a");
+        index.put("b", "digest-b");
+        // 参照されたものは残る
+        index.get("a");
+        index.put("c", "digest-c");
+
+        assertEquals(index.size(), 2);
+        assertNull(index.get("b"));
+        assertEquals(index.get("a"), "digest-a");
+        assertEquals(index.get("c"), "digest-c");
+
+        // 削除もデータベースへ反映される
+        index.flush();
+        DigestIndex loaded = new DigestIndex(getContext(), DATABASE_NAME);
+        assertEquals(loaded.size(), 2);
+        assertNull(loaded.get("b"));
+    }
+
+    @Test
+    public void 参照しただけの順序も書き込まれ読み込み後の削除順に反映される() throws Exception {
+        final String DATABASE_NAME = newDatabaseName();
+        DigestIndex index = new DigestIndex(getContext(), DATABASE_NAME);
+        index.put("a", "digest-a");
+        index.put("b", "digest-b");
+        index.put("c", "digest-c");
+        index.flush();
+
+        // 内容が変わらない参照と受信は、参照日時のみが書き込まれる
+        index.get("a");
+        index.put("b", "digest-b");
+        index.flush();
+
+        DigestIndex loaded = new DigestIndex(getContext(), DATABASE_NAME);
+        assertEquals(loaded.size(), 3);
+        loaded.setMaxEntries(2);
+        assertNull(loaded.get("c"));
+        assertEquals(loaded.get("a"), "digest-a");
+        assertEquals(loaded.get("b"), "digest-b");
+    }
+
+    @Test
+    public void 以前のバージョンが記録したダイジェストを引き継いで古いテーブルを削除する() throws Exception {
+        File legacyFile = new File(getContext().getCacheDir(), "es_net_cache.db");
+        SQLiteDatabase legacy = SQLiteDatabase.openDatabase(legacyFile.getAbsolutePath(), null, SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.CREATE_IF_NECESSARY);
+        try {
+            legacy.execSQL("CREATE TABLE DIGEST_CACHE (_key TEXT PRIMARY KEY, _value TEXT, _date INTEGER)");
+            legacy.execSQL("INSERT INTO DIGEST_CACHE VALUES ('a', 'digest-a', 3)");
+            legacy.execSQL("INSERT INTO DIGEST_CACHE VALUES ('b', 'digest-b', 1)");
+            legacy.execSQL("INSERT INTO DIGEST_CACHE VALUES ('c', 'digest-c', 2)");
+        } finally {
+            legacy.close();
+        }
+
+        try {
+            DigestIndex index = new DigestIndex(getContext(), newDatabaseName());
+            // 最後に書き込まれたものから上限まで引き継ぐ
+            index.setMaxEntries(2);
+            assertEquals(index.size(), 2);
+            assertEquals(index.get("a"), "digest-a");
+            assertEquals(index.get("c"), "digest-c");
+            assertNull(index.get("b"));
+
+            // 引き継いだ後、古いテーブルは削除される
+            boolean dropped = false;
+            for (int i = 0; i < 100 && !dropped; ++i) {
+                Thread.sleep(10);
+                legacy = SQLiteDatabase.openDatabase(legacyFile.getAbsolutePath(), null, SQLiteDatabase.OPEN_READONLY);
+                try {
+                    Cursor cursor = legacy.rawQuery("SELECT name FROM sqlite_master WHERE name = 'DIGEST_CACHE'", null);
+                    try {
+                        dropped = !cursor.moveToNext();
+                    } finally {
+                        cursor.close();
+                    }
+                } finally {
+                    legacy.close();
+                }
+            }
+            assertTrue(dropped);
+        } finally {
+            legacyFile.delete();
+        }
+    }
+}
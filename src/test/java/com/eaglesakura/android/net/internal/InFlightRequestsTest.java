@@ -0,0 +1,202 @@
+package com.eaglesakura.android.net.internal;
+
+import com.eaglesakura.android.net.HttpHeader;
+import com.eaglesakura.android.net.NetworkProfile;
+import com.eaglesakura.android.net.Result;
+import com.eaglesakura.android.net.UnitTestCase;
+import com.eaglesakura.android.net.error.DeadlineExceededException;
+import com.eaglesakura.android.net.parser.RequestParser;
+import com.eaglesakura.android.net.request.ConnectRequest;
+
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class InFlightRequestsTest extends UnitTestCase {
+
+    /**
+     * 指定した値を返すだけの戻り値
+     */
+    static class ValueResult extends Result<String> {
+        final String mValue;
+
+        ValueResult(String value) {
+            mValue = value;
+        }
+
+        @Override
+        public String getCacheDigest() {
+            return null;
+        }
+
+        @Override
+        public String getContentDigest() {
+            return null;
+        }
+
+        @Override
+        public ConnectRequest getRequest() {
+            return null;
+        }
+
+        @Override
+        public HttpHeader getResponseHeader() {
+            return null;
+        }
+
+        @Override
+        public boolean isModified() {
+            return true;
+        }
+
+        @Override
+        public String getResult() {
+            return mValue;
+        }
+
+        @Override
+        public NetworkProfile getProfile() {
+            return null;
+        }
+    }
+
+    static final RequestParser<String> PARSER = (sender, data) -> null;
+
+    static void await(CountDownLatch latch) throws InterruptedIOException {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Test
+    public void 後続のリクエストは先行リクエストの結果を受け取る() throws Exception {
+        final InFlightRequests requests = new InFlightRequests();
+        final CountDownLatch leaderStarted = new CountDownLatch(1);
+        final CountDownLatch leaderFinish = new CountDownLatch(1);
+        final AtomicInteger loadCount = new AtomicInteger();
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Future<Result<String>> leader = executor.submit(() -> requests.execute("key", PARSER, new CallbackHolder<>(null, null), () -> {
+                loadCount.incrementAndGet();
+                leaderStarted.countDown();
+                await(leaderFinish);
+                return new ValueResult("leader");
+            }));
+            assertTrue(leaderStarted.await(1, TimeUnit.SECONDS));
+
+            Future<Result<String>> follower = executor.submit(() -> requests.execute("key", PARSER, new CallbackHolder<>(null, null), () -> {
+                loadCount.incrementAndGet();
+                return new ValueResult("follower");
+            }));
+            // 後続のリクエストが待機に入るまで待つ
+            Thread.sleep(100);
+            leaderFinish.countDown();
+
+            Result<String> leaderResult = leader.get(1, TimeUnit.SECONDS);
+            assertTrue(follower.get(1, TimeUnit.SECONDS) == leaderResult);
+            assertEquals(leaderResult.getResult(), "leader");
+            assertEquals(loadCount.get(), 1);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void 先行リクエストがキャンセルされたら後続のリクエストが通信を引き継ぐ() throws Exception {
+        final InFlightRequests requests = new InFlightRequests();
+        final CountDownLatch leaderStarted = new CountDownLatch(1);
+        final CountDownLatch leaderFinish = new CountDownLatch(1);
+        final AtomicInteger loadCount = new AtomicInteger();
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Future<Result<String>> leader = executor.submit(() -> requests.execute("key", PARSER, new CallbackHolder<>(null, null), () -> {
+                loadCount.incrementAndGet();
+                leaderStarted.countDown();
+                await(leaderFinish);
+                throw new InterruptedIOException("leader canceled");
+            }));
+            assertTrue(leaderStarted.await(1, TimeUnit.SECONDS));
+
+            Future<Result<String>> follower = executor.submit(() -> requests.execute("key", PARSER, new CallbackHolder<>(null, null), () -> {
+                loadCount.incrementAndGet();
+                return new ValueResult("follower");
+            }));
+            Thread.sleep(100);
+            leaderFinish.countDown();
+
+            try {
+                leader.get(1, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof InterruptedIOException);
+            }
+
+            // キャンセルは後続のリクエストへ伝わらず、改めて通信する
+            assertEquals(follower.get(1, TimeUnit.SECONDS).getResult(), "follower");
+            assertEquals(loadCount.get(), 2);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void 先行リクエストが期限切れになっても期限の無い後続のリクエストは通信を引き継ぐ() throws Exception {
+        final InFlightRequests requests = new InFlightRequests();
+        final CountDownLatch leaderStarted = new CountDownLatch(1);
+        final AtomicInteger loadCount = new AtomicInteger();
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            final CallbackHolder<String> leaderCallback = new CallbackHolder<String>(null, null).withDeadline(200);
+            Future<Result<String>> leader = executor.submit(() -> {
+                try {
+                    return requests.execute("key", PARSER, leaderCallback, () -> {
+                        loadCount.incrementAndGet();
+                        leaderStarted.countDown();
+                        // 期限を迎えるまで通信が終わらない
+                        if (leaderCallback.awaitCancel(5000)) {
+                            throw leaderCallback.newCanceledException();
+                        }
+                        return new ValueResult("leader");
+                    });
+                } finally {
+                    leaderCallback.release();
+                }
+            });
+            assertTrue(leaderStarted.await(1, TimeUnit.SECONDS));
+
+            Future<Result<String>> follower = executor.submit(() -> requests.execute("key", PARSER, new CallbackHolder<>(null, null), () -> {
+                loadCount.incrementAndGet();
+                return new ValueResult("follower");
+            }));
+
+            try {
+                leader.get(2, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof DeadlineExceededException);
+            }
+
+            // 先行リクエストの期限は後続のリクエストへ伝わらない
+            assertEquals(follower.get(2, TimeUnit.SECONDS).getResult(), "follower");
+            assertEquals(loadCount.get(), 2);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.eaglesakura.android.net.internal;
+
+import com.eaglesakura.android.net.NetworkConnector;
+import com.eaglesakura.android.net.Result;
+import com.eaglesakura.android.net.UnitTestCase;
+import com.eaglesakura.android.net.cache.ICacheController;
+import com.eaglesakura.android.net.cache.file.FileCacheController;
+import com.eaglesakura.android.net.parser.ByteArrayParser;
+import com.eaglesakura.android.net.request.ConnectRequest;
+import com.eaglesakura.android.net.request.SimpleHttpRequest;
+import com.eaglesakura.android.net.transport.HttpExchange;
+import com.eaglesakura.android.net.transport.HttpTransport;
+import com.eaglesakura.util.IOUtil;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class StaleWhileRevalidateTest extends UnitTestCase {
+
+    /**
+     * 通信のたびに"v1", "v2"...と内容を変えて、即座に期限切れとなるレスポンスを返す
+     */
+    static class VersionTransport implements HttpTransport {
+        final AtomicInteger mRequestCount = new AtomicInteger();
+
+        /**
+         * 2回目以降の通信はこれが開くまで応答しない
+         */
+        final CountDownLatch mRefreshGate = new CountDownLatch(1);
+
+        @Override
+        public HttpExchange open(ConnectRequest request, String url, long connectTimeoutMs, long readTimeoutMs) throws IOException {
+            final int version = mRequestCount.incrementAndGet();
+            if (version > 1) {
+                try {
+                    mRefreshGate.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+
+            final byte[] body = ("v" + version).getBytes("UTF-8");
+            return new HttpExchange() {
+                @Override
+                public void addRequestHeader(String key, String value) {
+                }
+
+                @Override
+                public OutputStream openRequestBody(long length) throws IOException {
+                    return new ByteArrayOutputStream();
+                }
+
+                @Override
+                public int getResponseCode() throws IOException {
+                    return 200;
+                }
+
+                @Override
+                public Map<String, List<String>> getResponseHeaders() throws IOException {
+                    Map<String, List<String>> result = new HashMap<>();
+                    result.put(null, Arrays.asList("HTTP/1.1 200 OK"));
+                    result.put("Cache-Control", Arrays.asList("max-age=0"));
+                    result.put("Content-Length", Arrays.asList(String.valueOf(body.length)));
+                    return result;
+                }
+
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    return new ByteArrayInputStream(body);
+                }
+
+                @Override
+                public InputStream getErrorStream() throws IOException {
+                    return null;
+                }
+
+                @Override
+                public void cancel() {
+                }
+
+                @Override
+                public void disconnect() {
+                }
+            };
+        }
+    }
+
+    NetworkConnector newConnector(VersionTransport transport) throws IOException {
+        NetworkConnector connector = new NetworkConnector(getContext());
+        connector.setTransport(transport);
+        connector.setCacheController(new FileCacheController(new File(getContext().getCacheDir(), "es-net-test-" + System.nanoTime())));
+        return connector;
+    }
+
+    static SimpleHttpRequest newRequest(long staleWhileRevalidateMs) {
+        SimpleHttpRequest request = new SimpleHttpRequest(ConnectRequest.Method.GET);
+        request.setUrl("http://127.0.0.1/stale", null);
+        request.getCachePolicy().setServerCacheControlEnabled(true);
+        request.getCachePolicy().setStaleWhileRevalidateMs(staleWhileRevalidateMs);
+        return request;
+    }
+
+    static String readCache(NetworkConnector connector, ConnectRequest request) throws IOException {
+        InputStream is = ((FileCacheController) connector.getCacheController()).openStaleCache(request, Long.MAX_VALUE);
+        try {
+            return new String(IOUtil.toByteArray(is, false), "UTF-8");
+        } finally {
+            IOUtil.close(is);
+        }
+    }
+
+    static String toString(Result<byte[]> result) throws IOException {
+        return new String(result.getResult(), "UTF-8");
+    }
+
+    @Test
+    public void 猶予時間内の期限切れキャッシュは通信を待たずに返される() throws Exception {
+        VersionTransport transport = new VersionTransport();
+        NetworkConnector connector = newConnector(transport);
+        SimpleHttpRequest request = newRequest(ICacheController.CACHE_ONE_HOUR);
+        try {
+            assertEquals(toString(connector.connect(request, ByteArrayParser.getInstance(), null)), "v1");
+
+            // 更新の通信が止まっていても、古いキャッシュが返される
+            Result<byte[]> result = connector.connect(request, ByteArrayParser.getInstance(), null);
+            assertEquals(toString(result), "v1");
+            assertEquals(result.isStale(), true);
+        } finally {
+            transport.mRefreshGate.countDown();
+        }
+    }
+
+    @Test
+    public void 更新は一度だけ行われキャッシュが書き換えられる() throws Exception {
+        VersionTransport transport = new VersionTransport();
+        NetworkConnector connector = newConnector(transport);
+        SimpleHttpRequest request = newRequest(ICacheController.CACHE_ONE_HOUR);
+        try {
+            assertEquals(toString(connector.connect(request, ByteArrayParser.getInstance(), null)), "v1");
+
+            // 更新中に何度リクエストしても、更新の通信は1回だけ
+            for (int i = 0; i < 3; ++i) {
+                assertEquals(toString(connector.connect(request, ByteArrayParser.getInstance(), null)), "v1");
+            }
+            for (int i = 0; i < 100 && transport.mRequestCount.get() < 2; ++i) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(100);
+            assertEquals(transport.mRequestCount.get(), 2);
+        } finally {
+            transport.mRefreshGate.countDown();
+        }
+
+        // 更新された内容がキャッシュへ書き込まれる
+        for (int i = 0; i < 100 && !"v2".equals(readCache(connector, request)); ++i) {
+            Thread.sleep(10);
+        }
+        assertEquals(readCache(connector, request), "v2");
+        assertEquals(transport.mRequestCount.get(), 2);
+    }
+
+    @Test
+    public void 猶予時間を過ぎたキャッシュは使わずに通信する() throws Exception {
+        VersionTransport transport = new VersionTransport();
+        transport.mRefreshGate.countDown();
+        NetworkConnector connector = newConnector(transport);
+        SimpleHttpRequest request = newRequest(ICacheController.CACHE_ONE_HOUR);
+        assertEquals(toString(connector.connect(request, ByteArrayParser.getInstance(), null)), "v1");
+
+        Thread.sleep(50);
+        request.getCachePolicy().setStaleWhileRevalidateMs(10);
+        Result<byte[]> result = connector.connect(request, ByteArrayParser.getInstance(), null);
+        assertEquals(toString(result), "v2");
+        assertEquals(result.isStale(), false);
+        assertEquals(transport.mRequestCount.get(), 2);
+    }
+}
@@ -0,0 +1,60 @@
+package com.eaglesakura.android.net.scheduler;
+
+import com.eaglesakura.android.net.UnitTestCase;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HashedTimerWheelTest extends UnitTestCase {
+
+    @Test
+    public void 期限の早い順に実行される() throws Exception {
+        HashedTimerWheel wheel = new HashedTimerWheel(5, 8);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch latch = new CountDownLatch(3);
+
+        // 1周を超える待ち時間も正しく扱う
+        wheel.newTimeout(() -> {
+            order.add(3);
+            latch.countDown();
+        }, 150);
+        wheel.newTimeout(() -> {
+            order.add(1);
+            latch.countDown();
+        }, 10);
+        wheel.newTimeout(() -> {
+            order.add(2);
+            latch.countDown();
+        }, 60);
+
+        long start = System.currentTimeMillis();
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 140);
+        assertEquals(order, Arrays.asList(1, 2, 3));
+        assertEquals(wheel.getPendingCount(), 0);
+    }
+
+    @Test
+    public void 取り消したタイムアウトは実行されない() throws Exception {
+        HashedTimerWheel wheel = new HashedTimerWheel(5, 8);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<String> fired = Collections.synchronizedList(new ArrayList<String>());
+
+        HashedTimerWheel.Timeout canceled = wheel.newTimeout(() -> fired.add("canceled"), 20);
+        wheel.newTimeout(latch::countDown, 50);
+        assertTrue(canceled.cancel());
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(fired.size(), 0);
+        assertTrue(!canceled.cancel());
+    }
+}
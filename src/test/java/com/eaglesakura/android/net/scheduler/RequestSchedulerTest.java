@@ -0,0 +1,102 @@
+package com.eaglesakura.android.net.scheduler;
+
+import com.eaglesakura.android.net.UnitTestCase;
+import com.eaglesakura.android.net.request.ConnectRequest;
+import com.eaglesakura.android.net.request.SimpleHttpRequest;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RequestSchedulerTest extends UnitTestCase {
+
+    private static SimpleHttpRequest newRequest(String url, ConnectRequest.Priority priority) {
+        SimpleHttpRequest request = new SimpleHttpRequest(ConnectRequest.Method.GET);
+        request.setUrl(url, null);
+        request.setPriority(priority);
+        return request;
+    }
+
+    private static void waitQueueDepth(RequestScheduler scheduler, int depth) throws Exception {
+        for (int i = 0; i < 500 && scheduler.getQueueDepth() != depth; ++i) {
+            Thread.sleep(10);
+        }
+        assertEquals(scheduler.getQueueDepth(), depth);
+    }
+
+    @Test
+    public void 優先度の高いリクエストから実行される() throws Exception {
+        final RequestScheduler scheduler = new RequestScheduler();
+        scheduler.setDefaultLimit(1, 0, 0);
+
+        RequestScheduler.Ticket first = scheduler.acquire(newRequest("http://example.com/first", ConnectRequest.Priority.NORMAL), null);
+        assertEquals(scheduler.getHostRunningCount("example.com"), 1);
+
+        final List<ConnectRequest.Priority> order = Collections.synchronizedList(new ArrayList<ConnectRequest.Priority>());
+        List<Thread> threads = new ArrayList<>();
+        for (final ConnectRequest.Priority priority : new ConnectRequest.Priority[]{ConnectRequest.Priority.PREFETCH, ConnectRequest.Priority.NORMAL, ConnectRequest.Priority.INTERACTIVE}) {
+            Thread thread = new Thread(() -> {
+                try {
+                    RequestScheduler.Ticket ticket = scheduler.acquire(newRequest("http://example.com/" + priority, priority), null);
+                    order.add(priority);
+                    ticket.release();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+            waitQueueDepth(scheduler, threads.size());
+        }
+
+        assertEquals(scheduler.getQueueDepth(ConnectRequest.Priority.PREFETCH), 1);
+        assertEquals(scheduler.getHostQueueDepth("example.com"), 3);
+
+        first.release();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+
+        assertEquals(order.size(), 3);
+        assertEquals(order.get(0), ConnectRequest.Priority.INTERACTIVE);
+        assertEquals(order.get(1), ConnectRequest.Priority.NORMAL);
+        assertEquals(order.get(2), ConnectRequest.Priority.PREFETCH);
+        assertEquals(scheduler.getQueueDepth(), 0);
+        assertEquals(scheduler.getHostRunningCount("example.com"), 0);
+    }
+
+    @Test
+    public void ホストごとに同時実行数が制限される() throws Exception {
+        RequestScheduler scheduler = new RequestScheduler();
+        scheduler.setDefaultLimit(1, 0, 0);
+
+        RequestScheduler.Ticket a = scheduler.acquire(newRequest("http://a.example.com/", ConnectRequest.Priority.NORMAL), null);
+        // 別ホストであれば待たされない
+        RequestScheduler.Ticket b = scheduler.acquire(newRequest("http://b.example.com/", ConnectRequest.Priority.NORMAL), null);
+
+        assertEquals(scheduler.getHostRunningCount("a.example.com"), 1);
+        assertEquals(scheduler.getHostRunningCount("b.example.com"), 1);
+
+        a.release();
+        b.release();
+        // 二重releaseは無視される
+        a.release();
+        assertEquals(scheduler.getHostRunningCount("a.example.com"), 0);
+    }
+
+    @Test
+    public void トークンが不足している場合は補充を待つ() throws Exception {
+        TokenBucket bucket = new TokenBucket(1.0, 2);
+        assertEquals(bucket.tryAcquire(), 0);
+        assertEquals(bucket.tryAcquire(), 0);
+
+        long waitNanos = bucket.tryAcquire();
+        assertTrue(waitNanos > 0);
+        assertTrue(waitNanos <= 1000L * 1000L * 1000L);
+    }
+}
@@ -0,0 +1,417 @@
+package com.eaglesakura.android.net.transport.http2;
+
+import com.eaglesakura.android.net.UnitTestCase;
+import com.eaglesakura.android.net.request.ConnectRequest;
+import com.eaglesakura.android.net.request.SimpleHttpRequest;
+import com.eaglesakura.android.net.transport.HttpExchange;
+import com.eaglesakura.util.IOUtil;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Http2TransportTest extends UnitTestCase {
+
+    /**
+     * 同時に届くまでレスポンスを返さないリクエスト数
+     */
+    static final int CONCURRENT_REQUESTS = 4;
+
+    /**
+     * クライアントの受信ウィンドウを超えるレスポンスサイズ
+     */
+    static final int LARGE_RESPONSE_SIZE = Http2Connection.STREAM_WINDOW_SIZE * 3;
+
+    /**
+     * ループバックで動作するテスト用h2cサーバー
+     */
+    static class LoopbackServer {
+        final ServerSocket mServerSocket;
+
+        final AtomicInteger mAcceptCount = new AtomicInteger();
+
+        final AtomicInteger mResetCount = new AtomicInteger();
+
+        LoopbackServer() throws IOException {
+            mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            Thread thread = new Thread(() -> {
+                try {
+                    while (true) {
+                        final Socket socket = mServerSocket.accept();
+                        mAcceptCount.incrementAndGet();
+                        new Thread(() -> new Session(socket).run()).start();
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String getUrl(String path) {
+            return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+        }
+
+        void close() {
+            IOUtil.close(mServerSocket);
+        }
+
+        /**
+         * 1接続分のフレーム処理を行う
+         */
+        class Session {
+            final Socket mSocket;
+
+            final Hpack.Encoder mEncoder = new Hpack.Encoder();
+
+            final Hpack.Decoder mDecoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+
+            final Map<Integer, String> mPaths = new HashMap<>();
+
+            final Map<Integer, ByteArrayOutputStream> mBodies = new HashMap<>();
+
+            final List<Integer> mWaiting = new ArrayList<>();
+
+            /**
+             * 送信待ちのレスポンスボディ
+             */
+            final Map<Integer, byte[]> mOutputs = new HashMap<>();
+
+            final Map<Integer, Integer> mOutputOffsets = new HashMap<>();
+
+            final Map<Integer, Long> mStreamWindows = new HashMap<>();
+
+            long mConnectionWindow = Http2Connection.DEFAULT_WINDOW_SIZE;
+
+            long mInitialWindow = Http2Connection.DEFAULT_WINDOW_SIZE;
+
+            OutputStream mOutput;
+
+            Session(Socket socket) {
+                mSocket = socket;
+            }
+
+            void run() {
+                try {
+                    DataInputStream is = new DataInputStream(mSocket.getInputStream());
+                    mOutput = mSocket.getOutputStream();
+
+                    byte[] preface = new byte[Http2Connection.CONNECTION_PREFACE.length];
+                    is.readFully(preface);
+                    if (!Arrays.equals(preface, Http2Connection.CONNECTION_PREFACE)) {
+                        throw new IOException("invalid preface");
+                    }
+                    writeFrame(Http2Connection.TYPE_SETTINGS, 0, 0, new byte[]{0, Http2Connection.SETTINGS_MAX_CONCURRENT_STREAMS, 0, 0, 0, 100});
+
+                    while (true) {
+                        byte[] header = new byte[9];
+                        is.readFully(header);
+                        int length = ((header[0] & 0xFF) << 16) | ((header[1] & 0xFF) << 8) | (header[2] & 0xFF);
+                        int type = header[3];
+                        int flags = header[4];
+                        int streamId = readInt(header, 5) & 0x7FFFFFFF;
+                        byte[] payload = new byte[length];
+                        is.readFully(payload);
+                        onFrame(type, flags, streamId, payload);
+                    }
+                } catch (Exception e) {
+                    // closed
+                } finally {
+                    IOUtil.close(mSocket);
+                }
+            }
+
+            void onFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+                switch (type) {
+                    case Http2Connection.TYPE_SETTINGS:
+                        if ((flags & Http2Connection.FLAG_ACK) == 0) {
+                            for (int i = 0; i < payload.length; i += 6) {
+                                if (payload[i + 1] == Http2Connection.SETTINGS_INITIAL_WINDOW_SIZE) {
+                                    mInitialWindow = readInt(payload, i + 2);
+                                }
+                            }
+                            writeFrame(Http2Connection.TYPE_SETTINGS, Http2Connection.FLAG_ACK, 0, new byte[0]);
+                        }
+                        break;
+                    case Http2Connection.TYPE_WINDOW_UPDATE:
+                        if (streamId == 0) {
+                            mConnectionWindow += readInt(payload, 0);
+                        } else if (mStreamWindows.containsKey(streamId)) {
+                            mStreamWindows.put(streamId, mStreamWindows.get(streamId) + readInt(payload, 0));
+                        }
+                        pump();
+                        break;
+                    case Http2Connection.TYPE_HEADERS:
+                        for (String[] it : mDecoder.decode(payload)) {
+                            if (":path".equals(it[0])) {
+                                mPaths.put(streamId, it[1]);
+                            }
+                        }
+                        mStreamWindows.put(streamId, mInitialWindow);
+                        mBodies.put(streamId, new ByteArrayOutputStream());
+                        if ((flags & Http2Connection.FLAG_END_STREAM) != 0) {
+                            onRequest(streamId);
+                        }
+                        break;
+                    case Http2Connection.TYPE_DATA:
+                        mBodies.get(streamId).write(payload);
+                        if (payload.length > 0) {
+                            // 受信した分だけウィンドウを戻す
+                            writeFrame(Http2Connection.TYPE_WINDOW_UPDATE, 0, 0, toBytes(payload.length));
+                            writeFrame(Http2Connection.TYPE_WINDOW_UPDATE, 0, streamId, toBytes(payload.length));
+                        }
+                        if ((flags & Http2Connection.FLAG_END_STREAM) != 0) {
+                            onRequest(streamId);
+                        }
+                        break;
+                    case Http2Connection.TYPE_RST_STREAM:
+                        mResetCount.incrementAndGet();
+                        mOutputs.remove(streamId);
+                        break;
+                    case Http2Connection.TYPE_GOAWAY:
+                        throw new IOException("goaway");
+                    default:
+                        break;
+                }
+            }
+
+            void onRequest(int streamId) throws IOException {
+                String path = mPaths.get(streamId);
+                if (path.startsWith("/wait/")) {
+                    // 全てのリクエストが同時に開かれるまで待たせる
+                    mWaiting.add(streamId);
+                    if (mWaiting.size() == CONCURRENT_REQUESTS) {
+                        for (int id : mWaiting) {
+                            respond(id, ("response:" + mPaths.get(id)).getBytes("UTF-8"));
+                        }
+                        mWaiting.clear();
+                    }
+                } else if (path.equals("/echo")) {
+                    respond(streamId, mBodies.get(streamId).toByteArray());
+                } else if (path.equals("/large")) {
+                    byte[] body = new byte[LARGE_RESPONSE_SIZE];
+                    for (int i = 0; i < body.length; ++i) {
+                        body[i] = (byte) i;
+                    }
+                    respond(streamId, body);
+                } else {
+                    respond(streamId, ("response:" + path).getBytes("UTF-8"));
+                }
+            }
+
+            void respond(int streamId, byte[] body) throws IOException {
+                List<String[]> headers = new ArrayList<>();
+                headers.add(new String[]{":status", "200"});
+                headers.add(new String[]{"content-length", String.valueOf(body.length)});
+                headers.add(new String[]{"etag", "\"v1\""});
+                writeFrame(Http2Connection.TYPE_HEADERS, Http2Connection.FLAG_END_HEADERS, streamId, mEncoder.encode(headers));
+                mOutputs.put(streamId, body);
+                mOutputOffsets.put(streamId, 0);
+                pump();
+            }
+
+            /**
+             * ウィンドウの範囲でレスポンスボディを送信する
+             */
+            void pump() throws IOException {
+                Iterator<Map.Entry<Integer, byte[]>> iterator = mOutputs.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    Map.Entry<Integer, byte[]> entry = iterator.next();
+                    int streamId = entry.getKey();
+                    byte[] body = entry.getValue();
+                    int offset = mOutputOffsets.get(streamId);
+                    while (true) {
+                        long window = Math.min(mConnectionWindow, mStreamWindows.get(streamId));
+                        int length = (int) Math.min(Math.min(window, body.length - offset), Http2Connection.DEFAULT_MAX_FRAME_SIZE);
+                        if (length <= 0 && offset < body.length) {
+                            break;
+                        }
+                        boolean last = offset + length == body.length;
+                        writeFrame(Http2Connection.TYPE_DATA, last ? Http2Connection.FLAG_END_STREAM : 0, streamId, Arrays.copyOfRange(body, offset, offset + length));
+                        offset += length;
+                        mConnectionWindow -= length;
+                        mStreamWindows.put(streamId, mStreamWindows.get(streamId) - length);
+                        if (last) {
+                            iterator.remove();
+                            break;
+                        }
+                    }
+                    mOutputOffsets.put(streamId, offset);
+                }
+            }
+
+            void writeFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+                byte[] header = new byte[9];
+                header[0] = (byte) (payload.length >>> 16);
+                header[1] = (byte) (payload.length >>> 8);
+                header[2] = (byte) payload.length;
+                header[3] = (byte) type;
+                header[4] = (byte) flags;
+                System.arraycopy(toBytes(streamId), 0, header, 5, 4);
+                mOutput.write(header);
+                mOutput.write(payload);
+                mOutput.flush();
+            }
+        }
+
+        static byte[] toBytes(int value) {
+            return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+        }
+
+        static int readInt(byte[] buffer, int offset) {
+            return ((buffer[offset] & 0xFF) << 24) | ((buffer[offset + 1] & 0xFF) << 16) | ((buffer[offset + 2] & 0xFF) << 8) | (buffer[offset + 3] & 0xFF);
+        }
+    }
+
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        assertEquals(exchange.getResponseCode(), 200);
+        InputStream is = exchange.getInputStream();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024 * 7];
+        int read;
+        while ((read = is.read(buffer)) > 0) {
+            os.write(buffer, 0, read);
+        }
+        is.close();
+        exchange.disconnect();
+        return os.toByteArray();
+    }
+
+    private static SimpleHttpRequest newRequest(ConnectRequest.Method method) {
+        return new SimpleHttpRequest(method);
+    }
+
+    @Test
+    public void 同時リクエストが1接続に多重化される() throws Exception {
+        LoopbackServer server = new LoopbackServer();
+        ExecutorService executor = Executors.newFixedThreadPool(CONCURRENT_REQUESTS);
+        try {
+            Http2Transport transport = new Http2Transport();
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < CONCURRENT_REQUESTS; ++i) {
+                final String path = "/wait/" + i;
+                results.add(executor.submit((Callable<String>) () -> {
+                    HttpExchange exchange = transport.open(newRequest(ConnectRequest.Method.GET), server.getUrl(path), 1000, 5000);
+                    return new String(readBody(exchange), "UTF-8");
+                }));
+            }
+
+            for (int i = 0; i < CONCURRENT_REQUESTS; ++i) {
+                assertEquals(results.get(i).get(), "response:/wait/" + i);
+            }
+            assertEquals(server.mAcceptCount.get(), 1);
+            assertEquals(transport.getConnectionCount(), 1);
+        } finally {
+            executor.shutdownNow();
+            server.close();
+        }
+    }
+
+    @Test
+    public void ウィンドウを超えるボディを送受信できる() throws Exception {
+        LoopbackServer server = new LoopbackServer();
+        try {
+            Http2Transport transport = new Http2Transport();
+
+            // サーバーの初期ウィンドウ(65535)を超えるリクエストボディ
+            byte[] body = new byte[1024 * 200];
+            for (int i = 0; i < body.length; ++i) {
+                body[i] = (byte) (i * 31);
+            }
+            HttpExchange exchange = transport.open(newRequest(ConnectRequest.Method.POST), server.getUrl("/echo"), 1000, 5000);
+            exchange.addRequestHeader("Content-Length", String.valueOf(body.length));
+            OutputStream os = exchange.openRequestBody(body.length);
+            os.write(body);
+            os.close();
+            assertTrue(Arrays.equals(readBody(exchange), body));
+
+            // クライアントの受信ウィンドウを超えるレスポンスボディ
+            exchange = transport.open(newRequest(ConnectRequest.Method.GET), server.getUrl("/large"), 1000, 5000);
+            byte[] response = readBody(exchange);
+            assertEquals(response.length, LARGE_RESPONSE_SIZE);
+            for (int i = 0; i < response.length; ++i) {
+                assertEquals(response[i], (byte) i);
+            }
+            assertEquals(server.mAcceptCount.get(), 1);
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void 読み残したストリームは中断される() throws Exception {
+        LoopbackServer server = new LoopbackServer();
+        try {
+            Http2Transport transport = new Http2Transport();
+            HttpExchange exchange = transport.open(newRequest(ConnectRequest.Method.GET), server.getUrl("/large"), 1000, 5000);
+            assertEquals(exchange.getResponseCode(), 200);
+            assertEquals(exchange.getResponseHeaders().get(null).get(0), "HTTP/2 200");
+            assertEquals(exchange.getResponseHeaders().get("ETag").get(0), "\"v1\"");
+            assertEquals(exchange.getResponseHeaders().get("Content-Length").get(0), String.valueOf(LARGE_RESPONSE_SIZE));
+            exchange.getInputStream().read();
+            exchange.disconnect();
+
+            // 同じ接続で次のリクエストを処理できる
+            exchange = transport.open(newRequest(ConnectRequest.Method.GET), server.getUrl("/next"), 1000, 5000);
+            assertEquals(new String(readBody(exchange), "UTF-8"), "response:/next");
+            assertEquals(server.mResetCount.get(), 1);
+            assertEquals(server.mAcceptCount.get(), 1);
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void HPACKでヘッダを圧縮できる() throws Exception {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+
+        List<String[]> headers = new ArrayList<>();
+        headers.add(new String[]{":method", "GET"});
+        headers.add(new String[]{":path", "/api/v1/items?page=1"});
+        headers.add(new String[]{"user-agent", "android-net"});
+        headers.add(new String[]{"authorization", "Bearer token"});
+        headers.add(new String[]{"x-request-id", "0123456789abcdef"});
+
+        byte[] first = encoder.encode(headers);
+        byte[] second = encoder.encode(headers);
+        // 2回目は動的テーブルの参照となり小さくなる
+        assertTrue(second.length < first.length);
+
+        for (byte[] block : new byte[][]{first, second}) {
+            List<String[]> decoded = decoder.decode(block);
+            assertEquals(decoded.size(), headers.size());
+            for (int i = 0; i < headers.size(); ++i) {
+                assertTrue(Arrays.equals(decoded.get(i), headers.get(i)));
+            }
+        }
+
+        // テーブルサイズの変更も相手に伝わる
+        encoder.setMaxTableSize(0);
+        List<String[]> decoded = decoder.decode(encoder.encode(headers));
+        assertTrue(Arrays.equals(decoded.get(4), headers.get(4)));
+        assertEquals(decoder.mTable.mEntries.size(), 0);
+    }
+}
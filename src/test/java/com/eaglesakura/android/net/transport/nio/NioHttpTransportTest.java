@@ -0,0 +1,271 @@
+package com.eaglesakura.android.net.transport.nio;
+
+import com.eaglesakura.android.net.UnitTestCase;
+import com.eaglesakura.android.net.request.ConnectRequest;
+import com.eaglesakura.android.net.request.SimpleHttpRequest;
+import com.eaglesakura.android.net.transport.HttpExchange;
+import com.eaglesakura.util.IOUtil;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NioHttpTransportTest extends UnitTestCase {
+
+    /**
+     * ループバックで動作するテスト用HTTP/1.1サーバー
+     */
+    static class LoopbackServer {
+        final ServerSocket mServerSocket;
+
+        final AtomicInteger mAcceptCount = new AtomicInteger();
+
+        LoopbackServer() throws IOException {
+            mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            Thread thread = new Thread(() -> {
+                try {
+                    while (true) {
+                        final Socket socket = mServerSocket.accept();
+                        mAcceptCount.incrementAndGet();
+                        new Thread(() -> handle(socket)).start();
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String getUrl(String path) {
+            return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+        }
+
+        static String readLine(InputStream is) throws IOException {
+            StringBuilder result = new StringBuilder();
+            int c;
+            while ((c = is.read()) >= 0 && c != '\n') {
+                if (c != '\r') {
+                    result.append((char) c);
+                }
+            }
+            return (c < 0 && result.length() == 0) ? null : result.toString();
+        }
+
+        void handle(Socket socket) {
+            try {
+                InputStream is = socket.getInputStream();
+                OutputStream os = socket.getOutputStream();
+                String requestLine;
+                while ((requestLine = readLine(is)) != null) {
+                    int contentLength = 0;
+                    String line;
+                    while (!(line = readLine(is)).isEmpty()) {
+                        if (line.toLowerCase().startsWith("content-length:")) {
+                            contentLength = Integer.parseInt(line.substring(15).trim());
+                        }
+                    }
+                    byte[] body = new byte[contentLength];
+                    for (int offset = 0; offset < contentLength; ) {
+                        offset += is.read(body, offset, contentLength - offset);
+                    }
+
+                    String path = requestLine.split(" ")[1];
+                    if (path.equals("/stall")) {
+                        // 応答せずに切断されるまで待つ
+                        while (is.read() >= 0) {
+                        }
+                        return;
+                    } else if (path.equals("/chunked")) {
+                        os.write(("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n" +
+                                "5\r\nHello\r\n" +
+                                "7;ext=1\r\n, World\r\n" +
+                                "0\r\n\r\n").getBytes("UTF-8"));
+                    } else if (path.equals("/echo")) {
+                        os.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes("UTF-8"));
+                        os.write(body);
+                    } else {
+                        byte[] response = ("response:" + path).getBytes("UTF-8");
+                        os.write(("HTTP/1.1 200 OK\r\nContent-Length: " + response.length + "\r\n\r\n").getBytes("UTF-8"));
+                        os.write(response);
+                    }
+                    os.flush();
+                }
+            } catch (Exception e) {
+                // closed
+            } finally {
+                IOUtil.close(socket);
+            }
+        }
+
+        void close() {
+            IOUtil.close(mServerSocket);
+        }
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        assertEquals(exchange.getResponseCode(), 200);
+        InputStream is = exchange.getInputStream();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] buffer = new byte[3];
+        int read;
+        while ((read = is.read(buffer)) > 0) {
+            os.write(buffer, 0, read);
+        }
+        is.close();
+        exchange.disconnect();
+        return new String(os.toByteArray(), "UTF-8");
+    }
+
+    private static SimpleHttpRequest newRequest(ConnectRequest.Method method) {
+        return new SimpleHttpRequest(method);
+    }
+
+    @Test
+    public void KeepAlive接続が再利用される() throws Exception {
+        LoopbackServer server = new LoopbackServer();
+        try {
+            NioHttpTransport transport = new NioHttpTransport();
+            for (int i = 0; i < 3; ++i) {
+                HttpExchange exchange = transport.open(newRequest(ConnectRequest.Method.GET), server.getUrl("/item/" + i), 1000, 1000);
+                assertEquals(readBody(exchange), "response:/item/" + i);
+            }
+
+            NioConnectionPool pool = transport.getConnectionPool();
+            assertEquals(server.mAcceptCount.get(), 1);
+            assertEquals(pool.getCreatedCount(), 1);
+            assertEquals(pool.getReusedCount(), 2);
+            assertEquals(pool.getIdleConnectionCount(), 1);
+            assertEquals(pool.getActiveConnectionCount(), 0);
+
+            pool.evictAll();
+            assertEquals(pool.getIdleConnectionCount(), 0);
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void chunkedレスポンスを読み込める() throws Exception {
+        LoopbackServer server = new LoopbackServer();
+        try {
+            NioHttpTransport transport = new NioHttpTransport();
+            HttpExchange exchange = transport.open(newRequest(ConnectRequest.Method.GET), server.getUrl("/chunked"), 1000, 1000);
+            assertEquals(readBody(exchange), "Hello, World");
+
+            // 読み切った接続は再利用される
+            exchange = transport.open(newRequest(ConnectRequest.Method.GET), server.getUrl("/next"), 1000, 1000);
+            assertEquals(readBody(exchange), "response:/next");
+            assertEquals(transport.getConnectionPool().getReusedCount(), 1);
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void リクエストボディを送信できる() throws Exception {
+        LoopbackServer server = new LoopbackServer();
+        try {
+            NioHttpTransport transport = new NioHttpTransport();
+            byte[] body = "key=value".getBytes("UTF-8");
+            HttpExchange exchange = transport.open(newRequest(ConnectRequest.Method.POST), server.getUrl("/echo"), 1000, 1000);
+            exchange.addRequestHeader("Content-Length", String.valueOf(body.length));
+            OutputStream os = exchange.openRequestBody(body.length);
+            os.write(body);
+            os.close();
+            assertEquals(readBody(exchange), "key=value");
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void 読み残しのある接続は再利用されない() throws Exception {
+        LoopbackServer server = new LoopbackServer();
+        try {
+            NioHttpTransport transport = new NioHttpTransport();
+            HttpExchange exchange = transport.open(newRequest(ConnectRequest.Method.GET), server.getUrl("/partial"), 1000, 1000);
+            assertEquals(exchange.getResponseCode(), 200);
+            exchange.getInputStream().read();
+            exchange.disconnect();
+
+            assertEquals(transport.getConnectionPool().getIdleConnectionCount(), 0);
+            assertEquals(transport.getConnectionPool().getActiveConnectionCount(), 0);
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void cancelでブロック中の読み込みが中断される() throws Exception {
+        LoopbackServer server = new LoopbackServer();
+        try {
+            NioHttpTransport transport = new NioHttpTransport();
+            final HttpExchange exchange = transport.open(newRequest(ConnectRequest.Method.GET), server.getUrl("/stall"), 1000, 10000);
+
+            new Thread(() -> {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                }
+                exchange.cancel();
+            }).start();
+
+            long startTime = System.currentTimeMillis();
+            try {
+                exchange.getResponseCode();
+                fail();
+            } catch (IOException e) {
+                // 読み込みタイムアウトを待たずに中断される
+                assertTrue(System.currentTimeMillis() - startTime < 5000);
+            }
+            exchange.disconnect();
+            assertEquals(transport.getConnectionPool().getActiveConnectionCount(), 0);
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void 返却された接続は遅れたcancelで閉じられない() throws Exception {
+        LoopbackServer server = new LoopbackServer();
+        try {
+            NioHttpTransport transport = new NioHttpTransport();
+            NioConnectionPool pool = transport.getConnectionPool();
+
+            // disconnect()の前にキャンセルされた接続は、読み切っていても返却しない
+            HttpExchange canceled = transport.open(newRequest(ConnectRequest.Method.GET), server.getUrl("/canceled"), 1000, 1000);
+            assertEquals(canceled.getResponseCode(), 200);
+            InputStream is = canceled.getInputStream();
+            while (is.read() >= 0) {
+            }
+            canceled.cancel();
+            canceled.disconnect();
+            assertEquals(pool.getIdleConnectionCount(), 0);
+            assertEquals(pool.getActiveConnectionCount(), 0);
+
+            // 返却した後のキャンセルは、再利用中の接続に影響しない
+            HttpExchange first = transport.open(newRequest(ConnectRequest.Method.GET), server.getUrl("/first"), 1000, 1000);
+            assertEquals(readBody(first), "response:/first");
+            HttpExchange second = transport.open(newRequest(ConnectRequest.Method.GET), server.getUrl("/second"), 1000, 1000);
+            assertEquals(second.getResponseCode(), 200);
+            first.cancel();
+            assertEquals(readBody(second), "response:/second");
+            assertEquals(pool.getReusedCount(), 1);
+            assertEquals(pool.getIdleConnectionCount(), 1);
+        } finally {
+            server.close();
+        }
+    }
+}